@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.net.wire.FileProgress;
+import com.thelastcrusade.soundstream.net.wire.FileProgressTestUtil;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class StreamingProxyTest {
+
+    private static final int SONG_SIZE      = 200 * 1024;
+    private static final int AVAILABLE_SIZE = 100 * 1024;
+    private static final String NAME        = "partial_song";
+
+    private File file;
+    private FileProgress progress;
+    private StreamingProxy proxy;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("streamingproxy", "");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[SONG_SIZE]);
+        fos.close();
+        //half of the song has come in
+        progress = FileProgressTestUtil.start(file.getCanonicalPath(), SONG_SIZE);
+        FileProgressTestUtil.setAvailable(progress, AVAILABLE_SIZE);
+
+        proxy = new StreamingProxy();
+        proxy.start();
+        url = proxy.addStream(NAME, file.getCanonicalPath());
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        progress.remove();
+        file.delete();
+    }
+
+    /**
+     * A response, read up to the end of the stream.
+     */
+    private static class Response {
+        private String status;
+        private long contentLength = -1;
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+    }
+
+    private Socket get() throws IOException {
+        URL parsed = new URL(url);
+        Socket socket = new Socket(parsed.getHost(), parsed.getPort());
+        OutputStream output = socket.getOutputStream();
+        output.write(("GET " + parsed.getPath() + " HTTP/1.1\r\nHost: " + parsed.getHost() + "\r\n\r\n").getBytes("US-ASCII"));
+        output.flush();
+        return socket;
+    }
+
+    private Response read(Socket socket) throws IOException {
+        Response response = new Response();
+        InputStream input = socket.getInputStream();
+        String line;
+        while ((line = readLine(input)).length() > 0) {
+            if (response.status == null) {
+                response.status = line.substring(line.indexOf(' ') + 1);
+            } else if (line.startsWith("Content-Length: ")) {
+                response.contentLength = Long.parseLong(line.substring("Content-Length: ".length()));
+            }
+        }
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            response.body.write(buffer, 0, read);
+        }
+        socket.close();
+        return response;
+    }
+
+    private String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void testStreamStalls() throws IOException {
+        proxy.setStallTimeout(200);
+
+        //the rest of the song never comes...the stream is cut off, so the player ends the song
+        long start = System.currentTimeMillis();
+        Response response = read(get());
+        assertEquals("200 OK", response.status);
+        assertEquals(SONG_SIZE, response.contentLength);
+        assertEquals(AVAILABLE_SIZE, response.body.size());
+        assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+    }
+
+    @Test
+    public void testStreamRemoved() throws Exception {
+        //the song is removed while it is being played (e.g. the download failed)...
+        final Socket socket = get();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                proxy.removeStream(NAME);
+                progress.remove();
+            }
+        }).start();
+        Response response = read(socket);
+        assertEquals("200 OK", response.status);
+        assertEquals(AVAILABLE_SIZE, response.body.size());
+
+        //...and can't be played again
+        response = read(get());
+        assertEquals("404 Not Found", response.status);
+        assertEquals(0, response.body.size());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class SongHashCacheTest {
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("songhashes", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    private File writeSong(String name, byte[] data) throws IOException {
+        File file = new File(folder, name);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        return file;
+    }
+
+    @Test
+    public void testComputeHash() throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        File song = writeSong("song.mp3", data);
+        File copy = writeSong("copy.mp3", data);
+        long hash = SongHashCache.computeHash(song);
+        assertTrue(hash != SongMetadata.UNKNOWN_HASH);
+        //copies have the same hash, wherever they are
+        assertEquals(hash, SongHashCache.computeHash(copy));
+
+        //a change anywhere in the file changes the hash
+        for (int position : new int[] {0, 100 * 1000, data.length / 2 + 1, data.length - 1}) {
+            data[position]++;
+            assertFalse(hash == SongHashCache.computeHash(writeSong("changed.mp3", data)));
+            data[position]--;
+        }
+        assertEquals(hash, SongHashCache.computeHash(writeSong("changed.mp3", data)));
+
+        //as does a change in size
+        byte[] longer = new byte[data.length + 1];
+        System.arraycopy(data, 0, longer, 0, data.length);
+        assertFalse(hash == SongHashCache.computeHash(writeSong("longer.mp3", longer)));
+    }
+
+    @Test
+    public void testPersistAcrossRestarts() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        File song = writeSong("song.mp3", data);
+        File index = new File(folder, "hashes.idx");
+        SongHashCache cache = new SongHashCache(index);
+        long hash = cache.getHash(song);
+        assertEquals(SongHashCache.computeHash(song), hash);
+        cache.save();
+
+        //a new cache (e.g. after a restart) has the hash, and doesn't change the index
+        cache = new SongHashCache(index);
+        cache.load();
+        long indexModified = index.lastModified();
+        assertEquals(hash, cache.getHash(song));
+        cache.save();
+        assertEquals(indexModified, index.lastModified());
+
+        //the hash is recomputed when the file changes
+        data[0]++;
+        writeSong("song.mp3", data);
+        song.setLastModified(song.lastModified() + 2000);
+        assertEquals(SongHashCache.computeHash(song), cache.getHash(song));
+
+        //files no longer in the library are forgotten
+        cache.retainAll(Collections.<String>emptySet());
+        cache.save();
+        cache = new SongHashCache(index);
+        cache.load();
+        song.delete();
+        assertEquals(SongMetadata.UNKNOWN_HASH, cache.getHash(song));
+    }
+}
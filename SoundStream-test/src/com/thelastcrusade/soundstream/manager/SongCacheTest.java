@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class SongCacheTest {
+
+    private static final int SONG_SIZE = 100;
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("songcache", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    private SongMetadata createSong(int id) {
+        return new SongMetadata(id, "Title " + id, "Artist", "Album", SONG_SIZE, "00:11:22:33:44:55");
+    }
+
+    private void putSong(SongCache cache, SongMetadata song) throws IOException {
+        File file = new File(folder, "song_" + song.getId() + ".mp3");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[(int) song.getFileSize()]);
+        fos.close();
+        cache.put(song, file);
+    }
+
+    @Test
+    public void testPersistAcrossRestarts() throws IOException {
+        SongCache cache = new SongCache(folder, 10 * SONG_SIZE);
+        SongMetadata song1 = createSong(1);
+        SongMetadata song2 = createSong(2);
+        putSong(cache, song1);
+        putSong(cache, song2);
+        assertEquals(2 * SONG_SIZE, cache.getCachedBytes());
+
+        //a new cache (e.g. after a restart) finds the songs
+        cache = new SongCache(folder, 10 * SONG_SIZE);
+        cache.load();
+        assertEquals(2 * SONG_SIZE, cache.getCachedBytes());
+        assertNotNull(cache.get(song1));
+        assertNotNull(cache.get(song2));
+
+        //a song with a different size is a different song
+        SongMetadata changed = new SongMetadata(1, "Title 1", "Artist", "Album", SONG_SIZE + 1, "00:11:22:33:44:55");
+        assertNull(cache.get(changed));
+
+        //songs that are missing are dropped
+        new File(folder, "song_2.mp3").delete();
+        assertNull(cache.get(song2));
+        cache = new SongCache(folder, 10 * SONG_SIZE);
+        cache.load();
+        assertEquals(SONG_SIZE, cache.getCachedBytes());
+    }
+
+    @Test
+    public void testMakeRoom() throws IOException {
+        SongCache cache = new SongCache(folder, 5 * SONG_SIZE);
+        List<SongMetadata> playlist = new ArrayList<SongMetadata>();
+        for (int i = 1; i <= 5; i++) {
+            SongMetadata song = createSong(i);
+            putSong(cache, song);
+            //song 5 is not in the playlist
+            if (i < 5) {
+                playlist.add(song);
+            }
+        }
+
+        List<String> evicted = new ArrayList<String>();
+        //nothing to evict if there is room
+        cache = new SongCache(folder, 6 * SONG_SIZE);
+        cache.load();
+        assertTrue(cache.makeRoom(SONG_SIZE, playlist, 3, evicted));
+        assertTrue(evicted.isEmpty());
+
+        //songs 1-2 are played, 3 is playing, 4 is next; song 5 is not in the playlist
+        cache = new SongCache(folder, 5 * SONG_SIZE);
+        cache.load();
+        assertTrue(cache.makeRoom(2 * SONG_SIZE, playlist, 3, evicted));
+        assertEquals(Arrays.asList(SongCache.getKey(createSong(5)), SongCache.getKey(createSong(1))), evicted);
+        assertNull(cache.get(createSong(1)));
+        assertNotNull(cache.get(createSong(2)));
+
+        //the song playing and the upcoming songs are never evicted
+        evicted.clear();
+        assertFalse(cache.makeRoom(4 * SONG_SIZE, playlist, 3, evicted));
+        assertEquals(Arrays.asList(SongCache.getKey(createSong(2))), evicted);
+        assertNotNull(cache.get(createSong(3)));
+        assertNotNull(cache.get(createSong(4)));
+    }
+
+    @Test
+    public void testLastUsedAcrossRestarts() throws Exception {
+        SongCache cache = new SongCache(folder, 3 * SONG_SIZE);
+        for (int i = 1; i <= 3; i++) {
+            putSong(cache, createSong(i));
+            Thread.sleep(5);
+        }
+        //song 1 is played again, so song 2 is now the least recently used
+        assertNotNull(cache.get(createSong(1)));
+
+        //the last use is kept across restarts
+        cache = new SongCache(folder, 3 * SONG_SIZE);
+        cache.load();
+        List<String> evicted = new ArrayList<String>();
+        assertTrue(cache.makeRoom(SONG_SIZE, new ArrayList<SongMetadata>(), 0, evicted));
+        assertEquals(Arrays.asList(SongCache.getKey(createSong(2))), evicted);
+    }
+
+    @Test
+    public void testFindCopyByHash() throws IOException {
+        SongCache cache = new SongCache(folder, 10 * SONG_SIZE);
+        SongMetadata song = createSong(1);
+        song.setContentHash(42);
+        putSong(cache, song);
+
+        //the same song from another guest is found by its hash...
+        SongMetadata copy = new SongMetadata(7, "Title 1", "Artist", "Album", SONG_SIZE, "66:77:88:99:AA:BB");
+        copy.setContentHash(42);
+        assertTrue(cache.contains(copy));
+        assertEquals(cache.get(song), cache.get(copy));
+
+        //...but not songs that are not hashed, or have a different hash
+        copy.setContentHash(SongMetadata.UNKNOWN_HASH);
+        assertNull(cache.get(copy));
+        copy.setContentHash(43);
+        assertNull(cache.get(copy));
+
+        //the hashes are kept across restarts
+        cache = new SongCache(folder, 10 * SONG_SIZE);
+        cache.load();
+        copy.setContentHash(42);
+        assertNotNull(cache.get(copy));
+
+        //a copy upcoming in the playlist is protected
+        List<String> evicted = new ArrayList<String>();
+        cache = new SongCache(folder, SONG_SIZE);
+        cache.load();
+        assertFalse(cache.makeRoom(SONG_SIZE, Arrays.asList(copy), 0, evicted));
+        assertTrue(evicted.isEmpty());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+import com.thelastcrusade.soundstream.net.message.RequestSongMessage;
+import com.thelastcrusade.soundstream.net.wire.PartialFile;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class SongDownloadTest {
+
+    private static final int CHUNK_SIZE  = FileManifest.DEFAULT_CHUNK_SIZE;
+    private static final int CHUNK_COUNT = 10;
+    private static final int FILE_LENGTH = CHUNK_COUNT * CHUNK_SIZE - 100;
+
+    private PartialFile createPartialFile() {
+        return new PartialFile(new File("partial_test"), new FileManifest(FILE_LENGTH, CHUNK_SIZE, new int[CHUNK_COUNT]));
+    }
+
+    private void receive(PartialFile partialFile, SongDownload.Request request) {
+        int end = request.length == RequestSongMessage.TO_END ? FILE_LENGTH : request.offset + request.length;
+        for (int offset = request.offset; offset < end; offset += CHUNK_SIZE) {
+            partialFile.setVerified(offset / CHUNK_SIZE, true);
+        }
+    }
+
+    @Test
+    public void testOneSource() {
+        SongDownload download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("A", 1);
+        List<SongDownload.Request> requests = download.start(null);
+        //the whole song is asked for at once
+        assertEquals(1, requests.size());
+        assertEquals("A", requests.get(0).address);
+        assertEquals(0, requests.get(0).offset);
+        assertEquals(RequestSongMessage.TO_END, requests.get(0).length);
+
+        //the transfer is cut short, with a bad chunk...the rest is asked for, one gap at a time
+        PartialFile partialFile = createPartialFile();
+        for (int i = 0; i < 6; i++) {
+            partialFile.setVerified(i, i != 2);
+        }
+        requests = download.received("A", partialFile);
+        assertEquals(1, requests.size());
+        assertEquals(2 * CHUNK_SIZE, requests.get(0).offset);
+        assertEquals(CHUNK_SIZE, requests.get(0).length);
+
+        receive(partialFile, requests.get(0));
+        requests = download.received("A", partialFile);
+        assertEquals(1, requests.size());
+        assertEquals(6 * CHUNK_SIZE, requests.get(0).offset);
+        assertEquals(RequestSongMessage.TO_END, requests.get(0).length);
+
+        receive(partialFile, requests.get(0));
+        assertTrue(download.received("A", partialFile).isEmpty());
+        assertTrue(download.isComplete());
+        assertTrue(download.isIdle());
+    }
+
+    @Test
+    public void testSeveralSources() {
+        SongDownload download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("A", 1);
+        download.addSource("B", 7);
+        List<SongDownload.Request> requests = download.start(null);
+        //each source is asked for its own segment, from the start of the song
+        assertEquals(2, requests.size());
+        SongDownload.Request fromA = requests.get(0);
+        SongDownload.Request fromB = requests.get(1);
+        assertEquals(1, fromA.songId);
+        assertEquals(0, fromA.offset);
+        assertEquals(SongDownload.SEGMENT_CHUNKS * CHUNK_SIZE, fromA.length);
+        assertEquals(7, fromB.songId);
+        assertEquals(SongDownload.SEGMENT_CHUNKS * CHUNK_SIZE, fromB.offset);
+
+        //B is faster, and is asked for the next segment as soon as it is done,
+        // which is the last segment (the rest of the song)
+        PartialFile partialFile = createPartialFile();
+        receive(partialFile, fromB);
+        requests = download.received("B", partialFile);
+        assertEquals(1, requests.size());
+        assertEquals("B", requests.get(0).address);
+        assertEquals(2 * SongDownload.SEGMENT_CHUNKS * CHUNK_SIZE, requests.get(0).offset);
+        assertEquals(RequestSongMessage.TO_END, requests.get(0).length);
+
+        //B leaves...A is asked for its part once A is done
+        assertTrue(download.removeSource("B").isEmpty());
+        receive(partialFile, fromA);
+        requests = download.received("A", partialFile);
+        assertEquals(1, requests.size());
+        assertEquals("A", requests.get(0).address);
+        assertEquals(2 * SongDownload.SEGMENT_CHUNKS * CHUNK_SIZE, requests.get(0).offset);
+
+        receive(partialFile, requests.get(0));
+        assertTrue(download.received("A", partialFile).isEmpty());
+        assertTrue(download.isComplete());
+    }
+
+    @Test
+    public void testSourcesWithDifferentManifests() {
+        SongDownload download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("A", 1);
+        download.addSource("B", 7);
+        List<SongDownload.Request> requests = download.start(null);
+        assertEquals(2, requests.size());
+        SongDownload.Request fromA = requests.get(0);
+        SongDownload.Request fromB = requests.get(1);
+
+        //B's copy of the song is different, so its answer is not used...B is dropped, and the
+        // rest of the song (from B's segment on) is asked of A once A is done
+        assertTrue(download.rejected("B").isEmpty());
+        assertFalse(download.hasSource("B"));
+        assertFalse(download.isFailed());
+        PartialFile partialFile = createPartialFile();
+        receive(partialFile, fromA);
+        requests = download.received("A", partialFile);
+        assertEquals(1, requests.size());
+        assertEquals("A", requests.get(0).address);
+        assertEquals(fromB.offset, requests.get(0).offset);
+        assertEquals(RequestSongMessage.TO_END, requests.get(0).length);
+
+        receive(partialFile, requests.get(0));
+        assertTrue(download.received("A", partialFile).isEmpty());
+        assertTrue(download.isComplete());
+
+        //with no other source, the download fails
+        download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("B", 7);
+        assertEquals(1, download.start(null).size());
+        assertTrue(download.rejected("B").isEmpty());
+        assertTrue(download.isFailed());
+        assertTrue(download.isIdle());
+    }
+
+    @Test
+    public void testStartComplete() {
+        PartialFile partialFile = createPartialFile();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            partialFile.setVerified(i, true);
+        }
+        SongDownload download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("A", 1);
+        download.addSource("B", 2);
+
+        //the song is already here...nothing is asked of the sources
+        assertTrue(download.start(partialFile).isEmpty());
+        assertTrue(download.isComplete());
+        assertTrue(download.isIdle());
+    }
+
+    @Test
+    public void testResumeAndGiveUp() {
+        PartialFile partialFile = createPartialFile();
+        for (int i = 0; i < CHUNK_COUNT - 1; i++) {
+            partialFile.setVerified(i, true);
+        }
+        SongDownload download = new SongDownload("partial_test", FILE_LENGTH);
+        download.addSource("A", 1);
+        List<SongDownload.Request> requests = download.start(partialFile);
+        assertEquals(1, requests.size());
+        assertEquals((CHUNK_COUNT - 1) * CHUNK_SIZE, requests.get(0).offset);
+
+        //the last chunk keeps coming in bad
+        for (int i = 0; i < SongDownload.MAX_CHUNK_RETRIES; i++) {
+            assertEquals(1, download.received("A", partialFile).size());
+            assertFalse(download.isFailed());
+        }
+        assertTrue(download.received("A", partialFile).isEmpty());
+        assertTrue(download.isFailed());
+        assertTrue(download.isIdle());
+    }
+}
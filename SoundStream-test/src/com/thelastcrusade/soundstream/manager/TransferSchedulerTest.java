@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class TransferSchedulerTest {
+
+    private static final long BYTES_PER_SECOND = 1000;
+    private static final long SONG_SIZE        = 180 * BYTES_PER_SECOND;
+
+    private static final String GUEST       = "00:11:22:33:44:55";
+    private static final String OTHER_GUEST = "00:11:22:33:44:66";
+
+    private PlaylistEntry createEntry(long id, String macAddress) {
+        return new PlaylistEntry(new SongMetadata(id, "Song " + id, "Artist", "Album", SONG_SIZE, macAddress));
+    }
+
+    private List<PlaylistEntry> createPlaylist(int count, String macAddress) {
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        for (int i = 0; i < count; i++) {
+            playlist.add(createEntry(i, macAddress));
+        }
+        return playlist;
+    }
+
+    private void start(TransferScheduler scheduler, TransferScheduler.Plan plan) {
+        for (PlaylistEntry entry : plan.toPause) {
+            scheduler.paused(entry);
+        }
+        for (PlaylistEntry entry : plan.toStart) {
+            scheduler.started(entry);
+        }
+    }
+
+    @Test
+    public void testDeadlines() {
+        List<PlaylistEntry> playlist = createPlaylist(5, GUEST);
+        TransferScheduler scheduler = new TransferScheduler(BYTES_PER_SECOND);
+        //the second song is playing
+        scheduler.setPlaylist(playlist, 2);
+        assertEquals(Long.MAX_VALUE, scheduler.getDeadline(playlist.get(0)));
+        assertEquals(0,   scheduler.getDeadline(playlist.get(1)));
+        assertEquals(0,   scheduler.getDeadline(playlist.get(2)));
+        assertEquals(180, scheduler.getDeadline(playlist.get(3)));
+        assertEquals(360, scheduler.getDeadline(playlist.get(4)));
+        assertEquals(Long.MAX_VALUE, scheduler.getDeadline(createEntry(5, GUEST)));
+    }
+
+    @Test
+    public void testTransfersPerGuest() {
+        List<PlaylistEntry> playlist = createPlaylist(4, GUEST);
+        playlist.add(createEntry(4, OTHER_GUEST));
+        TransferScheduler scheduler = new TransferScheduler(BYTES_PER_SECOND);
+        scheduler.setPlaylist(playlist, 0);
+        for (PlaylistEntry entry : playlist) {
+            scheduler.add(entry);
+        }
+        TransferScheduler.Plan plan = scheduler.schedule();
+        assertEquals(Arrays.asList(playlist.get(0), playlist.get(1), playlist.get(4)), plan.toStart);
+        assertTrue(plan.toPause.isEmpty());
+        start(scheduler, plan);
+
+        //nothing more until a song is in
+        assertTrue(scheduler.schedule().toStart.isEmpty());
+        scheduler.remove(playlist.get(0));
+        plan = scheduler.schedule();
+        assertEquals(Arrays.asList(playlist.get(2)), plan.toStart);
+        assertTrue(plan.toPause.isEmpty());
+    }
+
+    @Test
+    public void testBumpedSongWins() {
+        List<PlaylistEntry> playlist = createPlaylist(25, GUEST);
+        TransferScheduler scheduler = new TransferScheduler(BYTES_PER_SECOND);
+        scheduler.setPlaylist(playlist, 1);
+        for (PlaylistEntry entry : playlist) {
+            scheduler.add(entry);
+        }
+        start(scheduler, scheduler.schedule());
+
+        //the first song is playing (from the stream) when the last song is bumped to be next
+        playlist.get(0).setFilePath("http://127.0.0.1/partial");
+        List<PlaylistEntry> bumped = new ArrayList<PlaylistEntry>(playlist);
+        bumped.add(1, bumped.remove(24));
+        scheduler.setPlaylist(bumped, 1);
+        TransferScheduler.Plan plan = scheduler.schedule();
+        assertEquals(Arrays.asList(playlist.get(24)), plan.toStart);
+        assertEquals(Arrays.asList(playlist.get(1)), plan.toPause);
+        start(scheduler, plan);
+
+        //the paused song is next in line
+        scheduler.remove(playlist.get(0));
+        plan = scheduler.schedule();
+        assertEquals(Arrays.asList(playlist.get(1)), plan.toStart);
+        assertTrue(plan.toPause.isEmpty());
+    }
+
+    @Test
+    public void testRemoveGuest() {
+        List<PlaylistEntry> playlist = createPlaylist(3, GUEST);
+        playlist.add(createEntry(3, OTHER_GUEST));
+        TransferScheduler scheduler = new TransferScheduler(BYTES_PER_SECOND);
+        scheduler.setPlaylist(playlist, 0);
+        for (PlaylistEntry entry : playlist) {
+            scheduler.add(entry);
+        }
+        start(scheduler, scheduler.schedule());
+
+        assertEquals(Arrays.asList(playlist.get(2)), scheduler.removeGuest(GUEST));
+        assertFalse(scheduler.contains(playlist.get(0)));
+        assertTrue(scheduler.contains(playlist.get(3)));
+        assertTrue(scheduler.schedule().toStart.isEmpty());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thelastcrusade.soundstream.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for applying the operations recorded by a host's playlist to a
+ * guest's copy of the playlist.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class PlaylistTest {
+
+    private static final String HOST  = "00:11:22:33:44:55";
+    private static final String GUEST = "00:11:22:33:44:66";
+
+    private Playlist host;
+    private Playlist guest;
+
+    @Before
+    public void setUp() {
+        host = new Playlist();
+        for (int i = 0; i < 4; i++) {
+            host.add(createEntry(i, i % 2 == 0 ? HOST : GUEST, i));
+        }
+        host.setTrackChanges(true);
+        //turning on change tracking requires a snapshot
+        assertNull(host.takeOperations());
+
+        guest = new Playlist();
+        guest.load(copyEntries(host.getSongsToPlay()), host.getVersion());
+        assertPlaylistEquals(host, guest);
+    }
+
+    private PlaylistEntry createEntry(long id, String macAddress, int entryId) {
+        SongMetadata song = new SongMetadata(id, "Song " + id, "Artist", "Album", 3000000, macAddress);
+        return new PlaylistEntry(song, true, false, "/sdcard/Music/" + id + ".mp3", entryId);
+    }
+
+    private PlaylistEntry copyEntry(PlaylistEntry entry, boolean loaded, boolean played) {
+        return new PlaylistEntry(entry, loaded, played, entry.getFilePath(), entry.getEntryId());
+    }
+
+    private List<PlaylistEntry> copyEntries(List<PlaylistEntry> entries) {
+        List<PlaylistEntry> copies = new ArrayList<PlaylistEntry>();
+        for (PlaylistEntry entry : entries) {
+            copies.add(copyEntry(entry, entry.isLoaded(), entry.isPlayed()));
+        }
+        return copies;
+    }
+
+    /**
+     * Copy the operations, as they would be after being sent to a guest, so the
+     * guest does not share entries with the host.
+     */
+    private List<PlaylistOperation> copyOperations(List<PlaylistOperation> operations) {
+        List<PlaylistOperation> copies = new ArrayList<PlaylistOperation>();
+        for (PlaylistOperation operation : operations) {
+            PlaylistEntry entry = copyEntry(operation.getEntry(), operation.isLoaded(), operation.isPlayed());
+            copies.add(new PlaylistOperation(operation.getType(), entry, operation.getPosition(),
+                    operation.isLoaded(), operation.isPlayed()));
+        }
+        return copies;
+    }
+
+    /**
+     * Send the host's changes since the last call to the guest.
+     * 
+     * @return The result of applying the changes to the guest playlist.
+     */
+    private boolean sendChanges() {
+        List<PlaylistOperation> operations = host.takeOperations();
+        return guest.applyOperations(host.getVersion() - operations.size(), copyOperations(operations));
+    }
+
+    /**
+     * NOTE: only the host keeps track of the play position, so that is not compared.
+     */
+    private void assertPlaylistEquals(Playlist expected, Playlist actual) {
+        List<PlaylistEntry> expectedEntries = expected.getSongsToPlay();
+        List<PlaylistEntry> actualEntries   = actual.getSongsToPlay();
+        assertEquals(expectedEntries.size(), actualEntries.size());
+        for (int i = 0; i < expectedEntries.size(); i++) {
+            PlaylistEntry e = expectedEntries.get(i);
+            PlaylistEntry a = actualEntries.get(i);
+            assertEquals(e.getMacAddress(), a.getMacAddress());
+            assertEquals(e.getId(),         a.getId());
+            assertEquals(e.getEntryId(),    a.getEntryId());
+            assertEquals(e.isLoaded(),      a.isLoaded());
+            assertEquals(e.isPlayed(),      a.isPlayed());
+        }
+        assertEquals(expected.getVersion(),  actual.getVersion());
+    }
+
+    @Test
+    public void testInsert() {
+        PlaylistEntry entry = createEntry(10, GUEST, 10);
+        entry.setLoaded(false);
+        host.add(entry);
+        assertTrue(sendChanges());
+        assertPlaylistEquals(host, guest);
+        assertFalse(guest.getSongsToPlay().get(4).isLoaded());
+    }
+
+    @Test
+    public void testRemove() {
+        host.remove(host.getSongsToPlay().get(1));
+        host.removeSongsByMac(HOST);
+        //the loaded songs are not removed
+        assertEquals(3, host.size());
+
+        assertTrue(sendChanges());
+        assertPlaylistEquals(host, guest);
+    }
+
+    @Test
+    public void testMove() {
+        host.bumpSong(host.getSongsToPlay().get(3));
+        //moves the first song into the played songs
+        host.getNextAvailableSong();
+        assertEquals(1, host.getPosition());
+
+        assertTrue(sendChanges());
+        assertPlaylistEquals(host, guest);
+        assertEquals(3, guest.getSongsToPlay().get(0).getId());
+    }
+
+    @Test
+    public void testStatus() {
+        PlaylistEntry entry = host.getSongsToPlay().get(2);
+        host.setStatus(entry, false, true);
+
+        assertTrue(sendChanges());
+        assertPlaylistEquals(host, guest);
+        assertFalse(guest.getSongsToPlay().get(2).isLoaded());
+        assertTrue(guest.getSongsToPlay().get(2).isPlayed());
+    }
+
+    @Test
+    public void testAlreadyApplied() {
+        host.add(createEntry(10, GUEST, 10));
+        host.bumpSong(host.getSongsToPlay().get(4));
+        List<PlaylistOperation> operations = host.takeOperations();
+        int baseVersion = host.getVersion() - operations.size();
+        assertTrue(guest.applyOperations(baseVersion, copyOperations(operations)));
+        assertPlaylistEquals(host, guest);
+
+        //the same changes again (e.g. sent before a snapshot that already has them) change nothing
+        assertTrue(guest.applyOperations(baseVersion, copyOperations(operations)));
+        assertPlaylistEquals(host, guest);
+        assertTrue(guest.applyOperations(baseVersion, copyOperations(operations.subList(0, 1))));
+        assertPlaylistEquals(host, guest);
+    }
+
+    @Test
+    public void testMissingChanges() {
+        //the guest misses the first change
+        host.add(createEntry(10, GUEST, 10));
+        host.takeOperations();
+        host.remove(host.getSongsToPlay().get(0));
+        int beforeVersion = guest.getVersion();
+        assertFalse(sendChanges());
+
+        //nothing is applied, and the guest needs a snapshot
+        assertEquals(beforeVersion, guest.getVersion());
+        assertEquals(4, guest.size());
+        guest.load(copyEntries(host.getSongsToPlay()), host.getVersion());
+        assertPlaylistEquals(host, guest);
+
+        //changes after the snapshot apply as usual
+        host.setStatus(host.getSongsToPlay().get(0), false, false);
+        assertTrue(sendChanges());
+        assertPlaylistEquals(host, guest);
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
+import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.message.LibraryMessage;
+import com.thelastcrusade.soundstream.net.message.PauseMessage;
+import com.thelastcrusade.soundstream.net.message.PlayMessage;
+import com.thelastcrusade.soundstream.net.message.PlaylistMessage;
+import com.thelastcrusade.soundstream.net.message.SongStatusMessage;
+import com.thelastcrusade.soundstream.net.message.TransferSongMessage;
+import com.thelastcrusade.soundstream.net.wire.Messenger;
+import com.thelastcrusade.soundstream.net.wire.PacketFormat;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class ConnectionWriterTest {
+
+    private static final int SONG_SIZE    = 512 * 1024;
+    private static final int LIBRARY_SIZE = 3000;
+    private static final int BURST_SIZE   = 50;
+    //small enough to fit in one batch
+    private static final int SMALL_BURST_SIZE = 20;
+
+    /**
+     * Counts the bytes and the writes to the connection.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+        private int writes;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            count++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            this.count += count;
+            writes++;
+        }
+    }
+
+    /**
+     * A message future that records how many bytes were written by the time
+     * the message finished.
+     */
+    private static class TestFuture extends MessageFuture {
+        private CountingOutputStream out;
+        private long enqueuedAt;
+        private long finishedAt = -1;
+
+        public TestFuture(CountingOutputStream out) {
+            this.out        = out;
+            this.enqueuedAt = out.count;
+        }
+
+        @Override
+        public void cancel() throws IOException {
+        }
+
+        @Override
+        public void setFinished(boolean finished) {
+            super.setFinished(finished);
+            this.finishedAt = out.count;
+        }
+
+        public long getLatency() {
+            return finishedAt - enqueuedAt;
+        }
+    }
+
+    private File folder;
+    private CountingOutputStream out;
+    private ConnectionWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("connectionwriter", "");
+        folder.delete();
+        folder.mkdirs();
+        out    = new CountingOutputStream();
+        writer = new ConnectionWriter(new Messenger(folder), out);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    private TestFuture enqueue(IMessage message) throws IOException {
+        TestFuture future = new TestFuture(out);
+        writer.enqueue(message, future);
+        return future;
+    }
+
+    private TransferSongMessage createTransfer(long songId) throws IOException {
+        byte[] data = new byte[SONG_SIZE];
+        new Random(songId).nextBytes(data);
+        File file = new File(folder, "song" + songId);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        return new TransferSongMessage(songId, file.getName(), file.getCanonicalPath());
+    }
+
+    private PlaylistEntry createEntry(int i) {
+        return new PlaylistEntry(new SongMetadata(i, "Song Title Number " + i, "Artist " + (i % 300),
+                "Album " + (i % 1200), 3000000 + i, "00:11:22:33:44:55"), false, false, null, i);
+    }
+
+    private LibraryMessage createLibrary() {
+        List<SongMetadata> library = new ArrayList<SongMetadata>();
+        for (int i = 0; i < LIBRARY_SIZE; i++) {
+            library.add(new SongMetadata(i, "Song Title Number " + i, "Artist " + (i % 300),
+                    "Album " + (i % 1200), 3000000 + i, "00:11:22:33:44:55"));
+        }
+        return new LibraryMessage(library);
+    }
+
+    @Test
+    public void testControlLatencyWithMixedTraffic() throws IOException {
+        TestFuture firstSong  = enqueue(createTransfer(1));
+        TestFuture secondSong = enqueue(createTransfer(2));
+        TestFuture library    = enqueue(createLibrary());
+
+        //send play messages while the songs and library are being sent
+        List<TestFuture> controls = new ArrayList<TestFuture>();
+        int writes = 0;
+        while (writer.canWrite()) {
+            if (writes++ % 7 == 0 && !secondSong.isFinished()) {
+                controls.add(enqueue(new PlayMessage()));
+            }
+            writer.writeOne();
+        }
+        assertTrue(controls.size() > 100);
+
+        //the control messages never wait more than a turn of the other classes
+        long packet = 4096 + PacketFormat.getOverhead();
+        long bound  = TrafficClass.STATE.getQuantum() + TrafficClass.BULK.getQuantum() + 3 * packet;
+        long worst  = 0;
+        for (TestFuture control : controls) {
+            assertTrue(control.isFinished());
+            worst = Math.max(worst, control.getLatency());
+        }
+        assertTrue("worst control latency " + worst + " bytes, bound " + bound + " bytes", worst <= bound);
+
+        //the library is not starved by the songs, and the songs are sent in order
+        assertTrue(library.finishedAt < firstSong.finishedAt);
+        assertTrue(firstSong.finishedAt < secondSong.finishedAt);
+        assertTrue(secondSong.finishedAt - firstSong.finishedAt >= SONG_SIZE);
+    }
+
+    @Test
+    public void testAwaitWork() throws Exception {
+        final boolean[] work = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    work[0] = writer.awaitWork();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.start();
+        //the writer waits until a message is enqueued
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+        TestFuture future = enqueue(new PlayMessage());
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+        assertTrue(work[0]);
+
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        assertTrue(future.isFinished());
+        //and is woken up without any work to do, to stop
+        writer.wakeUp();
+        assertFalse(writer.awaitWork());
+    }
+
+    @Test
+    public void testSupersedeStateBurst() throws IOException {
+        //agree on the messenger version, so the playlist versions are sent
+        Messenger sender   = new Messenger(folder);
+        Messenger receiver = new Messenger(folder);
+        sender.deserializeMessage(receiver.serializeConnectionSettings());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer = new ConnectionWriter(sender, bytes);
+
+        //a playlist message that has started sending is not superseded
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        for (int i = 0; i < 200; i++) {
+            playlist.add(createEntry(i));
+        }
+        TestFuture started = enqueue(new PlaylistMessage(0, playlist));
+        writer.writeOne();
+        assertTrue(writer.canWrite());
+
+        //add songs one at a time, and update the status of two songs back and forth
+        List<TestFuture> futures = new ArrayList<TestFuture>();
+        for (int i = 1; i <= BURST_SIZE; i++) {
+            playlist.add(createEntry(200 + i));
+            futures.add(enqueue(new PlaylistMessage(i, playlist)));
+            PlaylistEntry entry = playlist.get(i % 2);
+            futures.add(enqueue(new SongStatusMessage(entry.getMacAddress(), entry.getId(), entry.getEntryId(),
+                    i % 3 == 0, false)));
+        }
+        //the first of each kind is queued, and the rest replace it
+        assertEquals(BURST_SIZE - 1 + BURST_SIZE - 2, writer.getSupersededCount());
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        assertTrue(started.isFinished());
+        for (TestFuture future : futures) {
+            assertTrue(future.isFinished());
+        }
+
+        //only the first and latest playlists, and the latest status of each song are received
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes.toByteArray());
+        while (input.available() > 0) {
+            receiver.deserializeMessage(input);
+        }
+        List<Integer> versions = new ArrayList<Integer>();
+        List<SongStatusMessage> statuses = new ArrayList<SongStatusMessage>();
+        for (IMessage message : receiver.getReceivedMessages()) {
+            if (message instanceof PlaylistMessage) {
+                versions.add(((PlaylistMessage) message).getPlaylistVersion());
+            } else {
+                statuses.add((SongStatusMessage) message);
+            }
+        }
+        assertEquals(2, versions.size());
+        assertEquals(0,          (int) versions.get(0));
+        assertEquals(BURST_SIZE, (int) versions.get(1));
+        assertEquals(2, statuses.size());
+        for (SongStatusMessage status : statuses) {
+            //the last status of each entry
+            int last = BURST_SIZE - (BURST_SIZE % 2 == status.getEntryId() ? 0 : 1);
+            assertEquals(last % 3 == 0, status.isLoaded());
+        }
+    }
+
+    @Test
+    public void testCancelInFlight() throws IOException {
+        Messenger sender   = new Messenger(folder);
+        Messenger receiver = new Messenger(folder);
+        sender.deserializeMessage(receiver.serializeConnectionSettings());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer = new ConnectionWriter(sender, bytes);
+        writer.setCoalesceDelay(0);
+        MessageEnqueuer enqueuer = new MessageEnqueuer(writer);
+
+        //start sending a song, and cancel it part way through
+        MessageFuture transfer = enqueuer.enqueueMessage(createTransfer(1));
+        MessageFuture play     = enqueuer.enqueueMessage(new PlayMessage());
+        for (int i = 0; i < 4; i++) {
+            writer.writeOne();
+        }
+        assertFalse(transfer.isFinished());
+        transfer.cancel();
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        assertTrue(play.isFinished());
+        assertTrue(transfer.isFinished());
+        assertTrue(bytes.size() < SONG_SIZE);
+
+        //the receiver drops the partial song, and keeps the other messages
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes.toByteArray());
+        while (input.available() > 0) {
+            receiver.deserializeMessage(input);
+        }
+        assertEquals(0, receiver.getActiveTransferCount());
+        assertEquals(1, receiver.getReceivedMessages().size());
+        assertTrue(receiver.getReceivedMessages().get(0) instanceof PlayMessage);
+    }
+
+    @Test
+    public void testSupersedeKeepsMessageNumbers() throws IOException {
+        Messenger sender   = new Messenger(folder);
+        Messenger receiver = new Messenger(folder);
+        sender.deserializeMessage(receiver.serializeConnectionSettings());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer = new ConnectionWriter(sender, bytes);
+
+        //the second playlist is combined with the first into a new message...
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        List<PlaylistOperation> ops  = new ArrayList<PlaylistOperation>();
+        playlist.add(createEntry(0));
+        ops.add(PlaylistOperation.insert(0, playlist.get(0)));
+        int first = writer.enqueue(new PlaylistMessage(1, ops, playlist), new TestFuture(out));
+        playlist.add(createEntry(1));
+        ops.set(0, PlaylistOperation.insert(1, playlist.get(1)));
+        int second = writer.enqueue(new PlaylistMessage(2, ops, playlist), new TestFuture(out));
+        assertEquals(1, writer.getSupersededCount());
+
+        //...which is sent with the second message's number, so no numbers are skipped
+        int third = writer.enqueue(new PlayMessage(), new TestFuture(out));
+        assertEquals(first + 1, second);
+        assertEquals(second + 1, third);
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes.toByteArray());
+        while (input.available() > 0) {
+            receiver.deserializeMessage(input);
+        }
+        assertEquals(2, receiver.getReceivedMessages().size());
+        PlaylistMessage received = (PlaylistMessage) receiver.getReceivedMessages().get(0);
+        assertEquals(2, received.getPlaylistVersion());
+        assertEquals(2, received.getOperations().size());
+    }
+
+    @Test
+    public void testCoalesceSmallMessages() throws Exception {
+        writer.setCoalesceDelay(100 * 1000 * 1000);
+
+        //a burst of small messages is collected in a batch...
+        List<TestFuture> futures = new ArrayList<TestFuture>();
+        for (int i = 0; i < SMALL_BURST_SIZE; i++) {
+            IMessage message = new SongStatusMessage("00:11:22:33:44:55", i, i, true, false);
+            if (i % 3 == 0) {
+                message = i % 2 == 0 ? new PlayMessage() : new PauseMessage();
+            }
+            futures.add(enqueue(message));
+        }
+        for (int i = 0; i < SMALL_BURST_SIZE; i++) {
+            writer.writeOne();
+        }
+        assertEquals(0, out.count);
+        assertFalse(futures.get(0).isFinished());
+
+        //...and written in one write when the delay is up
+        while (writer.canWrite()) {
+            assertTrue(writer.awaitWork());
+            writer.writeOne();
+        }
+        assertEquals(1, out.writes);
+        assertEquals(SMALL_BURST_SIZE, writer.getCoalescedMessageCount());
+        assertEquals(1,          writer.getCoalescedWriteCount());
+        for (TestFuture future : futures) {
+            assertTrue(future.isFinished());
+        }
+
+        //a bigger message writes the batch first, to keep the messages in order
+        TestFuture play    = enqueue(new PlayMessage());
+        TestFuture library = enqueue(createLibrary());
+        writer.writeOne();
+        assertFalse(play.isFinished());
+        writer.writeOne();
+        assertTrue(play.isFinished());
+        assertTrue(play.finishedAt < out.count);
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        assertTrue(library.isFinished());
+        //NOTE: the end of the library may also be small enough to batch
+        assertTrue(writer.getCoalescedMessageCount() >= SMALL_BURST_SIZE + 1);
+        int coalescedWrites = writer.getCoalescedWriteCount();
+
+        //without a delay, each message is written on its own
+        writer.setCoalesceDelay(0);
+        int writes = out.writes;
+        for (int i = 0; i < 5; i++) {
+            enqueue(new PlayMessage());
+        }
+        while (writer.canWrite()) {
+            writer.writeOne();
+        }
+        assertEquals(writes + 5, out.writes);
+        assertEquals(coalescedWrites, writer.getCoalescedWriteCount());
+    }
+}
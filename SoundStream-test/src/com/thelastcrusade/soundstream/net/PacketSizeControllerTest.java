@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class PacketSizeControllerTest {
+
+    private static final int MIN = 1024;
+    private static final int MAX = 16384;
+
+    /**
+     * Write a window of packets at the current packet size, at the specified throughput.
+     */
+    private void writeWindow(PacketSizeController controller, double bytesPerNano) {
+        int packetSize = controller.getPacketSize(false);
+        for (int ii = 0; ii < 8; ii++) {
+            controller.packetWritten(packetSize, packetSize, (long) (packetSize / bytesPerNano));
+        }
+    }
+
+    @Test
+    public void testSmallPacketsWhenControlPending() {
+        PacketSizeController controller = new PacketSizeController(MIN, MAX, 4096);
+        assertEquals(4096, controller.getPacketSize(false));
+        assertEquals(MIN,  controller.getPacketSize(true));
+    }
+
+    @Test
+    public void testGrowsWhileThroughputHolds() {
+        PacketSizeController controller = new PacketSizeController(MIN, MAX, 4096);
+        writeWindow(controller, 1.0);
+        assertEquals(8192, controller.getPacketSize(false));
+        writeWindow(controller, 1.0);
+        assertEquals(MAX, controller.getPacketSize(false));
+        //never grows past the max
+        writeWindow(controller, 1.0);
+        assertEquals(MAX, controller.getPacketSize(false));
+    }
+
+    @Test
+    public void testBacksOffWhenThroughputDrops() {
+        PacketSizeController controller = new PacketSizeController(MIN, MAX, 4096);
+        writeWindow(controller, 1.0);
+        assertEquals(8192, controller.getPacketSize(false));
+        writeWindow(controller, 0.5);
+        assertEquals(4096, controller.getPacketSize(false));
+    }
+
+    @Test
+    public void testIgnoresPacketsAtOtherSizes() {
+        PacketSizeController controller = new PacketSizeController(MIN, MAX, 4096);
+        //control packets are sent at the min size, and dont count towards the measurement
+        for (int ii = 0; ii < 16; ii++) {
+            controller.packetWritten(MIN, MIN, 1);
+        }
+        assertEquals(4096, controller.getPacketSize(false));
+    }
+
+    @Test
+    public void testSetMaxPacketSize() {
+        PacketSizeController controller = new PacketSizeController(MIN, 4096, 4096);
+        writeWindow(controller, 1.0);
+        assertEquals(4096, controller.getPacketSize(false));
+
+        //negotiated a bigger max packet size
+        controller.setMaxPacketSize(MAX);
+        writeWindow(controller, 1.0);
+        assertEquals(8192, controller.getPacketSize(false));
+
+        //...and a smaller one
+        controller.setMaxPacketSize(2048);
+        assertEquals(2048, controller.getPacketSize(false));
+    }
+}
@@ -27,10 +27,14 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({ AddToPlaylistMessageTest.class,
         BumpSongOnPlaylistMessageTest.class, ConnectGuestsMessageTest.class,
         FindNewGuestsMessageTest.class, FoundGuestsMessageTest.class,
-        LibraryMessageTest.class, MessengerTest.class, PauseMessageTest.class,
+        DataCodecTest.class, LibraryMessageTest.class, MessageFormatTest.class,
+        MessengerTest.class,
+        PauseMessageTest.class,
         PlaylistMessageTest.class, PlayMessageTest.class,
         PlayStatusMessageTest.class, RemoveFromPlaylistMessageTest.class,
-        RequestSongMessageTest.class, SkipMessageTest.class,
+        RequestLibraryMessageTest.class, RequestPlaylistMessageTest.class,
+        RequestSongMessageTest.class, SearchLibraryMessageTest.class,
+        SearchResultsMessageTest.class, SkipMessageTest.class,
         SongStatusMessageTest.class, TransferSongMessageTest.class,
         UserListMessageTest.class })
 public class AllMessageTests {
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * Tests for the data codecs, including the size of the data formats for each
+ * messenger version on large library and playlist messages.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class DataCodecTest {
+
+    private static final int[] INTEGERS = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300,
+        Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+    private static final long[] LONGS = {0, 1, -1, 59916, -59916, 1L << 35,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+    private static final String[] STRINGS = {"a", "Dangerously Delicious", "00:11:22:33:44:55"};
+
+    private static final int LARGE_LIBRARY_SIZE  = 15000;
+    private static final int LARGE_PLAYLIST_SIZE = 500;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (DataCodec codec : new DataCodec[] {DataCodec.LEGACY, DataCodec.COMPACT}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            for (int value : INTEGERS) {
+                codec.writeInteger(value, output);
+            }
+            for (long value : LONGS) {
+                codec.writeLong(value, output);
+            }
+            for (String value : STRINGS) {
+                codec.writeString(value, output);
+            }
+            codec.writeString(null, output);
+            codec.writeBytes(new byte[] {1, 2, 3}, output);
+
+            InputStream input = new ByteArrayInputStream(output.toByteArray());
+            for (int value : INTEGERS) {
+                assertEquals(value, codec.readInteger(input));
+            }
+            for (long value : LONGS) {
+                assertEquals(value, codec.readLong(input));
+            }
+            for (String value : STRINGS) {
+                assertEquals(value, codec.readString(input));
+            }
+            assertNull(codec.readString(input));
+            assertArrayEquals(new byte[] {1, 2, 3}, codec.readBytes(input));
+            assertEquals(0, input.available());
+        }
+    }
+
+    @Test
+    public void testCompactUnicode() throws IOException {
+        //the compact codec always uses UTF-8, regardless of the platform charset
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataCodec.COMPACT.writeString("Mot\u00f6rhead", output);
+        DataCodec.COMPACT.writeString("\u65e5\u672c\u8a9e", output);
+        assertEquals(1 + 10 + 1 + 9, output.size());
+
+        InputStream input = new ByteArrayInputStream(output.toByteArray());
+        assertEquals("Mot\u00f6rhead", DataCodec.COMPACT.readString(input));
+        assertEquals("\u65e5\u672c\u8a9e", DataCodec.COMPACT.readString(input));
+    }
+
+    @Test
+    public void testLegacyFormat() throws IOException {
+        //the legacy codec must write exactly what older versions expect
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataCodec.LEGACY.writeInteger(300, output);
+        DataCodec.LEGACY.writeLong(59916, output);
+        DataCodec.LEGACY.writeString("abc", output);
+        DataCodec.LEGACY.writeString(null, output);
+
+        ByteBuffer expected = ByteBuffer.allocate(4 + 8 + 4 + 3 + 4);
+        expected.putInt(300);
+        expected.order(ByteOrder.LITTLE_ENDIAN).putLong(59916).order(ByteOrder.BIG_ENDIAN);
+        expected.putInt(3).put("abc".getBytes());
+        expected.putInt(0);
+        assertArrayEquals(expected.array(), output.toByteArray());
+    }
+
+    @Test
+    public void testCompactIsSmaller() throws IOException {
+        ByteArrayOutputStream legacy  = new ByteArrayOutputStream();
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        DataCodec.LEGACY.writeInteger(5, legacy);
+        DataCodec.COMPACT.writeInteger(5, compact);
+        DataCodec.LEGACY.writeLong(59916, legacy);
+        DataCodec.COMPACT.writeLong(59916, compact);
+        assertEquals(12, legacy.size());
+        assertEquals(1 + 3, compact.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCompactTruncated() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataCodec.COMPACT.writeString("Dangerously Delicious", output);
+        byte[] bytes = output.toByteArray();
+        DataCodec.COMPACT.readString(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+    }
+
+    @Test
+    public void testLargeBytes() throws IOException {
+        //too big for the codec's scratch buffer
+        byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataCodec.COMPACT.writeBytes(bytes, output);
+        DataCodec.COMPACT.writeString("after", output);
+
+        InputStream input = new ByteArrayInputStream(output.toByteArray());
+        assertArrayEquals(bytes, DataCodec.COMPACT.readBytes(input));
+        assertEquals("after", DataCodec.COMPACT.readString(input));
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        //the codec is shared by every connection...threads writing at once don't mix up their values
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final String string = "thread " + t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            ByteArrayOutputStream output = new ByteArrayOutputStream();
+                            DataCodec.COMPACT.writeString(string, output);
+                            DataCodec.COMPACT.writeLong(i, output);
+                            InputStream input = new ByteArrayInputStream(output.toByteArray());
+                            assertEquals(string, DataCodec.COMPACT.readString(input));
+                            assertEquals(i, DataCodec.COMPACT.readLong(input));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testLengthLongerThanMessage() throws IOException {
+        //a length past the end of the message is rejected before anything is allocated
+        DataCodec[] codecs  = {DataCodec.LEGACY, DataCodec.COMPACT};
+        byte[][]    lengths = {
+                {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF},
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}};
+        for (int c = 0; c < codecs.length; c++) {
+            DataCodec codec = codecs[c];
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(lengths[c]);
+            output.write(new byte[] {1, 2, 3});
+            try {
+                codec.readBytes(new ByteArrayInputStream(output.toByteArray()));
+                fail(codec.getClass().getSimpleName() + " read a length past the end of the message");
+            } catch (EOFException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testLibraryMessageSize() throws Exception {
+        List<SongMetadata> library = new ArrayList<SongMetadata>();
+        for (int i = 0; i < LARGE_LIBRARY_SIZE; i++) {
+            library.add(createSong(i));
+        }
+        LibraryMessage message = new LibraryMessage(library);
+        LibraryMessage received = new LibraryMessage();
+        checkVersionSizes(message, received);
+        assertEquals(library.size(), received.getLibrary().size());
+        SongMetadata last = received.getLibrary().get(library.size() - 1);
+        assertEquals(library.get(library.size() - 1).getTitle(), last.getTitle());
+        assertEquals(library.get(library.size() - 1).getId(),    last.getId());
+    }
+
+    @Test
+    public void testPlaylistMessageSize() throws Exception {
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        for (int i = 0; i < LARGE_PLAYLIST_SIZE; i++) {
+            playlist.add(new PlaylistEntry(createSong(i), i % 2 == 0, i % 3 == 0, "/sdcard/Music/" + i + ".mp3", i));
+        }
+        PlaylistMessage message = new PlaylistMessage(playlist);
+        PlaylistMessage received = new PlaylistMessage();
+        checkVersionSizes(message, received);
+        assertEquals(playlist.size(), received.getSongsToPlay().size());
+        assertEquals(playlist.get(playlist.size() - 1).getEntryId(),
+                received.getSongsToPlay().get(playlist.size() - 1).getEntryId());
+    }
+
+    private SongMetadata createSong(int i) {
+        return new SongMetadata(i * 7, "Song Title Number " + i, "Artist " + (i % 300),
+                "Album " + (i % 1200), 3000000 + i, "00:11:22:33:44:" + (i % 4));
+    }
+
+    /**
+     * Serialize and deserialize a message with each messenger version that
+     * changes the data format, and make sure each version is no bigger than
+     * the last.  The received message is filled in by the last (newest)
+     * deserialize.
+     * 
+     * @param message
+     * @param received
+     * @throws Exception
+     */
+    private void checkVersionSizes(ADataMessage message, ADataMessage received) throws Exception {
+        int[] versions = {MessageFormat.VERSION_TYPE_ID, MessageFormat.VERSION_COMPACT,
+                MessageFormat.VERSION_COLUMNAR_LIBRARY, MessageFormat.VERSION_STREAMING_LIBRARY};
+        int lastSize = Integer.MAX_VALUE;
+        for (int v = 0; v < versions.length; v++) {
+            int version = versions[v];
+            message.setVersion(version);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            message.serialize(output);
+            byte[] bytes = output.toByteArray();
+
+            //only keep the last deserialized message
+            ADataMessage target = v < versions.length - 1 ? newInstance(received) : received;
+            target.setVersion(version);
+            InputStream input = new ByteArrayInputStream(bytes);
+            target.deserialize(input);
+            assertEquals(0, input.available());
+
+            //the compact codec saves at least a fifth, and the other versions only change the
+            // library layout (streaming libraries are slightly bigger, for the block headers)
+            String sizes = message.getClass().getSimpleName() + " version " + version + ": "
+                    + bytes.length + " bytes, previous version " + lastSize + " bytes";
+            if (v == 1) {
+                assertTrue(sizes, bytes.length <= lastSize * 4L / 5);
+            } else if (version == MessageFormat.VERSION_STREAMING_LIBRARY) {
+                assertTrue(sizes, bytes.length < lastSize * 11L / 10);
+            } else {
+                assertTrue(sizes, bytes.length <= lastSize);
+            }
+            lastSize = bytes.length;
+        }
+    }
+
+    private ADataMessage newInstance(ADataMessage message) {
+        try {
+            return message.getClass().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -19,15 +19,25 @@
 
 package com.thelastcrusade.soundstream.net.message;
 
+import static com.thelastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.util.InputBuffer;
 
 public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
 	
@@ -50,6 +60,175 @@ public class LibraryMessageTest extends SerializationTest<LibraryMessage> {
 		}
 	}
 
+	@Test
+	public void testColumnarLibrary() throws Exception {
+		List<SongMetadata> library = populateTestLibrary();
+		byte[] rowBytes     = serialize(new LibraryMessage(library), MessageFormat.VERSION_COMPACT);
+		byte[] columnBytes  = serialize(new LibraryMessage(library), MessageFormat.VERSION_COLUMNAR_LIBRARY);
+		assertTrue(columnBytes.length < rowBytes.length);
+
+		//both layouts must be readable
+		List<SongMetadata> rows    = deserialize(rowBytes).getLibrary();
+		List<SongMetadata> columns = deserialize(columnBytes).getLibrary();
+		assertEquals(library.size(), columns.size());
+		for (int i = 0; i < library.size(); i++) {
+			assertEquals(rows.get(i).getId(),         columns.get(i).getId());
+			assertEquals(rows.get(i).getTitle(),      columns.get(i).getTitle());
+			assertEquals(rows.get(i).getArtist(),     columns.get(i).getArtist());
+			assertEquals(rows.get(i).getAlbum(),      columns.get(i).getAlbum());
+			assertEquals(rows.get(i).getFileSize(),   columns.get(i).getFileSize());
+			assertEquals(rows.get(i).getMacAddress(), columns.get(i).getMacAddress());
+		}
+
+		//repeated strings are shared
+		assertSame(columns.get(0).getArtist(),     columns.get(2).getArtist());
+		assertSame(columns.get(0).getAlbum(),      columns.get(1).getAlbum());
+		assertSame(columns.get(0).getMacAddress(), columns.get(2).getMacAddress());
+		assertSame(columns.get(0).getArtist(), deserialize(columnBytes).getLibrary().get(0).getArtist());
+		assertNull(columns.get(1).getArtist());
+	}
+
+	@Test
+	public void testStreamingLibrary() throws Exception {
+		List<SongMetadata> library = new ArrayList<SongMetadata>();
+		for (int i = 0; i < 1000; i++) {
+			library.add(new SongMetadata(i, "Song " + i, "Artist " + (i % 10), "Album " + (i % 40), 1000 + i,
+					i % 2 == 0 ? "David" : "Jesse"));
+		}
+		for (int version : new int[] {MessageFormat.VERSION_COMPACT, MessageFormat.VERSION_STREAMING_LIBRARY}) {
+			byte[] bytes = serialize(new LibraryMessage(library), version);
+
+			//feed the message in a bit at a time, and collect the partial libraries as they are decoded
+			MessageFormat format = new MessageFormat();
+			InputBuffer buffer = new InputBuffer();
+			List<SongMetadata> partialSongs = new ArrayList<SongMetadata>();
+			int partials = 0;
+			int chunk = 1000;
+			for (int offset = 0; offset < bytes.length; offset += chunk) {
+				assertNull(format.getMessage());
+				buffer.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+				if (!format.deserializeAvailable(buffer)) {
+					LibraryMessage partial = (LibraryMessage) format.takePartialMessage();
+					if (partial != null) {
+						assertTrue(partial.isPartial());
+						partialSongs.addAll(partial.getLibrary());
+						partials++;
+					}
+				}
+			}
+			assertTrue(format.deserializeAvailable(buffer));
+			assertEquals(0, buffer.size());
+			assertTrue(partials > 1);
+			assertTrue(partialSongs.size() < library.size());
+
+			//the final message holds the whole library, and the partial messages hold the start of it
+			LibraryMessage message = (LibraryMessage) format.getMessage();
+			assertFalse(message.isPartial());
+			assertEquals(library.size(), message.getLibrary().size());
+			for (int i = 0; i < library.size(); i++) {
+				SongMetadata expected = library.get(i);
+				SongMetadata actual   = message.getLibrary().get(i);
+				assertEquals(expected.getId(),         actual.getId());
+				assertEquals(expected.getTitle(),      actual.getTitle());
+				assertEquals(expected.getArtist(),     actual.getArtist());
+				assertEquals(expected.getMacAddress(), actual.getMacAddress());
+				if (i < partialSongs.size()) {
+					assertSame(actual, partialSongs.get(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSerializeLibraryChanges() throws Exception {
+		List<SongMetadata> library = populateTestLibrary().subList(0, 2);
+		List<LibraryChanges> changes = Arrays.asList(
+				new LibraryChanges("David", 3, 5, false, new long[] {7, 59916}),
+				new LibraryChanges("Jesse", 0, 2, true, new long[0]));
+
+		LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library, changes));
+		assertEquals(library.size(), message.getLibrary().size());
+		assertEquals(library.get(1).getTitle(), message.getLibrary().get(1).getTitle());
+		assertEquals(2, message.getChanges().size());
+
+		LibraryChanges david = message.getChanges().get(0);
+		assertEquals("David", david.getMacAddress());
+		assertEquals(3, david.getFromVersion());
+		assertEquals(5, david.getToVersion());
+		assertFalse(david.isSnapshot());
+		assertArrayEquals(new long[] {7, 59916}, david.getRemovedIds());
+
+		LibraryChanges jesse = message.getChanges().get(1);
+		assertEquals("Jesse", jesse.getMacAddress());
+		assertEquals(0, jesse.getFromVersion());
+		assertEquals(2, jesse.getToVersion());
+		assertTrue(jesse.isSnapshot());
+		assertEquals(0, jesse.getRemovedIds().length);
+
+		//a library without changes has no changes
+		assertNull(super.testSerializeMessage(new LibraryMessage(library)).getChanges());
+	}
+
+	@Test
+	public void testLibraryChangesForOlderVersion() throws Exception {
+		List<SongMetadata> library = populateTestLibrary();
+		List<LibraryChanges> changes = Arrays.asList(
+				new LibraryChanges("David", 3, 5, false, new long[] {7}));
+
+		//older versions just get the songs
+		byte[] bytes = serialize(new LibraryMessage(library, changes), MessageFormat.VERSION_PLAYLIST_CHANGES);
+		LibraryMessage message = deserialize(bytes);
+		assertEquals(library.size(), message.getLibrary().size());
+		assertNull(message.getChanges());
+	}
+
+	@Test
+	public void testRemoteLibrary() throws Exception {
+		List<SongMetadata> library = populateTestLibrary();
+		LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library, true));
+		assertEquals(library.size(), message.getLibrary().size());
+		assertTrue(message.isRemoteLibrary());
+		assertFalse(super.testSerializeMessage(new LibraryMessage(library)).isRemoteLibrary());
+
+		//older versions send the library without the flag
+		byte[] bytes = serialize(new LibraryMessage(library, true), MessageFormat.VERSION_LIBRARY_CHANGES);
+		message = deserialize(bytes);
+		assertEquals(library.size(), message.getLibrary().size());
+		assertFalse(message.isRemoteLibrary());
+	}
+
+	@Test
+	public void testContentHash() throws Exception {
+		List<SongMetadata> library = populateTestLibrary();
+		library.get(0).setContentHash(-1L);
+		library.get(2).setContentHash(0x1234567890ABCDEFL);
+		LibraryMessage message = super.testSerializeMessage(new LibraryMessage(library));
+		assertEquals(library.size(), message.getLibrary().size());
+		for (int i = 0; i < library.size(); i++) {
+			assertSongMetaEquals(library.get(i), message.getLibrary().get(i));
+		}
+
+		//older versions send the library without the hashes
+		byte[] bytes = serialize(new LibraryMessage(library), MessageFormat.VERSION_RESUMABLE_TRANSFER);
+		message = deserialize(bytes);
+		assertEquals(library.size(), message.getLibrary().size());
+		for (SongMetadata song : message.getLibrary()) {
+			assertEquals(SongMetadata.UNKNOWN_HASH, song.getContentHash());
+		}
+	}
+
+	private byte[] serialize(LibraryMessage message, int version) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new MessageFormat(message, version).serialize(baos);
+		return baos.toByteArray();
+	}
+
+	private LibraryMessage deserialize(byte[] bytes) throws Exception {
+		MessageFormat format = new MessageFormat();
+		format.deserialize(new ByteArrayInputStream(bytes));
+		return (LibraryMessage) format.getMessage();
+	}
+
 	public List<SongMetadata> populateTestLibrary() {
         List<SongMetadata> library = new ArrayList<SongMetadata>(Arrays.asList(
                 new SongMetadata(69, "Driver that Had a Dick on His Shoulder",
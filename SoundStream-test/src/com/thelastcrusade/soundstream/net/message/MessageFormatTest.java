@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.net.core.AComplexDataType;
+import com.thelastcrusade.soundstream.net.wire.MessageNotCompleteException;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class MessageFormatTest {
+
+    private byte[] serialize(IMessage message, int version) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new MessageFormat(message, version).serialize(baos);
+        return baos.toByteArray();
+    }
+
+    private MessageFormat deserialize(byte[] bytes) throws IOException, MessageNotCompleteException {
+        MessageFormat format = new MessageFormat();
+        format.deserialize(new ByteArrayInputStream(bytes));
+        return format;
+    }
+
+    private int readVersion(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, AComplexDataType.SIZEOF_INTEGER, AComplexDataType.SIZEOF_INTEGER).getInt();
+    }
+
+    @Test
+    public void testRegistry() {
+        //every registered type id creates a message of a different class, with the same type id
+        int typeId = 1;
+        IMessage message;
+        try {
+            while (true) {
+                message = MessageRegistry.newMessage(typeId);
+                assertEquals(typeId, MessageRegistry.getTypeId(message));
+                typeId++;
+            }
+        } catch (IllegalArgumentException e) {
+            //end of the registry
+        }
+        assertTrue(typeId > 1);
+        assertEquals(MessageRegistry.UNREGISTERED, MessageRegistry.getTypeId(new FileMessage()));
+    }
+
+    @Test
+    public void testTypeIdFraming() throws Exception {
+        byte[] classNameBytes = serialize(new PlayMessage(), MessageFormat.VERSION_CLASS_NAME);
+        byte[] typeIdBytes    = serialize(new PlayMessage(), MessageFormat.VERSION_TYPE_ID);
+        assertEquals(MessageFormat.VERSION_CLASS_NAME, readVersion(classNameBytes));
+        assertEquals(MessageFormat.VERSION_TYPE_ID,    readVersion(typeIdBytes));
+        assertTrue(typeIdBytes.length < classNameBytes.length);
+
+        //both framings must be readable
+        MessageFormat format = deserialize(classNameBytes);
+        assertEquals(PlayMessage.class, format.getMessage().getClass());
+        assertEquals(MessageFormat.VERSION_CLASS_NAME, format.getVersion());
+
+        format = deserialize(typeIdBytes);
+        assertEquals(PlayMessage.class, format.getMessage().getClass());
+        assertEquals(MessageFormat.VERSION_TYPE_ID, format.getVersion());
+        assertEquals("Play", ((PlayMessage) format.getMessage()).getString());
+    }
+
+    @Test
+    public void testCompactFraming() throws Exception {
+        SongStatusMessage message = new SongStatusMessage("00:11:22:33:44:55", 1234, 7, true, false);
+        byte[] typeIdBytes  = serialize(message, MessageFormat.VERSION_TYPE_ID);
+        byte[] compactBytes = serialize(message, MessageFormat.VERSION_COMPACT);
+        assertEquals(MessageFormat.VERSION_COMPACT, readVersion(compactBytes));
+        assertTrue(compactBytes.length < typeIdBytes.length);
+
+        //the message must be readable with either codec
+        for (byte[] bytes : new byte[][] {typeIdBytes, compactBytes}) {
+            SongStatusMessage received = (SongStatusMessage) deserialize(bytes).getMessage();
+            assertEquals(message.getMacAddress(), received.getMacAddress());
+            assertEquals(message.getId(),         received.getId());
+            assertEquals(message.getEntryId(),    received.getEntryId());
+            assertEquals(message.isLoaded(),      received.isLoaded());
+            assertEquals(message.isPlayed(),      received.isPlayed());
+        }
+    }
+
+    @Test
+    public void testNewerVersionIsCapped() throws Exception {
+        byte[] bytes = serialize(new PlayMessage(), MessageFormat.MESSENGER_VERSION + 1);
+        assertEquals(MessageFormat.MESSENGER_VERSION, readVersion(bytes));
+        assertEquals(PlayMessage.class, deserialize(bytes).getMessage().getClass());
+    }
+
+    @Test
+    public void testUnregisteredMessageUsesClassName() throws Exception {
+        FileMessage message = new FileMessage();
+        message.setFilePath("test");
+        byte[] bytes = serialize(message, MessageFormat.VERSION_TYPE_ID);
+        assertEquals(MessageFormat.VERSION_CLASS_NAME, readVersion(bytes));
+        MessageFormat format = deserialize(bytes);
+        assertEquals("test", ((FileMessage) format.getMessage()).getFilePath());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnsupportedVersion() throws Exception {
+        byte[] bytes = serialize(new PlayMessage(), MessageFormat.VERSION_TYPE_ID);
+        ByteBuffer.wrap(bytes).putInt(AComplexDataType.SIZEOF_INTEGER, MessageFormat.MESSENGER_VERSION + 1);
+        deserialize(bytes);
+    }
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -31,15 +32,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
+import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.net.core.AComplexDataType;
 import com.thelastcrusade.soundstream.net.wire.FileReceiver;
 import com.thelastcrusade.soundstream.net.wire.Messenger;
 import com.thelastcrusade.soundstream.net.wire.PacketFormat;
 import com.thelastcrusade.soundstream.net.wire.PacketFormat.ControlCode;
+import com.thelastcrusade.soundstream.net.wire.SharedMessage;
+import com.thelastcrusade.soundstream.net.wire.WireSendInputStream;
 import com.thelastcrusade.soundstream.util.CustomAssert;
 import com.thelastcrusade.soundstream.util.InputBuffer;
 import com.thelastcrusade.soundstream.util.MessageTestUtil;
@@ -51,6 +60,13 @@ import com.thelastcrusade.soundstream.util.MessageTestUtil;
  */
 public class MessengerTest {
 
+    //the messages the first release of the messenger knows about
+    private static final List<String> FIRST_RELEASE_MESSAGES = Arrays.asList(
+            "AddToPlaylistMessage", "BumpSongOnPlaylistMessage", "CancelSongMessage", "ConnectGuestsMessage",
+            "FindNewGuestsMessage", "FoundGuestsMessage", "LibraryMessage", "PauseMessage", "PlayMessage",
+            "PlayStatusMessage", "PlaylistMessage", "RemoveFromPlaylistMessage", "RequestSongMessage",
+            "SkipMessage", "SongStatusMessage", "TransferSongMessage", "UserListMessage");
+
     //TODO: add tests for partial messages, to make sure we handle the case where data isn't all there yet
     
     @Test
@@ -101,6 +117,156 @@ public class MessengerTest {
         assertEquals(0, messenger.getReceivedMessages().size());
     }
 
+    @Test
+    public void testConnectionSettings() throws Exception {
+        Messenger sender   = new Messenger(File.createTempFile("test", "").getParentFile());
+        Messenger receiver = new Messenger(File.createTempFile("test", "").getParentFile());
+        int defaultPacketSize = receiver.getMaxPacketSize();
+
+        //connection settings are handled by the messenger, and not passed on
+        //messages are sent with the oldest messenger version until the settings are received
+        assertEquals(MessageFormat.VERSION_CLASS_NAME, receiver.getSendVersion());
+        assertFalse(receiver.deserializeMessage(sender.serializeConnectionSettings()));
+        assertEquals(0, receiver.getReceivedMessages().size());
+        assertEquals(0, receiver.getActiveTransferCount());
+        assertTrue(receiver.getMaxPacketSize() > defaultPacketSize);
+        assertEquals(MessageFormat.MESSENGER_VERSION, receiver.getSendVersion());
+        int maxPacketSize = receiver.getMaxPacketSize();
+
+        //the negotiated size and version are the smaller of the two sides
+        assertFalse(receiver.deserializeMessage(sender.serializeConnectionSettings(
+                new ConnectionSettingsMessage(maxPacketSize / 2, MessageFormat.VERSION_CLASS_NAME))));
+        assertEquals(maxPacketSize / 2, receiver.getMaxPacketSize());
+        assertEquals(MessageFormat.VERSION_CLASS_NAME, receiver.getSendVersion());
+
+        assertFalse(receiver.deserializeMessage(sender.serializeConnectionSettings(
+                new ConnectionSettingsMessage(maxPacketSize * 2, MessageFormat.MESSENGER_VERSION + 1))));
+        assertEquals(maxPacketSize, receiver.getMaxPacketSize());
+        assertEquals(MessageFormat.MESSENGER_VERSION, receiver.getSendVersion());
+    }
+
+    @Test
+    public void testConnectionSettingsIgnoredByFirstRelease() throws Exception {
+        //a new peer sends its settings first, and then messages in the oldest version until
+        // it hears back from the remote side
+        Messenger sender = new Messenger(File.createTempFile("test", "").getParentFile());
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        InputStream settings = sender.serializeConnectionSettings();
+        byte[] bytes = new byte[settings.available()];
+        assertEquals(bytes.length, settings.read(bytes));
+        wire.write(bytes);
+        WireSendInputStream play = sender.serializeMessage(new PlayMessage());
+        while (play.available() > 0) {
+            play.writePacket(wire);
+        }
+
+        //a peer running the first release drops the settings, and receives the message
+        List<IMessage> received = decodeAsFirstRelease(wire.toByteArray());
+        assertEquals(1, received.size());
+        assertEquals(PlayMessage.class, received.get(0).getClass());
+    }
+
+    /**
+     * Decode packets the way the first release of the messenger does: a packet marked
+     * as canceled cancels its message number (and its data is ignored), and the data of
+     * every other packet is added to its message, which is created by class name once
+     * it is all here.
+     * 
+     * @param bytes
+     * @return The messages received
+     * @throws Exception If a message cannot be created, as the first release would fail
+     */
+    private List<IMessage> decodeAsFirstRelease(byte[] bytes) throws Exception {
+        Map<Integer, ByteArrayOutputStream> transfers = new HashMap<Integer, ByteArrayOutputStream>();
+        Set<Integer> canceled = new HashSet<Integer>();
+        List<IMessage> messages = new ArrayList<IMessage>();
+        InputStream input = new ByteArrayInputStream(bytes);
+        while (input.available() > 0) {
+            PacketFormat packet = new PacketFormat();
+            packet.deserialize(input);
+            int messageNo = packet.getMessageNo();
+            if (canceled.contains(messageNo)) {
+                continue;
+            }
+            if (packet.isControlCodeSet(ControlCode.Cancelled)) {
+                transfers.remove(messageNo);
+                canceled.add(messageNo);
+                continue;
+            }
+            ByteArrayOutputStream transfer = transfers.get(messageNo);
+            if (transfer == null) {
+                transfer = new ByteArrayOutputStream();
+                transfers.put(messageNo, transfer);
+            }
+            transfer.write(packet.getBytes());
+            byte[] data = transfer.toByteArray();
+            int length = ByteBuffer.wrap(data).getInt();
+            if (data.length < AComplexDataType.SIZEOF_INTEGER + length) {
+                continue;
+            }
+            //the first release wrote version 1, and ignores the version it reads
+            int classStart = 2 * AComplexDataType.SIZEOF_INTEGER;
+            int classEnd = classStart;
+            while (data[classEnd] != '\n') {
+                classEnd++;
+            }
+            String className = new String(data, classStart, classEnd - classStart);
+            if (!FIRST_RELEASE_MESSAGES.contains(className.substring(className.lastIndexOf('.') + 1))) {
+                throw new ClassNotFoundException(className);
+            }
+            IMessage message = (IMessage) Class.forName(className).newInstance();
+            message.deserialize(new ByteArrayInputStream(data, classEnd + 1, data.length - classEnd - 1));
+            messages.add(message);
+            transfers.remove(messageNo);
+        }
+        return messages;
+    }
+
+    @Test
+    public void testSharedMessage() throws Exception {
+        File folder = File.createTempFile("test", "").getParentFile();
+        //one guest speaks the newest version, and one hasn't sent its settings (the oldest version)
+        Messenger newGuest = new Messenger(folder);
+        Messenger oldGuest = new Messenger(folder);
+        assertFalse(newGuest.deserializeMessage(newGuest.serializeConnectionSettings()));
+        //the connections number their messages independently
+        oldGuest.serializeMessage(new PlayMessage()).close();
+
+        List<SongMetadata> library = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 10; i++) {
+            library.add(new SongMetadata(i, "Title " + i, "Artist", "Album", 1000 + i, "00:11:22:33:44:55"));
+        }
+        SharedMessage shared = new SharedMessage(new LibraryMessage(library), MessageFormat.MESSENGER_VERSION);
+        InputStream newStream = newGuest.serializeMessage(shared);
+        InputStream oldStream = oldGuest.serializeMessage(shared);
+        //only the guest that speaks the shared version reads the shared body
+        assertEquals(2, shared.getReferenceCount());
+
+        for (InputStream stream : new InputStream[] {newStream, oldStream}) {
+            Messenger receiver = new Messenger(folder);
+            InputBuffer buffer = new InputBuffer();
+            while (stream.available() > 0) {
+                ((WireSendInputStream) stream).writePacket(buffer);
+            }
+            stream.close();
+            assertTrue(receiver.deserializeMessage(buffer.getInputStream()));
+            LibraryMessage received = (LibraryMessage) receiver.getReceivedMessages().get(0);
+            assertEquals(library.size(), received.getLibrary().size());
+            assertEquals("Title 9", received.getLibrary().get(9).getTitle());
+        }
+
+        //the body is let go once the streams and the creator are done with it
+        assertEquals(1, shared.getReferenceCount());
+        shared.release();
+        assertEquals(0, shared.getReferenceCount());
+        try {
+            shared.newInputStream();
+            fail("Released shared message must not be readable");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
     @Test
     public void testDeserializeFileMessagePartialReceive() throws Exception {
         //get the temp folder, immediately expire canceled messages
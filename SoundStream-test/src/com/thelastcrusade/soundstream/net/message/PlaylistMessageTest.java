@@ -21,14 +21,22 @@ package com.thelastcrusade.soundstream.net.message;
 
 import static com.thelastcrusade.soundstream.util.CustomAssert.assertSongMetaEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.thelastcrusade.soundstream.model.Playlist;
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 
 public class PlaylistMessageTest extends SerializationTest<PlaylistMessage> {
@@ -49,6 +57,132 @@ public class PlaylistMessageTest extends SerializationTest<PlaylistMessage> {
         }
     }
 
+    @Test
+    public void testSerializePlaylistChanges() throws Exception {
+        //NOTE: the last test entry has no address, so it cannot be looked up
+        List<PlaylistEntry> songsToPlay = populateTestPlaylist().subList(0, 3);
+        //the host's playlist, which tracks its changes
+        Playlist host = new Playlist();
+        host.setTrackChanges(true);
+        for (PlaylistEntry entry : songsToPlay) {
+            host.add(entry);
+        }
+        //the guest's playlist, loaded from the first snapshot
+        Playlist guest = new Playlist();
+        assertNull(host.takeOperations());
+        PlaylistMessage snapshot = super.testSerializeMessage(new PlaylistMessage(host.getVersion(), host.getSongsToPlay()));
+        assertFalse(snapshot.hasOperations());
+        guest.load(snapshot.getSongsToPlay(), snapshot.getPlaylistVersion());
+
+        //make one of each kind of change
+        host.getNextAvailableSong();
+        host.bumpSong(songsToPlay.get(2));
+        host.remove(songsToPlay.get(1));
+        host.add(new PlaylistEntry(new SongMetadata(7, "Bees", "Aziz Ansari", null, 1234, "Reid"), false, false, null, 4));
+        host.setStatus(songsToPlay.get(2), true, true);
+        List<PlaylistOperation> operations = host.takeOperations();
+        assertEquals(5, operations.size());
+
+        PlaylistMessage changes = super.testSerializeMessage(
+                new PlaylistMessage(host.getVersion(), operations, host.getSongsToPlay()));
+        assertTrue(changes.hasOperations());
+        assertEquals(host.getVersion(), changes.getPlaylistVersion());
+        assertEquals(guest.getVersion(), changes.getBaseVersion());
+
+        //apply the changes, and make sure the guest matches the host
+        assertTrue(guest.applyOperations(changes.getBaseVersion(), changes.getOperations()));
+        assertEquals(host.getVersion(), guest.getVersion());
+        assertPlaylistEquals(host.getSongsToPlay(), guest.getSongsToPlay());
+        //the same changes again are ignored
+        assertTrue(guest.applyOperations(changes.getBaseVersion(), changes.getOperations()));
+        assertPlaylistEquals(host.getSongsToPlay(), guest.getSongsToPlay());
+
+        //missing a change means the guest needs the whole playlist
+        host.remove(songsToPlay.get(0));
+        host.takeOperations();
+        host.remove(songsToPlay.get(2));
+        operations = host.takeOperations();
+        assertFalse(guest.applyOperations(host.getVersion() - operations.size(), operations));
+        //and resetting the playlist requires the whole playlist
+        host.reset();
+        assertNull(host.takeOperations());
+    }
+
+    @Test
+    public void testPlaylistChangesForOlderVersion() throws Exception {
+        List<PlaylistEntry> songsToPlay = populateTestPlaylist();
+        List<PlaylistOperation> operations = Arrays.asList(PlaylistOperation.remove(songsToPlay.get(0)));
+
+        //older guests get the whole playlist instead of the changes
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new MessageFormat(new PlaylistMessage(7, operations, songsToPlay.subList(1, songsToPlay.size())),
+                MessageFormat.VERSION_STREAMING_LIBRARY).serialize(baos);
+        MessageFormat format = new MessageFormat();
+        format.deserialize(new ByteArrayInputStream(baos.toByteArray()));
+        PlaylistMessage message = (PlaylistMessage) format.getMessage();
+
+        assertFalse(message.hasOperations());
+        assertEquals(PlaylistMessage.UNKNOWN_VERSION, message.getPlaylistVersion());
+        assertPlaylistEquals(songsToPlay.subList(1, songsToPlay.size()), message.getSongsToPlay());
+    }
+
+    @Test
+    public void testSupersede() throws Exception {
+        List<PlaylistEntry> songsToPlay = populateTestPlaylist().subList(0, 3);
+        Playlist host = new Playlist();
+        host.setTrackChanges(true);
+        host.add(songsToPlay.get(0));
+        host.takeOperations();
+        Playlist guest = new Playlist();
+        guest.load(host.getSongsToPlay(), host.getVersion());
+
+        //changes that follow on from each other are combined
+        host.add(songsToPlay.get(1));
+        PlaylistMessage first = new PlaylistMessage(host.getVersion(), host.takeOperations(), host.getSongsToPlay());
+        host.add(songsToPlay.get(2));
+        host.bumpSong(songsToPlay.get(2));
+        PlaylistMessage second = new PlaylistMessage(host.getVersion(), host.takeOperations(), host.getSongsToPlay());
+        host.setStatus(songsToPlay.get(1), true, false);
+        PlaylistMessage third = new PlaylistMessage(host.getVersion(), host.takeOperations(), host.getSongsToPlay());
+        PlaylistMessage combined = (PlaylistMessage) third.supersede(second.supersede(first));
+        assertTrue(combined.hasOperations());
+        assertEquals(4, combined.getOperations().size());
+        assertEquals(host.getVersion(), combined.getPlaylistVersion());
+        assertEquals(guest.getVersion(), combined.getBaseVersion());
+        combined = super.testSerializeMessage(combined);
+        assertTrue(guest.applyOperations(combined.getBaseVersion(), combined.getOperations()));
+        assertPlaylistEquals(host.getSongsToPlay(), guest.getSongsToPlay());
+
+        //the whole playlist replaces anything older
+        PlaylistMessage whole = new PlaylistMessage(host.getVersion() + 1, host.getSongsToPlay());
+        assertSame(whole, whole.supersede(third));
+
+        //changes that don't follow on are replaced by the whole playlist
+        host.remove(songsToPlay.get(0));
+        host.takeOperations();
+        host.remove(songsToPlay.get(1));
+        PlaylistMessage gap = new PlaylistMessage(host.getVersion(), host.takeOperations(), host.getSongsToPlay());
+        PlaylistMessage snapshot = (PlaylistMessage) gap.supersede(third);
+        assertFalse(snapshot.hasOperations());
+        assertEquals(host.getVersion(), snapshot.getPlaylistVersion());
+        assertPlaylistEquals(host.getSongsToPlay(), snapshot.getSongsToPlay());
+
+        //and messages without versions can't replace changes
+        assertNull(third.supersede(new PlaylistMessage(songsToPlay)));
+        assertNull(new PlaylistMessage(-1, Arrays.asList(PlaylistOperation.remove(songsToPlay.get(0))), songsToPlay)
+                .supersede(third));
+    }
+
+    private void assertPlaylistEquals(List<PlaylistEntry> expected, List<PlaylistEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSongMetaEquals(expected.get(i), actual.get(i));
+            assertEquals(expected.get(i).getEntryId(), actual.get(i).getEntryId());
+            assertEquals(expected.get(i).isLoaded(),   actual.get(i).isLoaded());
+            assertEquals(expected.get(i).isPlayed(),   actual.get(i).isPlayed());
+        }
+    }
+
     public List<PlaylistEntry> populateTestPlaylist() {
         List<PlaylistEntry> library = new ArrayList<PlaylistEntry>(Arrays.asList(
                 new PlaylistEntry(
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RequestLibraryMessageTest extends SerializationTest<RequestLibraryMessage> {
+
+    @Test
+    public void testSerializeRequestLibraryMessage() throws Exception {
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        versions.put("00:11:22:33:44:55", 42);
+        versions.put("66:77:88:99:AA:BB", 0);
+        RequestLibraryMessage oldMessage = new RequestLibraryMessage(versions);
+        RequestLibraryMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(versions, newMessage.getVersions());
+    }
+}
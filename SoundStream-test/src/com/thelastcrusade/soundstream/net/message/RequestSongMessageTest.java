@@ -20,6 +20,10 @@
 package com.thelastcrusade.soundstream.net.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 import org.junit.Test;
 
@@ -33,4 +37,35 @@ public class RequestSongMessageTest extends SerializationTest<RequestSongMessage
         
         assertEquals(songId, newMessage.getSongId());
     }
+
+    @Test
+    public void testSerializePartialRequest() throws Exception {
+        long songId = 8675309L;
+        RequestSongMessage oldMessage = new RequestSongMessage(songId, "partial_test", 262144, 524288);
+        RequestSongMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(songId,         newMessage.getSongId());
+        assertEquals("partial_test", newMessage.getPartialFileName());
+        assertEquals(262144,         newMessage.getOffset());
+        assertEquals(524288,         newMessage.getLength());
+    }
+
+    @Test
+    public void testPartialRequestForOlderVersion() throws Exception {
+        long songId = 8675309L;
+        RequestSongMessage oldMessage = new RequestSongMessage(songId, "partial_test", 262144, 524288);
+
+        //older versions just request the whole song
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        oldMessage.setVersion(MessageFormat.VERSION_REMOTE_LIBRARY);
+        oldMessage.serialize(output);
+        RequestSongMessage newMessage = new RequestSongMessage();
+        newMessage.setVersion(MessageFormat.VERSION_REMOTE_LIBRARY);
+        newMessage.deserialize(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(songId, newMessage.getSongId());
+        assertNull(newMessage.getPartialFileName());
+        assertEquals(0, newMessage.getOffset());
+        assertEquals(RequestSongMessage.TO_END, newMessage.getLength());
+    }
 }
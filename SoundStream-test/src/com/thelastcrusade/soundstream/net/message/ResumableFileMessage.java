@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+/**
+ * A file message that carries part of a file, in chunks.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class ResumableFileMessage extends FileMessage implements IResumableFileMessage {
+
+    private FileManifest manifest;
+    private String       partialFileName;
+    private int          fileOffset;
+    private int          dataLength;
+    private boolean      manifestRejected;
+
+    public ResumableFileMessage(FileManifest manifest, String partialFileName, int fileOffset, int dataLength) {
+        this.manifest        = manifest;
+        this.partialFileName = partialFileName;
+        this.fileOffset      = fileOffset;
+        this.dataLength      = dataLength;
+    }
+
+    @Override
+    public FileManifest getManifest() {
+        return this.manifest;
+    }
+
+    @Override
+    public String getPartialFileName() {
+        return this.partialFileName;
+    }
+
+    @Override
+    public int getFileOffset() {
+        return this.fileOffset;
+    }
+
+    @Override
+    public int getDataLength() {
+        return this.dataLength;
+    }
+
+    @Override
+    public boolean isManifestRejected() {
+        return this.manifestRejected;
+    }
+
+    @Override
+    public void setManifestRejected(boolean manifestRejected) {
+        this.manifestRejected = manifestRejected;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SearchLibraryMessageTest extends SerializationTest<SearchLibraryMessage> {
+
+    @Test
+    public void testSerializeSearchLibraryMessage() throws Exception {
+        SearchLibraryMessage oldMessage = new SearchLibraryMessage(7, "Aziz", 200, 100);
+        SearchLibraryMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(7,      newMessage.getRequestId());
+        assertEquals("Aziz", newMessage.getQuery());
+        assertEquals(200,    newMessage.getOffset());
+        assertEquals(100,    newMessage.getCount());
+    }
+
+    @Test
+    public void testSerializeBrowseMessage() throws Exception {
+        SearchLibraryMessage newMessage = super.testSerializeMessage(new SearchLibraryMessage(1, null, 0, 100));
+
+        assertNull(newMessage.getQuery());
+    }
+}
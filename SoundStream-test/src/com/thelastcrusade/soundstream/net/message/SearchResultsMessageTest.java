@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+public class SearchResultsMessageTest extends SerializationTest<SearchResultsMessage> {
+
+    @Test
+    public void testSerializeSearchResultsMessage() throws Exception {
+        List<SongMetadata> songs = Arrays.asList(
+                new SongMetadata(69, "Driver that Had a Dick on His Shoulder",
+                        "Aziz Ansari", "Dangerously Delicious", 2345, "David"),
+                new SongMetadata(1, "Lady with the Puppies", null,
+                        "Dangerously Delicious", 23462346, "David"));
+        songs.get(0).setContentHash(0x1234567890ABCDEFL);
+        SearchResultsMessage oldMessage = new SearchResultsMessage(7, 100, 102, songs);
+        SearchResultsMessage newMessage = super.testSerializeMessage(oldMessage);
+
+        assertEquals(7,   newMessage.getRequestId());
+        assertEquals(100, newMessage.getOffset());
+        assertEquals(102, newMessage.getTotalCount());
+        assertEquals(songs.size(), newMessage.getSongs().size());
+        for (int i = 0; i < songs.size(); i++) {
+            assertEquals(songs.get(i).getId(),         newMessage.getSongs().get(i).getId());
+            assertEquals(songs.get(i).getTitle(),      newMessage.getSongs().get(i).getTitle());
+            assertEquals(songs.get(i).getArtist(),     newMessage.getSongs().get(i).getArtist());
+            assertEquals(songs.get(i).getMacAddress(), newMessage.getSongs().get(i).getMacAddress());
+            assertEquals(songs.get(i).getContentHash(), newMessage.getSongs().get(i).getContentHash());
+        }
+    }
+}
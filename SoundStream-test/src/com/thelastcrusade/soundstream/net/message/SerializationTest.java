@@ -20,6 +20,7 @@
 package com.thelastcrusade.soundstream.net.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -38,11 +39,13 @@ public class SerializationTest<T extends IMessage> {
     @SuppressWarnings("unchecked")
 	public T testSerializeMessage(T message) throws Exception {
         Messenger messenger = new Messenger(getTempFolder());
+        Messenger rcvMessenger = new Messenger(getTempFolder());
+        //negotiate the connection settings, so the message is sent with the newest messenger version
+        negotiate(messenger, rcvMessenger);
         
         InputStream is = messenger.serializeMessage(message);
         is = simulateSendAndReceive(is);
         
-        Messenger rcvMessenger = new Messenger(getTempFolder());
         //attempt to deserialize the second message
         assertTrue(rcvMessenger.deserializeMessage(is));
         
@@ -78,6 +81,20 @@ public class SerializationTest<T extends IMessage> {
         return (T)rcvMessage;
     }
     
+    /**
+     * Send the receiver's connection settings to the sender, as it would be
+     * when a connection is established.
+     * 
+     * @param sender
+     * @param receiver
+     * @throws IOException
+     */
+    private void negotiate(Messenger sender, Messenger receiver) throws IOException {
+        InputStream is = receiver.serializeConnectionSettings();
+        assertFalse(sender.deserializeMessage(simulateSendAndReceive(is)));
+        assertEquals(MessageFormat.MESSENGER_VERSION, sender.getSendVersion());
+    }
+
     private InputStream simulateSendAndReceive(
             InputStream is) throws IOException {
         return is;
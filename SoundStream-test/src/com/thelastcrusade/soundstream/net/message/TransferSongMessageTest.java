@@ -21,12 +21,18 @@ package com.thelastcrusade.soundstream.net.message;
 
 import static com.thelastcrusade.soundstream.util.CustomAssert.assertChecksumsMatch;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.RandomAccessFile;
 
 import org.junit.Test;
 
+import com.thelastcrusade.soundstream.net.wire.PartialFile;
+
 public class TransferSongMessageTest extends SerializationTest<TransferSongMessage> {
     
     @Test
@@ -47,4 +53,65 @@ public class TransferSongMessageTest extends SerializationTest<TransferSongMessa
         //compare the song binary data
         assertChecksumsMatch(oldMessage.getFilePath(), newMessage.getFilePath());
     }
+
+    @Test
+    public void testSerializeChunks() throws Exception {
+        File file = new File("./assets/Jesse_normal_trimmed.wav");
+        int chunkSize = 4096;
+        FileManifest manifest = FileManifest.create(file, chunkSize);
+        assertTrue(manifest.getChunkCount() > 3);
+        long songId = 132452L;
+        //send the second and third chunks
+        TransferSongMessage oldMessage = new TransferSongMessage(songId, file.getName(), file.getCanonicalPath(),
+                manifest, "partial_test", chunkSize, 2 * chunkSize);
+        TransferSongMessage newMessage = super.testSerializeMessage(oldMessage);
+        PartialFile partialFile = PartialFile.load(new File(newMessage.getFilePath()));
+        try {
+            assertEquals(oldMessage.getSongId(), newMessage.getSongId());
+            assertEquals(manifest,               newMessage.getManifest());
+            assertEquals("partial_test",         newMessage.getPartialFileName());
+            assertEquals(chunkSize,              newMessage.getFileOffset());
+            assertEquals(2 * chunkSize,          newMessage.getDataLength());
+
+            //the partial file is the full length, with just the chunks sent
+            File received = new File(newMessage.getFilePath());
+            assertEquals("partial_test", received.getName());
+            assertEquals(file.length(),  received.length());
+            assertFalse(partialFile.isVerified(0));
+            assertTrue( partialFile.isVerified(1));
+            assertTrue( partialFile.isVerified(2));
+            assertFalse(partialFile.isVerified(3));
+            assertEquals(0, partialFile.getResumeOffset());
+            assertEquals(2, partialFile.getMissingRanges().size());
+
+            byte[] expected = new byte[2 * chunkSize];
+            byte[] actual   = new byte[2 * chunkSize];
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            in.seek(chunkSize);
+            in.readFully(expected);
+            in.close();
+            in = new RandomAccessFile(received, "r");
+            in.seek(chunkSize);
+            in.readFully(actual);
+            in.close();
+            assertEquals(new String(expected, "ISO-8859-1"), new String(actual, "ISO-8859-1"));
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    @Test
+    public void testChunksForOlderVersion() throws Exception {
+        File file = new File("./assets/Jesse_normal_trimmed.wav");
+        int chunkSize = 4096;
+        FileManifest manifest = FileManifest.create(file, chunkSize);
+        TransferSongMessage message = new TransferSongMessage(132452L, file.getName(), file.getCanonicalPath(),
+                manifest, "partial_test", chunkSize, 2 * chunkSize);
+
+        //older versions get the whole song
+        message.setVersion(MessageFormat.VERSION_REMOTE_LIBRARY);
+        assertNull(message.getManifest());
+        message.setVersion(MessageFormat.VERSION_RESUMABLE_TRANSFER);
+        assertEquals(manifest, message.getManifest());
+    }
 }
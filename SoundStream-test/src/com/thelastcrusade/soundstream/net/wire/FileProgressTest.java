@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class FileProgressTest {
+
+    @Test
+    public void testAwaitAvailable() throws Exception {
+        final FileProgress progress = FileProgress.start("/test/await", 1000);
+        try {
+            assertSame(progress, FileProgress.get("/test/await"));
+            assertSame(progress, FileProgress.start("/test/await", 1000));
+            progress.setAvailable(100);
+
+            //already available
+            assertEquals(100, progress.awaitAvailable(50, 1000));
+
+            //times out without progress
+            assertEquals(100, progress.awaitAvailable(100, 10));
+
+            //wakes up when more arrives
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                    }
+                    progress.setAvailable(500);
+                }
+            }).start();
+            assertEquals(500, progress.awaitAvailable(100, 5000));
+        } finally {
+            progress.remove();
+        }
+        assertNull(FileProgress.get("/test/await"));
+
+        //removed progress doesn't wait
+        assertEquals(500, progress.awaitAvailable(600, 5000));
+    }
+
+    @Test
+    public void testCanReadAt() throws Exception {
+        FileProgress progress = FileProgress.start("/test/read", 10000000);
+        try {
+            //nothing received yet
+            assertFalse(progress.canReadAt(40000, 1000));
+
+            progress.received(100000);
+            Thread.sleep(100);
+            progress.setAvailable(100000);
+            long rate = progress.getBytesPerSecond();
+            assertTrue(rate > 0 && rate <= 1000000);
+
+            //not enough data yet
+            assertFalse(progress.canReadAt(40000, 200000));
+            //the transfer is much faster than playback
+            assertTrue(progress.canReadAt(rate / 10, 1000));
+            //the transfer is slower than playback, and there is not much here
+            assertFalse(progress.canReadAt(rate * 2, 1000));
+
+            progress.setAvailable(10000000);
+            assertTrue(progress.isComplete());
+            assertTrue(progress.canReadAt(rate * 2, 1000));
+        } finally {
+            progress.remove();
+        }
+    }
+}
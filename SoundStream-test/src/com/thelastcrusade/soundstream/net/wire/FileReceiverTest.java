@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.net.core.AComplexDataType;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+import com.thelastcrusade.soundstream.net.message.FileMessage;
+import com.thelastcrusade.soundstream.net.message.ResumableFileMessage;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class FileReceiverTest {
+
+    private File getTempFolder() throws IOException {
+        File temp = File.createTempFile("test", "");
+        temp.delete();
+        return temp.getParentFile();
+    }
+
+    /**
+     * Build the bytes sent for a file: the file length, followed by the file data
+     * (each byte is the byte number, for easy verification).
+     */
+    private byte[] getFileBytes(int fileSize) {
+        ByteBuffer bb = ByteBuffer.allocate(AComplexDataType.SIZEOF_INTEGER + fileSize);
+        bb.putInt(fileSize);
+        for (int ii = 0; ii < fileSize; ii++) {
+            bb.put((byte) ii);
+        }
+        return bb.array();
+    }
+
+    private void doTestReceive(int fileSize, int chunkSize) throws IOException {
+        FileMessage message = new FileMessage();
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getFileBytes(fileSize);
+        int chunks = 0;
+        //the first chunk splits the file length, to make sure it is put back together
+        assertFalse(receiver.receive(bytes, 0, 1));
+        for (int ii = 1; ii < bytes.length; ii += chunkSize) {
+            int length = Math.min(chunkSize, bytes.length - ii);
+            boolean complete = receiver.receive(bytes, ii, length);
+            assertEquals(ii + length == bytes.length, complete);
+            chunks++;
+        }
+        assertTrue(receiver.isComplete());
+
+        //the file length is not written to the file
+        int fileChunks = chunks - (chunkSize < AComplexDataType.SIZEOF_INTEGER ? 1 : 0);
+        assertEquals(fileChunks, receiver.getWriteCount());
+        assertEquals(1, receiver.getForceCount());
+
+        File file = new File(message.getFilePath());
+        try {
+            assertEquals(fileSize, file.length());
+            InputStream is = receiver.getInputStream();
+            for (int ii = 0; ii < fileSize; ii++) {
+                assertEquals(ii & 0xFF, is.read());
+            }
+            assertEquals(-1, is.read());
+            is.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReceiveSmallFile() throws IOException {
+        doTestReceive(10000, 1000);
+    }
+
+    @Test
+    public void testReceiveLargeFile() throws IOException {
+        //big enough to be memory mapped
+        doTestReceive(3 * 1024 * 1024 + 7, 32768);
+    }
+
+    @Test
+    public void testReceiveEmptyFile() throws IOException {
+        FileMessage message = new FileMessage();
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getFileBytes(0);
+        assertTrue(receiver.receive(bytes, 0, bytes.length));
+        File file = new File(message.getFilePath());
+        assertEquals(0, file.length());
+        file.delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReceiveTooMuch() throws IOException {
+        FileMessage message = new FileMessage();
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getFileBytes(10);
+        try {
+            receiver.receive(bytes, 0, bytes.length - 1);
+            receiver.receive(new byte[2], 0, 2);
+        } finally {
+            new File(message.getFilePath()).delete();
+        }
+    }
+
+    /**
+     * Build the bytes sent for part of a file: the data length, followed by the
+     * file data in the range.
+     */
+    private byte[] getRangeBytes(byte[] fileData, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.allocate(AComplexDataType.SIZEOF_INTEGER + length);
+        bb.putInt(length);
+        bb.put(fileData, offset, length);
+        return bb.array();
+    }
+
+    private byte[] getFileData(int fileSize) {
+        byte[] data = new byte[fileSize];
+        for (int ii = 0; ii < fileSize; ii++) {
+            data[ii] = (byte) (ii * 31);
+        }
+        return data;
+    }
+
+    private FileManifest createManifest(byte[] fileData, int chunkSize) throws IOException {
+        File source = File.createTempFile("test", ".dat");
+        try {
+            FileOutputStream fos = new FileOutputStream(source);
+            fos.write(fileData);
+            fos.close();
+            return FileManifest.create(source, chunkSize);
+        } finally {
+            source.delete();
+        }
+    }
+
+    private void assertFileData(byte[] expected, File file) throws IOException {
+        assertEquals(expected.length, file.length());
+        InputStream is = new FileInputStream(file);
+        try {
+            for (int ii = 0; ii < expected.length; ii++) {
+                assertEquals(expected[ii] & 0xFF, is.read());
+            }
+            assertEquals(-1, is.read());
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testReceiveCorruptChunk() throws IOException {
+        byte[] data = getFileData(4500);
+        FileManifest manifest = createManifest(data, 1000);
+
+        //send the whole file, with a bad byte in the third chunk
+        ResumableFileMessage message = new ResumableFileMessage(manifest, "partial_corrupt", 0, data.length);
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getRangeBytes(data, 0, data.length);
+        bytes[AComplexDataType.SIZEOF_INTEGER + 2500] ^= 0x01;
+        assertTrue(receiver.receive(bytes, 0, bytes.length));
+
+        File file = new File(message.getFilePath());
+        PartialFile partialFile = PartialFile.load(file);
+        try {
+            assertEquals("partial_corrupt", file.getName());
+            assertFalse(partialFile.isComplete());
+            assertEquals(2000, partialFile.getResumeOffset());
+            List<int[]> ranges = partialFile.getMissingRanges();
+            assertEquals(1, ranges.size());
+            assertEquals(2000, ranges.get(0)[0]);
+            assertEquals(1000, ranges.get(0)[1]);
+
+            //resend just the bad chunk
+            message  = new ResumableFileMessage(manifest, "partial_corrupt", 2000, 1000);
+            receiver = new FileReceiver(message, getTempFolder());
+            bytes = getRangeBytes(data, 2000, 1000);
+            assertTrue(receiver.receive(bytes, 0, bytes.length));
+            partialFile = PartialFile.load(file);
+            assertTrue(partialFile.isComplete());
+            assertFileData(data, file);
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    @Test
+    public void testResumeAfterClose() throws IOException {
+        //big enough to be memory mapped
+        byte[] data = getFileData(3 * 1024 * 1024 + 7);
+        int chunkSize = FileManifest.DEFAULT_CHUNK_SIZE;
+        FileManifest manifest = createManifest(data, chunkSize);
+
+        //the connection drops in the middle of the fifth chunk
+        ResumableFileMessage message = new ResumableFileMessage(manifest, "partial_resume", 0, data.length);
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getRangeBytes(data, 0, data.length);
+        assertFalse(receiver.receive(bytes, 0, AComplexDataType.SIZEOF_INTEGER + 4 * chunkSize + 100));
+        receiver.close();
+
+        File file = new File(message.getFilePath());
+        PartialFile partialFile = PartialFile.load(file);
+        try {
+            assertEquals(4 * chunkSize, partialFile.getResumeOffset());
+            //the verified chunks may be read while the file is coming in
+            assertEquals(4 * chunkSize, FileProgress.get(file.getCanonicalPath()).getAvailable());
+
+            //resume from the first missing chunk
+            int offset = partialFile.getResumeOffset();
+            message  = new ResumableFileMessage(manifest, "partial_resume", offset, data.length - offset);
+            receiver = new FileReceiver(message, getTempFolder());
+            bytes = getRangeBytes(data, offset, data.length - offset);
+            assertTrue(receiver.receive(bytes, 0, bytes.length));
+            partialFile = PartialFile.load(file);
+            assertTrue(partialFile.isComplete());
+            assertTrue(FileProgress.get(file.getCanonicalPath()).isComplete());
+            assertFileData(data, file);
+        } finally {
+            partialFile.delete();
+        }
+        assertNull(FileProgress.get(file.getCanonicalPath()));
+    }
+
+    @Test
+    public void testReceiveFromSeveralSources() throws IOException {
+        byte[] data = getFileData(4500);
+        FileManifest manifest = createManifest(data, 1000);
+
+        //two sources send their halves of the file at the same time
+        ResumableFileMessage first  = new ResumableFileMessage(manifest, "partial_sources", 0, 2000);
+        ResumableFileMessage second = new ResumableFileMessage(manifest, "partial_sources", 2000, data.length - 2000);
+        FileReceiver firstReceiver  = new FileReceiver(first, getTempFolder());
+        FileReceiver secondReceiver = new FileReceiver(second, getTempFolder());
+        byte[] firstBytes  = getRangeBytes(data, 0, 2000);
+        byte[] secondBytes = getRangeBytes(data, 2000, data.length - 2000);
+        int half = firstBytes.length / 2;
+        assertFalse(firstReceiver.receive(firstBytes, 0, half));
+        assertFalse(secondReceiver.receive(secondBytes, 0, secondBytes.length - 10));
+        assertTrue(firstReceiver.receive(firstBytes, half, firstBytes.length - half));
+
+        //the first receiver saves the chunks verified by both
+        File file = new File(first.getFilePath());
+        PartialFile partialFile = PartialFile.load(file);
+        try {
+            assertEquals(new File(second.getFilePath()), file);
+            assertEquals(4000, partialFile.getResumeOffset());
+            assertEquals(4000, FileProgress.get(file.getCanonicalPath()).getAvailable());
+
+            assertTrue(secondReceiver.receive(secondBytes, secondBytes.length - 10, 10));
+            partialFile = PartialFile.load(file);
+            assertTrue(partialFile.isComplete());
+            assertFileData(data, file);
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    @Test
+    public void testReceiveDifferentManifest() throws IOException {
+        byte[] data  = getFileData(4500);
+        byte[] other = getFileData(4500);
+        other[2500]++;
+        FileManifest manifest      = createManifest(data, 1000);
+        FileManifest otherManifest = createManifest(other, 1000);
+
+        //two sources with different copies of the file send their halves at the same time
+        ResumableFileMessage first  = new ResumableFileMessage(manifest, "partial_manifests", 0, 2000);
+        ResumableFileMessage second = new ResumableFileMessage(otherManifest, "partial_manifests", 2000, other.length - 2000);
+        FileReceiver firstReceiver  = new FileReceiver(first, getTempFolder());
+        FileReceiver secondReceiver = new FileReceiver(second, getTempFolder());
+        byte[] firstBytes  = getRangeBytes(data, 0, 2000);
+        byte[] secondBytes = getRangeBytes(other, 2000, other.length - 2000);
+        assertFalse(firstReceiver.receive(firstBytes, 0, 10));
+        //the second copy is skipped, and does not replace the first
+        assertTrue(secondReceiver.receive(secondBytes, 0, secondBytes.length));
+        assertTrue(second.isManifestRejected());
+        assertEquals(0, secondReceiver.getWriteCount());
+        assertTrue(firstReceiver.receive(firstBytes, 10, firstBytes.length - 10));
+        assertFalse(first.isManifestRejected());
+
+        File file = new File(first.getFilePath());
+        PartialFile partialFile = PartialFile.load(file);
+        try {
+            assertEquals(new File(second.getFilePath()), file);
+            assertEquals(manifest, partialFile.getManifest());
+            assertEquals(2000, partialFile.getResumeOffset());
+
+            //once the first half is saved, the second copy is still skipped
+            second = new ResumableFileMessage(otherManifest, "partial_manifests", 2000, other.length - 2000);
+            secondReceiver = new FileReceiver(second, getTempFolder());
+            assertTrue(secondReceiver.receive(secondBytes, 0, secondBytes.length));
+            assertTrue(second.isManifestRejected());
+
+            //and the rest of the file is asked of the first source
+            first = new ResumableFileMessage(manifest, "partial_manifests", 2000, data.length - 2000);
+            firstReceiver = new FileReceiver(first, getTempFolder());
+            firstBytes = getRangeBytes(data, 2000, data.length - 2000);
+            assertTrue(firstReceiver.receive(firstBytes, 0, firstBytes.length));
+            partialFile = PartialFile.load(file);
+            assertTrue(partialFile.isComplete());
+            assertFileData(data, file);
+        } finally {
+            partialFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReceiveInvalidPartialFileName() throws IOException {
+        byte[] data = getFileData(100);
+        ResumableFileMessage message = new ResumableFileMessage(createManifest(data, 10), "../partial", 0, data.length);
+        FileReceiver receiver = new FileReceiver(message, getTempFolder());
+        byte[] bytes = getRangeBytes(data, 0, data.length);
+        receiver.receive(bytes, 0, bytes.length);
+    }
+}
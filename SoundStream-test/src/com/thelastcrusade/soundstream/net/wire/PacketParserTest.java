@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.net.wire.PacketFormat.ControlCode;
+import com.thelastcrusade.soundstream.net.wire.PacketParser.PacketHandler;
+import com.thelastcrusade.soundstream.util.InputBuffer;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class PacketParserTest {
+
+    /**
+     * Records the packets parsed, and the data for each packet.
+     */
+    private static class RecordingHandler implements PacketHandler {
+        private List<Integer> messageNos = new ArrayList<Integer>();
+        private List<byte[]> payloads = new ArrayList<byte[]>();
+        private int canceled;
+        private ByteArrayOutputStream current;
+
+        @Override
+        public OutputStream beginPacket(PacketParser parser) throws IOException {
+            if (parser.isControlCodeSet(ControlCode.Cancelled)) {
+                canceled++;
+                return null;
+            }
+            current = new ByteArrayOutputStream();
+            return current;
+        }
+
+        @Override
+        public void endPacket(PacketParser parser) throws IOException {
+            messageNos.add(parser.getMessageNo());
+            payloads.add(current != null ? current.toByteArray() : null);
+            current = null;
+        }
+    }
+
+    private byte[] getTestPackets() throws IOException {
+        InputBuffer buffer = new InputBuffer();
+        new PacketFormat(1, new byte[] {1, 2, 3, 4, 5}).serialize(buffer);
+        //a packet with no data
+        new PacketFormat(2, new byte[0]).serialize(buffer);
+        PacketFormat cancel = new PacketFormat(3, new byte[] {9, 9});
+        cancel.addControlCode(ControlCode.Cancelled);
+        cancel.serialize(buffer);
+        new PacketFormat(4, new byte[] {6, 7}).serialize(buffer);
+        return buffer.toByteArray();
+    }
+
+    private void assertTestPackets(RecordingHandler handler) {
+        assertEquals(4, handler.messageNos.size());
+        assertEquals(1, handler.canceled);
+        assertEquals(Integer.valueOf(1), handler.messageNos.get(0));
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, handler.payloads.get(0));
+        assertEquals(Integer.valueOf(2), handler.messageNos.get(1));
+        assertArrayEquals(new byte[0], handler.payloads.get(1));
+        //canceled packet data is discarded
+        assertEquals(Integer.valueOf(3), handler.messageNos.get(2));
+        assertEquals(null, handler.payloads.get(2));
+        assertEquals(Integer.valueOf(4), handler.messageNos.get(3));
+        assertArrayEquals(new byte[] {6, 7}, handler.payloads.get(3));
+    }
+
+    @Test
+    public void testParseAllAtOnce() throws IOException {
+        byte[] packets = getTestPackets();
+        RecordingHandler handler = new RecordingHandler();
+        PacketParser parser = new PacketParser(handler);
+        parser.parse(packets, 0, packets.length);
+        assertFalse(parser.isInPacket());
+        assertTestPackets(handler);
+    }
+
+    @Test
+    public void testParseOneByteAtATime() throws IOException {
+        byte[] packets = getTestPackets();
+        RecordingHandler handler = new RecordingHandler();
+        PacketParser parser = new PacketParser(handler);
+        for (int ii = 0; ii < packets.length; ii++) {
+            parser.parse(packets, ii, 1);
+            //partial header
+            if (ii == 0) {
+                assertTrue(parser.isInPacket());
+            }
+        }
+        assertFalse(parser.isInPacket());
+        assertTestPackets(handler);
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseInvalidLength() throws IOException {
+        byte[] header = new byte[PacketFormat.getOverhead()];
+        //a length shorter than the header is invalid
+        header[3] = 1;
+        new PacketParser(new RecordingHandler()).parse(header, 0, header.length);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.message.LibraryMessage;
+import com.thelastcrusade.soundstream.net.message.MessageFormat;
+import com.thelastcrusade.soundstream.net.message.PlaylistMessage;
+
+/**
+ * @author Jesse Rosalia
+ *
+ */
+public class WireRecvOutputStreamTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private File getTempFolder() throws IOException {
+        File temp = File.createTempFile("test", "");
+        temp.delete();
+        return temp.getParentFile();
+    }
+
+    private byte[] serialize(IMessage message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new MessageFormat(message, MessageFormat.MESSENGER_VERSION).serialize(baos);
+        return baos.toByteArray();
+    }
+
+    private PlaylistMessage createPlaylistMessage(int size) {
+        List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+        for (int i = 0; i < size; i++) {
+            playlist.add(new PlaylistEntry(new SongMetadata(i, "Song " + i, "Artist", "Album", 1000 + i,
+                    "00:11:22:33:44:55"), false, false, "/sdcard/Music/" + i + ".mp3", i));
+        }
+        return new PlaylistMessage(playlist);
+    }
+
+    /**
+     * Write the message a chunk at a time (as it would come in packets), and return the
+     * received message.
+     * 
+     * @return
+     * @throws IOException
+     */
+    private IMessage receive(WireRecvOutputStream stream, byte[] bytes, boolean expectSpill) throws IOException {
+        boolean spilled = false;
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+            stream.write(bytes, offset, Math.min(CHUNK_SIZE, bytes.length - offset));
+            boolean received = stream.attemptReceive();
+            assertEquals(offset + CHUNK_SIZE >= bytes.length, received);
+            spilled |= stream.isSpilled();
+        }
+        assertEquals(expectSpill, spilled);
+        assertFalse(stream.isSpilled());
+        return stream.getReceivedMessage();
+    }
+
+    @Test
+    public void testSpillLargeMessage() throws IOException {
+        ReceiveMemoryBudget global = new ReceiveMemoryBudget(null, 8 * 1024 * 1024);
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(global, 1024 * 1024);
+        //big enough to go over the spill threshold
+        PlaylistMessage message = createPlaylistMessage(5000);
+        byte[] bytes = serialize(message);
+        assertTrue(bytes.length > 256 * 1024);
+
+        WireRecvOutputStream stream = new WireRecvOutputStream(getTempFolder(), budget);
+        PlaylistMessage received = (PlaylistMessage) receive(stream, bytes, true);
+        assertEquals(message.getSongsToPlay().size(), received.getSongsToPlay().size());
+        assertEquals("/sdcard/Music/4999.mp3", received.getSongsToPlay().get(4999).getFilePath());
+
+        //the message data never stayed in memory
+        assertTrue(budget.getPeakBytes() <= CHUNK_SIZE);
+        assertEquals(1, budget.getSpillCount());
+        assertEquals(1, global.getSpillCount());
+        stream.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, global.getUsedBytes());
+    }
+
+    @Test
+    public void testSpillOverBudget() throws IOException {
+        ReceiveMemoryBudget global = new ReceiveMemoryBudget(null, 1024 * 1024);
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(global, 1024 * 1024);
+        PlaylistMessage message = createPlaylistMessage(200);
+        byte[] bytes = serialize(message);
+
+        //fits in the budget...held in memory
+        WireRecvOutputStream stream = new WireRecvOutputStream(getTempFolder(), budget);
+        receive(stream, bytes, false);
+        assertTrue(budget.getPeakBytes() >= bytes.length - CHUNK_SIZE);
+        stream.close();
+        assertEquals(0, global.getUsedBytes());
+
+        //the global budget is used up by another connection...spilled
+        ReceiveMemoryBudget other = new ReceiveMemoryBudget(global, 1024 * 1024);
+        other.reserve(global.getLimitBytes() - CHUNK_SIZE);
+        stream = new WireRecvOutputStream(getTempFolder(), budget);
+        PlaylistMessage received = (PlaylistMessage) receive(stream, bytes, true);
+        assertEquals(message.getSongsToPlay().size(), received.getSongsToPlay().size());
+        assertEquals(1, budget.getSpillCount());
+        assertEquals(0, other.getSpillCount());
+        stream.close();
+        other.release(global.getLimitBytes() - CHUNK_SIZE);
+        assertEquals(0, global.getUsedBytes());
+    }
+
+    @Test
+    public void testStreamingMessageNotSpilled() throws IOException {
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(null, 16 * 1024);
+        List<SongMetadata> library = new ArrayList<SongMetadata>();
+        for (int i = 0; i < 20000; i++) {
+            library.add(new SongMetadata(i, "Song " + i, "Artist " + (i % 100), "Album " + (i % 500), 1000 + i,
+                    "00:11:22:33:44:55"));
+        }
+        byte[] bytes = serialize(new LibraryMessage(library));
+        assertTrue(bytes.length > budget.getLimitBytes() * 10);
+
+        //streaming messages are decoded as they arrive, so they only ever hold part of a block
+        WireRecvOutputStream stream = new WireRecvOutputStream(getTempFolder(), budget);
+        LibraryMessage received = (LibraryMessage) receive(stream, bytes, false);
+        assertEquals(library.size(), received.getLibrary().size());
+        assertTrue(budget.getPeakBytes() < budget.getLimitBytes());
+        assertEquals(0, budget.getSpillCount());
+        stream.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+}
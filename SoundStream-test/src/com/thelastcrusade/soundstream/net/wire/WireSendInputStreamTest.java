@@ -27,11 +27,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
 import com.thelastcrusade.soundstream.net.core.AComplexDataType;
+import com.thelastcrusade.soundstream.util.InputBuffer;
 import com.thelastcrusade.soundstream.util.MessageTestUtil;
 
 /**
@@ -436,4 +438,152 @@ public class WireSendInputStreamTest {
             testFile.delete();
         }
     }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.net.wire.WireSendInputStream#writePacket(OutputStream)}.
+     * @throws IOException 
+     */
+    @Test
+    public void testWritePacket() throws IOException {
+        int packetSize = 100;
+        int messageNo  = 1;
+        File testFile = MessageTestUtil.getTempTestFile(250);
+        WireSendInputStream expected = null;
+        WireSendInputStream actual   = null;
+        try {
+            expected = new WireSendInputStream(packetSize, messageNo,
+                    MessageTestUtil.getTestStream(packetSize * 2), new FileInputStream(testFile));
+            actual   = new WireSendInputStream(packetSize, messageNo,
+                    MessageTestUtil.getTestStream(packetSize * 2), new FileInputStream(testFile));
+
+            //writePacket must produce exactly the same packets as read, one packet per call
+            byte[] buf = new byte[packetSize];
+            InputBuffer written = new InputBuffer();
+            int read;
+            while ((read = expected.read(buf, 0, buf.length)) > 0) {
+                written.reset();
+                assertEquals(read, actual.writePacket(written));
+                byte[] packet = written.toByteArray();
+                for (int ii = 0; ii < read; ii++) {
+                    assertEquals(buf[ii], packet[ii]);
+                }
+                assertEquals(expected.available(), actual.available());
+            }
+            assertEquals(0, actual.writePacket(written));
+            assertEquals(0, actual.available());
+        } finally {
+            expected.close();
+            actual.close();
+            testFile.delete();
+        }
+    }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.net.wire.WireSendInputStream#setPacketSize(int)}.
+     * @throws IOException 
+     */
+    @Test
+    public void testSetPacketSize() throws IOException {
+        int messageSize = 1000;
+        int messageNo   = 1;
+        WireSendInputStream input = new WireSendInputStream(100, messageNo,
+                MessageTestUtil.getTestStream(messageSize), null);
+
+        InputBuffer written = new InputBuffer();
+        assertEquals(100, input.writePacket(written));
+
+        //change the packet size...the rest of the message should be sent in bigger packets
+        input.setPacketSize(500);
+        int expectedLeft = input.available();
+        int payloadLeft = messageSize - (100 - PacketFormat.getOverhead());
+        assertEquals(payloadLeft + computeExpectedPackets(500, payloadLeft, 0) * PacketFormat.getOverhead(), expectedLeft);
+        int left = 0;
+        int packet;
+        while ((packet = input.writePacket(written)) > 0) {
+            assertTrue(packet <= 500);
+            left += packet;
+        }
+        assertEquals(expectedLeft, left);
+        assertEquals(0, input.available());
+        input.close();
+
+        //reassemble the message from the packets, and make sure nothing was lost
+        final InputBuffer payload = new InputBuffer();
+        PacketParser parser = new PacketParser(new PacketParser.PacketHandler() {
+            @Override
+            public OutputStream beginPacket(PacketParser parser) {
+                return payload;
+            }
+
+            @Override
+            public void endPacket(PacketParser parser) {
+            }
+        });
+        byte[] bytes = written.toByteArray();
+        parser.parse(bytes, 0, bytes.length);
+        byte[] message = payload.toByteArray();
+        assertEquals(messageSize, message.length);
+        for (int ii = 0; ii < messageSize; ii++) {
+            assertEquals((byte) ii, message[ii]);
+        }
+    }
+
+    /**
+     * Send a song sized file through writePacket (the path used by ConnectionWriter)
+     * and through read (the plain InputStream path), and make sure both send every byte.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testSendLargeFile() throws IOException {
+        int packetSize  = 4096;
+        int messageNo   = 1;
+        int messageSize = 100;
+        int fileSize    = 8 * 1024 * 1024;
+        File testFile = MessageTestUtil.getTempTestFile(fileSize);
+        try {
+            CountingOutputStream counter = new CountingOutputStream();
+            WireSendInputStream input = new WireSendInputStream(packetSize, messageNo,
+                    MessageTestUtil.getTestStream(messageSize), new FileInputStream(testFile));
+            int expectedBytes = input.available();
+            while (input.writePacket(counter) > 0) {
+                counter.packets++;
+            }
+            input.close();
+            assertEquals(expectedBytes, counter.bytes);
+            assertEquals(computeExpectedPackets(packetSize, messageSize, fileSize + AComplexDataType.SIZEOF_INTEGER), counter.packets);
+
+            counter = new CountingOutputStream();
+            input = new WireSendInputStream(packetSize, messageNo,
+                    MessageTestUtil.getTestStream(messageSize), new FileInputStream(testFile));
+            byte[] buf = new byte[packetSize];
+            int read;
+            while ((read = input.read(buf)) > 0) {
+                counter.write(buf, 0, read);
+            }
+            input.close();
+            assertEquals(expectedBytes, counter.bytes);
+        } finally {
+            testFile.delete();
+        }
+    }
+
+    /**
+     * An output stream that throws away its data, and counts the bytes
+     * written (e.g. a very fast socket).
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long bytes;
+        private int packets;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            bytes += count;
+        }
+    }
 }
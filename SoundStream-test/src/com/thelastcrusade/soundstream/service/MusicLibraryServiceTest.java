@@ -19,6 +19,7 @@
 
 package com.thelastcrusade.soundstream.service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -26,6 +27,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.service.MusicLibraryService;
 import com.thelastcrusade.soundstream.util.BroadcastRegistrar;
@@ -186,6 +188,46 @@ public class MusicLibraryServiceTest extends AServiceTest<MusicLibraryService> {
         }
     }
 
+    /**
+     * Test updating the library with parts of a library that is still being received.
+     * 
+     * We expect each part to be added right away, but the library update to be sent
+     * at most once per update interval until the whole library is received.
+     * 
+     */
+    public void testUpdatePartialLibrary() {
+        MusicLibraryService service = getTheService();
+        BroadcastRegistrar registrar = new BroadcastRegistrar();
+        try {
+            TestHandler handler = new TestHandler();
+            registrar.addLocalAction(MusicLibraryService.ACTION_LIBRARY_UPDATED,
+                    handler).register(service);
+
+            SongMetadata meta = new SongMetadata(1,
+                    "Bridge over troubled waters", "The Tacoma Narrows",
+                    "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+            SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                    "The Golden Gates", "California", 6234662, "00:11:22:33:44:55");
+            service.updateLibrary(Arrays.asList(meta), true, true);
+            assertEquals(1, service.getLibrary().size());
+            service.updateLibrary(Arrays.asList(meta2), true, true);
+            assertEquals(2, service.getLibrary().size());
+
+            //the whole library replaces the parts
+            service.updateLibrary(Arrays.asList(meta, meta2), true, false);
+            List<SongMetadata> library = service.getLibrary();
+            assertEquals(2, library.size());
+            assertSongMetaEquals(meta,  library.get(0));
+            assertSongMetaEquals(meta2, library.get(1));
+
+            // this should have been called 2 times (once for the first part, and
+            // once for the whole library)
+            assertEquals(2, handler.getReceiveActionCalled());
+        } finally {
+            registrar.unregister();
+        }
+    }
+
     /**
      * Test what happens when we update an existing song.
      * 
@@ -225,4 +267,122 @@ public class MusicLibraryServiceTest extends AServiceTest<MusicLibraryService> {
             registrar.unregister();
         }
     }
+
+    /**
+     * Test applying library changes from the host.
+     * 
+     * We expect snapshots to replace the songs for a source, changes that follow
+     * the version we have to be applied, and changes we already have or that skip
+     * a version to be ignored.
+     * 
+     */
+    public void testApplyLibraryChanges() {
+        MusicLibraryService service = getTheService();
+        String address = "00:11:22:33:44:55";
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, address);
+        SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, address);
+        SongMetadata meta3 = new SongMetadata(3, "Lady with the Puppies",
+                "Aziz Ansari", "Dangerously Delicious", 23462346, address);
+
+        service.applyLibraryChanges(Arrays.asList(meta, meta2),
+                Arrays.asList(new LibraryChanges(address, 0, 2, true, new long[0])), true);
+        assertEquals(2, service.getLibrary().size());
+
+        //remove the first song
+        service.applyLibraryChanges(Arrays.<SongMetadata>asList(),
+                Arrays.asList(new LibraryChanges(address, 2, 3, false, new long[] {1})), true);
+        List<SongMetadata> library = service.getLibrary();
+        assertEquals(1, library.size());
+        assertSongMetaEquals(meta2, library.get(0));
+
+        //already have these changes
+        service.applyLibraryChanges(Arrays.asList(meta),
+                Arrays.asList(new LibraryChanges(address, 1, 3, false, new long[0])), true);
+        assertEquals(1, service.getLibrary().size());
+
+        //missing version 4
+        service.applyLibraryChanges(Arrays.asList(meta3),
+                Arrays.asList(new LibraryChanges(address, 4, 5, false, new long[0])), true);
+        assertEquals(1, service.getLibrary().size());
+
+        //a new snapshot replaces everything
+        service.applyLibraryChanges(Arrays.asList(meta3),
+                Arrays.asList(new LibraryChanges(address, 0, 5, true, new long[0])), true);
+        library = service.getLibrary();
+        assertEquals(1, library.size());
+        assertSongMetaEquals(meta3, library.get(0));
+    }
+
+    /**
+     * Test searching the library for guests that browse it remotely.
+     * 
+     * We expect pages of the matching songs, in library order, leaving out the
+     * songs of the guest that asked, and the total number of matching songs.
+     * 
+     */
+    public void testSearchLibrary() {
+        MusicLibraryService service = getTheService();
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+        SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "00:11:22:33:44:55");
+        SongMetadata meta3 = new SongMetadata(3, "Golden Slumbers",
+                "The Beatles", "Abbey Road", 23462346, "66:77:88:99:AA:BB");
+        service.updateLibrary(Arrays.asList(meta, meta2, meta3), true);
+
+        List<SongMetadata> results = new ArrayList<SongMetadata>();
+        assertEquals(3, service.searchLibrary(null, null, 0, 2, results));
+        assertEquals(2, results.size());
+        //the library is sorted by artist
+        assertSongMetaEquals(meta3, results.get(0));
+        assertSongMetaEquals(meta2, results.get(1));
+
+        results.clear();
+        assertEquals(3, service.searchLibrary(null, null, 2, 2, results));
+        assertEquals(1, results.size());
+        assertSongMetaEquals(meta, results.get(0));
+
+        //case insensitive, and leaves out the guest's own songs
+        results.clear();
+        assertEquals(1, service.searchLibrary("golden", "00:11:22:33:44:55", 0, 10, results));
+        assertSongMetaEquals(meta3, results.get(0));
+    }
+
+    /**
+     * Test that copies of a song on different devices are shown once.
+     * 
+     * We expect songs with the same content hash to be collapsed into the first
+     * copy, in the library and in search results, and songs that are not hashed
+     * to be left alone.
+     * 
+     */
+    public void testLibraryCollapsesCopies() {
+        MusicLibraryService service = getTheService();
+        SongMetadata meta = new SongMetadata(1,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "00:11:22:33:44:55");
+        meta.setContentHash(42);
+        SongMetadata copy = new SongMetadata(7,
+                "Bridge over troubled waters", "The Tacoma Narrows",
+                "Shake Rattle and Roll", 4523466, "66:77:88:99:AA:BB");
+        copy.setContentHash(42);
+        SongMetadata meta2 = new SongMetadata(2, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "00:11:22:33:44:55");
+        SongMetadata meta3 = new SongMetadata(3, "Frisky Frisco",
+                "The Golden Gates", "California", 6234662, "66:77:88:99:AA:BB");
+        service.updateLibrary(Arrays.asList(meta, copy, meta2, meta3), true);
+
+        assertEquals(3, service.getLibrary().size());
+        List<SongMetadata> results = new ArrayList<SongMetadata>();
+        assertEquals(3, service.searchLibrary(null, null, 0, 10, results));
+        assertEquals(3, results.size());
+        //the guest that has one copy is sent the other
+        results.clear();
+        assertEquals(1, service.searchLibrary("bridge", "00:11:22:33:44:55", 0, 10, results));
+        assertSongMetaEquals(copy, results.get(0));
+    }
 }
@@ -46,6 +46,7 @@ public class CustomAssert {
         assertEquals(expected.getAlbum(), actual.getAlbum());
         assertEquals(expected.getFileSize(), actual.getFileSize());
         assertEquals(expected.getMacAddress(), actual.getMacAddress());
+        assertEquals(expected.getContentHash(), actual.getContentHash());
     }
     
     public static void assertPlaylistEntry(PlaylistEntry expected,
@@ -20,7 +20,9 @@ package com.thelastcrusade.soundstream.util;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.junit.Test;
 
@@ -69,4 +71,131 @@ public class InputBufferTest {
         assertEquals('c', bytes[1]);
         buffer.close();
     }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.util.InputBuffer#consume()}.
+     * 
+     * This writes and consumes enough data to wrap around the end of the buffer, and
+     * grows the buffer while the data is wrapped.
+     * @throws IOException 
+     */
+    @Test
+    public void testConsumeWrapAround() throws IOException {
+        InputBuffer buffer = new InputBuffer(8);
+        byte[] bytes = new byte[6];
+        int next = 0;
+        int expected = 0;
+        for (int ii = 0; ii < 10; ii++) {
+            for (int jj = 0; jj < bytes.length; jj++) {
+                bytes[jj] = (byte) next++;
+            }
+            buffer.write(bytes, 0, bytes.length);
+            //read and consume a little less than we wrote, so the buffer must grow eventually
+            InputStream is = buffer.getInputStream();
+            for (int jj = 0; jj < 5; jj++) {
+                assertEquals((byte) expected++, (byte) is.read());
+            }
+            buffer.consume();
+            assertEquals(next - expected, buffer.size());
+        }
+        byte[] left = buffer.toByteArray();
+        assertEquals(next - expected, left.length);
+        for (int ii = 0; ii < left.length; ii++) {
+            assertEquals((byte) expected++, left[ii]);
+        }
+        buffer.close();
+    }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.util.InputBuffer#slice(int)}.
+     * @throws IOException 
+     */
+    @Test
+    public void testSlice() throws IOException {
+        InputBuffer buffer = new InputBuffer(8);
+        buffer.write(new byte[] {0, 1, 2, 3, 4, 5}, 0, 6);
+        InputStream is = buffer.getInputStream();
+        assertEquals(0, is.read());
+        assertEquals(1, is.read());
+        buffer.consume();
+        //this write wraps around the end of the ring
+        buffer.write(new byte[] {6, 7, 8}, 0, 3);
+
+        buffer.getInputStream();
+        InputBuffer.Slice slice = buffer.slice(5);
+        assertEquals(5, slice.length());
+        byte[] sliceBytes = slice.toByteArray();
+        for (int ii = 0; ii < sliceBytes.length; ii++) {
+            assertEquals(ii + 2, sliceBytes[ii]);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(5, slice.writeTo(baos));
+        assertArrayEquals(sliceBytes, baos.toByteArray());
+        assertEquals(2, slice.read());
+
+        //the slice counts as read, so consume removes it
+        buffer.consume();
+        assertEquals(2, buffer.size());
+        assertEquals(7, buffer.getInputStream().read());
+        buffer.close();
+    }
+
+    /**
+     * Test method for {@link com.lastcrusade.soundstream.util.InputBuffer#consume(int)}.
+     * @throws IOException 
+     */
+    @Test
+    public void testConsumeLength() throws IOException {
+        InputBuffer buffer = new InputBuffer(8);
+        buffer.write(new byte[] {0, 1, 2, 3, 4, 5}, 0, 6);
+        //read past the bytes to consume...the rest are kept
+        InputStream is = buffer.getInputStream();
+        is.read(new byte[5], 0, 5);
+        buffer.consume(2);
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.getInputStream().read());
+
+        buffer.consume(4);
+        assertEquals(0, buffer.size());
+        try {
+            buffer.consume(1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            //expected
+        }
+        buffer.close();
+    }
+
+    /**
+     * Test the receive path with a backlog of incoming packets (e.g. several
+     * guests sending libraries at once) that is read and consumed one packet
+     * at a time.
+     * @throws IOException 
+     */
+    @Test
+    public void testConsumeBacklog() throws IOException {
+        int packetSize = 1024;
+        int packetsPerRead = 64;
+        int reads = 256;
+        byte[] incoming = new byte[packetSize * packetsPerRead];
+        for (int ii = 0; ii < incoming.length; ii++) {
+            incoming[ii] = (byte) ii;
+        }
+
+        InputBuffer buffer = new InputBuffer();
+        long total = 0;
+        for (int ii = 0; ii < reads; ii++) {
+            buffer.write(incoming, 0, incoming.length);
+            //process all of the packets, except for a few that are left as a backlog
+            while (buffer.size() > packetSize * packetsPerRead / 2) {
+                buffer.getInputStream();
+                InputBuffer.Slice slice = buffer.slice(packetSize);
+                assertEquals((byte) total, (byte) slice.read());
+                buffer.consume();
+                total += packetSize;
+            }
+        }
+        assertEquals((long) incoming.length * reads - total, buffer.size());
+        buffer.close();
+    }
 }
@@ -291,7 +291,8 @@ public class CoreActivity extends SlidingFragmentActivity implements Trackable {
                 public void onReceiveAction(Context context, Intent intent) {
                     //send the library to the connected host
                     List<SongMetadata> metadata = getMusicLibraryService().getMyLibrary();
-                    getMessagingService().sendLibraryMessageToHost(metadata);
+                    getMessagingService().sendLibraryMessageToHost(metadata,
+                            getMusicLibraryService().isRemoteLibrary());
                 }
             })
             .register(this);
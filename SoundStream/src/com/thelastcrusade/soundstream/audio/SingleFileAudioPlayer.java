@@ -25,6 +25,8 @@ import java.io.FileInputStream;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
@@ -40,6 +42,9 @@ import com.thelastcrusade.soundstream.util.LocalBroadcastIntent;
  * 
  * This player takes in the path to the file to play, and can play
  * 
+ * Songs that are still coming in are played from the streaming proxy, and
+ * are prepared asynchronously, because preparing them waits on the network.
+ * 
  * @author Jesse Rosalia
  */
 public class SingleFileAudioPlayer implements IPlayer, IDuckable {
@@ -57,6 +62,9 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
 
     private boolean paused;
 
+    //true while a streamed song is being prepared, before it can start
+    private boolean preparing;
+
     private ServiceLocator<MessagingService> messagingService;
 
     private Context context;
@@ -73,6 +81,27 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
                         new LocalBroadcastIntent(SingleFileAudioPlayer.ACTION_SONG_FINISHED).send(SingleFileAudioPlayer.this.context);
                     }
         });
+        player.setOnPreparedListener(
+                new OnPreparedListener() {
+                    @Override public void onPrepared(MediaPlayer mp) {
+                        preparing = false;
+                        //the song may have been paused while it was being prepared
+                        if (!paused) {
+                            startPlaying();
+                        }
+                    }
+        });
+        player.setOnErrorListener(
+                new OnErrorListener() {
+                    @Override public boolean onError(MediaPlayer mp, int what, int extra) {
+                        Log.wtf(TAG, "Unable to play song: " + (entry != null ? entry.getFilePath() : null)
+                                + " (error " + what + ", " + extra + ")");
+                        preparing = false;
+                        //NOTE: returning false lets the OnCompletionListener finish the song, so
+                        // the playlist moves on (e.g. when a stream stalls and the proxy closes it)
+                        return false;
+                    }
+        });
     }
 
     /**
@@ -124,17 +153,26 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
                 }
                 this.entryChanged = false;
                 this.paused = false;
+                this.preparing = false;
                 player.reset();
-                //changed to use the underlying file descriptor, because this doesnt want
-                // to work on a Samsung Galaxy S3 and other phones
-                //(see http://stackoverflow.com/questions/1972027/android-playing-mp3-from-byte)
-                FileInputStream fis = new FileInputStream(entry.getFilePath());
-                player.setDataSource(fis.getFD());
-                player.prepare();
-                player.start();
-                this.messagingService.getService().sendPlayStatusMessage(
-                        this.entry, true);
+                if (StreamingProxy.isStreamUrl(entry.getFilePath())) {
+                    //the song is still coming in...play it from the streaming proxy.  preparing
+                    // a stream blocks until enough of it arrives, so it is prepared in the
+                    // background, and started by the OnPreparedListener
+                    player.setDataSource(entry.getFilePath());
+                    this.preparing = true;
+                    player.prepareAsync();
+                } else {
+                    //changed to use the underlying file descriptor, because this doesnt want
+                    // to work on a Samsung Galaxy S3 and other phones
+                    //(see http://stackoverflow.com/questions/1972027/android-playing-mp3-from-byte)
+                    FileInputStream fis = new FileInputStream(entry.getFilePath());
+                    player.setDataSource(fis.getFD());
+                    player.prepare();
+                    startPlaying();
+                }
             } catch (Exception e) {
+                this.preparing = false;
                 Log.wtf(TAG, "Unable to play song: " + entry.getFilePath());
             }
         } else {
@@ -142,8 +180,25 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
         }
     }
 
+    /**
+     * Start the prepared song, and tell everyone it is playing.
+     * 
+     */
+    private void startPlaying() {
+        player.start();
+        try {
+            this.messagingService.getService().sendPlayStatusMessage(
+                    this.entry, true);
+        } catch (ServiceNotBoundException e) {
+            Log.wtf(TAG, e);
+        }
+    }
+
     private boolean isValidPath() {
         boolean isValid = false;
+        if (entry != null && StreamingProxy.isStreamUrl(entry.getFilePath())) {
+            return true;
+        }
         try {
             //This will fail and throw and Exception if the filepath is bad
             new File((new File(entry.getFilePath()).getParentFile().list())[0]).exists();
@@ -187,6 +242,10 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
         this.paused = false;
         if (player.isPlaying()) {
             player.stop();
+        } else if (this.preparing) {
+            //cancel the prepare, so the song doesnt start when it finishes
+            this.preparing = false;
+            player.reset();
         }
         if (this.entry != null) {
             try {
@@ -204,6 +263,9 @@ public class SingleFileAudioPlayer implements IPlayer, IDuckable {
     public void resume() {
     	if (this.entryChanged) {
     		play();
+    	} else if (this.preparing) {
+    		//the OnPreparedListener will start the song
+    		paused = false;
     	} else {
 	        player.start();
 	        paused = false;
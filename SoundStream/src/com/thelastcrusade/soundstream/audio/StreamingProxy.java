@@ -0,0 +1,284 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.audio;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+import com.thelastcrusade.soundstream.net.wire.FileProgress;
+import com.thelastcrusade.soundstream.util.LogUtil;
+
+/**
+ * A tiny HTTP server, bound to localhost, that serves songs to the media
+ * player while they are still being transferred.  The media player only
+ * reads from files that are complete, or from URLs, so songs that are
+ * still coming in are played from a URL on this server.
+ * 
+ * Reads past the data that has arrived (see FileProgress) block until the
+ * data arrives, so the player buffers instead of reaching the end of the
+ * song early.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class StreamingProxy implements Runnable {
+
+    private static final String TAG = StreamingProxy.class.getSimpleName();
+
+    private static final String HOST = "127.0.0.1";
+
+    /**
+     * How long to wait for more of a song without any progress, before giving up
+     * on the song.
+     */
+    private static final long DEFAULT_STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ServerSocket serverSocket;
+
+    private volatile boolean running;
+
+    private volatile long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    //the path of the file behind each stream, which may change when the file is complete
+    private Map<String, String> streams = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Start the server, on a free port.
+     * 
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        this.serverSocket = new ServerSocket(0, 4, InetAddress.getByName(HOST));
+        this.running = true;
+        new Thread(this, TAG + " Thread").start();
+    }
+
+    /**
+     * Stop the server.  Streams being served are cut off.
+     * 
+     */
+    public void stop() {
+        this.running = false;
+        try {
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+        } catch (IOException e) {
+            //don't care, we're closing
+        }
+        this.streams.clear();
+    }
+
+    /**
+     * @param path
+     * @return True if the path is a stream URL from a streaming proxy.
+     */
+    public static boolean isStreamUrl(String path) {
+        return path != null && path.startsWith("http://" + HOST + ":");
+    }
+
+    /**
+     * Serve a file as a stream.
+     * 
+     * @param name The name of the stream, which must be URL safe
+     * @param filePath The file to serve
+     * @return The URL of the stream.
+     */
+    public String addStream(String name, String filePath) {
+        this.streams.put(name, filePath);
+        return "http://" + HOST + ":" + this.serverSocket.getLocalPort() + "/" + name;
+    }
+
+    /**
+     * Change the file served for a stream (e.g. when the file is complete and moved).
+     * This does nothing if the stream does not exist.
+     * 
+     * @param name
+     * @param filePath
+     */
+    public void setStreamPath(String name, String filePath) {
+        if (this.streams.containsKey(name)) {
+            this.streams.put(name, filePath);
+        }
+    }
+
+    public void removeStream(String name) {
+        this.streams.remove(name);
+    }
+
+    /**
+     * Set how long to wait for more of a song without any progress, before closing
+     * the stream.  The player sees the stream end early, and finishes the song.
+     * 
+     * @param stallTimeoutMillis
+     */
+    public void setStallTimeout(long stallTimeoutMillis) {
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, TAG + " Connection").start();
+            } catch (IOException e) {
+                if (this.running && LogUtil.isLogAvailable()) {
+                    Log.w(TAG, "Unable to accept connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve one request.  This supports just enough of HTTP for the media player:
+     * GET requests, with an optional byte range.
+     * 
+     * @param socket
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String request = reader.readLine();
+            long rangeStart = 0;
+            long rangeEnd   = -1;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range: bytes=")) {
+                    String range = line.substring("range: bytes=".length()).trim();
+                    int dash = range.indexOf('-');
+                    if (dash > 0) {
+                        rangeStart = Long.parseLong(range.substring(0, dash).trim());
+                        if (dash < range.length() - 1) {
+                            rangeEnd = Long.parseLong(range.substring(dash + 1).trim());
+                        }
+                    }
+                }
+            }
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            String[] parts = request != null ? request.split(" ") : new String[0];
+            String filePath = parts.length >= 2 && parts[1].startsWith("/") ? this.streams.get(parts[1].substring(1)) : null;
+            if (filePath == null || !parts[0].equals("GET")) {
+                writeHeader(output, "404 Not Found", 0, null);
+            } else {
+                FileProgress progress = FileProgress.get(filePath);
+                long fileLength = progress != null ? progress.getFileLength() : new File(filePath).length();
+                if (rangeEnd < 0 || rangeEnd >= fileLength) {
+                    rangeEnd = fileLength - 1;
+                }
+                if (rangeStart > rangeEnd && fileLength > 0) {
+                    writeHeader(output, "416 Requested Range Not Satisfiable", 0, "bytes */" + fileLength);
+                } else if (rangeStart > 0 || rangeEnd < fileLength - 1) {
+                    writeHeader(output, "206 Partial Content", rangeEnd - rangeStart + 1,
+                            "bytes " + rangeStart + "-" + rangeEnd + "/" + fileLength);
+                    writeFile(output, filePath, progress, rangeStart, rangeEnd + 1);
+                } else {
+                    writeHeader(output, "200 OK", fileLength, null);
+                    writeFile(output, filePath, progress, 0, fileLength);
+                }
+            }
+            output.flush();
+        } catch (Exception e) {
+            //the player closes connections when it seeks or stops...this is expected
+            if (LogUtil.isLogAvailable()) {
+                Log.d(TAG, "Stream closed: " + e.getMessage());
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //don't care, we're closing
+            }
+        }
+    }
+
+    private void writeHeader(OutputStream output, String status, long contentLength, String contentRange) throws IOException {
+        StringBuilder header = new StringBuilder()
+            .append("HTTP/1.1 ").append(status).append("\r\n")
+            .append("Content-Type: application/octet-stream\r\n")
+            .append("Content-Length: ").append(contentLength).append("\r\n")
+            .append("Accept-Ranges: bytes\r\n")
+            .append("Connection: close\r\n");
+        if (contentRange != null) {
+            header.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        header.append("\r\n");
+        output.write(header.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * Write part of a file, waiting for data that has not yet arrived.
+     * 
+     * @param output
+     * @param filePath
+     * @param progress The progress of the file, or null if the file is complete
+     * @param start
+     * @param end
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeFile(OutputStream output, String filePath, FileProgress progress, long start, long end)
+            throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(filePath, "r");
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            file.seek(position);
+            while (position < end) {
+                long available = end;
+                if (progress != null && !progress.isComplete()) {
+                    //flush what we have, so the player can play it while we wait
+                    output.flush();
+                    available = progress.awaitAvailable((int) position, stallTimeoutMillis);
+                    if (available <= position) {
+                        throw new IOException("Stream " + filePath + " stalled at " + position);
+                    }
+                }
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, Math.min(available, end) - position));
+                if (read < 0) {
+                    break;
+                }
+                output.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
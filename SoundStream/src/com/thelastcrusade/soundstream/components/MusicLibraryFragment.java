@@ -34,6 +34,7 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.ListView;
@@ -57,6 +58,10 @@ import com.thelastcrusade.soundstream.util.SongGestureListener;
 
 public class MusicLibraryFragment extends MusicListFragment {
     private final String TAG = MusicLibraryFragment.class.getSimpleName();
+
+    //ask for more songs when the list is scrolled this close to the end
+    private static final int LOAD_MORE_THRESHOLD = 20;
+
     private BroadcastRegistrar registrar;
 
     private ServiceLocator<PlaylistService> playlistServiceLocator;
@@ -194,6 +199,24 @@ public class MusicLibraryFragment extends MusicListFragment {
             getListView().addHeaderView(mHeaderView);
         }
         setListAdapter(mMusicAdapter);
+
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                //when browsing the library remotely, ask for more songs as we get near the end
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    MusicLibraryService musicLibraryService = getMusicLibraryService();
+                    if (musicLibraryService != null) {
+                        musicLibraryService.loadMoreResults(mQuery);
+                    }
+                }
+            }
+        });
     }
 
     @Override
@@ -20,7 +20,9 @@
 package com.thelastcrusade.soundstream.library;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Service;
 import android.content.Context;
@@ -70,6 +72,28 @@ public class MediaStoreWrapper {
         return metadataList;
     }
 
+    /**
+     * Lists the paths of all media files on the device
+     * @return A map of song id to the path to the song
+     */
+    public Map<Long, String> listFilePaths() {
+        String[] proj = {ID, PATH};
+        Cursor cursor = context.getContentResolver().query(EC_URI, proj, null, null, null);
+        Map<Long, String> filePaths = new HashMap<Long, String>();
+        cursor.moveToFirst();
+
+        while (!cursor.isAfterLast()) {
+            String filePath = cursor.getString(cursor.getColumnIndex(PATH));
+            if (filePath != null) {
+                filePaths.put(cursor.getLong(cursor.getColumnIndex(ID)), filePath);
+            }
+            cursor.moveToNext();
+        }
+
+        cursor.close();
+        return filePaths;
+    }
+
     /**
      * Gets a song from the MediaStore, else errors with SongNotFoundException
      * @param metadata metadata for the requested song
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.util.LogUtil;
+
+/**
+ * Content hashes of the song files on this device, kept across app restarts so
+ * each song is only hashed once.
+ * 
+ * The hash of a song is the same for every copy of the song file, on any device,
+ * and lets the host play a copy it already has instead of transferring the song
+ * again.  Since a matching hash is taken to mean the files are identical, the hash
+ * is taken over the whole file.  This is slow for a large library, so songs are
+ * hashed in the background, and hashes are only recomputed when a file changes size
+ * or modification time.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class SongHashCache {
+
+    private static final String TAG = SongHashCache.class.getSimpleName();
+
+    //version 1 hashed samples of each file, and those hashes are not kept
+    private static final int INDEX_VERSION = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static class HashedFile {
+        long fileSize;
+        long lastModified;
+        long hash;
+    }
+
+    private File index;
+
+    private Map<String, HashedFile> files = new HashMap<String, HashedFile>();
+
+    private boolean modified;
+
+    /**
+     * @param index The file the hashes are kept in
+     */
+    public SongHashCache(File index) {
+        this.index = index;
+    }
+
+    /**
+     * Load the hashes saved by an earlier run.
+     * 
+     */
+    public synchronized void load() {
+        this.files.clear();
+        this.modified = false;
+        if (!this.index.exists()) {
+            return;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.index)));
+            try {
+                if (input.readInt() != INDEX_VERSION) {
+                    return;
+                }
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = input.readUTF();
+                    HashedFile hashed = new HashedFile();
+                    hashed.fileSize     = input.readLong();
+                    hashed.lastModified = input.readLong();
+                    hashed.hash         = input.readLong();
+                    this.files.put(path, hashed);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to load song hashes", e);
+            }
+        }
+    }
+
+    /**
+     * Save the hashes, if any changed since the last load or save.  The hashes are
+     * written to a new file and renamed into place, so an interrupted save leaves
+     * the old hashes.
+     * 
+     */
+    public synchronized void save() {
+        if (!this.modified) {
+            return;
+        }
+        File newIndex = new File(this.index.getPath() + ".new");
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newIndex)));
+            try {
+                output.writeInt(INDEX_VERSION);
+                output.writeInt(this.files.size());
+                for (Map.Entry<String, HashedFile> entry : this.files.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue().fileSize);
+                    output.writeLong(entry.getValue().lastModified);
+                    output.writeLong(entry.getValue().hash);
+                }
+            } finally {
+                output.close();
+            }
+            if (!newIndex.renameTo(this.index)) {
+                throw new IOException("Unable to rename " + newIndex.getName());
+            }
+            this.modified = false;
+        } catch (IOException e) {
+            newIndex.delete();
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to save song hashes", e);
+            }
+        }
+    }
+
+    /**
+     * Get the hash of a song file, and hash the file if it is new or changed.
+     * 
+     * @param file
+     * @return The hash of the file, or {@link SongMetadata#UNKNOWN_HASH} if
+     * the file could not be read.
+     */
+    public long getHash(File file) {
+        String path = file.getAbsolutePath();
+        long fileSize     = file.length();
+        long lastModified = file.lastModified();
+        synchronized(this) {
+            HashedFile hashed = this.files.get(path);
+            if (hashed != null && hashed.fileSize == fileSize && hashed.lastModified == lastModified) {
+                return hashed.hash;
+            }
+        }
+        //hash outside the lock...this may take a while
+        long hash;
+        try {
+            hash = computeHash(file);
+        } catch (IOException e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to hash " + path, e);
+            }
+            return SongMetadata.UNKNOWN_HASH;
+        }
+        synchronized(this) {
+            HashedFile hashed = new HashedFile();
+            hashed.fileSize     = fileSize;
+            hashed.lastModified = lastModified;
+            hashed.hash         = hash;
+            this.files.put(path, hashed);
+            this.modified = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Forget the hashes of files that are no longer in the library.
+     * 
+     * @param paths The paths of the files in the library
+     */
+    public synchronized void retainAll(Set<String> paths) {
+        this.modified |= this.files.keySet().retainAll(paths);
+    }
+
+    /**
+     * Compute the content hash of a song file: the first 8 bytes of the SHA-1 of the
+     * file size and the whole file.
+     * 
+     * @param file
+     * @return The hash, which is never {@link SongMetadata#UNKNOWN_HASH}.
+     * @throws IOException
+     */
+    public static long computeHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available");
+        }
+        InputStream input = new FileInputStream(file);
+        try {
+            long length = file.length();
+            for (int i = 0; i < 8; i++) {
+                digest.update((byte) (length >>> (8 * i)));
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+                length -= read;
+            }
+            if (length != 0) {
+                throw new IOException("File changed while it was hashed");
+            }
+        } finally {
+            input.close();
+        }
+        byte[] sha = digest.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (sha[i] & 0xFF);
+        }
+        //reserve the unknown hash
+        return hash != SongMetadata.UNKNOWN_HASH ? hash : 1;
+    }
+}
@@ -23,9 +23,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -33,13 +36,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.thelastcrusade.soundstream.audio.StreamingProxy;
 import com.thelastcrusade.soundstream.library.MediaStoreWrapper;
 import com.thelastcrusade.soundstream.library.SongNotFoundException;
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
 import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+import com.thelastcrusade.soundstream.net.wire.FileProgress;
+import com.thelastcrusade.soundstream.net.wire.PartialFile;
 import com.thelastcrusade.soundstream.service.ConnectionService;
 import com.thelastcrusade.soundstream.service.IMessagingService;
 import com.thelastcrusade.soundstream.service.MessagingService;
+import com.thelastcrusade.soundstream.service.MusicLibraryService;
 import com.thelastcrusade.soundstream.service.PlaylistService;
 import com.thelastcrusade.soundstream.service.ServiceLocator;
 import com.thelastcrusade.soundstream.service.ServiceNotBoundException;
@@ -52,8 +60,23 @@ public class PlaylistDataManager implements Runnable {
 
     private static final String TAG = PlaylistDataManager.class.getName();
 
+    /**
+     * The rate songs are assumed to play at, in bytes per second, when deciding if a song
+     * can be played while it is still coming in.  We don't know the bitrate of the songs,
+     * so this is a high bitrate (320kbps), to be safe.
+     */
+    private static final long STREAM_BYTES_PER_SECOND = 320 * 1000 / 8;
+
+    /**
+     * The least data to have before playing a song that is still coming in.
+     */
+    private static final int MIN_STREAM_BYTES = 2 * FileManifest.DEFAULT_CHUNK_SIZE;
+
     private Context context;
     private ServiceLocator<MessagingService> messagingServiceLocator;
+    private ServiceLocator<MusicLibraryService> musicLibraryLocator;
+    //NOTE: the load queue and the remotely loaded songs are changed on the main thread too,
+    // so they must be used with the entryMutex held
     private Queue<PlaylistEntry> toLoadQueue = new LinkedList<PlaylistEntry>();
     private Queue<PlaylistEntry> remotelyLoaded = new LinkedList<PlaylistEntry>();
     private Thread stoppingThread;
@@ -61,44 +84,96 @@ public class PlaylistDataManager implements Runnable {
     private BroadcastRegistrar registrar;
 
     private long maxBytesToLoad = 512 * 1024 * 1024; //512MB default max bytes
+    //bytes of the songs requested, but not yet received
     private long bytesRequested = 0;
-    private float loadFactor    = 0.5f;
+
+    //songs received from guests, kept across restarts
+    private SongCache songCache;
+
+    //the playlist, and the position of the next song to play, for the cache to decide what to keep
+    private List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+    private int playlistPosition;
     
     private final Object entryMutex = new Object();
 
-    public PlaylistDataManager(Context context, ServiceLocator<MessagingService> messagingServiceLocator) {
+    //songs being received in chunks, by partial file name
+    private Map<String, SongDownload> downloads = new HashMap<String, SongDownload>();
+
+    //decides which remote songs to request, by when they will play
+    private TransferScheduler scheduler = new TransferScheduler(STREAM_BYTES_PER_SECOND);
+
+    //wakes the loader thread early, when there is work to do
+    private final Object runMutex = new Object();
+    private boolean runRequested;
+
+    //serves songs that are played while they are still coming in
+    private StreamingProxy streamingProxy;
+    private Map<PlaylistEntry, FileProgress> streaming = new HashMap<PlaylistEntry, FileProgress>();
+
+    //songs that have finished coming in, to be saved on this thread (off of the main thread)
+    private Queue<ReceivedSong> receivedQueue = new LinkedList<ReceivedSong>();
+
+    private static class ReceivedSong {
+        private final PlaylistEntry entry;
+        private final String fileName;
+        private final String tempFilePath;
+        private final PartialFile partialFile;
+
+        public ReceivedSong(PlaylistEntry entry, String fileName, String tempFilePath, PartialFile partialFile) {
+            this.entry        = entry;
+            this.fileName     = fileName;
+            this.tempFilePath = tempFilePath;
+            this.partialFile  = partialFile;
+        }
+    }
+
+    public PlaylistDataManager(Context context, ServiceLocator<MessagingService> messagingServiceLocator,
+            ServiceLocator<MusicLibraryService> musicLibraryLocator) {
         this.context                 = context;
         this.messagingServiceLocator = messagingServiceLocator;
+        this.musicLibraryLocator     = musicLibraryLocator;
+        this.songCache               = new SongCache(context.getFilesDir(), maxBytesToLoad);
     }
 
     @Override
     public void run() {
         registerReceivers();
+        startStreamingProxy();
+        songCache.load();
         running = true;
         try {
             while (running) {
-                //first, clean up any already played remote files...this frees up space
-                // to request new files.
-                clearOldLoadedFiles();
-
-                boolean loaded = false;
-                //next, see if we can start loading any additional files
-                while (!toLoadQueue.isEmpty() &&
-                        toLoadQueue.peek().getFileSize() < (maxBytesToLoad - bytesRequested)) {
-                    PlaylistEntry entry = toLoadQueue.poll();
+                boolean loaded = saveReceivedSongs();
+                //see if we can start loading any additional files
+                while (true) {
+                    PlaylistEntry entry;
+                    synchronized(entryMutex) {
+                        entry = toLoadQueue.poll();
+                    }
+                    if (entry == null) {
+                        break;
+                    }
                     if (entry.isLocalFile()) {
-                        //if its local, just load the file path and remove the entry
+                        //if its local, just load the file path
                         loadLocal(entry);
                         loaded = true;
+                    } else if (loadLocalCopy(entry) || loadCached(entry)) {
+                        //we have a copy of this song, or we've played it (or a copy of it)
+                        // before, and still have it
+                        synchronized(entryMutex) {
+                            remotelyLoaded.add(entry);
+                        }
+                        loaded = true;
                     } else {
-                        //for remote entries, we need to request the remote file, and also
-                        // keep track of the bytes requested, and the remote entries, so we
-                        // can avoid overloading the host, and we can clean up after ourselves
-                        loadRemote(entry);
-                        bytesRequested += entry.getFileSize();
-                        remotelyLoaded.add(entry);
+                        //remote songs are requested in the order they will play
+                        synchronized(entryMutex) {
+                            scheduler.add(entry);
+                        }
                     }
                 }
+                scheduleTransfers();
+                //finally, see if any songs that are coming in can be played already
+                loaded |= startStreaming();
                 if (loaded) {
                     new LocalBroadcastIntent(PlaylistService.ACTION_PLAYLIST_UPDATED).send(context);
                 }
@@ -107,6 +182,9 @@ public class PlaylistDataManager implements Runnable {
         } finally {
             //clean up on the way out
             unregisterReceivers();
+            if (this.streamingProxy != null) {
+                this.streamingProxy.stop();
+            }
             if (this.stoppingThread != null) {
                 synchronized(this.stoppingThread) {
                     this.stoppingThread.notify();
@@ -115,65 +193,375 @@ public class PlaylistDataManager implements Runnable {
         }
     }
 
+    private void startStreamingProxy() {
+        try {
+            this.streamingProxy = new StreamingProxy();
+            this.streamingProxy.start();
+        } catch (IOException e) {
+            //songs will be played once they are fully loaded
+            Log.w(TAG, "Unable to start streaming proxy", e);
+            this.streamingProxy = null;
+        }
+    }
+
+    /**
+     * Mark remote songs that are still coming in as loaded, if enough of the song is here
+     * and the song is coming in fast enough to play it without catching up to the transfer.
+     * These songs are played from the streaming proxy.
+     * 
+     * @return True if any songs were marked as loaded.
+     */
+    private boolean startStreaming() {
+        if (this.streamingProxy == null) {
+            return false;
+        }
+        boolean started = false;
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : remotelyLoaded) {
+                if (entry.isLoaded() || this.streaming.containsKey(entry)) {
+                    continue;
+                }
+                String partialFileName = getPartialFileName(entry);
+                FileProgress progress = FileProgress.get(getCanonicalPath(new File(this.context.getCacheDir(), partialFileName)));
+                if (progress != null && progress.canReadAt(STREAM_BYTES_PER_SECOND, MIN_STREAM_BYTES)) {
+                    Log.i(TAG, "Streaming " + entry + " with " + progress.getAvailable() + " of "
+                            + progress.getFileLength() + " bytes at " + progress.getBytesPerSecond() + " bytes/s");
+                    entry.setFilePath(this.streamingProxy.addStream(partialFileName, progress.getFilePath()));
+                    this.streaming.put(entry, progress);
+                    getMessagingService().sendSongStatusMessage(entry);
+                    started = true;
+                }
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Stop streaming a song, because it is no longer needed, or will not finish coming in.
+     * 
+     * @param entry
+     */
+    private void stopStreaming(PlaylistEntry entry) {
+        FileProgress progress = this.streaming.remove(entry);
+        if (progress != null) {
+            this.streamingProxy.removeStream(getPartialFileName(entry));
+            if (!progress.isComplete()) {
+                //wake up the proxy, so it stops waiting for the rest of the song
+                progress.remove();
+            }
+        }
+    }
+
+    private String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
     /**
      * Pause the thread before running through the data clear/load process
      */
     private void pauseForNextRun() {
         try {
             int pauseInMS = 1000; //1 second pause
-            Thread.sleep(pauseInMS);
+            synchronized(runMutex) {
+                //songs that come in, and changes to the playlist, are handled right away
+                if (!runRequested) {
+                    runMutex.wait(pauseInMS);
+                }
+                runRequested = false;
+            }
         } catch (InterruptedException e) {
         }
     }
+
+    private void wakeUp() {
+        synchronized(runMutex) {
+            runRequested = true;
+            runMutex.notify();
+        }
+    }
+
+    /**
+     * Request the remote songs needed soonest, pausing the transfers of songs needed
+     * later if need be (see {@link TransferScheduler}).
+     */
+    private void scheduleTransfers() {
+        TransferScheduler.Plan plan;
+        synchronized(entryMutex) {
+            plan = scheduler.schedule();
+        }
+        for (PlaylistEntry entry : plan.toPause) {
+            Log.i(TAG, "Pausing the transfer of " + entry + " for songs that will play sooner");
+            stopRemote(entry);
+            synchronized(entryMutex) {
+                scheduler.paused(entry);
+            }
+        }
+        for (PlaylistEntry entry : plan.toStart) {
+            if (!makeRoom(entry.getFileSize())) {
+                //no room for the song...wait for the songs ahead of it to be played
+                break;
+            }
+            //for remote entries, we need to request the remote file, and also
+            // keep track of the bytes requested, and the remote entries, so we
+            // can avoid overloading the host, and we can clean up after ourselves
+            loadRemote(entry);
+            synchronized(entryMutex) {
+                bytesRequested += entry.getFileSize();
+                scheduler.started(entry);
+                remotelyLoaded.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Stop the transfer of a remote song.  The part of the song already here is kept,
+     * so the rest of the song can be requested later.
+     * 
+     * @param entry
+     */
+    private void stopRemote(PlaylistEntry entry) {
+        synchronized(entryMutex) {
+            SongDownload download = downloads.remove(getPartialFileName(entry));
+            if (download != null) {
+                cancelSources(download, null);
+            }
+            bytesRequested -= entry.getFileSize();
+            remotelyLoaded.remove(entry);
+        }
+    }
+
+    /**
+     * Tell the sources of a download to stop sending their parts of the song.
+     * 
+     * NOTE: must be called with the entryMutex held.
+     * 
+     * @param download
+     * @param skipAddress A source not to tell (e.g. one that disconnected), or null.
+     */
+    private void cancelSources(SongDownload download, String skipAddress) {
+        for (Map.Entry<String, Long> source : download.getSources().entrySet()) {
+            if (!source.getKey().equals(skipAddress)) {
+                getMessagingService().sendCancelSongMessage(source.getKey(), source.getValue());
+            }
+        }
+    }
+
+    /**
+     * Stop loading a song that was removed from the playlist.
+     * 
+     * @param entry
+     */
+    public void cancelLoading(PlaylistEntry entry) {
+        synchronized(entryMutex) {
+            toLoadQueue.remove(entry);
+            scheduler.remove(entry);
+            if (downloads.containsKey(getPartialFileName(entry))) {
+                //the song is coming in, maybe from several guests
+                if (streaming.containsKey(entry)) {
+                    stopStreaming(entry);
+                    entry.setFilePath(null);
+                }
+                stopRemote(entry);
+            } else {
+                //the guest may be sending the whole song
+                getMessagingService().sendCancelSongMessage(entry.getMacAddress(), entry.getId());
+            }
+        }
+    }
+
+    /**
+     * Save the songs that have finished coming in, and let everyone know they
+     * can be played.
+     * 
+     * @return True if any songs were saved.
+     */
+    private boolean saveReceivedSongs() {
+        boolean saved = false;
+        while (true) {
+            ReceivedSong received;
+            synchronized(receivedQueue) {
+                received = receivedQueue.poll();
+            }
+            if (received == null) {
+                break;
+            }
+            saveTempFileData(received.entry, received.fileName, received.tempFilePath);
+            if (received.partialFile != null) {
+                received.partialFile.delete();
+            }
+            synchronized(entryMutex) {
+                scheduler.remove(received.entry);
+            }
+            getMessagingService().sendSongStatusMessage(received.entry);
+            saved = true;
+        }
+        return saved;
+    }
     
     public void cleanRemotelyLoadedFiles(String disconnectedUserMac){
         //Remove songs from mac that are in the process of transfering
         Set<PlaylistEntry> toRemove = new HashSet<PlaylistEntry>();
-        for(PlaylistEntry entry : remotelyLoaded) {
-            synchronized(entryMutex){
+        synchronized(entryMutex) {
+            for(PlaylistEntry entry : remotelyLoaded) {
+                if (entry.getMacAddress().equals(disconnectedUserMac)
+                        && streaming.containsKey(entry) && !streaming.get(entry).isComplete()) {
+                    //the rest of the song is not coming...stop playing it
+                    stopStreaming(entry);
+                    entry.setFilePath(null);
+                }
                 if(!entry.isLoaded() && entry.getMacAddress().equals(disconnectedUserMac)){
                     toRemove.add(entry);
+                    //the song isn't coming...the other guests sending parts of it can stop
+                    bytesRequested -= entry.getFileSize();
+                    SongDownload download = downloads.remove(getPartialFileName(entry));
+                    if (download != null) {
+                        cancelSources(download, disconnectedUserMac);
+                    }
                 }
             }
+            remotelyLoaded.removeAll(toRemove);
         }
-        remotelyLoaded.removeAll(toRemove);
         
         //Remove songs from mac that are queued to be transfered. 
         toRemove = new HashSet<PlaylistEntry>(); //Clear previous entrys
-        for (PlaylistEntry entry : toLoadQueue) {
-            synchronized(entryMutex) {
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : toLoadQueue) {
                 if (entry.getMacAddress().equals(disconnectedUserMac)) {
                     entry.setLoaded(false);
                     toRemove.add(entry);
                 }
             }
+            toLoadQueue.removeAll(toRemove);
+        }
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : scheduler.removeGuest(disconnectedUserMac)) {
+                entry.setLoaded(false);
+            }
+        }
+
+        //NOTE: partial files are kept, so the transfer can be resumed if the user reconnects
+        // (Android will clear them out of the cache folder if they are abandoned)
+
+        //songs that were also coming from the user are asked of their other sources
+        synchronized(entryMutex) {
+            for (SongDownload download : downloads.values()) {
+                if (download.hasSource(disconnectedUserMac)) {
+                    sendRequests(download, download.removeSource(disconnectedUserMac));
+                }
+            }
         }
-        toLoadQueue.removeAll(toRemove);
     }
 
     /**
+     * Set the playlist, and the position of the next song to play.  The song cache
+     * keeps the songs ahead of the position, and evicts the songs farthest behind it.
      * 
+     * @param playlist
+     * @param position
      */
-    private void clearOldLoadedFiles() {
-        //NOTE: only do this if we need to...to minimize network traffic/playback issues
-        if (bytesRequested > maxBytesToLoad * loadFactor) {
+    public void setPlaylist(List<PlaylistEntry> playlist, int position) {
+        synchronized(entryMutex) {
+            this.playlist         = new ArrayList<PlaylistEntry>(playlist);
+            this.playlistPosition = position;
+            scheduler.setPlaylist(this.playlist, position);
+        }
+        //the songs may need to be requested in a different order
+        wakeUp();
+    }
+
+    /**
+     * Load a remote song from a copy of the song in our own library, found by the
+     * hash of its contents.
+     * 
+     * @param entry
+     * @return True if we have a copy of the song, false if not.
+     */
+    private boolean loadLocalCopy(PlaylistEntry entry) {
+        MusicLibraryService musicLibraryService = getMusicLibraryService();
+        String filePath = musicLibraryService != null
+                ? musicLibraryService.findLocalCopy(entry.getContentHash()) : null;
+        if (filePath == null) {
+            return false;
+        }
+        Log.i(TAG, "Loaded " + entry + " from a copy in the library");
+        entry.setFilePath(filePath);
+        getMessagingService().sendSongStatusMessage(entry);
+        return true;
+    }
+
+    /**
+     * Load a remote song from the song cache, which may hold the song itself, or a
+     * copy of it received from another guest.
+     * 
+     * @param entry
+     * @return True if the song was cached, false if not.
+     */
+    private boolean loadCached(PlaylistEntry entry) {
+        String filePath = songCache.get(entry);
+        if (filePath == null) {
+            return false;
+        }
+        Log.i(TAG, "Loaded " + entry + " from the song cache");
+        entry.setFilePath(filePath);
+        getMessagingService().sendSongStatusMessage(entry);
+        return true;
+    }
+
+    /**
+     * Make room in the song cache for a song, along with the songs already requested.
+     * Songs evicted from the cache are no longer loaded.
+     * 
+     * @param bytes
+     * @return True if there is room for the song, false if not.
+     */
+    private boolean makeRoom(long bytes) {
+        List<PlaylistEntry> playlist;
+        int position;
+        long requested;
+        synchronized(entryMutex) {
+            playlist  = this.playlist;
+            position  = this.playlistPosition;
+            requested = this.bytesRequested;
+        }
+        List<String> evicted = new ArrayList<String>();
+        boolean room = songCache.makeRoom(bytes + requested, playlist, position, evicted);
+        if (!evicted.isEmpty()) {
+            Set<String> evictedKeys = new HashSet<String>(evicted);
             Set<PlaylistEntry> toRemove = new HashSet<PlaylistEntry>();
-            long toRemoveBytes = 0;
-            for (PlaylistEntry entry : remotelyLoaded) {
-                synchronized(entryMutex) {
-                    if (entry.isPlayed()) {
+            synchronized(entryMutex) {
+                for (PlaylistEntry entry : remotelyLoaded) {
+                    if (entry.isLoaded() && isEvicted(entry, evictedKeys)) {
+                        stopStreaming(entry);
                         //indicate the entry isnt loaded, so the playlist wont try and play it
-                        entry.setLoaded(false);
+                        entry.setFilePath(null);
                         toRemove.add(entry);
-                        toRemoveBytes += entry.getFileSize();
+                        getMessagingService().sendSongStatusMessage(entry);
                     }
                 }
+                remotelyLoaded.removeAll(toRemove);
             }
-            
-            deleteTempFileData(toRemove);
-            remotelyLoaded.removeAll(toRemove);
-            bytesRequested -= toRemoveBytes;
+            new LocalBroadcastIntent(PlaylistService.ACTION_PLAYLIST_UPDATED).send(context);
+        }
+        return room;
+    }
+
+    /**
+     * @param entry
+     * @param evictedKeys
+     * @return True if the entry was loaded from a song (or a copy of a song) evicted
+     * from the song cache.
+     */
+    private boolean isEvicted(PlaylistEntry entry, Set<String> evictedKeys) {
+        if (evictedKeys.contains(SongCache.getKey(entry))) {
+            return true;
         }
+        //copies are cached under the key of the song they were received as
+        String filePath = entry.getFilePath();
+        return !StreamingProxy.isStreamUrl(filePath) && !new File(filePath).exists();
     }
 
     private void registerReceivers() {
@@ -187,32 +575,139 @@ public class PlaylistDataManager implements Runnable {
                     long   songId       = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
                     String fileName     = intent.getStringExtra(MessagingService.EXTRA_SONG_FILE_NAME);
                     String tempFilePath = intent.getStringExtra(MessagingService.EXTRA_SONG_TEMP_FILE);
+                    boolean rejected    = intent.getBooleanExtra(MessagingService.EXTRA_SONG_MANIFEST_REJECTED, false);
                     if (songId == SongMetadata.UNKNOWN_SONG) {
                        Log.wtf(TAG, "TRANSFER_SONG_MESSAGE action received without a valid song id"); 
+                    } else if (rejected) {
+                        //the guest's copy of the song is not the one being downloaded...none of it was used
+                        sourceRejected(fromAddr, new File(tempFilePath).getName());
                     } else {
-                        PlaylistEntry entry = findSongByAddressAndId(fromAddr, songId);
-                        saveTempFileData(entry, fileName, tempFilePath);
-                        getMessagingService().sendSongStatusMessage(entry);
-                        new LocalBroadcastIntent(PlaylistService.ACTION_PLAYLIST_UPDATED).send(context);
+                        PartialFile partialFile = PartialFile.load(new File(tempFilePath));
+                        //parts of the song may come from guests with a copy of it, under their own song ids
+                        PlaylistEntry entry = partialFile != null
+                                ? findSongByPartialFileName(partialFile.getFile().getName())
+                                : findSongByAddressAndId(fromAddr, songId);
+                        if (partialFile != null && entry != null && !partialFileReceived(entry, fromAddr, partialFile)) {
+                            //still waiting for some of the song
+                            return;
+                        }
+                        if (partialFile == null && entry != null) {
+                            //the guest sent the whole song at once
+                            synchronized(entryMutex) {
+                                downloads.remove(getPartialFileName(entry));
+                            }
+                        }
+                        if (entry == null) {
+                            //the transfer was paused (or the song removed) as the song finished
+                            // coming in...the partial file is kept, for when the song is requested again
+                            Log.w(TAG, "Song received from " + fromAddr + " that is no longer requested");
+                            return;
+                        }
+                        //moving the song into place touches the disk...let the loader thread do it
+                        synchronized(receivedQueue) {
+                            receivedQueue.add(new ReceivedSong(entry, fileName, tempFilePath, partialFile));
+                        }
+                        wakeUp();
                     }
                 }
             })
             .register(this.context);
     }
 
-    private void unregisterReceivers() {
-        this.registrar.unregister();
+    /**
+     * Handle part of a song received into a partial file, and ask the sources of the
+     * song for the parts still missing (see {@link SongDownload}).
+     * 
+     * @param entry
+     * @param fromAddr The source that sent the part
+     * @param partialFile
+     * @return True if the song is complete, false if not.
+     */
+    private boolean partialFileReceived(PlaylistEntry entry, String fromAddr, PartialFile partialFile) {
+        String partialFileName = partialFile.getFile().getName();
+        synchronized(entryMutex) {
+            SongDownload download = downloads.get(partialFileName);
+            if (download == null) {
+                return partialFile.isComplete();
+            }
+            List<SongDownload.Request> requests = download.received(fromAddr, partialFile);
+            if (download.isComplete()) {
+                downloads.remove(partialFileName);
+                return true;
+            }
+            if (download.isFailed()) {
+                giveUpIfIdle(entry, download, partialFile);
+                return false;
+            }
+            sendRequests(download, requests);
+            return false;
+        }
+    }
+
+    /**
+     * Drop a source that sent a different copy of a song than the one being downloaded,
+     * and ask the other sources for its parts of the song (see {@link SongDownload#rejected(String)}).
+     * 
+     * @param fromAddr The source
+     * @param partialFileName
+     */
+    private void sourceRejected(String fromAddr, String partialFileName) {
+        synchronized(entryMutex) {
+            SongDownload download = downloads.get(partialFileName);
+            PlaylistEntry entry = findSongByPartialFileName(partialFileName);
+            if (download == null || entry == null) {
+                return;
+            }
+            Log.w(TAG, "Dropping " + fromAddr + " as a source of " + entry + ", its copy is different");
+            List<SongDownload.Request> requests = download.rejected(fromAddr);
+            if (download.isFailed()) {
+                giveUpIfIdle(entry, download, PartialFile.load(new File(this.context.getCacheDir(), partialFileName)));
+                return;
+            }
+            sendRequests(download, requests);
+        }
     }
 
-    private void deleteTempFileData(Collection<PlaylistEntry> entries) {
-        for (PlaylistEntry entry : entries) {
-            Log.i(TAG, "Deleting data for entry " + entry);
-            File file = new File(entry.getFilePath());
-            this.context.deleteFile(file.getName());
+    /**
+     * Give up on a failed download, once the other sources are done writing into the
+     * partial file.
+     * 
+     * NOTE: must be called with the entryMutex held.
+     * 
+     * @param entry
+     * @param download
+     * @param partialFile The partial file, or null if no progress was saved.
+     */
+    private void giveUpIfIdle(PlaylistEntry entry, SongDownload download, PartialFile partialFile) {
+        //wait for the other sources to finish writing into the partial file
+        if (download.isIdle()) {
+            Log.w(TAG, "Giving up on " + entry);
+            downloads.remove(download.getPartialFileName());
+            scheduler.remove(entry);
+            stopStreaming(entry);
+            if (partialFile != null) {
+                partialFile.delete();
+            }
+            //the song isn't coming...indicate the entry isnt loaded (it may have been streaming),
+            // and let it be requested again
             entry.setFilePath(null);
+            remotelyLoaded.remove(entry);
+            bytesRequested -= entry.getFileSize();
+            getMessagingService().sendSongStatusMessage(entry);
+        }
+    }
+
+    private void sendRequests(SongDownload download, List<SongDownload.Request> requests) {
+        for (SongDownload.Request request : requests) {
+            getMessagingService().sendRequestSongMessage(request.address, request.songId,
+                    download.getPartialFileName(), request.offset, request.length);
         }
     }
 
+    private void unregisterReceivers() {
+        this.registrar.unregister();
+    }
+
     protected void saveTempFileData(PlaylistEntry entry, String fileName, String fileDataPath) {
         if (entry == null) {
             throw new IllegalStateException("Unable to save data for a song entry that doesnt exist");
@@ -220,10 +715,39 @@ public class PlaylistDataManager implements Runnable {
         //build a composite name from the macAddress
         String compositeFileName = String.format("%s_%s", SongMetadataUtils.getUniqueKey(entry.getMacAddress(), entry.getId()), fileName);
         try {
-            //copy the data from the temp file to the permanent file.
-            FileInputStream  fis = new FileInputStream(fileDataPath);
-            FileOutputStream fos = this.context.openFileOutput(compositeFileName, Context.MODE_PRIVATE);
+            //the temp file and the permanent file are both in private storage, so the temp
+            // file can be moved into place (atomically, so the permanent file is never half
+            // written)...the data is only copied if that fails
+            File tempFile = new File(fileDataPath);
+            File songFile = this.context.getFileStreamPath(compositeFileName);
+            if (!tempFile.renameTo(songFile)) {
+                Log.w(TAG, "Unable to move " + fileDataPath + ", copying it instead");
+                copyTempFileData(fileDataPath, compositeFileName);
+                tempFile.delete();
+            }
+            //set the file path in the playlist entry, which allows the file to be played
+            String filePath = songFile.getCanonicalPath();
+            entry.setFilePath(filePath);
+            songCache.put(entry, new File(filePath));
+            synchronized(entryMutex) {
+                bytesRequested -= entry.getFileSize();
+                if (this.streaming.containsKey(entry)) {
+                    //the song may be playing from the proxy...serve the rest from the saved file
+                    this.streamingProxy.setStreamPath(getPartialFileName(entry), filePath);
+                }
+            }
+
+        } catch (IOException e) {
+            this.context.deleteFile(compositeFileName);
+            //TODO: set flag to indicate file is broken
+        }
+    }
 
+    private void copyTempFileData(String fileDataPath, String compositeFileName) throws IOException {
+        //copy the data from the temp file to the permanent file.
+        FileInputStream  fis = new FileInputStream(fileDataPath);
+        FileOutputStream fos = this.context.openFileOutput(compositeFileName, Context.MODE_PRIVATE);
+        try {
             //8k buffer works well.
             int bufSize = 8192;
             byte[] buffer = new byte[bufSize];
@@ -231,26 +755,31 @@ public class PlaylistDataManager implements Runnable {
             while ((read = fis.read(buffer)) > 0) {
                 fos.write(buffer, 0, read);
             }
+        } finally {
+            fis.close();
             fos.close();
-            //set the file path in the playlist entry, which allows the file to be played
-            String filePath = this.context.getFileStreamPath(compositeFileName).getCanonicalPath();
-            entry.setFilePath(filePath);
-            
-            //NOTE: THIS IS A HACK.  This ultimately belongs down in MessagingService, where the temp file is
-            // created, but this was put here for Alpha testing so we don't fill up our tester's phones.
-            new File(fileDataPath).delete();
-
-        } catch (IOException e) {
-            this.context.deleteFile(compositeFileName);
-            //TODO: set flag to indicate file is broken
         }
     }
 
     private PlaylistEntry findSongByAddressAndId(String fromAddr, long songId) {
         PlaylistEntry found = null;
-        for (PlaylistEntry entry : this.remotelyLoaded) {
-            if (entry.getMacAddress().equals(fromAddr) && entry.getId() == songId) {
-                found = entry;
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : this.remotelyLoaded) {
+                if (entry.getMacAddress().equals(fromAddr) && entry.getId() == songId) {
+                    found = entry;
+                }
+            }
+        }
+        return found;
+    }
+
+    private PlaylistEntry findSongByPartialFileName(String partialFileName) {
+        PlaylistEntry found = null;
+        synchronized(entryMutex) {
+            for (PlaylistEntry entry : this.remotelyLoaded) {
+                if (getPartialFileName(entry).equals(partialFileName)) {
+                    found = entry;
+                }
             }
         }
         return found;
@@ -261,7 +790,8 @@ public class PlaylistDataManager implements Runnable {
         //NOTE: if it is loaded, we can assume its already in remotelyLoaded
         synchronized(entryMutex) {
             if (!entry.isLoaded()) {
-                if (!this.toLoadQueue.contains(entry) && !this.remotelyLoaded.contains(entry)) {
+                if (!this.toLoadQueue.contains(entry) && !this.remotelyLoaded.contains(entry)
+                        && !this.scheduler.contains(entry)) {
                     this.toLoadQueue.add(entry);
                 } else {
                     Log.d(TAG, "Adding a song that's already loaded: " + entry.toString());
@@ -285,8 +815,50 @@ public class PlaylistDataManager implements Runnable {
         }
     }
     
+    /**
+     * Request a remote song, in chunks, into a partial file.  If part of the song was
+     * received before (e.g. the guest disconnected and came back), request the rest.
+     * If other guests have a copy of the song, parts of the song are requested from
+     * each of them at once (see {@link SongDownload}).
+     * 
+     * @param entry
+     */
     private void loadRemote(PlaylistEntry entry) {
-        getMessagingService().sendRequestSongMessage(entry.getMacAddress(), entry.getId());
+        String partialFileName = getPartialFileName(entry);
+        PartialFile partialFile = PartialFile.load(new File(this.context.getCacheDir(), partialFileName));
+        if (partialFile != null && partialFile.isComplete()) {
+            //the whole song came in before, but we missed the last answer...save it, without
+            // asking for any of it again
+            //NOTE: the song's original file name is only in the transfer messages, so it is
+            // saved under the partial file name
+            Log.i(TAG, "Loading " + entry + " from a complete partial file");
+            synchronized(receivedQueue) {
+                receivedQueue.add(new ReceivedSong(entry, partialFileName,
+                        getCanonicalPath(partialFile.getFile()), partialFile));
+            }
+            wakeUp();
+            return;
+        }
+        SongDownload download = new SongDownload(partialFileName, (int) entry.getFileSize());
+        download.addSource(entry.getMacAddress(), entry.getId());
+        MusicLibraryService musicLibraryService = getMusicLibraryService();
+        if (musicLibraryService != null) {
+            for (SongMetadata copy : musicLibraryService.findRemoteCopies(entry)) {
+                download.addSource(copy.getMacAddress(), copy.getId());
+            }
+        }
+        if (download.getSourceCount() > 1) {
+            Log.i(TAG, "Loading " + entry + " from " + download.getSourceCount() + " guests");
+        }
+        synchronized(entryMutex) {
+            downloads.put(partialFileName, download);
+            sendRequests(download, download.start(partialFile));
+        }
+    }
+
+    private String getPartialFileName(PlaylistEntry entry) {
+        String key = SongMetadataUtils.getUniqueKey(entry.getMacAddress(), entry.getId());
+        return "partial_" + key.replaceAll("[^A-Za-z0-9_]", "_");
     }
 
     public void stopLoading() {
@@ -304,6 +876,16 @@ public class PlaylistDataManager implements Runnable {
         }
     }
 
+    private MusicLibraryService getMusicLibraryService() {
+        MusicLibraryService musicLibraryService = null;
+        try {
+            musicLibraryService = this.musicLibraryLocator.getService();
+        } catch (ServiceNotBoundException e) {
+            Log.w(TAG, "MusicLibraryService not bound");
+        }
+        return musicLibraryService;
+    }
+
     private IMessagingService getMessagingService() {
         MessagingService messagingService = null;
         try {
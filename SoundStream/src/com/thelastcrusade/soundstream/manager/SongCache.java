@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.util.LogUtil;
+import com.thelastcrusade.soundstream.util.SongMetadataUtils;
+
+/**
+ * A cache of songs transferred from guests, kept across app restarts so
+ * songs played at the last party don't need to be transferred again.
+ * 
+ * Songs are keyed by the source address, song id and file size, and may
+ * also be found by content hash, so a copy of a song from one guest is
+ * used for the same song from another guest.  The index of the cache is
+ * kept in a file next to the songs.  When the cache
+ * needs room, songs are evicted farthest from the current playlist position
+ * first (songs not in the playlist, then songs played longest ago), and by
+ * last use.  Songs that are upcoming in the playlist, and the song playing,
+ * are never evicted.  The cache is limited by its maximum size, and by the
+ * free space on the device.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class SongCache {
+
+    private static final String TAG = SongCache.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "song_cache.idx";
+
+    private static final int INDEX_VERSION = 2;
+
+    //the index version before songs were hashed
+    private static final int INDEX_VERSION_NO_HASH = 1;
+
+    /**
+     * Free space to leave on the device, in bytes.
+     */
+    private static final long RESERVED_FREE_BYTES = 64 * 1024 * 1024;
+
+    private static class CachedSong {
+        String key;
+        String fileName;
+        long   fileSize;
+        long   lastUsed;
+        long   contentHash;
+    }
+
+    private File folder;
+    private long maxBytes;
+
+    private Map<String, CachedSong> songs = new LinkedHashMap<String, CachedSong>();
+    private Map<Long, CachedSong> songsByHash = new HashMap<Long, CachedSong>();
+    private long cachedBytes;
+
+    /**
+     * @param folder The folder that holds the cached songs
+     * @param maxBytes The most bytes to keep in the cache
+     */
+    public SongCache(File folder, long maxBytes) {
+        this.folder   = folder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param song
+     * @return The key of the song in the cache.
+     */
+    public static String getKey(SongMetadata song) {
+        return SongMetadataUtils.getUniqueKey(song) + "_" + song.getFileSize();
+    }
+
+    /**
+     * Load the index of the cache.  Songs in the index that are missing (or the
+     * wrong size) are dropped.
+     * 
+     */
+    public synchronized void load() {
+        this.songs.clear();
+        this.songsByHash.clear();
+        this.cachedBytes = 0;
+        File index = new File(this.folder, INDEX_FILE_NAME);
+        if (!index.exists()) {
+            return;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            try {
+                int version = input.readInt();
+                if (version != INDEX_VERSION && version != INDEX_VERSION_NO_HASH) {
+                    return;
+                }
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    CachedSong song = new CachedSong();
+                    song.key      = input.readUTF();
+                    song.fileName = input.readUTF();
+                    song.fileSize = input.readLong();
+                    song.lastUsed = input.readLong();
+                    if (version >= INDEX_VERSION) {
+                        song.contentHash = input.readLong();
+                    }
+                    File file = new File(this.folder, song.fileName);
+                    if (file.length() == song.fileSize) {
+                        add(song);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to load song cache index", e);
+            }
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Loaded " + this.songs.size() + " cached songs (" + this.cachedBytes + " bytes)");
+        }
+    }
+
+    /**
+     * Save the index of the cache.  The index is written to a new file and renamed
+     * into place, so an interrupted save leaves the old index.
+     * 
+     */
+    public synchronized void save() {
+        File index = new File(this.folder, INDEX_FILE_NAME);
+        File newIndex = new File(this.folder, INDEX_FILE_NAME + ".new");
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newIndex)));
+            try {
+                output.writeInt(INDEX_VERSION);
+                output.writeInt(this.songs.size());
+                for (CachedSong song : this.songs.values()) {
+                    output.writeUTF(song.key);
+                    output.writeUTF(song.fileName);
+                    output.writeLong(song.fileSize);
+                    output.writeLong(song.lastUsed);
+                    output.writeLong(song.contentHash);
+                }
+            } finally {
+                output.close();
+            }
+            if (!newIndex.renameTo(index)) {
+                throw new IOException("Unable to rename " + newIndex.getName());
+            }
+        } catch (IOException e) {
+            newIndex.delete();
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to save song cache index", e);
+            }
+        }
+    }
+
+    /**
+     * Get a song (or a copy of it with the same content hash) from the cache, and
+     * mark it as used.
+     * 
+     * @param song
+     * @return The path to the cached song file, or null if the song is not cached.
+     */
+    public synchronized String get(SongMetadata song) {
+        CachedSong cached = find(song);
+        if (cached == null) {
+            return null;
+        }
+        File file = new File(this.folder, cached.fileName);
+        if (file.length() != cached.fileSize) {
+            //the file is gone (or broken)
+            remove(cached);
+            save();
+            return null;
+        }
+        cached.lastUsed = System.currentTimeMillis();
+        //keep the last use across restarts, so the songs used least recently are evicted first
+        save();
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Add a song file to the cache.  The file must be in the cache folder.
+     * 
+     * @param song
+     * @param file
+     */
+    public synchronized void put(SongMetadata song, File file) {
+        CachedSong cached = this.songs.get(getKey(song));
+        if (cached != null) {
+            if (!cached.fileName.equals(file.getName())) {
+                new File(this.folder, cached.fileName).delete();
+            }
+            remove(cached);
+        }
+        cached = new CachedSong();
+        cached.key         = getKey(song);
+        cached.fileName    = file.getName();
+        cached.fileSize    = file.length();
+        cached.lastUsed    = System.currentTimeMillis();
+        cached.contentHash = song.getContentHash();
+        add(cached);
+        save();
+    }
+
+    private void add(CachedSong cached) {
+        this.songs.put(cached.key, cached);
+        if (cached.contentHash != SongMetadata.UNKNOWN_HASH) {
+            this.songsByHash.put(cached.contentHash, cached);
+        }
+        this.cachedBytes += cached.fileSize;
+    }
+
+    private void remove(CachedSong cached) {
+        this.songs.remove(cached.key);
+        if (this.songsByHash.get(cached.contentHash) == cached) {
+            this.songsByHash.remove(cached.contentHash);
+        }
+        this.cachedBytes -= cached.fileSize;
+    }
+
+    /**
+     * @param song
+     * @return The cached song, or a cached copy of it with the same content hash, or
+     * null if neither is cached.
+     */
+    private CachedSong find(SongMetadata song) {
+        CachedSong cached = this.songs.get(getKey(song));
+        if (cached == null && song.getContentHash() != SongMetadata.UNKNOWN_HASH) {
+            cached = this.songsByHash.get(song.getContentHash());
+        }
+        return cached;
+    }
+
+    /**
+     * @param song
+     * @return True if the song (or a copy of it with the same content hash) is cached.
+     */
+    public synchronized boolean contains(SongMetadata song) {
+        return find(song) != null;
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+
+    /**
+     * @return The most bytes the cache can hold right now: the maximum size of the
+     * cache, or less if the device is running out of space.
+     */
+    public synchronized long getCapacity() {
+        long usable = this.folder.getUsableSpace();
+        return Math.max(0, Math.min(this.maxBytes, this.cachedBytes + usable - RESERVED_FREE_BYTES));
+    }
+
+    /**
+     * Make room in the cache for more songs, by evicting songs that are not needed.
+     * 
+     * @param bytes The bytes needed, including songs already on the way
+     * @param playlist The songs in the playlist, in order
+     * @param position The position of the next song to play in the playlist (the song before
+     * it is playing)
+     * @param evicted Filled in with the keys of the songs evicted
+     * @return True if there is room for the bytes, false if not.
+     */
+    public synchronized boolean makeRoom(long bytes, List<? extends SongMetadata> playlist, int position,
+            List<String> evicted) {
+        long capacity = getCapacity();
+        if (this.cachedBytes + bytes <= capacity) {
+            return true;
+        }
+        //the distance of each song from the current position...upcoming songs (and the
+        // song playing) are protected
+        final Map<String, Integer> distances = new HashMap<String, Integer>();
+        for (int i = 0; i < playlist.size(); i++) {
+            CachedSong cached = find(playlist.get(i));
+            if (cached == null) {
+                continue;
+            }
+            String key = cached.key;
+            int distance = i >= position - 1 ? 0 : position - i;
+            Integer current = distances.get(key);
+            if (current == null || distance < current) {
+                distances.put(key, distance);
+            }
+        }
+        List<CachedSong> candidates = new ArrayList<CachedSong>();
+        for (CachedSong cached : this.songs.values()) {
+            Integer distance = distances.get(cached.key);
+            if (distance == null || distance > 0) {
+                candidates.add(cached);
+            }
+        }
+        //farthest first (songs not in the playlist are the farthest), then least recently used
+        Collections.sort(candidates, new Comparator<CachedSong>() {
+
+            @Override
+            public int compare(CachedSong lhs, CachedSong rhs) {
+                Integer lhsDistance = distances.get(lhs.key);
+                Integer rhsDistance = distances.get(rhs.key);
+                int lhsValue = lhsDistance != null ? lhsDistance : Integer.MAX_VALUE;
+                int rhsValue = rhsDistance != null ? rhsDistance : Integer.MAX_VALUE;
+                if (lhsValue != rhsValue) {
+                    return lhsValue > rhsValue ? -1 : 1;
+                }
+                return lhs.lastUsed < rhs.lastUsed ? -1 : (lhs.lastUsed == rhs.lastUsed ? 0 : 1);
+            }
+        });
+        for (CachedSong cached : candidates) {
+            if (this.cachedBytes + bytes <= capacity) {
+                break;
+            }
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Evicting " + cached.fileName + " (" + cached.fileSize + " bytes)");
+            }
+            new File(this.folder, cached.fileName).delete();
+            remove(cached);
+            //the space freed is usable again
+            capacity = getCapacity();
+            evicted.add(cached.key);
+        }
+        if (!evicted.isEmpty()) {
+            save();
+        }
+        return this.cachedBytes + bytes <= capacity;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+import com.thelastcrusade.soundstream.net.message.RequestSongMessage;
+import com.thelastcrusade.soundstream.net.wire.PartialFile;
+
+/**
+ * A song being downloaded in chunks into a partial file, from one or more
+ * sources.  Sources are guests that have a copy of the song (the same content
+ * hash), each under its own song id.
+ * 
+ * Each source is asked for one part of the song at a time: the first chunks
+ * that are missing and not asked of another source.  With one source, that is
+ * the rest of the song (or each gap left by a transfer that was cut short).
+ * With several sources, the song is split into segments of SEGMENT_CHUNKS
+ * chunks, and each source is asked for the next segment as soon as it sends
+ * the last one, so the faster sources send more of the song.  Segments are
+ * handed out from the start of the song, so the song can be played while it
+ * is still coming in.
+ * 
+ * Chunks that are still missing (or bad) once their source answers are asked
+ * for again, up to MAX_CHUNK_RETRIES times, before giving up on the song.
+ * 
+ * A source whose copy of the song is not the same as the one being downloaded
+ * (a different manifest) is dropped, since its chunks would not match (see
+ * {@link #rejected(String)}).  The song is downloaded with the manifest of the
+ * first source to send part of it.
+ * 
+ * NOTE: sources answer requests in order, so each answer is matched with the
+ * oldest request to that source.  This class is not thread safe.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+class SongDownload {
+
+    /**
+     * The number of chunks asked of a source at a time, when there are several sources.
+     */
+    static final int SEGMENT_CHUNKS = 4;
+
+    /**
+     * The number of times to ask for a missing (or bad) chunk again, before
+     * giving up on the song.
+     */
+    static final int MAX_CHUNK_RETRIES = 3;
+
+    /**
+     * A request for part of the song, from one source.
+     */
+    static class Request {
+        final String address;
+        final long   songId;
+        final int    offset;
+        final int    length;
+
+        Request(String address, long songId, int offset, int length) {
+            this.address = address;
+            this.songId  = songId;
+            this.offset  = offset;
+            this.length  = length;
+        }
+    }
+
+    private final String partialFileName;
+
+    //the chunks of the song, and the chunks received and verified
+    private int       fileLength;
+    private int       chunkSize;
+    private boolean[] verified;
+
+    //the sources (address to song id), and the requests each source has not answered yet
+    private Map<String, Long>                sources  = new LinkedHashMap<String, Long>();
+    private Map<String, LinkedList<Request>> requests = new HashMap<String, LinkedList<Request>>();
+
+    //the number of times each chunk was received missing or bad
+    private int[] failures;
+
+    private boolean failed;
+
+    /**
+     * @param partialFileName The name of the partial file to receive the song into
+     * @param fileLength The expected length of the song.  The chunks are laid out
+     * with the manifest of the song, once part of it is received.
+     */
+    SongDownload(String partialFileName, int fileLength) {
+        this.partialFileName = partialFileName;
+        setChunks(fileLength, FileManifest.DEFAULT_CHUNK_SIZE, null);
+    }
+
+    private void setChunks(int fileLength, int chunkSize, boolean[] verified) {
+        int chunkCount = (int) (((long) fileLength + chunkSize - 1) / chunkSize);
+        this.fileLength = fileLength;
+        this.chunkSize  = chunkSize;
+        this.verified   = verified != null ? verified : new boolean[chunkCount];
+        this.failures   = new int[chunkCount];
+    }
+
+    String getPartialFileName() {
+        return partialFileName;
+    }
+
+    /**
+     * Add a source of the song.
+     * 
+     * @param address
+     * @param songId The id of the song at the source
+     */
+    void addSource(String address, long songId) {
+        if (!this.sources.containsKey(address)) {
+            this.sources.put(address, songId);
+            this.requests.put(address, new LinkedList<Request>());
+        }
+    }
+
+    boolean hasSource(String address) {
+        return this.sources.containsKey(address);
+    }
+
+    int getSourceCount() {
+        return this.sources.size();
+    }
+
+    /**
+     * @return The sources of the song (address to the song id at the source).
+     */
+    Map<String, Long> getSources() {
+        return Collections.unmodifiableMap(this.sources);
+    }
+
+    /**
+     * Start (or resume) the download, by asking each source for part of the song.
+     * 
+     * NOTE: if the partial file is already complete, nothing is requested; the caller
+     * should use the song as it is.
+     * 
+     * @param partialFile The part of the song already received, or null if none is.
+     * @return The requests to send.
+     */
+    List<Request> start(PartialFile partialFile) {
+        if (partialFile != null) {
+            update(partialFile);
+        }
+        if (isComplete()) {
+            return new ArrayList<Request>();
+        }
+        return assignIdleSources();
+    }
+
+    /**
+     * Handle an answer from a source.
+     * 
+     * @param address The source
+     * @param partialFile The partial file, with the chunks received so far
+     * @return The requests to send next (empty if the song is complete, or the download failed).
+     */
+    List<Request> received(String address, PartialFile partialFile) {
+        update(partialFile);
+        LinkedList<Request> pending = this.requests.get(address);
+        Request answered = pending != null ? pending.poll() : null;
+        if (answered != null) {
+            int first = answered.offset / this.chunkSize;
+            int end   = getEndChunk(answered);
+            for (int i = first; i < end; i++) {
+                if (!this.verified[i] && ++this.failures[i] > MAX_CHUNK_RETRIES) {
+                    this.failed = true;
+                }
+            }
+        }
+        if (this.failed || isComplete()) {
+            return new ArrayList<Request>();
+        }
+        return assignIdleSources();
+    }
+
+    /**
+     * Handle an answer from a source whose copy of the song has a different manifest
+     * than the song being downloaded, so its data was not used (see
+     * IResumableFileMessage#isManifestRejected()).  The source is dropped, and the parts
+     * of the song asked of it are asked of the other sources.  If there are no other
+     * sources, the download fails.
+     * 
+     * @param address The source
+     * @return The requests to send.
+     */
+    List<Request> rejected(String address) {
+        List<Request> requests = removeSource(address);
+        if (this.sources.isEmpty() && !isComplete()) {
+            this.failed = true;
+        }
+        return requests;
+    }
+
+    /**
+     * Remove a source (e.g. the guest disconnected).  The parts of the song asked of
+     * the source are asked of the other sources.
+     * 
+     * @param address
+     * @return The requests to send.
+     */
+    List<Request> removeSource(String address) {
+        this.sources.remove(address);
+        this.requests.remove(address);
+        if (this.failed || isComplete()) {
+            return new ArrayList<Request>();
+        }
+        return assignIdleSources();
+    }
+
+    boolean isComplete() {
+        for (boolean chunkVerified : this.verified) {
+            if (!chunkVerified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if some chunks of the song were bad too many times.
+     */
+    boolean isFailed() {
+        return this.failed;
+    }
+
+    /**
+     * @return True if no requests are waiting on an answer.
+     */
+    boolean isIdle() {
+        for (LinkedList<Request> pending : this.requests.values()) {
+            if (!pending.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update the chunks received from the partial file, and lay the chunks out as the
+     * manifest does, if that is different from what we expected.
+     * 
+     * @param partialFile
+     */
+    private void update(PartialFile partialFile) {
+        FileManifest manifest = partialFile.getManifest();
+        boolean[] chunks = partialFile.getVerifiedChunks();
+        if (manifest.getFileLength() != this.fileLength || manifest.getChunkSize() != this.chunkSize) {
+            setChunks(manifest.getFileLength(), manifest.getChunkSize(), chunks);
+        } else {
+            this.verified = chunks;
+        }
+    }
+
+    /**
+     * Ask each source that is not already sending part of the song for the next
+     * missing part.
+     * 
+     * @return The requests to send.
+     */
+    private List<Request> assignIdleSources() {
+        List<Request> assigned = new ArrayList<Request>();
+        boolean[] taken = getTakenChunks();
+        for (String address : this.sources.keySet()) {
+            if (!this.requests.get(address).isEmpty()) {
+                continue;
+            }
+            int first = 0;
+            while (first < this.verified.length && (this.verified[first] || taken[first])) {
+                first++;
+            }
+            if (first == this.verified.length) {
+                //nothing left to ask for
+                break;
+            }
+            int limit = this.sources.size() > 1 ? SEGMENT_CHUNKS : this.verified.length;
+            int count = 0;
+            while (first + count < this.verified.length && count < limit
+                    && !this.verified[first + count] && !taken[first + count]) {
+                taken[first + count] = true;
+                count++;
+            }
+            assigned.add(request(address, first, count));
+        }
+        return assigned;
+    }
+
+    /**
+     * @return The chunks asked of a source, and not answered yet.
+     */
+    private boolean[] getTakenChunks() {
+        boolean[] taken = new boolean[this.verified.length];
+        for (LinkedList<Request> pending : this.requests.values()) {
+            for (Request request : pending) {
+                int end = Math.min(getEndChunk(request), taken.length);
+                for (int i = request.offset / this.chunkSize; i < end; i++) {
+                    taken[i] = true;
+                }
+            }
+        }
+        return taken;
+    }
+
+    private int getEndChunk(Request request) {
+        if (request.length == RequestSongMessage.TO_END) {
+            return this.verified.length;
+        }
+        long end = (long) request.offset + request.length;
+        return (int) Math.min(this.verified.length, (end + this.chunkSize - 1) / this.chunkSize);
+    }
+
+    /**
+     * Make a request for chunks of the song, and record it as waiting on the source.
+     * 
+     * @param address
+     * @param first
+     * @param count
+     * @return
+     */
+    private Request request(String address, int first, int count) {
+        int offset = first * this.chunkSize;
+        //ask for the rest of the song, rather than the length we expect, in case
+        // the song is longer than we thought
+        int length = first + count == this.verified.length
+                ? RequestSongMessage.TO_END
+                : (int) Math.min((long) count * this.chunkSize, this.fileLength - offset);
+        Request request = new Request(address, this.sources.get(address), offset, length);
+        this.requests.get(address).add(request);
+        return request;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.thelastcrusade.soundstream.model.PlaylistEntry;
+
+/**
+ * Decides which remote songs to transfer, and in what order.  Each song is
+ * given a deadline: the time until it plays, estimated from the songs ahead
+ * of it in the playlist.  Songs are transferred in deadline order, and each
+ * guest sends at most MAX_TRANSFERS_PER_GUEST songs at a time, so a song
+ * about to play is never stuck behind songs much farther down the playlist.
+ * 
+ * If the playlist changes (e.g. a song is bumped), a song with an earlier
+ * deadline takes the place of the transfer with the latest deadline, which
+ * is paused (and resumed later, from where it left off).  Songs that are
+ * playing (streaming) are never paused.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+class TransferScheduler {
+
+    /**
+     * The number of songs a guest sends at a time: the song needed next, and one
+     * more, so the guest's link is not idle between songs.
+     */
+    static final int MAX_TRANSFERS_PER_GUEST = 2;
+
+    /**
+     * The songs to start and pause, to transfer the songs needed soonest.
+     */
+    static class Plan {
+        final List<PlaylistEntry> toStart = new ArrayList<PlaylistEntry>();
+        final List<PlaylistEntry> toPause = new ArrayList<PlaylistEntry>();
+    }
+
+    private final long bytesPerSecond;
+
+    private List<PlaylistEntry> playlist = new ArrayList<PlaylistEntry>();
+    private int position;
+
+    //the songs waiting to be transferred, and the songs being transferred, in the order they were added
+    private Set<PlaylistEntry> waiting = new LinkedHashSet<PlaylistEntry>();
+    private Set<PlaylistEntry> active  = new LinkedHashSet<PlaylistEntry>();
+
+    /**
+     * @param bytesPerSecond The rate songs are assumed to play at, to estimate how
+     * long each song plays.
+     */
+    TransferScheduler(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param playlist
+     * @param position The position of the next song to play (the song before it is playing)
+     */
+    void setPlaylist(List<PlaylistEntry> playlist, int position) {
+        this.playlist = playlist;
+        this.position = position;
+    }
+
+    /**
+     * Add a song to transfer.
+     * 
+     * @param entry
+     */
+    void add(PlaylistEntry entry) {
+        if (!this.active.contains(entry)) {
+            this.waiting.add(entry);
+        }
+    }
+
+    boolean contains(PlaylistEntry entry) {
+        return this.waiting.contains(entry) || this.active.contains(entry);
+    }
+
+    /**
+     * The transfer of a song was started.
+     * 
+     * @param entry
+     */
+    void started(PlaylistEntry entry) {
+        this.waiting.remove(entry);
+        this.active.add(entry);
+    }
+
+    /**
+     * The transfer of a song was paused...the song waits to be transferred again.
+     * 
+     * @param entry
+     */
+    void paused(PlaylistEntry entry) {
+        if (this.active.remove(entry)) {
+            this.waiting.add(entry);
+        }
+    }
+
+    /**
+     * Remove a song, because it was transferred, or will not be.
+     * 
+     * @param entry
+     */
+    void remove(PlaylistEntry entry) {
+        this.waiting.remove(entry);
+        this.active.remove(entry);
+    }
+
+    /**
+     * Remove the songs from a guest (e.g. the guest disconnected).
+     * 
+     * @param address
+     * @return The songs removed that were waiting to be transferred.
+     */
+    List<PlaylistEntry> removeGuest(String address) {
+        List<PlaylistEntry> removed = new ArrayList<PlaylistEntry>();
+        for (PlaylistEntry entry : new ArrayList<PlaylistEntry>(this.waiting)) {
+            if (entry.getMacAddress().equals(address)) {
+                this.waiting.remove(entry);
+                removed.add(entry);
+            }
+        }
+        for (PlaylistEntry entry : new ArrayList<PlaylistEntry>(this.active)) {
+            if (entry.getMacAddress().equals(address)) {
+                this.active.remove(entry);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Decide which songs to start and pause, to transfer the songs with the
+     * earliest deadlines.  Songs are started in deadline order.
+     * 
+     * @return
+     */
+    Plan schedule() {
+        final Map<PlaylistEntry, Long> deadlines = getDeadlines();
+        final Map<PlaylistEntry, Integer> order = new HashMap<PlaylistEntry, Integer>();
+        List<PlaylistEntry> candidates = new ArrayList<PlaylistEntry>();
+        //songs that are playing keep their place
+        Map<String, Integer> transfers = new HashMap<String, Integer>();
+        for (PlaylistEntry entry : this.active) {
+            if (entry.isLoaded()) {
+                addTransfer(transfers, entry);
+            } else {
+                order.put(entry, order.size());
+                candidates.add(entry);
+            }
+        }
+        for (PlaylistEntry entry : this.waiting) {
+            order.put(entry, order.size());
+            candidates.add(entry);
+        }
+        //by deadline, and then songs already coming in first, so transfers
+        // with the same deadline don't trade places
+        Collections.sort(candidates, new Comparator<PlaylistEntry>() {
+
+            @Override
+            public int compare(PlaylistEntry lhs, PlaylistEntry rhs) {
+                int compare = getDeadline(deadlines, lhs).compareTo(getDeadline(deadlines, rhs));
+                return compare != 0 ? compare : order.get(lhs).compareTo(order.get(rhs));
+            }
+        });
+
+        Plan plan = new Plan();
+        for (PlaylistEntry entry : candidates) {
+            Integer count = transfers.get(entry.getMacAddress());
+            boolean transfer = count == null || count < MAX_TRANSFERS_PER_GUEST;
+            if (transfer) {
+                addTransfer(transfers, entry);
+                if (this.waiting.contains(entry)) {
+                    plan.toStart.add(entry);
+                }
+            } else if (this.active.contains(entry)) {
+                plan.toPause.add(entry);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param entry
+     * @return The estimated time until the song plays, in seconds, or Long.MAX_VALUE if
+     * the song is not coming up in the playlist.
+     */
+    long getDeadline(PlaylistEntry entry) {
+        return getDeadline(getDeadlines(), entry);
+    }
+
+    private Long getDeadline(Map<PlaylistEntry, Long> deadlines, PlaylistEntry entry) {
+        Long deadline = deadlines.get(entry);
+        return deadline != null ? deadline : Long.MAX_VALUE;
+    }
+
+    /**
+     * Estimate the time until each song coming up in the playlist plays.  The song
+     * playing may end at any time (e.g. it is skipped), so the next song is due now.
+     * 
+     * @return
+     */
+    private Map<PlaylistEntry, Long> getDeadlines() {
+        Map<PlaylistEntry, Long> deadlines = new HashMap<PlaylistEntry, Long>();
+        long seconds = 0;
+        for (int i = Math.max(0, this.position - 1); i < this.playlist.size(); i++) {
+            PlaylistEntry entry = this.playlist.get(i);
+            if (!deadlines.containsKey(entry)) {
+                deadlines.put(entry, seconds);
+            }
+            if (i >= this.position) {
+                seconds += entry.getFileSize() / this.bytesPerSecond;
+            }
+        }
+        return deadlines;
+    }
+
+    private void addTransfer(Map<String, Integer> transfers, PlaylistEntry entry) {
+        Integer count = transfers.get(entry.getMacAddress());
+        transfers.put(entry.getMacAddress(), count != null ? count + 1 : 1);
+    }
+}
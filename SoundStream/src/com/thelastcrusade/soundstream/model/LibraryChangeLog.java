@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+
+/**
+ * A log of the changes made to the library, kept separately for each source
+ * device (identified by mac address).  Each source has its own version, which is
+ * incremented for every song added, updated or removed, so the changes since any
+ * recent version can be sent instead of the whole library.
+ * 
+ * Only the most recent changes for each source are kept.  A receiver that is further
+ * behind than that must be sent a snapshot of all of the songs from the source.
+ * 
+ * NOTE: this class is not thread safe.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class LibraryChangeLog {
+
+    /**
+     * The number of changes kept for each source.
+     */
+    public static final int DEFAULT_MAX_CHANGES = 1024;
+
+    private static class Change {
+        private int          version;
+        private long         songId;
+        //null if the song was removed
+        private SongMetadata song;
+    }
+
+    private static class SourceLog {
+        private int version;
+        //the version the oldest change kept was made to...changes since this version are known
+        private int oldestVersion;
+        private LinkedList<Change> changes = new LinkedList<Change>();
+    }
+
+    private final int maxChanges;
+
+    private Map<String, SourceLog> sources = new HashMap<String, SourceLog>();
+
+    public LibraryChangeLog() {
+        this(DEFAULT_MAX_CHANGES);
+    }
+
+    public LibraryChangeLog(int maxChanges) {
+        this.maxChanges = maxChanges;
+    }
+
+    /**
+     * Record a song that was added to the library, or updated.
+     * 
+     * @param song
+     */
+    public void songUpdated(SongMetadata song) {
+        record(song.getMacAddress(), song.getId(), song);
+    }
+
+    /**
+     * Record a song that was removed from the library.
+     * 
+     * @param song
+     */
+    public void songRemoved(SongMetadata song) {
+        record(song.getMacAddress(), song.getId(), null);
+    }
+
+    private void record(String macAddress, long songId, SongMetadata song) {
+        SourceLog source = sources.get(macAddress);
+        if (source == null) {
+            source = new SourceLog();
+            sources.put(macAddress, source);
+        }
+        Change change = new Change();
+        change.version = ++source.version;
+        change.songId  = songId;
+        change.song    = song;
+        source.changes.add(change);
+        //forget the oldest change, if we're holding too many
+        if (source.changes.size() > maxChanges) {
+            source.oldestVersion = source.changes.removeFirst().version;
+        }
+    }
+
+    /**
+     * @param macAddress
+     * @return The current version of the library for a source, or 0 if nothing
+     * has been recorded for that source.
+     */
+    public int getVersion(String macAddress) {
+        SourceLog source = sources.get(macAddress);
+        return source != null ? source.version : 0;
+    }
+
+    /**
+     * @return The current version of the library for every source recorded.
+     */
+    public Map<String, Integer> getVersions() {
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        for (Map.Entry<String, SourceLog> entry : sources.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue().version);
+        }
+        return versions;
+    }
+
+    /**
+     * Get the changes to the library for a source since a version.  If a song changed
+     * more than once, only its latest state is included.
+     * 
+     * @param macAddress
+     * @param version
+     * @param updatedSongs A list to add the songs added or updated since the version to.
+     * @return The changes, or null if the changes since that version are no longer known
+     * (and a snapshot must be sent instead).
+     */
+    @SuppressLint("UseSparseArrays")
+    public LibraryChanges getChangesSince(String macAddress, int version, List<SongMetadata> updatedSongs) {
+        SourceLog source = sources.get(macAddress);
+        int current    = source != null ? source.version : 0;
+        int oldest     = source != null ? source.oldestVersion : 0;
+        if (version < oldest || version > current) {
+            return null;
+        }
+        //NOTE: implemented as a map, not a LongSparseArray, so our unit tests will run
+        Map<Long, Change> latest = new LinkedHashMap<Long, Change>();
+        if (source != null) {
+            //walk back from the newest change, which is where the changes we want are
+            for (Change change : getChangesAfter(source, version)) {
+                if (!latest.containsKey(change.songId)) {
+                    latest.put(change.songId, change);
+                }
+            }
+        }
+        List<Long> removed = new ArrayList<Long>();
+        for (Change change : latest.values()) {
+            if (change.song != null) {
+                updatedSongs.add(change.song);
+            } else {
+                removed.add(change.songId);
+            }
+        }
+        long[] removedIds = new long[removed.size()];
+        for (int i = 0; i < removedIds.length; i++) {
+            removedIds[i] = removed.get(i);
+        }
+        return new LibraryChanges(macAddress, version, current, false, removedIds);
+    }
+
+    /**
+     * Get a snapshot of the library for a source.  The caller is responsible for
+     * sending all of the source's songs along with the snapshot.
+     * 
+     * @param macAddress
+     * @return
+     */
+    public LibraryChanges getSnapshot(String macAddress) {
+        return new LibraryChanges(macAddress, 0, getVersion(macAddress), true, new long[0]);
+    }
+
+    /**
+     * @return The changes made to a source after a version, newest first.
+     */
+    private List<Change> getChangesAfter(SourceLog source, int version) {
+        List<Change> newer = new ArrayList<Change>();
+        Iterator<Change> it = source.changes.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.version <= version) {
+                break;
+            }
+            newer.add(change);
+        }
+        return newer;
+    }
+}
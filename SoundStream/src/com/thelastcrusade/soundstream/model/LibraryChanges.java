@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.thelastcrusade.soundstream.util.DefaultParcelableCreator;
+
+/**
+ * The changes to the songs from one source device, between two versions of
+ * that device's library (see LibraryChangeLog).  The added and updated songs
+ * are sent alongside these changes (see LibraryMessage); these changes hold the
+ * versions, and the ids of the songs that were removed.
+ * 
+ * A snapshot holds all of the songs from the source device, and replaces
+ * whatever songs the receiver had for that device.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class LibraryChanges implements Parcelable {
+
+    //this is REQUIRED for Parcelable to work properly
+    public static final Parcelable.Creator<LibraryChanges> CREATOR = new DefaultParcelableCreator(LibraryChanges.class);
+
+    private String  macAddress;
+    private int     fromVersion;
+    private int     toVersion;
+    private boolean snapshot;
+    private long[]  removedIds;
+
+    /**
+     * @param macAddress The address of the source device.
+     * @param fromVersion The version of the library the changes were made to.
+     * @param toVersion The version of the library after the changes.
+     * @param snapshot True if the changes hold all of the songs from the source device.
+     * @param removedIds The ids of the songs removed from the library.
+     */
+    public LibraryChanges(String macAddress, int fromVersion, int toVersion, boolean snapshot, long[] removedIds) {
+        this.macAddress  = macAddress;
+        this.fromVersion = fromVersion;
+        this.toVersion   = toVersion;
+        this.snapshot    = snapshot;
+        this.removedIds  = removedIds;
+    }
+
+    public LibraryChanges(Parcel in) {
+        this.macAddress  = in.readString();
+        this.fromVersion = in.readInt();
+        this.toVersion   = in.readInt();
+        boolean[] state = new boolean[1];
+        in.readBooleanArray(state);
+        this.snapshot    = state[0];
+        this.removedIds  = in.createLongArray();
+    }
+
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    public int getFromVersion() {
+        return fromVersion;
+    }
+
+    public int getToVersion() {
+        return toVersion;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public long[] getRemovedIds() {
+        return removedIds;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0; //default, no special kind of objects
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(this.macAddress);
+        dest.writeInt(this.fromVersion);
+        dest.writeInt(this.toVersion);
+        dest.writeBooleanArray(new boolean[] {this.snapshot});
+        dest.writeLongArray(this.removedIds);
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryChanges [macAddress=" + macAddress + ", fromVersion=" + fromVersion
+                + ", toVersion=" + toVersion + ", snapshot=" + snapshot
+                + ", removed=" + removedIds.length + "]";
+    }
+}
@@ -20,7 +20,6 @@
 package com.thelastcrusade.soundstream.model;
 
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,6 +31,11 @@ import android.util.Log;
  * A data structure for holding the playlist.  It keeps track of two queues of PlaylistEntry
  * objects; the seam between them represents the current play position.
  * 
+ * The playlist can also track its changes, as a version number and a list of
+ * PlaylistOperations.  The host tracks changes so it can send just the operations to
+ * its guests, and the guests apply those operations to their copy of the playlist
+ * (see {@link #applyOperations(int, List)}).
+ * 
  * @author Jesse Rosalia
  *
  */
@@ -39,8 +43,14 @@ public class Playlist {
     
     private final static String TAG = Playlist.class.getName();
     
-    private Deque<PlaylistEntry> playedList;
-    private Deque<PlaylistEntry> musicList;
+    private LinkedList<PlaylistEntry> playedList;
+    private LinkedList<PlaylistEntry> musicList;
+
+    private boolean trackChanges;
+    private int version;
+    private List<PlaylistOperation> operations = new ArrayList<PlaylistOperation>();
+    //set when a change cannot be described by operations, and the whole playlist must be sent
+    private boolean snapshotRequired;
 
     public Playlist() {
         playedList = new LinkedList<PlaylistEntry>();
@@ -49,11 +59,13 @@ public class Playlist {
 
     public void add(PlaylistEntry entry) {
         musicList.add(entry);
+        recordOperation(PlaylistOperation.insert(size() - 1, entry));
     }
 
     public void clear() {
         playedList.clear();
         musicList.clear();
+        recordSnapshot();
     }
     
     /**
@@ -94,6 +106,8 @@ public class Playlist {
 
         if(!success){
             removeEntry = null;
+        } else {
+            recordOperation(PlaylistOperation.remove(entry));
         }
         return removeEntry;
     }
@@ -101,6 +115,9 @@ public class Playlist {
     private void removeAll(Set<PlaylistEntry> entrySet){
         playedList.removeAll(entrySet);
         musicList.removeAll(entrySet);
+        for (PlaylistEntry entry : entrySet) {
+            recordOperation(PlaylistOperation.remove(entry));
+        }
     }
     
     public void removeSongsByMac(String mac){
@@ -120,6 +137,14 @@ public class Playlist {
         return songsToPlay;
     }
 
+    /**
+     * @return The position of the next song to play in getSongsToPlay (the number
+     * of songs played, including the song playing).
+     */
+    public int getPosition() {
+        return playedList.size();
+    }
+
     /**
      * @return True if the playlist is empty, false if not.
      */
@@ -143,6 +168,7 @@ public class Playlist {
         if (nextAvail != null) {
             musicList.remove(nextAvail);
             playedList.add(nextAvail);
+            recordOperation(PlaylistOperation.move(nextAvail, playedList.size() - 1));
         }
         return nextAvail;
     }
@@ -155,6 +181,7 @@ public class Playlist {
         for (PlaylistEntry entry : musicList) {
             entry.setPlayed(false);
         }
+        recordSnapshot();
     }
     
     public void bumpSong(PlaylistEntry entry){
@@ -162,6 +189,168 @@ public class Playlist {
             //remove the entry from the queue
             musicList.remove(entry);
             musicList.push(entry);
+            recordOperation(PlaylistOperation.move(entry, playedList.size()));
+        }
+    }
+
+    /**
+     * Set the loaded and played status of an entry in the playlist.
+     * 
+     * @param entry
+     * @param loaded
+     * @param played
+     */
+    public void setStatus(PlaylistEntry entry, boolean loaded, boolean played) {
+        entry.setLoaded(loaded);
+        entry.setPlayed(played);
+        recordOperation(PlaylistOperation.status(entry));
+    }
+
+    /**
+     * Turn change tracking on or off.  When changes are tracked, every change
+     * increments the playlist version, and is recorded until it is taken by
+     * {@link #takeOperations()}.
+     * 
+     * NOTE: turning on change tracking requires the whole playlist to be sent, because
+     * the changes made before now were not recorded.
+     * 
+     * @param trackChanges
+     */
+    public void setTrackChanges(boolean trackChanges) {
+        if (trackChanges && !this.trackChanges) {
+            this.snapshotRequired = true;
+            this.operations.clear();
+        }
+        this.trackChanges = trackChanges;
+    }
+
+    /**
+     * @return The version of the playlist.  When tracking changes, this is incremented
+     * for every change.  Otherwise, it is the version of the last operations or snapshot
+     * applied to this playlist.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Take the operations recorded since the last call to this method.
+     * 
+     * @return The operations, in the order they were made, or null if the changes cannot
+     * be described by operations and the whole playlist must be sent instead.
+     */
+    public List<PlaylistOperation> takeOperations() {
+        List<PlaylistOperation> taken = null;
+        if (!this.snapshotRequired) {
+            taken = new ArrayList<PlaylistOperation>(this.operations);
+        }
+        this.operations.clear();
+        this.snapshotRequired = false;
+        return taken;
+    }
+
+    /**
+     * Replace the contents of the playlist with a snapshot of another playlist
+     * (e.g. one sent by the host).  This is not recorded as a change.
+     * 
+     * @param entries
+     * @param version The version of the snapshot.
+     */
+    public void load(List<? extends PlaylistEntry> entries, int version) {
+        playedList.clear();
+        musicList.clear();
+        musicList.addAll(entries);
+        this.version = version;
+    }
+
+    /**
+     * Apply operations made to another playlist (e.g. sent by the host).  These
+     * are not recorded as changes.
+     * 
+     * @param baseVersion The version of the playlist the operations were made to.
+     * @param operations
+     * @return True if the operations were applied (or are already reflected in this
+     * playlist), false if this playlist is missing earlier changes, and must be replaced
+     * by a snapshot.
+     */
+    public boolean applyOperations(int baseVersion, List<PlaylistOperation> operations) {
+        int newVersion = baseVersion + operations.size();
+        if (newVersion <= this.version) {
+            //we've already seen these changes
+            return true;
+        }
+        if (baseVersion != this.version) {
+            Log.w(TAG, "Missing playlist changes: at version " + this.version + ", received changes to version " + baseVersion);
+            return false;
+        }
+        for (PlaylistOperation operation : operations) {
+            applyOperation(operation);
+        }
+        this.version = newVersion;
+        return true;
+    }
+
+    private void applyOperation(PlaylistOperation operation) {
+        PlaylistEntry key = operation.getEntry();
+        PlaylistEntry entry = findEntryByAddressIdAndEntry(key.getMacAddress(), key.getId(), key.getEntryId());
+        switch (operation.getType()) {
+        case PlaylistOperation.INSERT:
+            if (entry == null) {
+                insert(operation.getPosition(), key);
+            }
+            break;
+        case PlaylistOperation.REMOVE:
+            //NOTE: the entry may already be gone, if it was removed by the user on this device
+            if (entry != null) {
+                playedList.remove(entry);
+                musicList.remove(entry);
+            }
+            break;
+        case PlaylistOperation.MOVE:
+            if (entry != null) {
+                playedList.remove(entry);
+                musicList.remove(entry);
+                insert(operation.getPosition(), entry);
+            }
+            break;
+        case PlaylistOperation.STATUS:
+            if (entry != null) {
+                entry.setLoaded(operation.isLoaded());
+                entry.setPlayed(operation.isPlayed());
+            }
+            break;
+        }
+    }
+
+    /**
+     * Insert an entry at a position in the whole playlist.
+     * 
+     * @param position
+     * @param entry
+     */
+    private void insert(int position, PlaylistEntry entry) {
+        position = Math.max(0, Math.min(position, size()));
+        if (position < playedList.size()) {
+            playedList.add(position, entry);
+        } else {
+            musicList.add(position - playedList.size(), entry);
+        }
+    }
+
+    private void recordOperation(PlaylistOperation operation) {
+        if (this.trackChanges) {
+            this.version++;
+            if (!this.snapshotRequired) {
+                this.operations.add(operation);
+            }
+        }
+    }
+
+    private void recordSnapshot() {
+        if (this.trackChanges) {
+            this.version++;
+            this.snapshotRequired = true;
+            this.operations.clear();
         }
     }
 }
@@ -52,6 +52,7 @@ public class PlaylistEntry extends SongMetadata {
         this.setMacAddress(metadata.getMacAddress());
         this.setFileSize(metadata.getFileSize());
         this.setTitle(metadata.getTitle());
+        this.setContentHash(metadata.getContentHash());
     }
     
     public PlaylistEntry(SongMetadata metadata, boolean loaded, boolean played, String filePath, int entryId){
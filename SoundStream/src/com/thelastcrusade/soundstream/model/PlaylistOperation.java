@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.thelastcrusade.soundstream.util.DefaultParcelableCreator;
+
+/**
+ * A single change to a Playlist.  The host records these as it changes
+ * its playlist, and sends them to the guests (see PlaylistMessage), so the
+ * guests can apply the same changes to their copy of the playlist instead of
+ * rebuilding it.
+ * 
+ * Positions are indexes into the whole playlist (e.g. the list returned by
+ * Playlist#getSongsToPlay), after the entry has been taken out of the playlist.
+ * 
+ * NOTE: the operation types are part of the wire protocol.  New types must
+ * be added with new values, and existing values must never be changed.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class PlaylistOperation implements Parcelable {
+
+    //this is REQUIRED for Parcelable to work properly
+    public static final Parcelable.Creator<PlaylistOperation> CREATOR = new DefaultParcelableCreator(PlaylistOperation.class);
+
+    /**
+     * Insert a new entry at a position.
+     */
+    public static final int INSERT = 1;
+
+    /**
+     * Remove an entry.
+     */
+    public static final int REMOVE = 2;
+
+    /**
+     * Move an existing entry to a new position.
+     */
+    public static final int MOVE   = 3;
+
+    /**
+     * Change the loaded and played status of an entry.
+     */
+    public static final int STATUS = 4;
+
+    private int           type;
+    private PlaylistEntry entry;
+    private int           position;
+    private boolean       loaded;
+    private boolean       played;
+
+    public static PlaylistOperation insert(int position, PlaylistEntry entry) {
+        return new PlaylistOperation(INSERT, entry, position, entry.isLoaded(), entry.isPlayed());
+    }
+
+    public static PlaylistOperation remove(PlaylistEntry entry) {
+        return new PlaylistOperation(REMOVE, entry, 0, false, false);
+    }
+
+    public static PlaylistOperation move(PlaylistEntry entry, int position) {
+        return new PlaylistOperation(MOVE, entry, position, false, false);
+    }
+
+    public static PlaylistOperation status(PlaylistEntry entry) {
+        return new PlaylistOperation(STATUS, entry, 0, entry.isLoaded(), entry.isPlayed());
+    }
+
+    /**
+     * @param type One of INSERT, REMOVE, MOVE or STATUS
+     * @param entry The entry to change.  This must be the full entry for INSERT operations;
+     * all other operations only use the address, song id and entry id.
+     * @param position The new position of the entry, for INSERT and MOVE operations.
+     * @param loaded The new loaded status, for STATUS operations.
+     * @param played The new played status, for STATUS operations.
+     */
+    public PlaylistOperation(int type, PlaylistEntry entry, int position, boolean loaded, boolean played) {
+        if (type < INSERT || type > STATUS) {
+            throw new IllegalArgumentException("Unknown playlist operation: " + type);
+        }
+        this.type     = type;
+        this.entry    = entry;
+        this.position = position;
+        this.loaded   = loaded;
+        this.played   = played;
+    }
+
+    public PlaylistOperation(Parcel in) {
+        this.type     = in.readInt();
+        this.entry    = new PlaylistEntry(in);
+        this.position = in.readInt();
+        boolean[] state = new boolean[2];
+        in.readBooleanArray(state);
+        this.loaded   = state[0];
+        this.played   = state[1];
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public PlaylistEntry getEntry() {
+        return entry;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public boolean isPlayed() {
+        return played;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0; //default, no special kind of objects
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.type);
+        this.entry.writeToParcel(dest, flags);
+        dest.writeInt(this.position);
+        boolean [] state = new boolean[2];
+        state[0] = this.loaded;
+        state[1] = this.played;
+        dest.writeBooleanArray(state);
+    }
+
+    @Override
+    public String toString() {
+        return "PlaylistOperation [type=" + type + ", entry=" + entry
+                + ", position=" + position + "]";
+    }
+}
@@ -32,6 +32,8 @@ public class SongMetadata implements Parcelable{
 
     public static final long UNKNOWN_SONG = -1;
 
+    public static final long UNKNOWN_HASH = 0;
+
     private long id;
 
     private String title;
@@ -44,6 +46,9 @@ public class SongMetadata implements Parcelable{
 
     // macAddress of person who added song to playlist
     private String macAddress; 
+
+    // hash of the song file contents, the same for copies of the song on different devices
+    private long contentHash = UNKNOWN_HASH;
     
     public SongMetadata() {}
 
@@ -64,6 +69,7 @@ public class SongMetadata implements Parcelable{
         this.album      = in.readString();
         this.fileSize   = in.readLong();
         this.macAddress = in.readString();
+        this.contentHash = in.readLong();
     }
 
     @Override
@@ -79,6 +85,7 @@ public class SongMetadata implements Parcelable{
         dest.writeString(this.album);
         dest.writeLong(this.fileSize);
         dest.writeString(this.macAddress);
+        dest.writeLong(this.contentHash);
     }
     
     @Override
@@ -132,5 +139,17 @@ public class SongMetadata implements Parcelable{
 
     public void setMacAddress(String macAddress) {
         this.macAddress = macAddress;
-    }    
+    }
+
+    /**
+     * @return The hash of the song file contents, or UNKNOWN_HASH if the source
+     * has not hashed the song (yet).
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(long contentHash) {
+        this.contentHash = contentHash;
+    }
 }
@@ -24,7 +24,8 @@ import android.util.Log;
 
 /**
  * A thread designed to asynchronously write (using the ConnectionWriteR)
- * as fast as it can.
+ * as fast as it can.  The thread sleeps until messages are enqueued, and then
+ * writes packets until there are none left to write.
  * 
  * @author Jesse Rosalia
  *
@@ -32,7 +33,12 @@ import android.util.Log;
 public class ConnectionWriteThread extends Thread {
     private final String TAG = ConnectionWriteThread.class.getSimpleName();
 
-    protected boolean writeThreadRunning;
+    /**
+     * The most packets to write each time the thread wakes up.
+     */
+    private static final int MAX_PACKETS_PER_WAKEUP = 32;
+
+    protected volatile boolean writeThreadRunning;
     private ConnectionWriter writer;
     private Thread stoppingThread;
 
@@ -49,9 +55,12 @@ public class ConnectionWriteThread extends Thread {
         try {
             while (writeThreadRunning) {
                 try {
-                    writer.writeOne();
-                    if (!writer.canWrite()) {
-                        Thread.sleep(10); //give the system a chance to breath
+                    if (writer.awaitWork()) {
+                        //NOTE: always write once, to send any cancellations
+                        int packets = 0;
+                        do {
+                            writer.writeOne();
+                        } while (++packets < MAX_PACKETS_PER_WAKEUP && writeThreadRunning && writer.canWrite());
                     }
                 } catch (IOException e) {
                     //we've probably closed our socket...quit the thread
@@ -80,6 +89,8 @@ public class ConnectionWriteThread extends Thread {
     public void stopAndWait() {
         writeThreadRunning = false;
         stoppingThread = Thread.currentThread();
+        //wake up the thread, if it's waiting for messages to write
+        writer.wakeUp();
         synchronized(stoppingThread) {
             try {
                 //wait for the thread to stop, or for 1 second.
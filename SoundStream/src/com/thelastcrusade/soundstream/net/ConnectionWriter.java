@@ -24,24 +24,52 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashSet;
-import java.util.PriorityQueue;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.net.message.IMessage;
-import com.thelastcrusade.soundstream.net.message.TransferSongMessage;
+import com.thelastcrusade.soundstream.net.message.ISupersedableMessage;
 import com.thelastcrusade.soundstream.net.wire.Messenger;
 import com.thelastcrusade.soundstream.net.wire.PacketFormat;
 import com.thelastcrusade.soundstream.net.wire.PacketFormat.ControlCode;
+import com.thelastcrusade.soundstream.net.wire.SharedMessage;
+import com.thelastcrusade.soundstream.net.wire.WireSendInputStream;
 import com.thelastcrusade.soundstream.util.LogUtil;
 
 /**
- * A class to manage writing messages from the MessageThread.  This class
- * maintains a priority queue the prioritizes command messages over transfer
- * data messages, to ensure the user interface is snappy.
+ * A class to manage writing messages from the MessageThread.
+ * 
+ * Messages are queued by traffic class (see {@link TrafficClass}), in the order
+ * they are enqueued, and the connection is shared between the classes by deficit
+ * round robin: in its turn, each class sends packets until it has used up its
+ * quantum of bytes (any bytes over the quantum are taken from its next turn).
+ * Within a class, messages are sent one after another.  This keeps song transfers
+ * from starving the playlist and library (and vice versa), no matter how long
+ * they run.
+ * 
+ * Control messages (e.g. play or pause) also have a latency target: a control
+ * message that has waited longer than the target is sent next, out of turn, to
+ * ensure the user interface is snappy.
+ * 
+ * Messages that carry state (see {@link ISupersedableMessage}) replace older
+ * messages with the same state that have not started sending yet, so a burst
+ * of changes (e.g. adding many songs to the playlist) sends only the latest
+ * state, in the place of the oldest message in the queue.
+ * 
+ * Small messages (e.g. song status or user list updates) are coalesced: their
+ * packets are collected in a batch, and written to the socket in one write
+ * when the batch is full, before any other packet is written, or when the
+ * first message in the batch has waited for the coalesce delay.  Small writes
+ * are expensive on Bluetooth sockets, so this keeps bursts of control messages
+ * from holding up transfers.
  * 
  * @author Jesse Rosalia
  *
@@ -49,26 +77,33 @@ import com.thelastcrusade.soundstream.util.LogUtil;
 public class ConnectionWriter {
 
     /**
-     * The normal multiplier uses the score as is.
+     * The longest a control message should wait to be sent, in nanoseconds.
+     */
+    private static final long CONTROL_LATENCY_TARGET_NANOS = 20 * 1000 * 1000;
+
+    /**
+     * The default longest a small message waits for others to be written with it,
+     * in nanoseconds.
      */
-    private static final int NORMAL_SCORE_MULTIPLIER = 1;
+    public static final long DEFAULT_COALESCE_DELAY_NANOS = 2 * 1000 * 1000;
 
     /**
-     * The multiplier for cancel transfer messages.  Should
-     *  be a high priority.
+     * The biggest message, in bytes (including packet headers), that is coalesced
+     * with other messages.
      */
-    private static final int CANCEL_TRANSFER_SCORE_MULTIPLIER = 1;
+    private static final int MAX_COALESCED_MESSAGE_SIZE = 512;
 
     /**
-     * A multiplier to lower the priority of transfer song messages,
-     * so control messages will jump the queue to be sent quicker.
+     * The most bytes to collect in a batch before writing it.
      */
-    private static final int TRANSFER_SONG_SCORE_MULTIPLIER = 100;
+    private static final int MAX_BATCH_SIZE = 4096;
 
     private static String TAG = ConnectionWriter.class.getSimpleName();
 
     /**
-     * Maximum size in bytes to write to a socket at a time.
+     * Maximum size in bytes to write to a socket at a time.  Only used for
+     * streams that are not WireSendInputStreams (e.g. cancel packets); message
+     * packets are written directly from the WireSendInputStream packet buffer.
      * 
      */
     private byte[] outBytes;
@@ -77,30 +112,59 @@ public class ConnectionWriter {
     
     class QueueEntry {
         private int messageNo;
-        private int score;
+        private TrafficClass trafficClass;
+        private long enqueuedNanos;
+        //true once the first packet of the message is written
+        private boolean started;
+        //the message, if it may be superseded by a newer message
+        private ISupersedableMessage supersedable;
         public Class<? extends IMessage> messageClass;
         public InputStream messageStream;
         public MessageFuture future;
     }
 
-    PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>(11, new Comparator<QueueEntry>() {
+    //the messages waiting to be sent, by traffic class
+    private Map<TrafficClass, LinkedList<QueueEntry>> queues = new EnumMap<TrafficClass, LinkedList<QueueEntry>>(TrafficClass.class);
 
-        @Override
-        public int compare(QueueEntry lhs, QueueEntry rhs) {
-            return lhs.score - rhs.score;
-        }
-    });
+    //the class whose turn it is, and the bytes each class has left to send in its turn
+    private TrafficClass turn = TrafficClass.CONTROL;
+    private Map<TrafficClass, Integer> deficits = new EnumMap<TrafficClass, Integer>(TrafficClass.class);
 
     private Set<Integer> canceled = new HashSet<Integer>();
 
+    //set to wake up a writer waiting for work, without any work to do
+    private boolean wakeRequested;
+
+    //the number of messages replaced by newer messages before they were sent
+    private int supersededCount;
+
+    //the packets of small messages waiting to be written together, the messages
+    // in the batch (finished when the batch is written), and when the batch was started
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_BATCH_SIZE);
+    private List<QueueEntry> batchEntries = new ArrayList<QueueEntry>();
+    private long batchStartedNanos;
+    private volatile long coalesceDelayNanos = DEFAULT_COALESCE_DELAY_NANOS;
+
+    //the number of messages written in batches, and the number of batches written
+    private int coalescedMessageCount;
+    private int coalescedWriteCount;
+
     private OutputStream outStream;
 
     private Messenger messenger;
 
+    private PacketSizeController packetSizeController;
+
     public ConnectionWriter(Messenger messenger, OutputStream outStream) {
         this.outStream = outStream;
         this.messenger = messenger;
         this.outBytes = new byte[messenger.getSendPacketSize()];
+        this.packetSizeController = new PacketSizeController(
+                messenger.getMinPacketSize(), messenger.getMaxPacketSize(), messenger.getSendPacketSize());
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            this.queues.put(trafficClass, new LinkedList<QueueEntry>());
+            this.deficits.put(trafficClass, 0);
+        }
     }
 
     public void cancel(int messageNo) throws IOException {
@@ -108,77 +172,286 @@ public class ConnectionWriter {
         // packet
         synchronized(this.queueLock) {
             this.canceled.add(messageNo);
+            this.queueLock.notifyAll();
         }
     }
 
-    public int enqueue(int messageNo, IMessage message, MessageFuture future) throws IOException {
+    /**
+     * Enqueue a message.
+     * 
+     * @param message
+     * @param future
+     * @return The message number, which is sent in each packet of the message, and
+     * used to cancel it (see {@link #cancel(int)}).
+     * @throws IOException
+     */
+    public int enqueue(IMessage message, MessageFuture future) throws IOException {
+        WireSendInputStream messageStream = messenger.serializeMessage(message);
+        return enqueue(messageStream.getMessageNo(), message, messageStream, future);
+    }
+
+    /**
+     * Enqueue this side's connection settings packet (see
+     * Messenger#serializeConnectionSettings).  This should be enqueued before
+     * any messages.
+     * 
+     * @param future
+     * @throws IOException
+     */
+    public void enqueueConnectionSettings(MessageFuture future) throws IOException {
+        enqueue(Messenger.CONNECTION_SETTINGS_MESSAGE_NO, messenger.getConnectionSettings(),
+                messenger.serializeConnectionSettings(), future);
+    }
+
+    /**
+     * Enqueue a message that is shared with other connections.  The message is
+     * framed in this connection's packets, but not serialized again.
+     * 
+     * @param message
+     * @param future
+     * @return The message number (see {@link #enqueue(IMessage, MessageFuture)}).
+     * @throws IOException
+     */
+    public int enqueue(SharedMessage message, MessageFuture future) throws IOException {
+        WireSendInputStream messageStream = messenger.serializeMessage(message);
+        return enqueue(messageStream.getMessageNo(), message.getMessage(), messageStream, future);
+    }
+
+    private int enqueue(int messageNo, IMessage message, InputStream messageStream,
+            MessageFuture future) throws IOException {
         QueueEntry qe = new QueueEntry();
         qe.messageNo     = messageNo;
-        qe.score         = computeMessageScore(messageNo, message);
         qe.messageClass  = message.getClass();
-        qe.messageStream = messenger.serializeMessage(message);
+        qe.trafficClass  = TrafficClass.of(qe.messageClass);
+        qe.messageStream = messageStream;
         qe.future        = future;
-        if (LogUtil.isLogAvailable()) {
-            //precompute the expected queue size...this is because the writer thread may quickly pick
-            // up the queue item which, while swell, means the debug output may be confusing
-            int newExpectedQueueSize = queue.size() + 1;
-            Log.i(TAG, "Message " + qe.messageNo + " enqueued, it's a "
-                        + qe.messageClass.getSimpleName() + ", "
-                        + qe.messageStream.available() + " bytes in length, "
-                        + newExpectedQueueSize + " entries in the queue");
-        }
-        queue.add(qe);
+        if (message instanceof ISupersedableMessage) {
+            qe.supersedable = (ISupersedableMessage) message;
+        }
+        synchronized(queueLock) {
+            if (qe.supersedable != null && supersede(qe)) {
+                queueLock.notifyAll();
+                return qe.messageNo;
+            }
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Message " + qe.messageNo + " enqueued, it's a "
+                            + qe.messageClass.getSimpleName() + ", "
+                            + qe.messageStream.available() + " bytes in length, "
+                            + (queues.get(qe.trafficClass).size() + 1) + " entries in the "
+                            + qe.trafficClass + " queue");
+            }
+            qe.enqueuedNanos = System.nanoTime();
+            queues.get(qe.trafficClass).add(qe);
+            queueLock.notifyAll();
+        }
         return qe.messageNo;
     }
 
     /**
-     * Compute the score of the message.  Messages are held in a min-first priority
-     * queue.  This, along with the partial transfer of song messages, allows commands
-     * such as play or add to "jump ahead" of any transferring song data, thus
-     * maintaining a usable system while shipping around large amounts of data.
+     * Replace an older message with the same state as a new message, if the
+     * older message has not started sending.  The older message is finished,
+     * and the new (or combined) message takes its place in the queue.
      * 
-     * @param messageNo
-     * @param message
-     * @return
+     * NOTE: must be called with the queue lock held.
+     * 
+     * @param qe The new message
+     * @return True if an older message was replaced, false if the new message
+     * must be enqueued.
+     * @throws IOException
+     */
+    private boolean supersede(QueueEntry qe) throws IOException {
+        Object key = qe.supersedable.getSupersedeKey();
+        for (QueueEntry older : queues.get(qe.trafficClass)) {
+            if (older.started || older.supersedable == null || older.messageClass != qe.messageClass
+                    || !key.equals(older.supersedable.getSupersedeKey())) {
+                continue;
+            }
+            ISupersedableMessage replacement = qe.supersedable.supersede(older.supersedable);
+            if (replacement == null) {
+                return false;
+            }
+            InputStream replacementStream = qe.messageStream;
+            if (replacement != qe.supersedable) {
+                //the messages were combined into a new message, sent with the new message's number
+                qe.messageStream.close();
+                replacementStream = messenger.serializeMessage(replacement, qe.messageNo);
+            }
+            if (LogUtil.isLogAvailable()) {
+                Log.i(TAG, "Message " + older.messageNo + " superseded by message " + qe.messageNo
+                        + ", it's a " + qe.messageClass.getSimpleName());
+            }
+            //release the older message stream (e.g. a shared message)
+            older.messageStream.close();
+            older.future.setFinished(true);
+            older.messageNo     = qe.messageNo;
+            older.supersedable  = replacement;
+            older.messageStream = replacementStream;
+            older.future        = qe.future;
+            supersededCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of messages replaced by newer messages before they were sent.
+     */
+    public int getSupersededCount() {
+        synchronized(queueLock) {
+            return supersededCount;
+        }
+    }
+
+    /**
+     * @return The number of messages written in batches with other messages.
+     */
+    public int getCoalescedMessageCount() {
+        synchronized(queueLock) {
+            return coalescedMessageCount;
+        }
+    }
+
+    /**
+     * @return The number of socket writes of batched messages.  The ratio of
+     * coalesced messages to coalesced writes shows how well batching works.
+     */
+    public int getCoalescedWriteCount() {
+        synchronized(queueLock) {
+            return coalescedWriteCount;
+        }
+    }
+
+    /**
+     * Set the longest a small message waits for other messages to be written
+     * with it.
+     * 
+     * @param coalesceDelayNanos The delay, in nanoseconds, or 0 to write every
+     * message as soon as possible.
+     */
+    public void setCoalesceDelay(long coalesceDelayNanos) {
+        synchronized(queueLock) {
+            this.coalesceDelayNanos = coalesceDelayNanos;
+        }
+    }
+
+    /**
+     * Wait for messages to write, cancellations to send, or for a batch of
+     * small messages to be due.
+     * 
+     * @return True if there is work to do, false if woken up without any (see wakeUp).
+     * @throws InterruptedException
+     */
+    public boolean awaitWork() throws InterruptedException {
+        synchronized(queueLock) {
+            while (!hasQueueEntries() && canceled.isEmpty() && !wakeRequested) {
+                if (batch.size() == 0) {
+                    queueLock.wait();
+                } else {
+                    long left = batchStartedNanos + coalesceDelayNanos - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    queueLock.wait(left / 1000000, (int) (left % 1000000));
+                }
+            }
+            wakeRequested = false;
+            return hasQueueEntries() || !canceled.isEmpty() || batch.size() > 0;
+        }
+    }
+
+    /**
+     * Wake up a writer waiting for work (e.g. to stop the writer).
      */
-    private int computeMessageScore(int messageNo, IMessage message) {
-        int mult = NORMAL_SCORE_MULTIPLIER;
-        //transfer song has a higher score, so it is a lower priority message
-        if (TransferSongMessage.class.isAssignableFrom(
-                                message.getClass())) { 
-            mult = TRANSFER_SONG_SCORE_MULTIPLIER;
+    public void wakeUp() {
+        synchronized(queueLock) {
+            wakeRequested = true;
+            queueLock.notifyAll();
         }
-        //compute the score by multiplying the message no by a multiplier
-        // to push some messages down in priority
-        return messageNo * mult;
     }
 
+    /**
+     * @return True if there are messages queued, or waiting in a batch to be written.
+     */
     public boolean canWrite() {
-        return !queue.isEmpty();
+        synchronized(queueLock) {
+            return hasQueueEntries() || batch.size() > 0;
+        }
     }
 
+    private boolean hasQueueEntries() {
+        for (LinkedList<QueueEntry> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pick the next message to send a packet of.  This is the message at the
+     * head of the queue of the class whose turn it is, unless a control message
+     * has waited longer than the latency target.  The message stays at the head
+     * of its queue until it is completely sent.
+     * 
+     * @return The next message, or null if there are no messages to send.
+     */
     private QueueEntry nextQueueEntry() {
-        QueueEntry qe;
         synchronized(queueLock) {
-            qe = queue.poll();
+            if (!hasQueueEntries()) {
+                return null;
+            }
+            QueueEntry control = queues.get(TrafficClass.CONTROL).peek();
+            if (control != null && System.nanoTime() - control.enqueuedNanos > CONTROL_LATENCY_TARGET_NANOS) {
+                control.started = true;
+                return control;
+            }
+            //NOTE: this ends, because each class with messages to send gets its
+            // quantum as its turn comes up
+            while (true) {
+                LinkedList<QueueEntry> queue = queues.get(turn);
+                if (!queue.isEmpty() && deficits.get(turn) > 0) {
+                    QueueEntry next = queue.peek();
+                    next.started = true;
+                    return next;
+                }
+                if (queue.isEmpty()) {
+                    //classes don't save up bytes while they have nothing to send
+                    deficits.put(turn, 0);
+                }
+                TrafficClass[] classes = TrafficClass.values();
+                turn = classes[(turn.ordinal() + 1) % classes.length];
+                if (!queues.get(turn).isEmpty()) {
+                    deficits.put(turn, deficits.get(turn) + turn.getQuantum());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test if there are control messages waiting in the queue.
+     * 
+     * @return
+     */
+    private boolean isControlPending() {
+        synchronized(queueLock) {
+            return !queues.get(TrafficClass.CONTROL).isEmpty();
         }
-        return qe;
     }
 
     private QueueEntry removeQueueEntry(int messageNo) {
-        QueueEntry found = null;
         synchronized(queueLock) {
-            for (QueueEntry qe : queue) {
-                if (qe.messageNo == messageNo) {
-                    found = qe;
-                    break;
+            for (LinkedList<QueueEntry> queue : queues.values()) {
+                Iterator<QueueEntry> it = queue.iterator();
+                while (it.hasNext()) {
+                    QueueEntry qe = it.next();
+                    if (qe.messageNo == messageNo) {
+                        it.remove();
+                        return qe;
+                    }
                 }
             }
-            if (found != null) {
-                queue.remove(found);
-            }
         }
-        return found;
+        return null;
     }
 
     private void processCanceled() throws IOException {
@@ -197,23 +470,33 @@ public class ConnectionWriter {
                 cancelPacket.addControlCode(ControlCode.Cancelled);
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 cancelPacket.serialize(baos);
+                //release the file held by the original message stream
+                found.messageStream.close();
                 found.messageStream = new ByteArrayInputStream(baos.toByteArray());
-                found.score = messageNo * CANCEL_TRANSFER_SCORE_MULTIPLIER;
-                queue.add(found);
+                //the cancellation is sent as a control message, and is not superseded
+                found.trafficClass  = TrafficClass.CONTROL;
+                found.supersedable  = null;
+                synchronized(queueLock) {
+                    found.enqueuedNanos = System.nanoTime();
+                    queues.get(TrafficClass.CONTROL).add(found);
+                }
             }
         }
     }
     /**
-     * Write one message (or part of a message) to the connected output stream.
+     * Write one packet of a message to the connected output stream.
      * 
-     * This may write a partial message, if the message is bigger than our output buffer.
-     * If this is the case, the queue entry is readded to the priority queue and given
-     * another chance to write more data.  This is repeated until the message is
-     * completely sent.  Note that this means other, higher priority messages may
-     * jump the line while this message is in the middle of sending its data.  This
-     * is ok, and how we allow the system to send command messages when long transfer
+     * This may write a partial message, if the message is bigger than a packet.
+     * If this is the case, the message stays at the head of its queue, and more
+     * of it is written in its class' turn.  This is repeated until the message is
+     * completely sent.  Note that this means messages in other classes may be
+     * sent while this message is in the middle of sending its data.  This is ok,
+     * and how we allow the system to send command messages when long transfer
      * messages are in progress.
      * 
+     * Packets of small messages are added to the batch, which is written when it
+     * is full or due (see awaitWork), or before a packet of a bigger message.
+     * 
      * @throws IOException
      */
     public void writeOne() throws IOException {
@@ -223,26 +506,113 @@ public class ConnectionWriter {
         //then process the next entry to be sent
         QueueEntry qe = nextQueueEntry();
         if (qe != null) {
-            int read = qe.messageStream.read(outBytes);
+            boolean coalesce = coalesceDelayNanos > 0
+                    && qe.messageStream.available() <= MAX_COALESCED_MESSAGE_SIZE;
+            OutputStream output = outStream;
+            if (coalesce) {
+                if (batch.size() == 0) {
+                    batchStartedNanos = System.nanoTime();
+                }
+                output = batch;
+            } else {
+                //keep the messages in order
+                writeBatch();
+            }
+            int written = writeNextPacket(qe, output);
             if (LogUtil.isLogAvailable()) {
-                Log.d(TAG, "Message " + qe.messageNo + " written, it's a " + qe.messageClass.getSimpleName() + ", " + read + " bytes in length");
+                Log.d(TAG, "Message " + qe.messageNo + " written, it's a " + qe.messageClass.getSimpleName() + ", " + written + " bytes in length");
             }
-            outStream.write(outBytes, 0, read);
             int left = qe.messageStream.available();
-            //if there are bytes left to write, add this message back into the queue
-            // to write at the next opportunity
+            synchronized(queueLock) {
+                //charge the bytes to the class (even if sent out of turn)
+                deficits.put(qe.trafficClass, deficits.get(qe.trafficClass) - Math.max(written, 1));
+                //if there are bytes left to write, the message stays at the head of
+                // its queue, to write in the class' next turn
+                if (left <= 0) {
+                    queues.get(qe.trafficClass).remove(qe);
+                }
+            }
             if (left > 0) {
                 if (LogUtil.isLogAvailable()) {
                     Log.d(TAG, "Message " + qe.messageNo + ", " + left + " bytes left to write");
                 }
-                queue.add(qe);
+            } else if (coalesce) {
+                //the message is finished when the batch is written
+                batchEntries.add(qe);
             } else {
-                qe.future.setFinished(true);
-                //otherwise, we're done
-                if (LogUtil.isLogAvailable()) {
-                    Log.i(TAG, "Message " + qe.messageNo + " finished writing");
-                }
+                finished(qe);
+            }
+        }
+        if (batch.size() >= MAX_BATCH_SIZE
+                || (batch.size() > 0 && System.nanoTime() - batchStartedNanos >= coalesceDelayNanos)) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Write the batch of small messages to the output stream, in one write.
+     * 
+     * @throws IOException
+     */
+    private void writeBatch() throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        int size = batch.size();
+        batch.writeTo(outStream);
+        batch.reset();
+        synchronized(queueLock) {
+            coalescedMessageCount += batchEntries.size();
+            coalescedWriteCount++;
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.d(TAG, batchEntries.size() + " messages written in a batch, " + size + " bytes in length");
+        }
+        for (QueueEntry qe : batchEntries) {
+            finished(qe);
+        }
+        batchEntries.clear();
+    }
+
+    private void finished(QueueEntry qe) throws IOException {
+        qe.messageStream.close();
+        qe.future.setFinished(true);
+        if (LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Message " + qe.messageNo + " finished writing");
+        }
+    }
+
+    /**
+     * Write the next packet of a queued message to the output stream.
+     * 
+     * Message packets are sized by the packet size controller: small packets
+     * while control messages are waiting behind this one, and otherwise a
+     * size adapted to the measured throughput of the connection.
+     * 
+     * @param qe
+     * @param output The output stream, or the batch
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    private int writeNextPacket(QueueEntry qe, OutputStream output) throws IOException {
+        if (qe.messageStream instanceof WireSendInputStream) {
+            WireSendInputStream stream = (WireSendInputStream) qe.messageStream;
+            packetSizeController.setMaxPacketSize(messenger.getMaxPacketSize());
+            int packetSize = packetSizeController.getPacketSize(isControlPending());
+            stream.setPacketSize(packetSize);
+
+            long start = System.nanoTime();
+            int written = stream.writePacket(output);
+            if (output == outStream) {
+                //only socket writes measure the throughput
+                packetSizeController.packetWritten(packetSize, written, System.nanoTime() - start);
             }
+            return written;
+        }
+        int read = qe.messageStream.read(outBytes);
+        if (read > 0) {
+            output.write(outBytes, 0, read);
         }
+        return read;
     }
 }
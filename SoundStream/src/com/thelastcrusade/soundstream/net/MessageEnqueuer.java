@@ -21,6 +21,8 @@ package com.thelastcrusade.soundstream.net;
 import java.io.IOException;
 
 import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.wire.Messenger;
+import com.thelastcrusade.soundstream.net.wire.SharedMessage;
 
 /**
  * A helper class to enqueue messages to be written by the connection writer.
@@ -33,7 +35,20 @@ import com.thelastcrusade.soundstream.net.message.IMessage;
  */
 public class MessageEnqueuer {
 
-    private int outMessageNumber = 1;
+    /**
+     * A future that cancels its message by the message number the writer gave it.
+     * The number is sent in the message packets, so the receiver knows which
+     * message is canceled.
+     */
+    private class EnqueuedFuture extends MessageFuture {
+        private volatile int messageNo;
+
+        @Override
+        public void cancel() throws IOException {
+            writer.cancel(messageNo);
+        }
+    }
+
     private ConnectionWriter writer;
 
     public MessageEnqueuer(ConnectionWriter writer) {
@@ -42,16 +57,22 @@ public class MessageEnqueuer {
 
     public MessageFuture enqueueMessage(IMessage message) throws IOException {
         //enqueue this message
-        final int messageNo = this.outMessageNumber++;
-        MessageFuture future = new MessageFuture() {
-
-            @Override
-            public void cancel() throws IOException {
-                writer.cancel(messageNo);
-            }
-            
-        };
-        this.writer.enqueue(messageNo, message, future);
+        EnqueuedFuture future = new EnqueuedFuture();
+        future.messageNo = this.writer.enqueue(message, future);
+        return future;
+    }
+
+    public MessageFuture enqueueMessage(SharedMessage message) throws IOException {
+        //enqueue this message
+        EnqueuedFuture future = new EnqueuedFuture();
+        future.messageNo = this.writer.enqueue(message, future);
+        return future;
+    }
+
+    public MessageFuture enqueueConnectionSettings() throws IOException {
+        EnqueuedFuture future = new EnqueuedFuture();
+        future.messageNo = Messenger.CONNECTION_SETTINGS_MESSAGE_NO;
+        this.writer.enqueueConnectionSettings(future);
         return future;
     }
 }
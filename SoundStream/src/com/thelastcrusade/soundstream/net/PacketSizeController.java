@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net;
+
+/**
+ * Chooses the packet size used to send message data on a connection.
+ * 
+ * Large packets make better use of the link when sending bulk data (e.g. song
+ * transfers), but a packet cannot be interrupted once it is started, so large
+ * packets also delay any control messages (e.g. play or pause) queued behind
+ * them.  This class drops to small packets while control messages are waiting,
+ * and otherwise adjusts the packet size based on the measured throughput: it
+ * keeps growing the packet size while throughput holds up, and backs off when
+ * throughput drops.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class PacketSizeController {
+
+    /**
+     * Number of packets to measure before adjusting the packet size.
+     */
+    private static final int PACKETS_PER_WINDOW = 8;
+
+    /**
+     * Allowed drop in throughput (as a fraction of the last measured throughput)
+     * before backing off.
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+    private int minPacketSize;
+    private int maxPacketSize;
+    private int packetSize;
+
+    private int  windowPackets;
+    private long windowBytes;
+    private long windowNanos;
+    //bytes per nanosecond, measured over the last window
+    private double lastThroughput;
+
+    /**
+     * @param minPacketSize The packet size to use while control messages are waiting
+     * @param maxPacketSize The largest packet size to use
+     * @param packetSize The initial packet size
+     */
+    public PacketSizeController(int minPacketSize, int maxPacketSize, int packetSize) {
+        this.minPacketSize = minPacketSize;
+        this.maxPacketSize = Math.max(minPacketSize, maxPacketSize);
+        this.packetSize    = clamp(packetSize);
+    }
+
+    private int clamp(int size) {
+        return Math.max(this.minPacketSize, Math.min(this.maxPacketSize, size));
+    }
+
+    /**
+     * Set the largest packet size to use (e.g. once the connection settings are negotiated).
+     * 
+     * @param maxPacketSize
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        maxPacketSize = Math.max(this.minPacketSize, maxPacketSize);
+        if (maxPacketSize != this.maxPacketSize) {
+            this.maxPacketSize = maxPacketSize;
+            this.packetSize    = clamp(this.packetSize);
+        }
+    }
+
+    /**
+     * Get the size of the next packet to send.
+     * 
+     * @param controlPending True if control messages are waiting to be sent.
+     * @return
+     */
+    public int getPacketSize(boolean controlPending) {
+        return controlPending ? this.minPacketSize : this.packetSize;
+    }
+
+    /**
+     * Record a packet written to the connection.  Only packets sent at the
+     * current packet size count towards the throughput measurement.
+     * 
+     * @param packetSize The packet size the packet was sent with
+     * @param bytes The number of bytes written
+     * @param nanos The time it took to write the packet
+     */
+    public void packetWritten(int packetSize, int bytes, long nanos) {
+        if (packetSize != this.packetSize || bytes <= 0) {
+            return;
+        }
+        this.windowPackets++;
+        this.windowBytes += bytes;
+        this.windowNanos += Math.max(nanos, 1);
+        if (this.windowPackets >= PACKETS_PER_WINDOW) {
+            adjustPacketSize((double) this.windowBytes / this.windowNanos);
+            this.windowPackets = 0;
+            this.windowBytes   = 0;
+            this.windowNanos   = 0;
+        }
+    }
+
+    private void adjustPacketSize(double throughput) {
+        if (throughput >= this.lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+            this.packetSize = clamp(this.packetSize * 2);
+        } else {
+            this.packetSize = clamp(this.packetSize / 2);
+        }
+        this.lastThroughput = throughput;
+    }
+
+    /**
+     * @return The current packet size used for bulk data
+     */
+    public int getBulkPacketSize() {
+        return this.packetSize;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net;
+
+import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.message.LibraryMessage;
+import com.thelastcrusade.soundstream.net.message.PlaylistMessage;
+import com.thelastcrusade.soundstream.net.message.SearchResultsMessage;
+import com.thelastcrusade.soundstream.net.message.TransferSongMessage;
+import com.thelastcrusade.soundstream.net.message.UserListMessage;
+
+/**
+ * The classes of traffic sent on a connection.  The connection writer shares
+ * the connection between the classes (see ConnectionWriter), giving each class
+ * a quantum of bytes to send in its turn.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public enum TrafficClass {
+
+    /**
+     * Commands and other small messages (e.g. play, pause, add to playlist, request
+     * song) that the user is waiting on.
+     */
+    CONTROL(8192),
+
+    /**
+     * Messages that sync state between the host and guests (e.g. the playlist or library),
+     * which may be large.
+     */
+    STATE(8192),
+
+    /**
+     * Song data.
+     */
+    BULK(16384);
+
+    private final int quantum;
+
+    private TrafficClass(int quantum) {
+        this.quantum = quantum;
+    }
+
+    /**
+     * @return The number of bytes the class may send in its turn.
+     */
+    public int getQuantum() {
+        return quantum;
+    }
+
+    public static TrafficClass of(Class<? extends IMessage> messageClass) {
+        if (TransferSongMessage.class.isAssignableFrom(messageClass)) {
+            return BULK;
+        }
+        if (LibraryMessage.class.isAssignableFrom(messageClass)
+                || PlaylistMessage.class.isAssignableFrom(messageClass)
+                || SearchResultsMessage.class.isAssignableFrom(messageClass)
+                || UserListMessage.class.isAssignableFrom(messageClass)) {
+            return STATE;
+        }
+        return CONTROL;
+    }
+}
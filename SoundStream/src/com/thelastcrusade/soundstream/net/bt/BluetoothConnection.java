@@ -35,6 +35,7 @@ import com.thelastcrusade.soundstream.net.MessageReceiver;
 import com.thelastcrusade.soundstream.net.MessageEnqueuer;
 import com.thelastcrusade.soundstream.net.message.IMessage;
 import com.thelastcrusade.soundstream.net.wire.Messenger;
+import com.thelastcrusade.soundstream.net.wire.SharedMessage;
 
 /**
  * This thread is responsible for sending and receiving messages once the connection has been established.
@@ -73,6 +74,9 @@ public abstract class BluetoothConnection extends Thread {
         this.writer    = new ConnectionWriter(messenger, socket.getOutputStream());
 
         this.enqueuer    = new MessageEnqueuer(writer);
+        //the connection settings must be sent first, so the remote side
+        // knows what packet sizes and messenger versions we support
+        this.enqueuer.enqueueConnectionSettings();
         //start a thread to manage writing...this is because the bluetooth outputstream blocks on writes
         // which will cause the UI to hang.
         this.writeThread = new ConnectionWriteThread(this.getName(), writer);
@@ -105,6 +109,8 @@ public abstract class BluetoothConnection extends Thread {
         } finally {
             running = false;
             stopWriteThread();
+            //let go of any partially received messages
+            this.messenger.close();
             //cancel and notify the handlers that the connection is dead
             disconnect();
         }
@@ -125,6 +131,18 @@ public abstract class BluetoothConnection extends Thread {
         Log.d(TAG, "MessageThread#write called from " + Thread.currentThread().getName());
         return this.enqueuer.enqueueMessage(message);
     }
+
+    /* Send a message shared with other connections (e.g. a broadcast) */
+    public synchronized MessageFuture write(SharedMessage message) throws IOException {
+        return this.enqueuer.enqueueMessage(message);
+    }
+
+    /**
+     * @return The version of the message format sent to the remote device
+     */
+    public int getSendVersion() {
+        return this.messenger.getSendVersion();
+    }
  
     /* Call this from the main activity to shutdown the connection */
     public void disconnect() {
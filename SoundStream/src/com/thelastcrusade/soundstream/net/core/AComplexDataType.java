@@ -60,10 +60,14 @@ public class AComplexDataType {
         }
         // TODO: protection for laaaaaarge byte lengths
         byte[] bytes = new byte[length];
-        int read = input.read(bytes);
-        //if we didn't read all we expected, throw an EOF exception.
-        if (read != length) {
-            throw new EOFException();
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(bytes, offset, length - offset);
+            //if we didn't read all we expected, throw an EOF exception.
+            if (read <= 0) {
+                throw new EOFException();
+            }
+            offset += read;
         }
         return bytes;
     }
@@ -81,16 +85,25 @@ public class AComplexDataType {
         return bb.get() != 1;        
     }
     
+    /**
+     * Write an integer, big endian (the same byte order as java.nio.ByteBuffer).
+     * 
+     */
     protected void writeInteger(int integer, OutputStream output)
             throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(SIZEOF_INTEGER);
-        bb.putInt(integer);
-        output.write(bb.array());
+        output.write(new byte[] {
+                (byte) (integer >> 24),
+                (byte) (integer >> 16),
+                (byte) (integer >> 8),
+                (byte) integer
+        });
     }
 
     protected int readInteger(InputStream input) throws IOException {
         byte[] in = readBytes(input, SIZEOF_INTEGER);
-        ByteBuffer bb = ByteBuffer.wrap(in);
-        return bb.getInt();
+        return ((in[0] & 0xFF) << 24)
+             | ((in[1] & 0xFF) << 16)
+             | ((in[2] & 0xFF) << 8)
+             |  (in[3] & 0xFF);
     }
 }
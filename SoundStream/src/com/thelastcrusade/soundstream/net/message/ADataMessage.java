@@ -19,6 +19,7 @@
 
 package com.thelastcrusade.soundstream.net.message;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,78 +30,73 @@ import com.thelastcrusade.soundstream.net.core.AComplexDataType;
 
 /**
  * An abstract message class for messages that send and receive data.  This class contains
- * helper methods to read and write basic data types that may be sent.
+ * helper methods to read and write basic data types that may be sent.  The encoding of
+ * these data types is defined by a DataCodec, chosen by the messenger version.
  * 
  * @author Jesse Rosalia
  *
  */
 public abstract class ADataMessage extends AComplexDataType implements IMessage {
 
-    
+    private int version = MessageFormat.VERSION_CLASS_NAME;
+
+    private DataCodec codec = DataCodec.LEGACY;
+
+    /**
+     * Set the messenger version used to read and write this message.  This is
+     * set by MessageFormat, and chooses the codec used to read and write data.
+     * 
+     * @param version
+     */
+    void setVersion(int version) {
+        this.version = version;
+        this.codec   = version >= MessageFormat.VERSION_COMPACT ? DataCodec.COMPACT : DataCodec.LEGACY;
+    }
+
+    /**
+     * @return The messenger version used to read and write this message, for
+     * messages that have a different layout in newer versions.
+     */
+    protected int getVersion() {
+        return version;
+    }
+
     protected void writeBoolean(boolean known, OutputStream output) throws IOException {
         output.write(known ? 1 : 0);
     }
 
     protected boolean readBoolean(InputStream input) throws IOException {
-        return input.read() != 0;
+        int read = input.read();
+        if (read < 0) {
+            throw new EOFException();
+        }
+        return read != 0;
+    }
+
+    @Override
+    protected void writeInteger(int integer, OutputStream output) throws IOException {
+        codec.writeInteger(integer, output);
+    }
+
+    @Override
+    protected int readInteger(InputStream input) throws IOException {
+        return codec.readInteger(input);
     }
 
     protected void writeString(String string, OutputStream output) throws IOException {
-        if(string == null) {
-            writeInteger(0, output);
-        }
-        else {
-            writeBytes(string.getBytes(), output);
-        }
+        codec.writeString(string, output);
     }
 
     protected String readString(InputStream input) throws IOException {
-        byte[] bytes = readBytes(input);
-        if (bytes != null) {
-            return new String(bytes);
-        } else {
-            return null;
-        }
+        return codec.readString(input);
     }
-    
-    //TODO: move these into AComplexDataType and use ByteBuffer
 
     protected void writeLong(long value, OutputStream output) throws IOException {
-        output.write((int)(value         & 0xFF));
-        output.write((int)((value >> 8)  & 0xFF));
-        output.write((int)((value >> 16) & 0xFF));
-        output.write((int)((value >> 24) & 0xFF));
-        output.write((int)((value >> 32) & 0xFF));
-        output.write((int)((value >> 40) & 0xFF));
-        output.write((int)((value >> 48) & 0xFF));
-        output.write((int)((value >> 56) & 0xFF));
+        codec.writeLong(value, output);
     }
 
     protected long readLong(InputStream input) throws IOException {
-    	long value = toInt(input.read());
-    	value 	  |= (toInt(input.read()) << 8);
-    	value 	  |= (toInt(input.read()) << 16);
-    	value 	  |= (toInt(input.read()) << 24);
-    	value 	  |= (toInt(input.read()) << 32);
-    	value 	  |= (toInt(input.read()) << 40);
-    	value 	  |= (toInt(input.read()) << 48);
-    	value 	  |= (toInt(input.read()) << 56);
-    	
-    	return value;
-    }
-
-    /**
-     * Convert an unsigned byte read from an input stream (held in an int) into
-     * an unsigned number.
-     * 
-     * This is because Java does not have unsigned types, and so bytes that
-     * are > 127 will come in as negative and F everything up.
-     * 
-     * @param read
-     * @return
-     */
-    private int toInt(int read) {
-        return (read & 0xFF);
+        return codec.readLong(input);
     }
 
     protected void writeSongMetadata(SongMetadata metadata, OutputStream output) throws IOException{
@@ -110,6 +106,9 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
         writeString(metadata.getAlbum(),      output);
         writeLong(  metadata.getFileSize(),   output);
         writeString(metadata.getMacAddress(), output);
+        if (version >= MessageFormat.VERSION_CONTENT_HASH) {
+            writeLong(metadata.getContentHash(), output);
+        }
     }
 
     protected SongMetadata readSongMetadata(InputStream input) throws IOException{
@@ -119,7 +118,11 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
         String album      = readString(input);
         long fileSize     = readLong(input);
         String macAddress = readString(input);
-        return new SongMetadata(id, title, artist, album, fileSize, macAddress);
+        SongMetadata metadata = new SongMetadata(id, title, artist, album, fileSize, macAddress);
+        if (version >= MessageFormat.VERSION_CONTENT_HASH) {
+            metadata.setContentHash(readLong(input));
+        }
+        return metadata;
     }
     
     protected void writePlaylistEntry(PlaylistEntry entrydata, OutputStream output) throws IOException{
@@ -143,25 +146,10 @@ public abstract class ADataMessage extends AComplexDataType implements IMessage
     }
 
     protected void writeBytes(byte[] bytes, OutputStream output) throws IOException {
-        if(bytes == null) {
-            writeInteger(0, output);
-        }
-        else {
-            writeInteger(bytes.length, output);
-            output.write(bytes);
-        }
+        codec.writeBytes(bytes, output);
     }
 
     protected byte[] readBytes(InputStream input) throws IOException {
-        int length = readInteger(input);
-        //TODO: should put an upper bound here, and use a ByteArrayOutputStream to accumulate bytes
-        if(length > 0) {
-            byte[] buffer = new byte[length];
-            input.read(buffer, 0, length);
-            return buffer;
-        }
-        else {
-            return null;
-        }
+        return codec.readBytes(input);
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A compact data message format.  Most of the numbers we send (ids, sizes,
+ * counts and lengths) are small, so numbers are sent as variable length
+ * integers (7 bits per byte, least significant group first, with the high
+ * bit set on all but the last byte).  Signed numbers are zigzag encoded
+ * first, so small negative numbers are small too.
+ * 
+ *  integer: zigzag varint (1 to 5 bytes)
+ *  long: zigzag varint (1 to 10 bytes)
+ *  string: varint length + 1 (0 for null), then the bytes in UTF-8
+ *  bytes: varint length + 1 (0 for null), then the bytes
+ * 
+ * Each value is written with a single write call (except for byte arrays
+ * too large for the scratch buffer, which are written after their length).
+ * The codec is shared by every connection, so numbers are encoded in a small
+ * local buffer, and byte arrays in a scratch buffer kept for each thread.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class CompactDataCodec extends DataCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_VARINT_BYTES = 10;
+
+    //strings and byte arrays up to this size are written with their length in one call
+    private static final int SCRATCH_SIZE = 1024;
+
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    @Override
+    public void writeInteger(int value, OutputStream output) throws IOException {
+        writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL, output);
+    }
+
+    @Override
+    public int readInteger(InputStream input) throws IOException {
+        int value = (int) readVarLong(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void writeLong(long value, OutputStream output) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63), output);
+    }
+
+    @Override
+    public long readLong(InputStream input) throws IOException {
+        long value = readVarLong(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void writeString(String string, OutputStream output) throws IOException {
+        writeBytes(string != null ? string.getBytes(UTF8) : null, output);
+    }
+
+    @Override
+    public String readString(InputStream input) throws IOException {
+        byte[] bytes = readBytes(input);
+        return bytes != null ? new String(bytes, UTF8) : null;
+    }
+
+    @Override
+    public void writeBytes(byte[] bytes, OutputStream output) throws IOException {
+        if (bytes == null) {
+            writeVarLong(0, output);
+        } else if (bytes.length <= SCRATCH_SIZE - MAX_VARINT_BYTES) {
+            //write the length and the bytes in one call
+            byte[] buffer = scratch.get();
+            int lengthBytes = encodeVarLong(bytes.length + 1L, buffer);
+            System.arraycopy(bytes, 0, buffer, lengthBytes, bytes.length);
+            output.write(buffer, 0, lengthBytes + bytes.length);
+        } else {
+            writeVarLong(bytes.length + 1L, output);
+            output.write(bytes);
+        }
+    }
+
+    @Override
+    public byte[] readBytes(InputStream input) throws IOException {
+        long length = readVarLong(input) - 1;
+        if (length < 0) {
+            return null;
+        }
+        checkLength(length, input);
+        byte[] buffer = new byte[(int) length];
+        readFully(input, buffer, 0, buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Write an unsigned variable length number.
+     * 
+     * @param value
+     * @param output
+     * @throws IOException
+     */
+    private void writeVarLong(long value, OutputStream output) throws IOException {
+        byte[] buffer = new byte[MAX_VARINT_BYTES];
+        output.write(buffer, 0, encodeVarLong(value, buffer));
+    }
+
+    /**
+     * Encode an unsigned variable length number at the front of the buffer.
+     * 
+     * @param value
+     * @param out
+     * @return The number of bytes used
+     */
+    private int encodeVarLong(long value, byte[] out) {
+        int index = 0;
+        while ((value & ~0x7FL) != 0) {
+            out[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[index++] = (byte) value;
+        return index;
+    }
+
+    /**
+     * Read an unsigned variable length number.
+     * 
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    private long readVarLong(InputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int read = readUnsignedByte(input);
+            value |= (long) (read & 0x7F) << shift;
+            if ((read & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Variable length number is too long");
+    }
+}
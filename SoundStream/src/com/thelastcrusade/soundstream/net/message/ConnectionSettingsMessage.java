@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The settings sent first on a connection, used to negotiate connection
+ * settings (such as the largest packet each side will accept, and the
+ * messenger version used to frame messages).  These settings are sent in
+ * a control packet that older versions ignore (see
+ * Messenger#serializeConnectionSettings), and are handled by the Messenger,
+ * not passed on to the rest of the application.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class ConnectionSettingsMessage extends ADataMessage {
+
+    private int maxPacketSize;
+    private int messengerVersion;
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    public ConnectionSettingsMessage() {
+    }
+
+    public ConnectionSettingsMessage(int maxPacketSize, int messengerVersion) {
+        this.maxPacketSize    = maxPacketSize;
+        this.messengerVersion = messengerVersion;
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.maxPacketSize    = readInteger(input);
+        this.messengerVersion = readInteger(input);
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeInteger(this.maxPacketSize,    output);
+        writeInteger(this.messengerVersion, output);
+    }
+
+    /**
+     * @return The largest packet, in bytes, the sender can send or receive.
+     */
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * @return The newest messenger version (see MessageFormat) the sender can receive.
+     */
+    public int getMessengerVersion() {
+        return messengerVersion;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A codec for the basic data types sent in data messages (integers, longs,
+ * strings and byte arrays).  The codec used for a message is chosen by the
+ * messenger version the message is sent with (see MessageFormat).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public abstract class DataCodec {
+
+    /**
+     * The original format: fixed size integers and longs, and strings in the
+     * platform charset with a fixed size length.
+     */
+    public static final DataCodec LEGACY  = new LegacyDataCodec();
+
+    /**
+     * A compact format: variable length integers and longs, and UTF-8 strings
+     * with a variable length length.
+     */
+    public static final DataCodec COMPACT = new CompactDataCodec();
+
+    public abstract void writeInteger(int value, OutputStream output) throws IOException;
+
+    public abstract int readInteger(InputStream input) throws IOException;
+
+    public abstract void writeLong(long value, OutputStream output) throws IOException;
+
+    public abstract long readLong(InputStream input) throws IOException;
+
+    public abstract void writeString(String string, OutputStream output) throws IOException;
+
+    public abstract String readString(InputStream input) throws IOException;
+
+    public abstract void writeBytes(byte[] bytes, OutputStream output) throws IOException;
+
+    public abstract byte[] readBytes(InputStream input) throws IOException;
+
+    /**
+     * Read exactly length bytes into the buffer.
+     * 
+     * @param input
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     * @throws EOFException If the stream ends before all of the bytes are read.
+     */
+    protected static void readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = input.read(buffer, offset, length);
+            if (read <= 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Check a length read off the wire against the data left in the message,
+     * so a bad length cannot make us allocate more than was actually sent.
+     * 
+     * @param length
+     * @param input
+     * @throws IOException
+     * @throws EOFException If there are fewer than length bytes left in the input.
+     */
+    protected static void checkLength(long length, InputStream input) throws IOException {
+        int available = input.available();
+        if (length > available) {
+            throw new EOFException("Length " + length + " is more than the " + available + " bytes left");
+        }
+    }
+
+    /**
+     * Read one byte, as an unsigned value.
+     * 
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws EOFException If the stream ends before the byte is read.
+     */
+    protected static int readUnsignedByte(InputStream input) throws IOException {
+        int read = input.read();
+        if (read < 0) {
+            throw new EOFException();
+        }
+        return read;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Describes a file sent in chunks: the file length, the chunk size and the
+ * CRC32 of each chunk.  The receiver checks each chunk against its CRC as it
+ * arrives, so a transfer that is interrupted (or corrupted) can be resumed
+ * by requesting just the chunks that are missing or bad.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class FileManifest {
+
+    /**
+     * Default size of each chunk, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private int   fileLength;
+    private int   chunkSize;
+    private int[] crcs;
+
+    public FileManifest(int fileLength, int chunkSize, int[] crcs) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.fileLength = fileLength;
+        this.chunkSize  = chunkSize;
+        this.crcs       = crcs;
+    }
+
+    /**
+     * Create a manifest for a file, by reading the file and computing the
+     * CRC of each chunk.
+     * 
+     * @param file
+     * @param chunkSize
+     * @return
+     * @throws IOException
+     */
+    public static FileManifest create(File file, int chunkSize) throws IOException {
+        int fileLength = (int) file.length();
+        int[] crcs = new int[getChunkCount(fileLength, chunkSize)];
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[Math.min(chunkSize, 64 * 1024)];
+        InputStream input = new FileInputStream(file);
+        try {
+            for (int chunk = 0; chunk < crcs.length; chunk++) {
+                crc.reset();
+                int left = Math.min(chunkSize, fileLength - chunk * chunkSize);
+                while (left > 0) {
+                    int read = input.read(buffer, 0, Math.min(buffer.length, left));
+                    if (read < 0) {
+                        throw new IOException("File " + file.getName() + " is shorter than " + fileLength + " bytes");
+                    }
+                    crc.update(buffer, 0, read);
+                    left -= read;
+                }
+                crcs[chunk] = (int) crc.getValue();
+            }
+        } finally {
+            input.close();
+        }
+        return new FileManifest(fileLength, chunkSize, crcs);
+    }
+
+    private static int getChunkCount(int fileLength, int chunkSize) {
+        return (int) (((long) fileLength + chunkSize - 1) / chunkSize);
+    }
+
+    public int getFileLength() {
+        return fileLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return crcs.length;
+    }
+
+    /**
+     * @param chunk
+     * @return The offset in the file of the chunk.
+     */
+    public int getChunkOffset(int chunk) {
+        return chunk * chunkSize;
+    }
+
+    /**
+     * @param chunk
+     * @return The length of the chunk (the last chunk may be shorter than the chunk size).
+     */
+    public int getChunkLength(int chunk) {
+        return Math.min(chunkSize, fileLength - getChunkOffset(chunk));
+    }
+
+    /**
+     * @param chunk
+     * @return The CRC32 of the chunk (the low 32 bits of CRC32#getValue).
+     */
+    public int getCrc(int chunk) {
+        return crcs[chunk];
+    }
+
+    int[] getCrcs() {
+        return crcs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FileManifest)) {
+            return false;
+        }
+        FileManifest other = (FileManifest) o;
+        return fileLength == other.fileLength
+            && chunkSize  == other.chunkSize
+            && Arrays.equals(crcs, other.crcs);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * fileLength + chunkSize) + Arrays.hashCode(crcs);
+    }
+}
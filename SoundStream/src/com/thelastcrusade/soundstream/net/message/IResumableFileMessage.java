@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+/**
+ * A file message that may carry just part of a file, sent in chunks with
+ * a CRC for each chunk (see FileManifest).  The receiver writes the data
+ * into a partial file, named by the receiver when it requested the file,
+ * so an interrupted or corrupted transfer can be resumed by requesting
+ * the rest of the file (or just the bad chunks) into the same partial file.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public interface IResumableFileMessage extends IFileMessage {
+
+    /**
+     * @return The manifest of the whole file, or null if this message carries
+     * the whole file without chunks (e.g. when talking to an older peer).
+     */
+    public FileManifest getManifest();
+
+    /**
+     * @return The name of the partial file to write the data into, in the receiver's
+     * temporary folder.
+     */
+    public String getPartialFileName();
+
+    /**
+     * @return The offset in the file of the data in this message.
+     */
+    public int getFileOffset();
+
+    /**
+     * @return The number of bytes of file data in this message.
+     */
+    public int getDataLength();
+
+    /**
+     * @return True if the receiver did not use the data in this message, because the
+     * partial file is being received with a different manifest (see PartialFile).
+     */
+    public boolean isManifestRejected();
+
+    /**
+     * Set by the receiver, when it does not use the data in this message.
+     * 
+     * @param manifestRejected
+     */
+    public void setManifestRejected(boolean manifestRejected);
+}
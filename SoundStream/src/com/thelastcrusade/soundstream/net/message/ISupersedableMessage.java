@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+/**
+ * A message that carries state (e.g. the playlist, or the status of a song),
+ * where only the latest state matters.  If a message is enqueued while an
+ * older message of the same class with the same supersede key is still
+ * waiting to be sent, the older message is replaced in the queue by the
+ * message returned from {@link #supersede(ISupersedableMessage)}.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public interface ISupersedableMessage extends IMessage {
+
+    /**
+     * @return The key of the state this message carries.  Messages of the same
+     * class with equal keys may supersede each other.
+     */
+    public Object getSupersedeKey();
+
+    /**
+     * Combine this message with an older message of the same class and key
+     * that has not been sent yet.
+     * 
+     * @param older
+     * @return The message to send in place of both messages (usually this message),
+     * or null if both messages must be sent.
+     */
+    public ISupersedableMessage supersede(ISupersedableMessage older);
+}
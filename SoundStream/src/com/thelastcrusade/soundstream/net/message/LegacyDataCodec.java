@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The original data message format.  This is kept so we can talk to peers
+ * that do not support the compact format.
+ * 
+ *  integer: 4 bytes, big endian
+ *  long: 8 bytes, little endian
+ *  string: integer length, then the bytes in the platform charset (null and empty strings are sent as length 0, and read as null)
+ *  bytes: integer length, then the bytes (null and empty arrays are sent as length 0, and read as null)
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class LegacyDataCodec extends DataCodec {
+
+    private static final int SIZEOF_INTEGER = 4;
+    private static final int SIZEOF_LONG    = 8;
+
+    @Override
+    public void writeInteger(int value, OutputStream output) throws IOException {
+        output.write(new byte[] {
+                (byte) (value >> 24),
+                (byte) (value >> 16),
+                (byte) (value >> 8),
+                (byte) value
+        });
+    }
+
+    @Override
+    public int readInteger(InputStream input) throws IOException {
+        byte[] in = new byte[SIZEOF_INTEGER];
+        readFully(input, in, 0, in.length);
+        return ((in[0] & 0xFF) << 24)
+             | ((in[1] & 0xFF) << 16)
+             | ((in[2] & 0xFF) << 8)
+             |  (in[3] & 0xFF);
+    }
+
+    @Override
+    public void writeLong(long value, OutputStream output) throws IOException {
+        byte[] out = new byte[SIZEOF_LONG];
+        for (int ii = 0; ii < out.length; ii++) {
+            out[ii] = (byte) (value >> (8 * ii));
+        }
+        output.write(out);
+    }
+
+    @Override
+    public long readLong(InputStream input) throws IOException {
+        byte[] in = new byte[SIZEOF_LONG];
+        readFully(input, in, 0, in.length);
+        long value = 0;
+        for (int ii = 0; ii < in.length; ii++) {
+            value |= (in[ii] & 0xFFL) << (8 * ii);
+        }
+        return value;
+    }
+
+    @Override
+    public void writeString(String string, OutputStream output) throws IOException {
+        writeBytes(string != null ? string.getBytes() : null, output);
+    }
+
+    @Override
+    public String readString(InputStream input) throws IOException {
+        byte[] bytes = readBytes(input);
+        return bytes != null ? new String(bytes) : null;
+    }
+
+    @Override
+    public void writeBytes(byte[] bytes, OutputStream output) throws IOException {
+        if (bytes == null) {
+            writeInteger(0, output);
+        } else {
+            writeInteger(bytes.length, output);
+            output.write(bytes);
+        }
+    }
+
+    @Override
+    public byte[] readBytes(InputStream input) throws IOException {
+        int length = readInteger(input);
+        if (length > 0) {
+            checkLength(length, input);
+            byte[] buffer = new byte[length];
+            readFully(input, buffer, 0, length);
+            return buffer;
+        } else {
+            return null;
+        }
+    }
+}
@@ -16,25 +16,90 @@
  * You should have received a copy of the GNU General Public License
  * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package com.thelastcrusade.soundstream.net.message;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 
-public class LibraryMessage extends ADataMessage {
+/**
+ * A message to send a library of songs.
+ * 
+ * Before {@link MessageFormat#VERSION_COLUMNAR_LIBRARY}, each song is written
+ * in full, one after the other.  Since then, the library is written as:
+ *  integer number of songs
+ *  one or more blocks of songs, each with:
+ *   integer number of songs in the block (only since {@link MessageFormat#VERSION_STREAMING_LIBRARY}, before
+ *    that the whole library is one block)
+ *   mac address, artist and album dictionary entries new to this block (integer count, then each distinct string once)
+ *   id column (each id as the difference from the previous id, which is small for sorted libraries)
+ *   title column
+ *   artist, album and mac address columns (integer index into the dictionary + 1, or 0 for null)
+ *   file size column
+ *   content hash column (only since {@link MessageFormat#VERSION_CONTENT_HASH})
+ *  the library changes (only since {@link MessageFormat#VERSION_LIBRARY_CHANGES}):
+ *   boolean, true if the message holds changes
+ *   integer number of sources, then for each source: mac address, from version, to version,
+ *    snapshot boolean, integer number of removed songs and each removed song id
+ *  boolean, true if the sender browses the library remotely (only since
+ *   {@link MessageFormat#VERSION_REMOTE_LIBRARY})
+ * 
+ * A library message may hold just the songs that changed since an earlier version
+ * of the library (see {@link LibraryChanges}).  Older receivers ignore the changes,
+ * and merge the songs into their library, as they would any other library.
+ * 
+ * A guest sending its own library to the host may ask not to receive the rest of
+ * the library, and instead browse it remotely (see {@link SearchLibraryMessage}).
+ * Older hosts ignore this, and send the guest the library as usual.
+ * 
+ * Strings read from the dictionaries are interned, so every song with the same
+ * artist, album or mac address shares one string.
+ * 
+ * Libraries sent in rows or blocks are streaming messages: each song (or block)
+ * is decoded as it arrives, and the songs decoded so far may be taken as a
+ * partial library message (see {@link #isPartial()}).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class LibraryMessage extends StreamingDataMessage {
     @SuppressWarnings("unused")
 	private final String TAG = LibraryMessage.class.getName();
 
+	/**
+	 * Number of songs in each block, when sending blocks.
+	 */
+	private static final int SONGS_PER_BLOCK = 256;
+
 	//JR, 03/13/13, I know this should be List, but Android intents allow you to
 	// bundle an ArrayList of parcelables and that functionality doesnt extend
 	// to the interface.
 	private ArrayList<SongMetadata> library = new ArrayList<SongMetadata>();
+
+	private boolean partial;
+
+	//null if this message is not a set of changes
+	private ArrayList<LibraryChanges> changes;
+
+	//true if the sender browses the library remotely
+	private boolean remoteLibrary;
+
+	//decode state: songs left to decode (-1 before the count is read), the dictionaries
+	// received so far, the last id decoded and the first song not yet taken as a partial message
+	private int          songsLeft = -1;
+	private List<String> macAddresses = new ArrayList<String>();
+	private List<String> artists      = new ArrayList<String>();
+	private List<String> albums       = new ArrayList<String>();
+	private long         lastId;
+	private int          partialStart;
+	private boolean      changesRead;
 	
 	/**
 	 * Default constructor required for Messenger, use the other one though
@@ -45,23 +110,370 @@ public class LibraryMessage extends ADataMessage {
 		this.library.addAll(metadata);
 	}
 
+	/**
+	 * Create a message with the changes to the library.
+	 * 
+	 * @param metadata The songs added or updated, or all songs for snapshots.
+	 * @param changes
+	 */
+	public LibraryMessage(List<SongMetadata> metadata, List<LibraryChanges> changes) {
+		this(metadata);
+		this.changes = new ArrayList<LibraryChanges>(changes);
+	}
+
+	/**
+	 * Create a message with a guest's library, to send to the host.
+	 * 
+	 * @param metadata
+	 * @param remoteLibrary True if the guest browses the library remotely, and does
+	 * not want a copy of it.
+	 */
+	public LibraryMessage(List<SongMetadata> metadata, boolean remoteLibrary) {
+		this(metadata);
+		this.remoteLibrary = remoteLibrary;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		//a library in one block has to be here in full before it can be decoded
+		return getVersion() != MessageFormat.VERSION_COLUMNAR_LIBRARY;
+	}
+
 	@Override
-	public void deserialize(InputStream input) throws IOException {
-		int librarySize = readInteger(input);
-		for(int i = 0; i < librarySize; i++) {			
+	public boolean deserializeNext(InputStream input) throws IOException {
+		if (songsLeft < 0) {
+			int librarySize = readInteger(input);
+			if (librarySize < 0) {
+				throw new IOException("Invalid library size " + librarySize);
+			}
+			library.ensureCapacity(library.size() + librarySize);
+			songsLeft = librarySize;
+		} else if (songsLeft == 0) {
+			changes = readChanges(input);
+			if (getVersion() >= MessageFormat.VERSION_REMOTE_LIBRARY) {
+				remoteLibrary = readBoolean(input);
+			}
+			changesRead = true;
+		} else if (getVersion() < MessageFormat.VERSION_COLUMNAR_LIBRARY) {
 			library.add(readSongMetadata(input));
+			songsLeft--;
+		} else if (getVersion() == MessageFormat.VERSION_COLUMNAR_LIBRARY) {
+			deserializeBlock(songsLeft, input);
+			songsLeft = 0;
+		} else {
+			int blockSize = readInteger(input);
+			if (blockSize <= 0 || blockSize > songsLeft) {
+				throw new IOException("Invalid block size " + blockSize);
+			}
+			deserializeBlock(blockSize, input);
+			songsLeft -= blockSize;
 		}
+		//the changes follow the songs, in newer versions
+		return songsLeft == 0
+				&& (getVersion() < MessageFormat.VERSION_LIBRARY_CHANGES || changesRead);
+	}
+
+	@Override
+	public IMessage takePartialMessage() {
+		if (partialStart >= library.size()) {
+			return null;
+		}
+		LibraryMessage message = new LibraryMessage(library.subList(partialStart, library.size()));
+		message.partial = true;
+		partialStart = library.size();
+		return message;
 	}
 
 	@Override
 	public void serialize(OutputStream output) throws IOException {
 		writeInteger(library.size(), output);
-		for(SongMetadata metadata : library) {
-		    writeSongMetadata(metadata, output);
+		if (getVersion() < MessageFormat.VERSION_COLUMNAR_LIBRARY) {
+			for(SongMetadata metadata : library) {
+			    writeSongMetadata(metadata, output);
+			}
+			return;
+		}
+
+		StringDictionary macAddresses = new StringDictionary();
+		StringDictionary artists      = new StringDictionary();
+		StringDictionary albums       = new StringDictionary();
+		long lastId = 0;
+		if (getVersion() == MessageFormat.VERSION_COLUMNAR_LIBRARY) {
+			lastId = serializeBlock(0, library.size(), lastId, macAddresses, artists, albums, output);
+		} else {
+			for (int start = 0; start < library.size(); start += SONGS_PER_BLOCK) {
+				int end = Math.min(start + SONGS_PER_BLOCK, library.size());
+				writeInteger(end - start, output);
+				lastId = serializeBlock(start, end, lastId, macAddresses, artists, albums, output);
+			}
+		}
+		if (getVersion() >= MessageFormat.VERSION_LIBRARY_CHANGES) {
+			writeChanges(output);
+		}
+		if (getVersion() >= MessageFormat.VERSION_REMOTE_LIBRARY) {
+			writeBoolean(remoteLibrary, output);
+		}
+	}
+
+	private void writeChanges(OutputStream output) throws IOException {
+		writeBoolean(changes != null, output);
+		if (changes == null) {
+			return;
+		}
+		writeInteger(changes.size(), output);
+		for (LibraryChanges source : changes) {
+			writeString( source.getMacAddress(),  output);
+			writeInteger(source.getFromVersion(), output);
+			writeInteger(source.getToVersion(),   output);
+			writeBoolean(source.isSnapshot(),     output);
+			long[] removedIds = source.getRemovedIds();
+			writeInteger(removedIds.length, output);
+			for (long id : removedIds) {
+				writeLong(id, output);
+			}
+		}
+	}
+
+	private ArrayList<LibraryChanges> readChanges(InputStream input) throws IOException {
+		if (!readBoolean(input)) {
+			return null;
+		}
+		int count = readInteger(input);
+		if (count < 0) {
+			throw new IOException("Invalid number of library changes " + count);
+		}
+		ArrayList<LibraryChanges> changes = new ArrayList<LibraryChanges>(count);
+		for (int i = 0; i < count; i++) {
+			String macAddress = readString(input);
+			int fromVersion   = readInteger(input);
+			int toVersion     = readInteger(input);
+			boolean snapshot  = readBoolean(input);
+			int removedCount  = readInteger(input);
+			if (removedCount < 0) {
+				throw new IOException("Invalid number of removed songs " + removedCount);
+			}
+			long[] removedIds = new long[removedCount];
+			for (int j = 0; j < removedCount; j++) {
+				removedIds[j] = readLong(input);
+			}
+			changes.add(new LibraryChanges(macAddress, fromVersion, toVersion, snapshot, removedIds));
+		}
+		return changes;
+	}
+
+	/**
+	 * Write a block of songs, with the dictionary entries that are new to this block.
+	 * 
+	 * @return The last id written
+	 */
+	private long serializeBlock(int start, int end, long lastId,
+			StringDictionary macAddresses, StringDictionary artists, StringDictionary albums,
+			OutputStream output) throws IOException {
+		List<SongMetadata> block = library.subList(start, end);
+		int[] macColumn    = new int[block.size()];
+		int[] artistColumn = new int[block.size()];
+		int[] albumColumn  = new int[block.size()];
+		for (int i = 0; i < block.size(); i++) {
+			SongMetadata metadata = block.get(i);
+			macColumn[i]    = macAddresses.add(metadata.getMacAddress());
+			artistColumn[i] = artists.add(metadata.getArtist());
+			albumColumn[i]  = albums.add(metadata.getAlbum());
+		}
+
+		macAddresses.writeNew(output);
+		artists.writeNew(output);
+		albums.writeNew(output);
+		for (SongMetadata metadata : block) {
+			writeLong(metadata.getId() - lastId, output);
+			lastId = metadata.getId();
+		}
+		for (SongMetadata metadata : block) {
+			writeString(metadata.getTitle(), output);
+		}
+		writeColumn(artistColumn, output);
+		writeColumn(albumColumn, output);
+		writeColumn(macColumn, output);
+		for (SongMetadata metadata : block) {
+			writeLong(metadata.getFileSize(), output);
+		}
+		if (getVersion() >= MessageFormat.VERSION_CONTENT_HASH) {
+			for (SongMetadata metadata : block) {
+				writeLong(metadata.getContentHash(), output);
+			}
+		}
+		return lastId;
+	}
+
+	/**
+	 * Read a block of songs.  Nothing is added to the library (or the dictionaries)
+	 * until the whole block is read.
+	 * 
+	 * @param size
+	 * @param input
+	 * @throws IOException
+	 */
+	private void deserializeBlock(int size, InputStream input) throws IOException {
+		String[] newMacAddresses = readDictionary(input);
+		String[] newArtists      = readDictionary(input);
+		String[] newAlbums       = readDictionary(input);
+		long[] ids = new long[size];
+		long id = lastId;
+		for (int i = 0; i < size; i++) {
+			id += readLong(input);
+			ids[i] = id;
+		}
+		String[] titles = new String[size];
+		for (int i = 0; i < size; i++) {
+			titles[i] = readString(input);
+		}
+		int[] artistColumn = readColumn(size, artists.size() + newArtists.length, input);
+		int[] albumColumn  = readColumn(size, albums.size() + newAlbums.length, input);
+		int[] macColumn    = readColumn(size, macAddresses.size() + newMacAddresses.length, input);
+		long[] fileSizes = new long[size];
+		for (int i = 0; i < size; i++) {
+			fileSizes[i] = readLong(input);
+		}
+		long[] contentHashes = new long[size];
+		if (getVersion() >= MessageFormat.VERSION_CONTENT_HASH) {
+			for (int i = 0; i < size; i++) {
+				contentHashes[i] = readLong(input);
+			}
+		}
+
+		//the whole block is here...add it to the message
+		addAll(macAddresses, newMacAddresses);
+		addAll(artists,      newArtists);
+		addAll(albums,       newAlbums);
+		lastId = id;
+		for (int i = 0; i < size; i++) {
+			SongMetadata metadata = new SongMetadata(ids[i], titles[i],
+					lookup(artists, artistColumn[i]),
+					lookup(albums, albumColumn[i]),
+					fileSizes[i],
+					lookup(macAddresses, macColumn[i]));
+			metadata.setContentHash(contentHashes[i]);
+			library.add(metadata);
+		}
+	}
+
+	private void writeColumn(int[] column, OutputStream output) throws IOException {
+		for (int index : column) {
+			writeInteger(index, output);
+		}
+	}
+
+	/**
+	 * Read a column of dictionary indices, and make sure each one is valid.
+	 * 
+	 * @param size
+	 * @param dictionarySize
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	private int[] readColumn(int size, int dictionarySize, InputStream input) throws IOException {
+		int[] column = new int[size];
+		for (int i = 0; i < size; i++) {
+			column[i] = readInteger(input);
+			if (column[i] < 0 || column[i] > dictionarySize) {
+				throw new IOException("Invalid dictionary index " + column[i]);
+			}
+		}
+		return column;
+	}
+
+	private String[] readDictionary(InputStream input) throws IOException {
+		int size = readInteger(input);
+		if (size < 0) {
+			throw new IOException("Invalid dictionary size " + size);
+		}
+		String[] strings = new String[size];
+		for (int i = 0; i < strings.length; i++) {
+			String string = readString(input);
+			strings[i] = string != null ? string.intern() : null;
+		}
+		return strings;
+	}
+
+	private void addAll(List<String> dictionary, String[] strings) {
+		for (String string : strings) {
+			dictionary.add(string);
+		}
+	}
+
+	private String lookup(List<String> dictionary, int index) {
+		return index > 0 ? dictionary.get(index - 1) : null;
+	}
+
+	/**
+	 * A dictionary of distinct strings, in the order they were added.
+	 * 
+	 */
+	private class StringDictionary {
+		private Map<String, Integer> indices = new HashMap<String, Integer>();
+		private List<String> strings = new ArrayList<String>();
+		private int written;
+
+		/**
+		 * Add a string to the dictionary, if it is not already there.
+		 * 
+		 * @param string
+		 * @return The index of the string + 1, or 0 for null.
+		 */
+		public int add(String string) {
+			if (string == null) {
+				return 0;
+			}
+			Integer index = indices.get(string);
+			if (index == null) {
+				strings.add(string);
+				index = strings.size();
+				indices.put(string, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Write the strings added since the last write.
+		 * 
+		 * @param output
+		 * @throws IOException
+		 */
+		public void writeNew(OutputStream output) throws IOException {
+			writeInteger(strings.size() - written, output);
+			for (String string : strings.subList(written, strings.size())) {
+				writeString(string, output);
+			}
+			written = strings.size();
 		}
 	}
 
 	public ArrayList<SongMetadata> getLibrary() {
 		return library;
 	}
+
+	/**
+	 * @return True if this message holds part of a library that is still
+	 * being received (see {@link #takePartialMessage()}), false if it holds
+	 * the whole library.
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * @return The changes to the library, if this message holds the songs changed since an
+	 * earlier version of the library, or null if it does not.
+	 */
+	public ArrayList<LibraryChanges> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return True if the sender browses the library remotely, and does not
+	 * want a copy of it.
+	 */
+	public boolean isRemoteLibrary() {
+		return remoteLibrary;
+	}
 }
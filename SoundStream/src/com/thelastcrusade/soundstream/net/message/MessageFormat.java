@@ -19,6 +19,7 @@
 package com.thelastcrusade.soundstream.net.message;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,15 +29,25 @@ import android.util.Log;
 import com.thelastcrusade.soundstream.net.core.AComplexDataType;
 import com.thelastcrusade.soundstream.net.core.ISerializable;
 import com.thelastcrusade.soundstream.net.wire.MessageNotCompleteException;
+import com.thelastcrusade.soundstream.util.InputBuffer;
 import com.thelastcrusade.soundstream.util.LogUtil;
 
 /**
  * A format for all messages.  All messages consists of:
  *  integer length of the message, not including the length (using java.nio.ByteBuffer, size defined by {@link AComplexDataType#SIZEOF_INTEGER})
  *  integer byte messenger version (size defined by {@link AComplexDataType#SIZEOF_INTEGER})
- *  class name (in bytes)
- *  \n character to terminate the class name
- *  n bytes of message payload
+ *  message type, which depends on the messenger version:
+ *   {@link #VERSION_CLASS_NAME}: class name (in bytes), and a \n character to terminate the class name
+ *   {@link #VERSION_TYPE_ID} and newer: integer message type id (see {@link MessageRegistry}, size defined by {@link AComplexDataType#SIZEOF_INTEGER})
+ *  n bytes of message payload, written with the {@link DataCodec} for the messenger version
+ *   ({@link DataCodec#COMPACT} for {@link #VERSION_COMPACT} and newer, {@link DataCodec#LEGACY} otherwise)
+ *
+ * Messages that are not in the MessageRegistry are always sent with the class name.
+ *
+ * Messages may be read all at once (see {@link #deserialize(InputStream)}), or as
+ * the data arrives (see {@link #deserializeAvailable(InputBuffer)}), which lets
+ * streaming messages (see {@link StreamingDataMessage}) be decoded a part
+ * at a time.
 
  * @author Jesse Rosalia
  *
@@ -44,11 +55,81 @@ import com.thelastcrusade.soundstream.util.LogUtil;
 public class MessageFormat extends AComplexDataType implements ISerializable {
 
     private static final String TAG = MessageFormat.class.getSimpleName();
-    private static final int MESSENGER_VERSION = 1;
+    /**
+     * Messages are identified by class name, and created by reflection.  This is
+     * the version written by the first release of the messenger.
+     */
+    public static final int VERSION_CLASS_NAME = 1;
+
+    /**
+     * Registered messages are identified by a numeric type id, and created by
+     * a factory in the MessageRegistry.
+     */
+    public static final int VERSION_TYPE_ID = 2;
+
+    /**
+     * Registered messages are identified by type id, and data messages are
+     * written with the compact data codec.
+     */
+    public static final int VERSION_COMPACT = 3;
+
+    /**
+     * As {@link #VERSION_COMPACT}, and library messages are dictionary encoded
+     * and laid out in columns (see {@link LibraryMessage}).
+     */
+    public static final int VERSION_COLUMNAR_LIBRARY = 4;
+
+    /**
+     * As {@link #VERSION_COLUMNAR_LIBRARY}, and library messages are split into
+     * blocks of songs, so they can be decoded as they arrive (see {@link LibraryMessage}).
+     */
+    public static final int VERSION_STREAMING_LIBRARY = 5;
+
+    /**
+     * As {@link #VERSION_STREAMING_LIBRARY}, and playlist messages carry the playlist
+     * version, and may carry just the changes to the playlist (see {@link PlaylistMessage}).
+     */
+    public static final int VERSION_PLAYLIST_CHANGES = 6;
+
+    /**
+     * As {@link #VERSION_PLAYLIST_CHANGES}, and library messages may carry the changes
+     * to the library since an earlier version (see {@link LibraryMessage}).
+     */
+    public static final int VERSION_LIBRARY_CHANGES = 7;
+
+    /**
+     * As {@link #VERSION_LIBRARY_CHANGES}, and guests may browse the library remotely,
+     * instead of receiving a copy of it (see {@link LibraryMessage} and {@link SearchLibraryMessage}).
+     */
+    public static final int VERSION_REMOTE_LIBRARY = 8;
+
+    /**
+     * As {@link #VERSION_REMOTE_LIBRARY}, and songs may be sent in checksummed chunks,
+     * so interrupted transfers can be resumed (see {@link TransferSongMessage}).
+     */
+    public static final int VERSION_RESUMABLE_TRANSFER = 9;
+
+    /**
+     * As {@link #VERSION_RESUMABLE_TRANSFER}, and songs carry a hash of the song file
+     * contents, so copies of a song on different devices can be found (see {@link LibraryMessage}).
+     */
+    public static final int VERSION_CONTENT_HASH = 10;
+
+    /**
+     * The newest messenger version supported.
+     */
+    public static final int MESSENGER_VERSION = VERSION_CONTENT_HASH;
+
     private static final char END_OF_CLASS_CHAR = '\n';
 
     private IMessage message = null;
     private int      length  = 0;
+    private int      version = VERSION_CLASS_NAME;
+
+    //state for deserializeAvailable: the message being received, and the
+    // number of message bytes not yet decoded
+    private IMessage pendingMessage;
+    private int      bytesLeft;
 
     /**
      * Default constructor required because this is serializable
@@ -57,11 +138,22 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
     }
 
     /**
-     * @param size
-     * @param class1
+     * Create a message format that sends the message using the class name
+     * (which all peers understand).
+     * 
+     * @param message
      */
     public MessageFormat(IMessage message) {
+        this(message, VERSION_CLASS_NAME);
+    }
+
+    /**
+     * @param message
+     * @param version The messenger version to use to send this message
+     */
+    public MessageFormat(IMessage message, int version) {
         this.message = message;
+        this.version = version;
     }
 
     @Override
@@ -76,37 +168,243 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
             throw new MessageNotCompleteException();
         }
 
-        @SuppressWarnings("unused")
-        int messengerVersion = readInteger(input);
-
-        //TODO: actually do something with the messengerVersion
-        byte[] classBytes = readBytesUntil(input, END_OF_CLASS_CHAR);
-        //REVIEW: character encoding issues may arise, but since we're controlling the class names
-        // we should be able to decide how to handle these
-        String messageName = new String(classBytes);
-
-        IMessage message = instantiateMessage(messageName);
+        IMessage message = readMessageType(input);
         message.deserialize(input);
         this.message = message;
     }
 
+    /**
+     * Decode as much of a message as has been received into the buffer.  This
+     * is called repeatedly as data arrives, and consumes the decoded bytes from
+     * the buffer.  The message header is only decoded once.  Streaming messages
+     * are decoded a part at a time (and so the parts received may be taken
+     * before the message is complete, see {@link #takePartialMessage()}); all
+     * other messages are decoded once all of their data is here.
+     * 
+     * Any bytes that follow the message (e.g. file data) are left in the buffer.
+     * 
+     * @param buffer
+     * @return True if the message is completely decoded, false if not.
+     * @throws IOException
+     */
+    public boolean deserializeAvailable(InputBuffer buffer) throws IOException {
+        if (this.message != null) {
+            return true;
+        }
+        if (this.pendingMessage == null && !deserializeHeader(buffer)) {
+            return false;
+        }
+
+        if (isStreaming(this.pendingMessage)) {
+            deserializeParts((StreamingDataMessage) this.pendingMessage, buffer);
+        } else if (buffer.size() >= this.bytesLeft) {
+            deserializeRemaining(buffer.slice(this.bytesLeft));
+            buffer.consume();
+        }
+        return this.message != null;
+    }
+
+    /**
+     * Decode the rest of a message (after the header) from a stream that holds all of
+     * the remaining message data.  This is used for messages that are held somewhere
+     * other than the buffer passed to deserializeAvailable (e.g. spilled to disk).
+     * 
+     * @param input
+     * @throws IOException
+     */
+    public void deserializeRemaining(InputStream input) throws IOException {
+        try {
+            this.pendingMessage.deserialize(input);
+        } catch (MessageNotCompleteException e) {
+            throw new IOException("Message data is incomplete", e);
+        }
+        this.bytesLeft = 0;
+        this.message   = this.pendingMessage;
+    }
+
+    /**
+     * @return The number of message bytes not yet decoded, or -1 if the message
+     * header has not been decoded yet (see deserializeAvailable).
+     */
+    public int getBytesLeft() {
+        return this.pendingMessage != null ? this.bytesLeft : -1;
+    }
+
+    /**
+     * @return True if the message being received is decoded a part at a time
+     * (see {@link StreamingDataMessage}).
+     */
+    public boolean isStreaming() {
+        return isStreaming(this.pendingMessage);
+    }
+
+    /**
+     * Decode the message header (length, version and message type), once
+     * it is all in the buffer.
+     * 
+     * @param buffer
+     * @return True if the header is decoded, false if not.
+     * @throws IOException
+     */
+    private boolean deserializeHeader(InputBuffer buffer) throws IOException {
+        if (buffer.size() < SIZEOF_INTEGER + SIZEOF_INTEGER) {
+            return false;
+        }
+        InputStream input = buffer.getInputStream();
+        this.length = readInteger(input);
+        int version = readInteger(input);
+        //the class name is not length prefixed, so messages identified by class name
+        // are decoded once all of their data is here
+        int headerLength = SIZEOF_INTEGER + (version <= VERSION_CLASS_NAME ? this.length : SIZEOF_INTEGER);
+        if (buffer.size() < headerLength) {
+            return false;
+        }
+        //read the header again, from the version on
+        buffer.consume(SIZEOF_INTEGER);
+        int sizeBefore = buffer.size();
+        this.pendingMessage = readMessageType(buffer.getInputStream());
+        buffer.consume();
+        this.bytesLeft = this.length - (sizeBefore - buffer.size());
+        if (this.bytesLeft < 0) {
+            throw new IOException("Message length is invalid: " + this.length);
+        }
+        return true;
+    }
+
+    /**
+     * Decode as many parts of a streaming message as are in the buffer.
+     * 
+     * @param message
+     * @param buffer
+     * @throws IOException
+     */
+    private void deserializeParts(StreamingDataMessage message, InputBuffer buffer) throws IOException {
+        InputBuffer.Slice slice = buffer.slice(Math.min(buffer.size(), this.bytesLeft));
+        int decoded = 0;
+        boolean complete = false;
+        try {
+            while (!complete) {
+                complete = message.deserializeNext(slice);
+                decoded  = slice.length() - slice.available();
+            }
+        } catch (EOFException e) {
+            //the rest of the part is not here yet...it will be decoded again when more data arrives
+            if (slice.length() == this.bytesLeft) {
+                throw new IOException("Message data is incomplete", e);
+            }
+        }
+        buffer.consume(decoded);
+        this.bytesLeft -= decoded;
+        if (complete) {
+            if (this.bytesLeft != 0) {
+                throw new IOException("Message has " + this.bytesLeft + " unread bytes");
+            }
+            this.message = message;
+        }
+    }
+
+    /**
+     * Take a message that holds the parts of a streaming message decoded since
+     * the last call, so they may be used before the whole message arrives.
+     * 
+     * @return The partial message, or null if there is nothing new.
+     */
+    public IMessage takePartialMessage() {
+        if (this.message == null && isStreaming(this.pendingMessage)) {
+            return ((StreamingDataMessage) this.pendingMessage).takePartialMessage();
+        }
+        return null;
+    }
+
+    private boolean isStreaming(IMessage message) {
+        return message instanceof StreamingDataMessage && ((StreamingDataMessage) message).isStreaming();
+    }
+
+    /**
+     * Read the messenger version and message type, and create the message.
+     * 
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    private IMessage readMessageType(InputStream input) throws IOException {
+        this.version = readInteger(input);
+
+        IMessage message;
+        //NOTE: the first release always wrote VERSION_CLASS_NAME here (and never checked
+        // the version it read), so that version sends the class name
+        if (this.version <= VERSION_CLASS_NAME) {
+            byte[] classBytes = readBytesUntil(input, END_OF_CLASS_CHAR);
+            //REVIEW: character encoding issues may arise, but since we're controlling the class names
+            // we should be able to decide how to handle these
+            String messageName = new String(classBytes);
+    
+            message = instantiateMessage(messageName);
+        } else if (this.version <= MESSENGER_VERSION) {
+            message = instantiateMessage(readInteger(input));
+        } else {
+            if (LogUtil.isLogAvailable()) {
+                Log.wtf(TAG, "Received message with unsupported messenger version " + this.version);
+            }
+            throw new RuntimeException("Unsupported messenger version " + this.version + "...this is a critical error.");
+        }
+        if (message instanceof ADataMessage) {
+            ((ADataMessage) message).setVersion(this.version);
+        }
+        return message;
+    }
+
+    /**
+     * Serialize the message data for the messenger version.
+     * 
+     * @param version
+     * @param output
+     * @throws IOException
+     */
+    private void serializeMessage(int version, OutputStream output) throws IOException {
+        if (message instanceof ADataMessage) {
+            //NOTE: the same message may be sent to several connections, using different versions
+            synchronized (message) {
+                ((ADataMessage) message).setVersion(version);
+                message.serialize(output);
+            }
+        } else {
+            message.serialize(output);
+        }
+    }
+
     @Override
     public void serialize(OutputStream output) throws IOException {
+        //unregistered messages must be sent with the class name, and registered messages
+        // may only be sent with a version we support
+        int typeId = MessageRegistry.getTypeId(message);
+        int sendVersion = typeId != MessageRegistry.UNREGISTERED
+                ? Math.min(this.version, MESSENGER_VERSION) : VERSION_CLASS_NAME;
+
         //serialize the message into a separate buffer
         ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream();
-        message.serialize(messageBuffer);
+        serializeMessage(sendVersion, messageBuffer);
         
         //build the output message
-        byte[] classBytes = message.getClass().getCanonicalName().getBytes();
-        //write the length
-        writeInteger(messageBuffer.size() + classBytes.length + SIZEOF_INTEGER + 1, output);
-        writeInteger(MESSENGER_VERSION, output);
-        //write the class name and end of class char
-        // (this is used to reconstruct the message on the remote side)
-        writeBytes(classBytes, output);
-        writeBytes(new byte[] {END_OF_CLASS_CHAR}, output);
+        if (sendVersion >= VERSION_TYPE_ID) {
+            //write the length
+            writeInteger(messageBuffer.size() + SIZEOF_INTEGER + SIZEOF_INTEGER, output);
+            writeInteger(sendVersion, output);
+            //write the type id
+            // (this is used to reconstruct the message on the remote side)
+            writeInteger(typeId, output);
+        } else {
+            byte[] classBytes = message.getClass().getCanonicalName().getBytes();
+            //write the length
+            writeInteger(messageBuffer.size() + classBytes.length + SIZEOF_INTEGER + 1, output);
+            writeInteger(VERSION_CLASS_NAME, output);
+            //write the class name and end of class char
+            // (this is used to reconstruct the message on the remote side)
+            writeBytes(classBytes, output);
+            writeBytes(new byte[] {END_OF_CLASS_CHAR}, output);
+        }
         //write the message
-        writeBytes(messageBuffer.toByteArray(), output);        
+        messageBuffer.writeTo(output);
     }
     
     /**
@@ -116,6 +414,25 @@ public class MessageFormat extends AComplexDataType implements ISerializable {
         return message;
     }
 
+    /**
+     * @return the messenger version this message was sent with
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param typeId
+     * @return
+     */
+    private IMessage instantiateMessage(int typeId) {
+        try {
+            return MessageRegistry.newMessage(typeId);
+        } catch (Exception ex) {
+            throw new RuntimeException("Unable to instantiate message...this is a critical error.", ex);
+        }
+    }
+
     /**
      * @param messageName
      * @return 
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+
+/**
+ * A registry of message types sent by Sound Stream.  Each message type is
+ * assigned a small numeric id, which is sent in place of the class name (see
+ * MessageFormat), and a factory used to create new messages of that type
+ * when they are received.
+ * 
+ * NOTE: these ids are part of the wire protocol.  New messages must be added
+ * with new ids, and existing ids must never be changed or reused.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class MessageRegistry {
+
+    /**
+     * Creates new, empty messages to deserialize into.
+     * 
+     */
+    public interface MessageFactory {
+        public IMessage newMessage();
+    }
+
+    public static final int UNREGISTERED = -1;
+
+    private static final Map<Class<? extends IMessage>, Integer> typeIds = new HashMap<Class<? extends IMessage>, Integer>();
+    //NOTE: implemented as a map, not a SparseArray, so our unit tests will run
+    @SuppressLint("UseSparseArrays")
+    private static final Map<Integer, MessageFactory> factories = new HashMap<Integer, MessageFactory>();
+
+    static {
+        register(1, ConnectionSettingsMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new ConnectionSettingsMessage();
+            }
+        });
+        register(2, AddToPlaylistMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new AddToPlaylistMessage();
+            }
+        });
+        register(3, BumpSongOnPlaylistMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new BumpSongOnPlaylistMessage();
+            }
+        });
+        register(4, CancelSongMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new CancelSongMessage();
+            }
+        });
+        register(5, ConnectGuestsMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new ConnectGuestsMessage();
+            }
+        });
+        register(6, FindNewGuestsMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new FindNewGuestsMessage();
+            }
+        });
+        register(7, FoundGuestsMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new FoundGuestsMessage();
+            }
+        });
+        register(8, LibraryMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new LibraryMessage();
+            }
+        });
+        register(9, PauseMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new PauseMessage();
+            }
+        });
+        register(10, PlayMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new PlayMessage();
+            }
+        });
+        register(11, PlayStatusMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new PlayStatusMessage();
+            }
+        });
+        register(12, PlaylistMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new PlaylistMessage();
+            }
+        });
+        register(13, RemoveFromPlaylistMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new RemoveFromPlaylistMessage();
+            }
+        });
+        register(14, RequestSongMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new RequestSongMessage();
+            }
+        });
+        register(15, SkipMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new SkipMessage();
+            }
+        });
+        register(16, SongStatusMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new SongStatusMessage();
+            }
+        });
+        register(17, TransferSongMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new TransferSongMessage();
+            }
+        });
+        register(18, UserListMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new UserListMessage();
+            }
+        });
+        register(19, RequestPlaylistMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new RequestPlaylistMessage();
+            }
+        });
+        register(20, RequestLibraryMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new RequestLibraryMessage();
+            }
+        });
+        register(21, SearchLibraryMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new SearchLibraryMessage();
+            }
+        });
+        register(22, SearchResultsMessage.class, new MessageFactory() {
+            @Override
+            public IMessage newMessage() {
+                return new SearchResultsMessage();
+            }
+        });
+    }
+
+    private MessageRegistry() {
+        //static registry
+    }
+
+    private static void register(int typeId, Class<? extends IMessage> messageClass, MessageFactory factory) {
+        if (factories.containsKey(typeId)) {
+            throw new IllegalStateException("Message type id " + typeId + " is already registered");
+        }
+        typeIds.put(messageClass, typeId);
+        factories.put(typeId, factory);
+    }
+
+    /**
+     * Get the type id for a message.
+     * 
+     * @param message
+     * @return The type id, or UNREGISTERED if the message type is not in the registry.
+     */
+    public static int getTypeId(IMessage message) {
+        Integer typeId = typeIds.get(message.getClass());
+        return typeId != null ? typeId : UNREGISTERED;
+    }
+
+    /**
+     * Create a new message for a type id.
+     * 
+     * @param typeId
+     * @return
+     * @throws IllegalArgumentException If the type id is not registered.
+     */
+    public static IMessage newMessage(int typeId) {
+        MessageFactory factory = factories.get(typeId);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown message type id: " + typeId);
+        }
+        return factory.newMessage();
+    }
+}
@@ -23,7 +23,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-public class PlayStatusMessage extends APlaylistEntryMessage {
+/**
+ * A message from the host to its guests, with the song that is playing and
+ * whether it is playing or paused.  There is only one current song, so a newer
+ * status supersedes any older status that has not been sent yet.
+ * 
+ */
+public class PlayStatusMessage extends APlaylistEntryMessage implements ISupersedableMessage {
 
     @SuppressWarnings("unused")
     private final String TAG = PlayStatusMessage.class.getSimpleName();
@@ -54,4 +60,14 @@ public class PlayStatusMessage extends APlaylistEntryMessage {
     public void setPlaying(boolean isPlaying){
         this.playing = isPlaying;
     }
+
+    @Override
+    public Object getSupersedeKey() {
+        return PlayStatusMessage.class;
+    }
+
+    @Override
+    public ISupersedableMessage supersede(ISupersedableMessage older) {
+        return this;
+    }
 }
@@ -26,13 +26,38 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
 
-public class PlaylistMessage extends ADataMessage {
+/**
+ * A message from the host to its guests, with the contents of the playlist.
+ * 
+ * As of {@link MessageFormat#VERSION_PLAYLIST_CHANGES}, this message carries the playlist
+ * version, and may carry just the operations that changed the playlist since the last
+ * version instead of the whole playlist.  Older guests do not understand operations, so
+ * a message with operations also holds the whole playlist, which is sent instead to those
+ * guests.
+ * 
+ * A newer playlist message supersedes an older one that has not been sent yet: the
+ * operations of both are combined if they follow on from each other, otherwise the
+ * whole playlist is sent.
+ * 
+ */
+public class PlaylistMessage extends ADataMessage implements ISupersedableMessage {
     @SuppressWarnings("unused")
     private final String TAG = PlaylistMessage.class.getName();
-	
+
+    /**
+     * The playlist version of messages from hosts that do not send versions.
+     */
+    public static final int UNKNOWN_VERSION = -1;
+
     private ArrayList<PlaylistEntry> songsToPlay = new ArrayList<PlaylistEntry>();
 
+    private int playlistVersion = UNKNOWN_VERSION;
+
+    //null if this message holds the whole playlist
+    private ArrayList<PlaylistOperation> operations;
+
     /**
      * Default constructor, required for Messenger.  All other users should use
      * the other constructor.
@@ -43,9 +68,39 @@ public class PlaylistMessage extends ADataMessage {
     public PlaylistMessage(List<? extends PlaylistEntry> songsToPlay) {
         this.songsToPlay = new ArrayList<PlaylistEntry>(songsToPlay);
     }
+
+    /**
+     * Create a message with the whole playlist.
+     * 
+     * @param playlistVersion
+     * @param songsToPlay
+     */
+    public PlaylistMessage(int playlistVersion, List<? extends PlaylistEntry> songsToPlay) {
+        this(songsToPlay);
+        this.playlistVersion = playlistVersion;
+    }
+
+    /**
+     * Create a message with the operations that changed the playlist.
+     * 
+     * @param playlistVersion The version of the playlist after the operations.
+     * @param operations
+     * @param songsToPlay The whole playlist, sent to guests that do not understand operations.
+     */
+    public PlaylistMessage(int playlistVersion, List<PlaylistOperation> operations, List<? extends PlaylistEntry> songsToPlay) {
+        this(playlistVersion, songsToPlay);
+        this.operations = new ArrayList<PlaylistOperation>(operations);
+    }
 	
 	@Override
 	public void deserialize(InputStream input) throws IOException {
+	    if (getVersion() >= MessageFormat.VERSION_PLAYLIST_CHANGES) {
+	        playlistVersion = readInteger(input);
+	        if (readBoolean(input)) {
+	            operations = readOperations(input);
+	            return;
+	        }
+	    }
 	    int playlistSize = readInteger(input);
 	    for(int i = 0; i < playlistSize; i++) {
 	        PlaylistEntry entry = readPlaylistEntry(input);
@@ -55,6 +110,14 @@ public class PlaylistMessage extends ADataMessage {
 	
 	@Override
     public void serialize(OutputStream output) throws IOException {
+	    if (getVersion() >= MessageFormat.VERSION_PLAYLIST_CHANGES) {
+	        writeInteger(playlistVersion, output);
+	        writeBoolean(operations != null, output);
+	        if (operations != null) {
+	            writeOperations(operations, output);
+	            return;
+	        }
+	    }
 	    writeInteger(songsToPlay.size(), output);
 		
 	    for(PlaylistEntry entry: songsToPlay) {
@@ -62,8 +125,140 @@ public class PlaylistMessage extends ADataMessage {
 	    }
 	}
 
+	private void writeOperations(List<PlaylistOperation> operations, OutputStream output) throws IOException {
+	    writeInteger(operations.size(), output);
+	    for (PlaylistOperation operation : operations) {
+	        writeInteger(operation.getType(), output);
+	        PlaylistEntry entry = operation.getEntry();
+	        switch (operation.getType()) {
+	        case PlaylistOperation.INSERT:
+	            writePlaylistEntry(entry, output);
+	            writeInteger(operation.getPosition(), output);
+	            break;
+	        case PlaylistOperation.REMOVE:
+	            writeEntryKey(entry, output);
+	            break;
+	        case PlaylistOperation.MOVE:
+	            writeEntryKey(entry, output);
+	            writeInteger(operation.getPosition(), output);
+	            break;
+	        case PlaylistOperation.STATUS:
+	            writeEntryKey(entry, output);
+	            writeBoolean(operation.isLoaded(), output);
+	            writeBoolean(operation.isPlayed(), output);
+	            break;
+	        }
+	    }
+	}
+
+	private ArrayList<PlaylistOperation> readOperations(InputStream input) throws IOException {
+	    int count = readInteger(input);
+	    ArrayList<PlaylistOperation> operations = new ArrayList<PlaylistOperation>(count);
+	    for (int i = 0; i < count; i++) {
+	        int type = readInteger(input);
+	        PlaylistEntry entry;
+	        int position   = 0;
+	        boolean loaded = false;
+	        boolean played = false;
+	        switch (type) {
+	        case PlaylistOperation.INSERT:
+	            entry    = readPlaylistEntry(input);
+	            position = readInteger(input);
+	            break;
+	        case PlaylistOperation.REMOVE:
+	            entry    = readEntryKey(input);
+	            break;
+	        case PlaylistOperation.MOVE:
+	            entry    = readEntryKey(input);
+	            position = readInteger(input);
+	            break;
+	        case PlaylistOperation.STATUS:
+	            entry    = readEntryKey(input);
+	            loaded   = readBoolean(input);
+	            played   = readBoolean(input);
+	            break;
+	        default:
+	            throw new IOException("Unknown playlist operation: " + type);
+	        }
+	        operations.add(new PlaylistOperation(type, entry, position, loaded, played));
+	    }
+	    return operations;
+	}
+
+	private void writeEntryKey(PlaylistEntry entry, OutputStream output) throws IOException {
+	    writeString( entry.getMacAddress(), output);
+	    writeLong(   entry.getId(),         output);
+	    writeInteger(entry.getEntryId(),    output);
+	}
+
+	private PlaylistEntry readEntryKey(InputStream input) throws IOException {
+	    PlaylistEntry entry = new PlaylistEntry();
+	    entry.setMacAddress(readString(input));
+	    entry.setId(        readLong(input));
+	    entry.setEntryId(   readInteger(input));
+	    return entry;
+	}
+
     //This is because you can pass an ArrayList of parseables but not a List
 	public ArrayList<PlaylistEntry> getSongsToPlay() {
         return songsToPlay;
     }
+
+    /**
+     * @return The version of the playlist, after any operations in this message are
+     * applied, or UNKNOWN_VERSION if the host does not send versions.
+     */
+    public int getPlaylistVersion() {
+        return playlistVersion;
+    }
+
+    /**
+     * @return True if this message holds the operations that changed the playlist,
+     * false if it holds the whole playlist.
+     */
+    public boolean hasOperations() {
+        return operations != null;
+    }
+
+    /**
+     * @return The version of the playlist that the operations in this message
+     * were made to.
+     */
+    public int getBaseVersion() {
+        return playlistVersion - (operations != null ? operations.size() : 0);
+    }
+
+    //This is because you can pass an ArrayList of parseables but not a List
+    public ArrayList<PlaylistOperation> getOperations() {
+        return operations;
+    }
+
+    @Override
+    public Object getSupersedeKey() {
+        return PlaylistMessage.class;
+    }
+
+    @Override
+    public ISupersedableMessage supersede(ISupersedableMessage older) {
+        PlaylistMessage olderPlaylist = (PlaylistMessage) older;
+        if (playlistVersion == UNKNOWN_VERSION || olderPlaylist.playlistVersion == UNKNOWN_VERSION) {
+            //without versions, only the whole playlist can replace an older message
+            return operations == null ? this : null;
+        }
+        if (olderPlaylist.playlistVersion > playlistVersion) {
+            //out of order...send both, and let the receiver sort it out
+            return null;
+        }
+        if (operations == null) {
+            return this;
+        }
+        if (olderPlaylist.operations != null && olderPlaylist.playlistVersion == getBaseVersion()) {
+            List<PlaylistOperation> combined = new ArrayList<PlaylistOperation>(olderPlaylist.operations);
+            combined.addAll(operations);
+            return new PlaylistMessage(playlistVersion, combined, songsToPlay);
+        }
+        //the operations don't follow on from the older message, but songsToPlay holds
+        // the whole playlist at this version
+        return new PlaylistMessage(playlistVersion, songsToPlay);
+    }
 }
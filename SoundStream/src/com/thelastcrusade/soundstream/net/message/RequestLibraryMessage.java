@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request from a guest to the host, for the changes to the library since
+ * the versions the guest has.  This is sent when the guest receives library
+ * changes that it cannot apply, because it is missing earlier changes (see
+ * LibraryMessage).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class RequestLibraryMessage extends ADataMessage {
+
+    //library version the guest has, by source mac address
+    private Map<String, Integer> versions = new HashMap<String, Integer>();
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    public RequestLibraryMessage() {
+    }
+
+    /**
+     * @param versions The library version the guest has for each source it needs
+     * changes for, by source mac address.
+     */
+    public RequestLibraryMessage(Map<String, Integer> versions) {
+        this.versions.putAll(versions);
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        int count = readInteger(input);
+        for (int i = 0; i < count; i++) {
+            String macAddress = readString(input);
+            this.versions.put(macAddress, readInteger(input));
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeInteger(this.versions.size(), output);
+        for (Map.Entry<String, Integer> entry : this.versions.entrySet()) {
+            writeString( entry.getKey(),   output);
+            writeInteger(entry.getValue(), output);
+        }
+    }
+
+    public Map<String, Integer> getVersions() {
+        return versions;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request from a guest to the host, for the whole playlist.  This is sent
+ * when the guest receives changes to the playlist that it cannot apply,
+ * because it is missing earlier changes (see PlaylistMessage).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class RequestPlaylistMessage extends ADataMessage {
+
+    private int playlistVersion;
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    public RequestPlaylistMessage() {
+    }
+
+    /**
+     * @param playlistVersion The version of the playlist the guest has.
+     */
+    public RequestPlaylistMessage(int playlistVersion) {
+        this.playlistVersion = playlistVersion;
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.playlistVersion = readInteger(input);
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeInteger(this.playlistVersion, output);
+    }
+
+    public int getPlaylistVersion() {
+        return playlistVersion;
+    }
+}
@@ -23,9 +23,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+/**
+ * A request for song data.
+ * 
+ * Since {@link MessageFormat#VERSION_RESUMABLE_TRANSFER}, the request may name a
+ * partial file to receive the song into, and the range of the song to send, so an
+ * interrupted transfer can be resumed (see TransferSongMessage).  Older peers ignore
+ * the range, and send the whole song.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
 public class RequestSongMessage extends ADataMessage {
 
+    /**
+     * Length to request the rest of the song, from the offset.
+     */
+    public static final int TO_END = -1;
+
     private long songId;
+
+    //null if the song is not received into a partial file
+    private String partialFileName;
+    private int    offset;
+    private int    length = TO_END;
     
     /**
      * Default constructor, required for Messenger.  All other users should use
@@ -39,17 +60,61 @@ public class RequestSongMessage extends ADataMessage {
         this.songId = songId;
     }
 
+    /**
+     * Request part of a song, sent in chunks into a partial file.
+     * 
+     * @param songId
+     * @param partialFileName The name of the partial file to receive the song into
+     * @param offset The offset of the first byte to send
+     * @param length The number of bytes to send, or TO_END for the rest of the song
+     */
+    public RequestSongMessage(long songId, String partialFileName, int offset, int length) {
+        this.songId          = songId;
+        this.partialFileName = partialFileName;
+        this.offset          = offset;
+        this.length          = length;
+    }
+
     @Override
     public void deserialize(InputStream input) throws IOException {
         this.songId = readLong(input);
+        if (getVersion() >= MessageFormat.VERSION_RESUMABLE_TRANSFER) {
+            this.partialFileName = readString(input);
+            this.offset          = readInteger(input);
+            this.length          = readInteger(input);
+        }
     }
 
     @Override
     public void serialize(OutputStream output) throws IOException {
         writeLong(this.songId, output);
+        if (getVersion() >= MessageFormat.VERSION_RESUMABLE_TRANSFER) {
+            writeString( this.partialFileName, output);
+            writeInteger(this.offset,          output);
+            writeInteger(this.length,          output);
+        }
     }
 
     public long getSongId() {
         return songId;
     }
+
+    /**
+     * @return The name of the partial file to receive the song into, or null to
+     * send the whole song without chunks.
+     */
+    public String getPartialFileName() {
+        return partialFileName;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The number of bytes to send, or TO_END.
+     */
+    public int getLength() {
+        return length;
+    }
 }
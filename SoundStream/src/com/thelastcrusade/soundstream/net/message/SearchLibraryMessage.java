@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request from a guest to the host, for a page of the songs in the library
+ * that match a query.  This is sent by guests that browse the library remotely,
+ * instead of keeping a copy of it.  The host answers with a SearchResultsMessage.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class SearchLibraryMessage extends ADataMessage {
+
+    private int    requestId;
+    private String query;
+    private int    offset;
+    private int    count;
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    public SearchLibraryMessage() {
+    }
+
+    /**
+     * @param requestId An id for the request, returned in the results.
+     * @param query The query to match, or null to browse the whole library.
+     * @param offset The index of the first matching song to return.
+     * @param count The most songs to return.
+     */
+    public SearchLibraryMessage(int requestId, String query, int offset, int count) {
+        this.requestId = requestId;
+        this.query     = query;
+        this.offset    = offset;
+        this.count     = count;
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.requestId = readInteger(input);
+        this.query     = readString(input);
+        this.offset    = readInteger(input);
+        this.count     = readInteger(input);
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeInteger(this.requestId, output);
+        writeString( this.query,     output);
+        writeInteger(this.offset,    output);
+        writeInteger(this.count,     output);
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
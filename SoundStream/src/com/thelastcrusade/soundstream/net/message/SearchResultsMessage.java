@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.thelastcrusade.soundstream.model.SongMetadata;
+
+/**
+ * A page of the songs in the library that match a query, sent by the host
+ * in response to a SearchLibraryMessage.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class SearchResultsMessage extends ADataMessage {
+
+    private int requestId;
+    private int offset;
+    private int totalCount;
+    private ArrayList<SongMetadata> songs = new ArrayList<SongMetadata>();
+
+    /**
+     * Default constructor, required for Messenger.  All other users should use
+     * the other constructor.
+     * 
+     */
+    public SearchResultsMessage() {
+    }
+
+    /**
+     * @param requestId The id of the request these results are for.
+     * @param offset The index of the first song in the results.
+     * @param totalCount The number of songs that match the query.
+     * @param songs The matching songs, starting at offset.
+     */
+    public SearchResultsMessage(int requestId, int offset, int totalCount, List<SongMetadata> songs) {
+        this.requestId  = requestId;
+        this.offset     = offset;
+        this.totalCount = totalCount;
+        this.songs.addAll(songs);
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        this.requestId  = readInteger(input);
+        this.offset     = readInteger(input);
+        this.totalCount = readInteger(input);
+        int size = readInteger(input);
+        if (size < 0) {
+            throw new IOException("Invalid number of results " + size);
+        }
+        this.songs.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            this.songs.add(readSongMetadata(input));
+        }
+    }
+
+    @Override
+    public void serialize(OutputStream output) throws IOException {
+        writeInteger(this.requestId,  output);
+        writeInteger(this.offset,     output);
+        writeInteger(this.totalCount, output);
+        writeInteger(this.songs.size(), output);
+        for (SongMetadata song : this.songs) {
+            writeSongMetadata(song, output);
+        }
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public ArrayList<SongMetadata> getSongs() {
+        return songs;
+    }
+}
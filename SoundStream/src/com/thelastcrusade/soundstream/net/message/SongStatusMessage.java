@@ -23,7 +23,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-public class SongStatusMessage extends APlaylistEntryMessage {
+/**
+ * A message from the host to its guests, with the status of a song on the
+ * playlist.  A newer status of the same entry supersedes an older status
+ * that has not been sent yet.
+ * 
+ */
+public class SongStatusMessage extends APlaylistEntryMessage implements ISupersedableMessage {
 
     private boolean loaded;
     private boolean played;
@@ -59,4 +65,14 @@ public class SongStatusMessage extends APlaylistEntryMessage {
     public boolean isPlayed() {
         return played;
     }
+
+    @Override
+    public Object getSupersedeKey() {
+        return getMacAddress() + ":" + getId() + ":" + getEntryId();
+    }
+
+    @Override
+    public ISupersedableMessage supersede(ISupersedableMessage older) {
+        return this;
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thelastcrusade.soundstream.net.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A data message that may be decoded a part at a time, as its data arrives.
+ * This lets large messages be used before they are completely received
+ * (see {@link MessageFormat#deserializeAvailable(com.thelastcrusade.soundstream.util.InputBuffer)}).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public abstract class StreamingDataMessage extends ADataMessage {
+
+    /**
+     * Some versions of a message may only be decoded all at once.
+     * 
+     * @return True if this message can be decoded a part at a time, with the
+     * messenger version it is read with.
+     */
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void deserialize(InputStream input) throws IOException {
+        while (!deserializeNext(input)) {
+            //keep going until the whole message is read
+        }
+    }
+
+    /**
+     * Decode the next part of the message.  This is called with the
+     * message data received so far.  If the data runs out before the part is
+     * decoded, reads will throw an EOFException, and the whole part will be
+     * decoded again when more data arrives, so a part must not change the
+     * message until it is completely read.
+     * 
+     * @param input
+     * @return True if the message is completely decoded, false if there are more parts.
+     * @throws IOException
+     */
+    public abstract boolean deserializeNext(InputStream input) throws IOException;
+
+    /**
+     * Take a message that holds the parts decoded since the last call, so they
+     * may be used before the whole message arrives.
+     * 
+     * @return The partial message, or null if there is nothing new.
+     */
+    public abstract IMessage takePartialMessage();
+}
@@ -23,12 +23,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-public class TransferSongMessage extends ADataMessage implements IFileMessage {
+/**
+ * Song data sent in response to a RequestSongMessage.
+ * 
+ * Since {@link MessageFormat#VERSION_RESUMABLE_TRANSFER}, the song may be sent in
+ * chunks: the message carries the manifest of the whole file and the range of the
+ * file it holds, and the receiver writes the data into the partial file it named
+ * in the request (see IResumableFileMessage).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class TransferSongMessage extends ADataMessage implements IResumableFileMessage {
 
     private long   songId;
     private String songFileName;
     private String filePath;
 
+    //null if the whole song is sent without chunks
+    private FileManifest manifest;
+    private String       partialFileName;
+    private int          fileOffset;
+    private int          dataLength;
+
+    //set by the receiver, and not sent
+    private boolean      manifestRejected;
+
     /**
      * Default constructor, required for Messenger.  All other users should use
      * the other constructor.
@@ -43,16 +63,68 @@ public class TransferSongMessage extends ADataMessage implements IFileMessage {
         this.filePath     = filePath;
     }
 
+    /**
+     * Create a message with part of a song, sent in chunks.
+     * 
+     * @param songId
+     * @param songFileName
+     * @param filePath
+     * @param manifest The manifest of the whole song file
+     * @param partialFileName The partial file named by the receiver in its request
+     * @param fileOffset The offset of the data to send (must be at the start of a chunk)
+     * @param dataLength The number of bytes to send
+     */
+    public TransferSongMessage(long songId, String songFileName, String filePath,
+            FileManifest manifest, String partialFileName, int fileOffset, int dataLength) {
+        this(songId, songFileName, filePath);
+        this.manifest        = manifest;
+        this.partialFileName = partialFileName;
+        this.fileOffset      = fileOffset;
+        this.dataLength      = dataLength;
+    }
+
     @Override
     public void deserialize(InputStream input) throws IOException {
         this.songId       = super.readLong(input);
         this.songFileName = super.readString(input);
+        if (getVersion() >= MessageFormat.VERSION_RESUMABLE_TRANSFER && readBoolean(input)) {
+            this.partialFileName = readString(input);
+            this.fileOffset      = readInteger(input);
+            this.dataLength      = readInteger(input);
+            int fileLength = readInteger(input);
+            int chunkSize  = readInteger(input);
+            int chunkCount = readInteger(input);
+            if (fileLength < 0 || chunkSize <= 0
+                    || chunkCount != (int) (((long) fileLength + chunkSize - 1) / chunkSize)) {
+                throw new IOException("Invalid file manifest: " + chunkCount + " chunks of " + chunkSize
+                        + " bytes for a " + fileLength + " byte file");
+            }
+            int[] crcs = new int[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                crcs[i] = readInteger(input);
+            }
+            this.manifest = new FileManifest(fileLength, chunkSize, crcs);
+        }
     }
 
     @Override
     public void serialize(OutputStream output) throws IOException {
         super.writeLong(  this.songId, output);
         super.writeString(this.songFileName, output);
+        if (getVersion() >= MessageFormat.VERSION_RESUMABLE_TRANSFER) {
+            writeBoolean(this.manifest != null, output);
+            if (this.manifest != null) {
+                writeString( this.partialFileName,           output);
+                writeInteger(this.fileOffset,                output);
+                writeInteger(this.dataLength,                output);
+                writeInteger(this.manifest.getFileLength(),  output);
+                writeInteger(this.manifest.getChunkSize(),   output);
+                writeInteger(this.manifest.getChunkCount(),  output);
+                for (int crc : this.manifest.getCrcs()) {
+                    writeInteger(crc, output);
+                }
+            }
+        }
     }
     
     @Override
@@ -71,5 +143,39 @@ public class TransferSongMessage extends ADataMessage implements IFileMessage {
     public String getSongFileName() {
         return songFileName;
     }
-    
+
+    /**
+     * @return The manifest of the whole song, or null if the whole song is sent.  The
+     * whole song is also sent when this message is written for an older messenger version,
+     * since older peers do not know about chunks.
+     */
+    @Override
+    public FileManifest getManifest() {
+        return getVersion() >= MessageFormat.VERSION_RESUMABLE_TRANSFER ? manifest : null;
+    }
+
+    @Override
+    public String getPartialFileName() {
+        return partialFileName;
+    }
+
+    @Override
+    public int getFileOffset() {
+        return fileOffset;
+    }
+
+    @Override
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    @Override
+    public boolean isManifestRejected() {
+        return manifestRejected;
+    }
+
+    @Override
+    public void setManifestRejected(boolean manifestRejected) {
+        this.manifestRejected = manifestRejected;
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The progress of a file being received in chunks, so the file can be read
+ * while it is still coming in (e.g. to start playing a song before the
+ * whole song arrives).
+ * 
+ * The progress is the number of bytes from the start of the file that are
+ * received and verified.  Readers may read up to that point, and can wait
+ * for more to arrive.
+ * 
+ * NOTE: the progress is looked up by the path of the file, since the
+ * FileReceiver that writes the file is created deep in the messenger.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class FileProgress {
+
+    private static final Map<String, FileProgress> receiving = new ConcurrentHashMap<String, FileProgress>();
+
+    private final String filePath;
+    private final int    fileLength;
+
+    //bytes from the start of the file that are received and verified
+    private int available;
+
+    //bytes received, and when the first bytes were received, to measure the transfer rate
+    private long bytesReceived;
+    private long startNanos;
+
+    private boolean removed;
+
+    private FileProgress(String filePath, int fileLength) {
+        this.filePath   = filePath;
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * Get the progress of a file being received.
+     * 
+     * @param filePath
+     * @return The progress, or null if the file is not being received.
+     */
+    public static FileProgress get(String filePath) {
+        return receiving.get(filePath);
+    }
+
+    /**
+     * Start (or continue) tracking the progress of a file.  A file may be received
+     * in several parts, and readers keep waiting on the same progress.
+     * 
+     * @param filePath
+     * @param fileLength
+     * @return
+     */
+    static synchronized FileProgress start(String filePath, int fileLength) {
+        FileProgress progress = receiving.get(filePath);
+        if (progress == null || progress.fileLength != fileLength) {
+            if (progress != null) {
+                progress.remove();
+            }
+            progress = new FileProgress(filePath, fileLength);
+            receiving.put(filePath, progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Stop tracking the progress of the file.  Any readers waiting for more of the
+     * file are woken up, and will find that no more is coming.
+     * 
+     */
+    public void remove() {
+        receiving.remove(this.filePath, this);
+        synchronized (this) {
+            this.removed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Update the progress of the file.
+     * 
+     * @param available The number of bytes from the start of the file that are received and verified.
+     */
+    synchronized void setAvailable(int available) {
+        if (available != this.available) {
+            this.available = available;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record bytes received, to measure the transfer rate.
+     * 
+     * @param count
+     */
+    synchronized void received(int count) {
+        if (this.startNanos == 0) {
+            this.startNanos = System.nanoTime();
+        }
+        this.bytesReceived += count;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public int getFileLength() {
+        return fileLength;
+    }
+
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    public synchronized boolean isComplete() {
+        return available == fileLength;
+    }
+
+    /**
+     * @return The measured transfer rate, in bytes per second, or 0 if not yet known.
+     */
+    public synchronized long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - this.startNanos;
+        if (this.startNanos == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return this.bytesReceived * 1000000000L / elapsed;
+    }
+
+    /**
+     * Wait until the file is available past a position.
+     * 
+     * @param position
+     * @param timeoutMillis How long to wait without any progress
+     * @return The number of bytes available from the start of the file, which may not be
+     * past the position if the wait timed out or the progress was removed.
+     * @throws InterruptedException
+     */
+    public synchronized int awaitAvailable(int position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int last = this.available;
+        while (this.available <= position && this.available < this.fileLength && !this.removed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            wait(wait);
+            if (this.available != last) {
+                //progress...reset the timeout
+                last = this.available;
+                deadline = System.currentTimeMillis() + timeoutMillis;
+            }
+        }
+        return this.available;
+    }
+
+    /**
+     * Test if the file can be read from the start at the given rate while it is still
+     * coming in, without catching up to the data that is not yet here.  This is true
+     * when the time to read what is already here covers the time the rest of the file
+     * will take to arrive, less the time to read it, with some margin.
+     * 
+     * @param readBytesPerSecond The rate the file will be read at (e.g. the song bitrate)
+     * @param minAvailable The least data to have before starting, to absorb hiccups in the transfer
+     * @return
+     */
+    public synchronized boolean canReadAt(long readBytesPerSecond, int minAvailable) {
+        if (isComplete()) {
+            return true;
+        }
+        long rate = getBytesPerSecond();
+        if (this.available < minAvailable || rate <= 0 || readBytesPerSecond <= 0) {
+            return false;
+        }
+        long left = this.fileLength - this.available;
+        double arriveSeconds = (double) left / rate;
+        double readSeconds   = (double) left / readBytesPerSecond;
+        double aheadSeconds  = (double) this.available / readBytesPerSecond;
+        //allow the transfer to run at half the measured rate
+        return aheadSeconds >= 2 * arriveSeconds - readSeconds;
+    }
+}
@@ -18,27 +18,50 @@
  */
 package com.thelastcrusade.soundstream.net.wire;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.UUID;
+import java.util.zip.CRC32;
 
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.net.core.AComplexDataType;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
 import com.thelastcrusade.soundstream.net.message.IFileMessage;
+import com.thelastcrusade.soundstream.net.message.IResumableFileMessage;
 import com.thelastcrusade.soundstream.util.LogUtil;
 
 /**
  * This class manages receiving files.  It is not a serializable object
  * (e.g. we do not expect the whole thing to be read in at once).
- * Instead, we will receive file data one chunk at a time and will
- * write that data immediately to a temporary file.
+ * Instead, we will receive file data one chunk at a time (as it is
+ * parsed off of the wire) and will write that data to a temporary file.
+ * 
+ * The file length is sent ahead of the file data, so the temporary file
+ * is preallocated to its full length, and each chunk is written straight
+ * to its offset in the file (through a memory mapped region for large
+ * files, or a positional FileChannel write otherwise).  No file data is
+ * buffered in memory, and the file is only synced once, when it is
+ * complete.
+ * 
+ * Resumable file messages that carry a manifest are written into a
+ * partial file named by the message, at the offset of the data in the
+ * message, and each chunk is checked against its CRC as it arrives.  The
+ * verified chunks are saved with the partial file (see PartialFile) when
+ * the receiver closes the file, even if the transfer is cut short, and
+ * the verified part of the file is published as a FileProgress, so the
+ * file can be read while it is coming in.  Several receivers (on different
+ * connections) may write disjoint parts of the same partial file at once.
+ * If the partial file is being received with a different manifest, the data
+ * is skipped, and the message is marked as rejected (see
+ * IResumableFileMessage#isManifestRejected()).
  * 
  * @author Jesse Rosalia
  * 
@@ -47,26 +70,59 @@ public class FileReceiver extends AComplexDataType {
 
     private static final String TAG = FileReceiver.class.getSimpleName();
 
+    /**
+     * Files at least this big (in bytes) are written through a memory mapped
+     * region.  Smaller files are not worth the cost of setting up the mapping.
+     * 
+     */
+    private static final int MIN_MAPPED_FILE_BYTES = 1024 * 1024;
+
+    /**
+     * Files bigger than this (in bytes) are not memory mapped, to avoid using up
+     * too much of the process address space.
+     * 
+     */
+    private static final int MAX_MAPPED_FILE_BYTES = 64 * 1024 * 1024;
+
     private IFileMessage message;
 
     private File tempFolder;
 
     private int fileBytesLeft;
 
-    private OutputStream fileStream;
-    
-    private ByteArrayOutputStream fileBuffer = new ByteArrayOutputStream();
+    private byte[] fileLength = new byte[SIZEOF_INTEGER];
 
-    private byte[] byteBuffer;
-    
-    /**
-     * Min size in bytes to read in before flushing to file. Used for the
-     * incoming buffer, to avoid frequent writes to disk
-     * 
-     */
-    private static final int MIN_BYTES_READ_IN = 102400;
+    private int fileLengthRead;
+
+    private boolean complete;
+
+    private RandomAccessFile file;
+
+    private FileChannel fileChannel;
+
+    private MappedByteBuffer mappedFile;
+
+    //position in the file to write the next chunk
+    private long filePosition;
+
+    //position in the file of the start of the mapped region
+    private long mappedPosition;
+
+    //the partial file, and the chunk being checked, for resumable file messages
+    private PartialFile  partialFile;
+    private FileProgress progress;
+    private CRC32        chunkCrc;
+    private int         chunkIndex;
+    private int         chunkBytes;
+
+    //true if the data is skipped, because the partial file has a different manifest
+    private boolean      rejected;
+
+    //measurements of the receive path
+    private int  writeCount;
+    private int  forceCount;
+    private long writeNanos;
 
-    private static final int READ_BUFFER_BYTES = 1024;
     /**
      * @param message
      * @param tempFolder
@@ -74,8 +130,6 @@ public class FileReceiver extends AComplexDataType {
     public FileReceiver(IFileMessage message, File tempFolder) {
         this.message = message;
         this.tempFolder = tempFolder;
-
-        this.byteBuffer = new byte[READ_BUFFER_BYTES];
     }
 
     /**
@@ -83,100 +137,306 @@ public class FileReceiver extends AComplexDataType {
      * @throws FileNotFoundException
      */
     public InputStream getInputStream() throws IOException {
-        return new FileInputStream(message.getFilePath());
+        FileInputStream input = new FileInputStream(message.getFilePath());
+        FileManifest manifest = getManifest();
+        if (manifest != null) {
+            //send just the data in the message
+            input.getChannel().position(((IResumableFileMessage) message).getFileOffset());
+        }
+        return input;
     }
 
     /**
-     * Receive bytes for the incoming file. This will read all available bytes
-     * on the input stream and write them to a temporary file, which will be
-     * specified in the file message.
+     * @return The number of bytes of file data to send.
+     * @throws IOException
+     */
+    public int getInputLength() throws IOException {
+        if (getManifest() != null) {
+            return ((IResumableFileMessage) message).getDataLength();
+        }
+        return (int) new File(message.getFilePath()).length();
+    }
+
+    private FileManifest getManifest() {
+        return message instanceof IResumableFileMessage
+                ? ((IResumableFileMessage) message).getManifest() : null;
+    }
+
+    /**
+     * Receive bytes for the incoming file. This will write the bytes to a
+     * temporary file, which will be specified in the file message.  The
+     * file data is preceded by the file length, which may be split across
+     * calls to receive.
      * 
-     * @param input
-     *            An input stream with bytes to write to this file. Note that
-     *            this assumes that the input stream only has bytes for this
-     *            file, and will consume all bytes available in the stream.
-     * @return
+     * @param bytes
+     *            Bytes to write to this file. Note that this assumes that
+     *            these bytes are only for this file.
+     * @param offset
+     * @param length
+     * @return True if the file is completely received, false if not
      * @throws IOException
      */
-    public boolean receive(InputStream input)
-            throws MessageNotCompleteException, IOException {
+    public boolean receive(byte[] bytes, int offset, int length)
+            throws IOException {
 
-        if (this.fileBytesLeft <= 0 && input.available() >= SIZEOF_INTEGER) {
-            this.fileBytesLeft = readInteger(input);
+        if (this.fileChannel == null && !this.rejected && !this.complete) {
+            //collect the file length...this may come in across several calls
+            int lengthBytes = Math.min(SIZEOF_INTEGER - this.fileLengthRead, length);
+            System.arraycopy(bytes, offset, this.fileLength, this.fileLengthRead, lengthBytes);
+            this.fileLengthRead += lengthBytes;
+            offset += lengthBytes;
+            length -= lengthBytes;
+            if (this.fileLengthRead < SIZEOF_INTEGER) {
+                return false;
+            }
+            this.fileBytesLeft = ByteBuffer.wrap(this.fileLength).getInt();
             // write the file data to a temporary file...this is so we don't
             // need to hold the data
             // in memory, and instead can just pass around a file path
-            openRandomInFile();
+            openRandomInFile(this.fileBytesLeft);
         }
 
-        //read all that is available, since the incoming stream should be only
-        // for this file
-        int read;
-        while ((read = input.read(byteBuffer)) > 0) {
-            fileBuffer.write(byteBuffer, 0, read);
-            //we've read the data in...decrement the bytes from
-            // the count of bytes left
-            this.fileBytesLeft -= read;
+        if (length > this.fileBytesLeft) {
+            throw new IOException("Received " + length + " bytes for a file with only " + this.fileBytesLeft + " bytes left");
         }
 
-        boolean readComplete = isFileComplete();
-        
-        if (isBufferFilled() || readComplete) {
-            flushBuffer();
+        //the incoming bytes should be only for this file...write them
+        // and decrement the bytes from the count of bytes left
+        if (length > 0) {
+            if (!this.rejected) {
+                writeChunk(bytes, offset, length);
+            }
+            this.fileBytesLeft -= length;
         }
 
+        boolean readComplete = isFileComplete();
+
         if (readComplete) {
-            closeInFile();
+            if (!this.rejected) {
+                closeInFile();
+            }
+            this.complete = true;
         }
         return readComplete;
     }
 
     /**
-     * Test to see if the buffer is filled.  Note that this only considers
-     * bytes in the buffer, not how many bytes are left to read.  You may
-     * also need to test if the file is complete, to flush the last bits
-     * of data to file.
-     * 
-     * @return
+     * @return True if the file is completely received, false if not
      */
-    private boolean isBufferFilled() {
-        int available = fileBuffer.size();
-        return available > 0 && available >= MIN_BYTES_READ_IN;
+    public boolean isComplete() {
+        return this.complete;
     }
 
-    private void flushBuffer() throws IOException {
-        if (LogUtil.isLogAvailable()) {
-            Log.d(TAG, "Writing " + fileBuffer.size() + " bytes to incoming file (" + this.fileBytesLeft + " bytes left)");
+    /**
+     * Write a chunk of file data at the current file position.
+     * 
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        if (this.mappedFile != null) {
+            this.mappedFile.position((int) (this.filePosition - this.mappedPosition));
+            this.mappedFile.put(bytes, offset, length);
+        } else {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, length);
+            long position = this.filePosition;
+            while (chunk.hasRemaining()) {
+                position += this.fileChannel.write(chunk, position);
+            }
+        }
+        this.filePosition += length;
+        this.writeNanos += System.nanoTime() - start;
+        this.writeCount++;
+        if (this.partialFile != null) {
+            this.progress.received(length);
+            checkChunks(bytes, offset, length);
         }
+    }
 
-        fileStream.write(fileBuffer.toByteArray());
-        fileBuffer.reset();
+    /**
+     * Update the CRC of the chunks written, and mark each chunk as verified
+     * (or not) in the partial file when it is complete.
+     * 
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    private void checkChunks(byte[] bytes, int offset, int length) {
+        FileManifest manifest = this.partialFile.getManifest();
+        while (length > 0) {
+            int chunkLength = manifest.getChunkLength(this.chunkIndex);
+            int count = Math.min(length, chunkLength - this.chunkBytes);
+            this.chunkCrc.update(bytes, offset, count);
+            this.chunkBytes += count;
+            offset += count;
+            length -= count;
+            if (this.chunkBytes == chunkLength) {
+                boolean verified = (int) this.chunkCrc.getValue() == manifest.getCrc(this.chunkIndex);
+                if (!verified && LogUtil.isLogAvailable()) {
+                    Log.w(TAG, "Chunk " + this.chunkIndex + " of " + this.partialFile.getFile().getName() + " is corrupt");
+                }
+                synchronized (this.partialFile) {
+                    this.partialFile.setVerified(this.chunkIndex, verified);
+                    if (verified) {
+                        //readers may now read up to the next missing chunk
+                        this.progress.setAvailable(this.partialFile.getResumeOffset());
+                    }
+                }
+                this.chunkCrc.reset();
+                this.chunkBytes = 0;
+                this.chunkIndex++;
+            }
+        }
     }
 
     /**
-     * Open a random file and initialize the incoming file stream.
+     * Open a random file, preallocated to the length of the incoming file,
+     * and initialize the incoming file channel.
      * 
+     * @param length
      * @throws IOException
      * @throws FileNotFoundException
      */
-    private void openRandomInFile() throws IOException, FileNotFoundException {
+    private void openRandomInFile(int length) throws IOException, FileNotFoundException {
+        if (getManifest() != null) {
+            openPartialInFile(length);
+            return;
+        }
         File outFile = createRandomTempFile();
         this.message.setFilePath(outFile.getCanonicalPath());
-        this.fileStream = new FileOutputStream(outFile);
+        this.file = new RandomAccessFile(outFile, "rw");
+        this.file.setLength(length);
+        this.fileChannel = this.file.getChannel();
+        if (length >= MIN_MAPPED_FILE_BYTES && length <= MAX_MAPPED_FILE_BYTES) {
+            this.mappedFile = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.d(TAG, "Receiving " + length + " bytes into " + outFile.getName()
+                    + (this.mappedFile != null ? " (mapped)" : ""));
+        }
     }
 
     /**
-     * Close the incoming file stream.
+     * Open the partial file named in the resumable file message, and
+     * initialize the incoming file channel at the offset of the data
+     * in the message.  The partial file keeps any data already received.
      * 
+     * @param length
      * @throws IOException
      */
+    private void openPartialInFile(int length) throws IOException {
+        IResumableFileMessage resumable = (IResumableFileMessage) this.message;
+        FileManifest manifest = resumable.getManifest();
+        String name = resumable.getPartialFileName();
+        int fileOffset = resumable.getFileOffset();
+        //the sender does not get to pick where the file goes, or how much is written
+        if (name == null || name.length() == 0 || name.indexOf('/') >= 0
+                || name.indexOf(File.separatorChar) >= 0 || name.equals("..")) {
+            throw new IOException("Invalid partial file name " + name);
+        }
+        if (length != resumable.getDataLength() || fileOffset < 0
+                || fileOffset % manifest.getChunkSize() != 0
+                || (long) fileOffset + length > manifest.getFileLength()) {
+            throw new IOException("Invalid range " + fileOffset + "+" + length + " for a file of "
+                    + manifest.getFileLength() + " bytes");
+        }
+        File outFile = new File(this.tempFolder, name);
+        //other parts of the file may be coming in from other sources
+        this.partialFile = PartialFile.open(outFile, manifest);
+        if (this.partialFile == null) {
+            //the file is being received from a source with a different copy...don't
+            // let this data overwrite it
+            this.rejected = true;
+            resumable.setManifestRejected(true);
+            this.message.setFilePath(outFile.getCanonicalPath());
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Skipping " + length + " bytes for " + name + ", which is being received with a different manifest");
+            }
+            return;
+        }
+        this.chunkCrc   = new CRC32();
+        this.chunkIndex = fileOffset / manifest.getChunkSize();
+        this.message.setFilePath(outFile.getCanonicalPath());
+        this.progress = FileProgress.start(this.message.getFilePath(), manifest.getFileLength());
+        synchronized (this.partialFile) {
+            this.progress.setAvailable(this.partialFile.getResumeOffset());
+        }
+        this.file = new RandomAccessFile(outFile, "rw");
+        if (this.file.length() != manifest.getFileLength()) {
+            this.file.setLength(manifest.getFileLength());
+        }
+        this.fileChannel    = this.file.getChannel();
+        this.filePosition   = fileOffset;
+        this.mappedPosition = fileOffset;
+        if (length >= MIN_MAPPED_FILE_BYTES && length <= MAX_MAPPED_FILE_BYTES) {
+            this.mappedFile = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, fileOffset, length);
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.d(TAG, "Receiving " + length + " bytes at " + fileOffset + " into " + outFile.getName()
+                    + (this.mappedFile != null ? " (mapped)" : ""));
+        }
+    }
+
+    /**
+     * Close the incoming file, if the file is still open (e.g. the connection
+     * was closed in the middle of the file).  Any data already written is
+     * synced, and the chunks verified so far are saved with the partial file.
+     * 
+     */
+    public void close() {
+        if (this.fileChannel != null) {
+            closeInFile();
+        }
+    }
+
+    /**
+     * Sync and close the incoming file.
+     * 
+     */
     private void closeInFile() {
+        //the chunks to save are the chunks verified before the sync
+        boolean[] verifiedChunks = this.partialFile != null ? this.partialFile.getVerifiedChunks() : null;
+        long start = System.nanoTime();
+        try {
+            //sync once, now that the whole file is here
+            if (this.mappedFile != null) {
+                this.mappedFile.force();
+            } else {
+                this.fileChannel.force(false);
+            }
+            this.forceCount++;
+        } catch (Exception e) {
+            if (LogUtil.isLogAvailable()) {
+                Log.w(TAG, "Unable to sync incoming file", e);
+            }
+        }
+        long forceNanos = System.nanoTime() - start;
         try {
-            this.fileStream.close();
+            this.file.close();
         } catch (Exception e) {
             // don't care, we're closing
         } finally {
-            this.fileStream = null;
+            this.file        = null;
+            this.fileChannel = null;
+            this.mappedFile  = null;
+        }
+        if (this.partialFile != null) {
+            try {
+                this.partialFile.save(verifiedChunks);
+            } catch (IOException e) {
+                if (LogUtil.isLogAvailable()) {
+                    Log.w(TAG, "Unable to save progress of incoming file", e);
+                }
+            }
+            this.partialFile.release();
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.d(TAG, "Received " + this.filePosition + " bytes in " + this.writeCount + " writes ("
+                    + (this.writeNanos / 1000000) + "ms) and " + this.forceCount + " syncs ("
+                    + (forceNanos / 1000000) + "ms)");
         }
     }
 
@@ -186,7 +446,28 @@ public class FileReceiver extends AComplexDataType {
      * @return
      */
     private boolean isFileComplete() {
-        return this.fileStream != null && this.fileBytesLeft == 0;
+        return (this.fileChannel != null || this.rejected) && this.fileBytesLeft == 0;
+    }
+
+    /**
+     * @return The number of writes to the incoming file.
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return The number of times the incoming file was synced to disk.
+     */
+    public int getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * @return The time spent writing to the incoming file, in nanoseconds.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
     }
 
     /**
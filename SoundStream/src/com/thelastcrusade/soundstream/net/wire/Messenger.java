@@ -19,9 +19,12 @@
 
 package com.thelastcrusade.soundstream.net.wire;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -31,10 +34,12 @@ import java.util.Map;
 import android.annotation.SuppressLint;
 import android.util.Log;
 
+import com.thelastcrusade.soundstream.net.message.ConnectionSettingsMessage;
 import com.thelastcrusade.soundstream.net.message.IFileMessage;
 import com.thelastcrusade.soundstream.net.message.IMessage;
 import com.thelastcrusade.soundstream.net.message.MessageFormat;
 import com.thelastcrusade.soundstream.net.wire.PacketFormat.ControlCode;
+import com.thelastcrusade.soundstream.net.wire.PacketParser.PacketHandler;
 import com.thelastcrusade.soundstream.util.InputBuffer;
 import com.thelastcrusade.soundstream.util.LogUtil;
 
@@ -60,7 +65,20 @@ public class Messenger {
 
     private static final String TAG = Messenger.class.getSimpleName();
 
-    private InputBuffer inputBuffer = new InputBuffer();
+    /**
+     * The message number of the connection settings packet.  Messages are numbered
+     * from 0, so this never refers to a message.
+     * 
+     */
+    public static final int CONNECTION_SETTINGS_MESSAGE_NO = -1;
+
+    private PacketParser packetParser = new PacketParser(new TransferPacketHandler());
+
+    //set when a message is received during a call to deserializeMessage
+    private boolean messageReceived;
+
+    //the data of a connection settings packet, while it is received
+    private ByteArrayOutputStream settingsBuffer;
 
     //NOTE: implemented as a map, not a SparseArray, so our unit tests will run
     @SuppressLint("UseSparseArrays")
@@ -70,19 +88,59 @@ public class Messenger {
     private Map<Integer, Long>                 canceledMessages = new HashMap<Integer, Long>();
 
     /**
-     * Maximum size in bytes to read from a socket at a time.
+     * Largest packet in bytes this side will send or accept.  The actual maximum
+     * for a connection is negotiated with the remote side (see ConnectionSettingsMessage),
+     * and the packet size used for each packet is chosen by the connection writer
+     * (see PacketSizeController).
      * 
      */
-    private static final int MAX_READ_SIZE_BYTES = 4096;
+    private static final int MAX_PACKET_SIZE_BYTES = 32768;
+
+    /**
+     * Smallest packet in bytes the connection writer should use.  This is used while
+     * control messages are waiting, to keep them from waiting behind large packets.
+     * 
+     */
+    private static final int MIN_PACKET_SIZE_BYTES = 1024;
+
+    /**
+     * Packet size in bytes used before the connection settings are negotiated.
+     * 
+     */
+    private static final int DEFAULT_PACKET_SIZE_BYTES = 4096;
+
+    /**
+     * Maximum size in bytes to read from a socket at a time.  This is big enough
+     * to read the largest packet we accept in one read.
+     * 
+     */
+    private static final int MAX_READ_SIZE_BYTES = MAX_PACKET_SIZE_BYTES + PacketFormat.getOverhead();
     private byte[] inBytes = new byte[MAX_READ_SIZE_BYTES];
 
-    private static final int MAX_WRITE_SIZE_BYTES = 4096;
+    /**
+     * Most memory in bytes used to hold incoming messages for one connection, and for all
+     * connections.  Messages that do not fit are spilled to disk (see WireRecvOutputStream).
+     * 
+     */
+    private static final int CONNECTION_RECEIVE_BUDGET_BYTES = 1024 * 1024;
+    private static final int GLOBAL_RECEIVE_BUDGET_BYTES     = 4 * 1024 * 1024;
+
+    private static final ReceiveMemoryBudget globalReceiveBudget = new ReceiveMemoryBudget(null, GLOBAL_RECEIVE_BUDGET_BYTES);
+
+    private final ReceiveMemoryBudget receiveBudget = new ReceiveMemoryBudget(globalReceiveBudget, CONNECTION_RECEIVE_BUDGET_BYTES);
 
     //default is 1 hour, which should be plenty of time
     private static final int CANCELED_MESSAGES_TTL_MINUTES_DEFAULT = 60;
 
     private int sendPacketSize;
 
+    //NOTE: set by the reader thread when the connection settings are received, and read by the writer thread
+    private volatile int maxPacketSize;
+
+    //the messenger version used to send messages...this starts at the oldest version, which all
+    // peers understand, until the connection settings are received
+    private volatile int sendVersion;
+
     private int nextMessageNo = 0;
 
     private File tempFolder;
@@ -98,7 +156,71 @@ public class Messenger {
     public Messenger(File tempFolder, int canceledMessagesTtlMinutes) {
         this.tempFolder     = tempFolder;
         this.canceledMessagesTtlMinutes = canceledMessagesTtlMinutes;
-        this.sendPacketSize = MAX_WRITE_SIZE_BYTES;
+        this.sendPacketSize = DEFAULT_PACKET_SIZE_BYTES;
+        this.maxPacketSize  = DEFAULT_PACKET_SIZE_BYTES;
+        this.sendVersion    = MessageFormat.VERSION_CLASS_NAME;
+    }
+
+    /**
+     * Get the connection settings to send to the remote side.
+     * 
+     * @return
+     */
+    public ConnectionSettingsMessage getConnectionSettings() {
+        return new ConnectionSettingsMessage(MAX_PACKET_SIZE_BYTES, MessageFormat.MESSENGER_VERSION);
+    }
+
+    /**
+     * Frame this side's connection settings in a packet to send.  This should be
+     * the first packet sent on a new connection.
+     * 
+     * @return
+     * @throws IOException
+     * @see #serializeConnectionSettings(ConnectionSettingsMessage)
+     */
+    public InputStream serializeConnectionSettings() throws IOException {
+        return serializeConnectionSettings(getConnectionSettings());
+    }
+
+    /**
+     * Frame connection settings in a packet to send.
+     * 
+     * The settings are not sent as a message, because older versions cannot create
+     * messages they do not know.  Instead, they are sent in a control packet, marked
+     * as a cancellation of a message number that is never used.  Older versions drop
+     * the packet, and newer versions apply the settings.
+     * 
+     * @param settings
+     * @return
+     * @throws IOException
+     */
+    public InputStream serializeConnectionSettings(ConnectionSettingsMessage settings) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        settings.serialize(data);
+        PacketFormat packet = new PacketFormat(CONNECTION_SETTINGS_MESSAGE_NO, data.toByteArray());
+        packet.addControlCode(ControlCode.Cancelled);
+        packet.addControlCode(ControlCode.ConnectionSettings);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        packet.serialize(baos);
+        return new ByteArrayInputStream(baos.toByteArray());
+    }
+
+    /**
+     * Apply the connection settings received from the remote side.
+     * 
+     * @param settings
+     */
+    private void applyConnectionSettings(ConnectionSettingsMessage settings) {
+        //use the largest packet size both sides support
+        this.maxPacketSize = Math.max(MIN_PACKET_SIZE_BYTES,
+                Math.min(MAX_PACKET_SIZE_BYTES, settings.getMaxPacketSize()));
+        //and the newest messenger version both sides support
+        this.sendVersion = Math.max(MessageFormat.VERSION_CLASS_NAME,
+                Math.min(MessageFormat.MESSENGER_VERSION, settings.getMessengerVersion()));
+        if (LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Connection settings received, max packet size is " + this.maxPacketSize
+                    + " bytes, messenger version is " + this.sendVersion);
+        }
     }
     
     /**
@@ -109,18 +231,47 @@ public class Messenger {
      * @param message
      * @throws IOException
      */
-    public InputStream serializeMessage(IMessage message) throws IOException {
-        MessageFormat format = new MessageFormat(message);
+    public WireSendInputStream serializeMessage(IMessage message) throws IOException {
+        return serializeMessage(message, this.nextMessageNo++);
+    }
+
+    /**
+     * Serialize a message with a message number that was already assigned (e.g. to
+     * a message it replaces).
+     * 
+     * @param message
+     * @param messageNo
+     * @throws IOException
+     */
+    public WireSendInputStream serializeMessage(IMessage message, int messageNo) throws IOException {
+        MessageFormat format = new MessageFormat(message, this.sendVersion);
         InputBuffer buffer = new InputBuffer();
         format.serialize(buffer);
         //if this is a file message, open the file and prepare it for the write
         // operation
         InputStream fileStream = null;
+        int fileLength = 0;
         if (isFileMessage(message)) {
             FileReceiver fileFormat = new FileReceiver((IFileMessage) message, this.tempFolder);
             fileStream = fileFormat.getInputStream();
+            fileLength = fileFormat.getInputLength();
         }
-        return new WireSendInputStream(this.sendPacketSize, this.nextMessageNo++, buffer.getInputStream(), fileStream);
+        return new WireSendInputStream(this.sendPacketSize, messageNo, buffer.getInputStream(), fileStream, fileLength);
+    }
+
+    /**
+     * Frame a shared message in packets to send.  The message body is read from
+     * the shared message, unless this messenger sends a different version of the
+     * message format, in which case the message is serialized again.
+     * 
+     * @param message
+     * @throws IOException
+     */
+    public WireSendInputStream serializeMessage(SharedMessage message) throws IOException {
+        if (message.getVersion() != this.sendVersion) {
+            return serializeMessage(message.getMessage());
+        }
+        return new WireSendInputStream(this.sendPacketSize, this.nextMessageNo++, message.newInputStream(), null);
     }
 
     /**
@@ -147,94 +298,88 @@ public class Messenger {
      * if the stream closes prematurely.
      */
     public boolean deserializeMessage(InputStream input) throws IOException {
-        boolean processed = false;
+        this.messageReceived = false;
         int read = 0;
         do {
-            //always check to see if we have more message data waiting...this is so we can process
-            // grouped/batched messages without having to wait on the call to readNext
-            if (inputBuffer.size() > 0) {
-                //check to see if we can process this message
-                if (LogUtil.isLogAvailable()) {
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Bytes available in " + inputBuffer.size());
-                    }
-                }
-                processed = processAndConsumePackets();
-                if (LogUtil.isLogAvailable()) {
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Bytes left in " + inputBuffer.size());
-                    }
-                }
-            }
-            
-            //if we don't have a message processed, attempt to read new data and loop back around
-            if (!processed) {
-                read = readNext(input);
-            }
+            //all bytes read are fed straight through the packet parser, so there is never
+            // unprocessed data waiting here...keep reading until we receive a message, or
+            // until we're between packets and there is no more data waiting on the stream
+            read = readNext(input);
             //loop back around if we havent processed a message yet
-        } while (!processed && read > 0 && inputBuffer.size() > 0);
-        return processed;
+        } while (!this.messageReceived && read > 0
+                && (packetParser.isInPacket() || input.available() > 0));
+        return this.messageReceived;
     }
 
     /**
-     * Process and consume a packet.  This will look for any active message transfers
-     * (or create one if needed) and append the bytes to that message.
-     * @return 
-     * @return
-     * @throws IOException 
+     * Handles packets as they are parsed.  This will look for any active message transfers
+     * (or create one if needed) and write the packet data directly into that transfer.
+     * 
+     * @author Jesse Rosalia
+     *
      */
-    private boolean processAndConsumePackets() throws IOException {
-        boolean received = false;
-        //REVIEW: character encoding issues may arise, but since we're controlling the class names
-        // we should be able to decide how to handle these
-        PacketFormat packet = new PacketFormat();
-        try {
-            //while there is data to process, attempt to pull out packets
-            //...this will "receive" as many messages as it can, and will throw an exception
-            // to exit the loop when we've run out of full packets in our buffer
-            while (inputBuffer.size() > 0) {
-                packet.deserialize(inputBuffer.getInputStream());
-                
-                //consume this message in the input buffer
-                //NOTE: only happens on successful deserialize (e.g. it doesnt throw a MessageNotCompleteException
-                inputBuffer.consume();
-    
-                //debugging measure...discard future packets for canceled message
-                if (shouldDiscardPacket(packet)) {
-                    if (LogUtil.isLogAvailable() && Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "Packet for canceled message (number " + packet.getMessageNo() + ") discarded");
+    private class TransferPacketHandler implements PacketHandler {
+
+        @Override
+        public OutputStream beginPacket(PacketParser packet) throws IOException {
+            //connection settings are collected, and applied at the end of the packet
+            if (packet.isControlCodeSet(ControlCode.ConnectionSettings)) {
+                settingsBuffer = new ByteArrayOutputStream();
+                return settingsBuffer;
+            }
+
+            //debugging measure...discard future packets for canceled message
+            if (shouldDiscardPacket(packet.getMessageNo())) {
+                if (LogUtil.isLogAvailable() && Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Packet for canceled message (number " + packet.getMessageNo() + ") discarded");
+                }
+                return null;
+            }
+
+            synchronized (activeTransferLock) {
+                //canceled implies the message is totally gone (no chance of restarting)
+                if (packet.isControlCodeSet(ControlCode.Cancelled)) {
+                    if (LogUtil.isLogAvailable()) {
+                        Log.d(TAG, "Cancellation received for message (number " + packet.getMessageNo() + ")");
                     }
-                    continue;
+                    cancelMessage(packet.getMessageNo());
+                    return null;
+                }
+                WireRecvOutputStream transfer = activeTransfers.get(packet.getMessageNo());
+                if (transfer == null) {
+                    transfer = new WireRecvOutputStream(tempFolder, receiveBudget);
+                    activeTransfers.put(packet.getMessageNo(), transfer);
                 }
+                return transfer;
+            }
+        }
 
-                synchronized (activeTransferLock) {
-                    WireRecvOutputStream transfer = this.activeTransfers.get(packet.getMessageNo());
-                    if (transfer == null) {
-                        transfer = new WireRecvOutputStream(this.tempFolder);
-                        this.activeTransfers.put(packet.getMessageNo(), transfer);
+        @Override
+        public void endPacket(PacketParser packet) throws IOException {
+            if (packet.isControlCodeSet(ControlCode.ConnectionSettings)) {
+                ConnectionSettingsMessage settings = new ConnectionSettingsMessage();
+                settings.deserialize(new ByteArrayInputStream(settingsBuffer.toByteArray()));
+                settingsBuffer = null;
+                applyConnectionSettings(settings);
+                return;
+            }
+            synchronized (activeTransferLock) {
+                WireRecvOutputStream transfer = activeTransfers.get(packet.getMessageNo());
+                //if we've received the full message, remove it from our active
+                // transfer array and add the underlying message to the received messages list
+                if (transfer != null && transfer.attemptReceive()) {
+                    receiveMessage(packet.getMessageNo());
+                    messageReceived = true;
+                } else if (transfer != null) {
+                    //pass along any part of a streaming message received so far
+                    IMessage partial = transfer.takePartialMessage();
+                    if (partial != null) {
+                        receivedMessages.add(partial);
+                        messageReceived = true;
                     }
-                    //canceled implies the message is totally gone (no chance of restarting)
-                    if (packet.isControlCodeSet(ControlCode.Cancelled)) {
-                        if (LogUtil.isLogAvailable()) {
-                            Log.d(TAG, "Cancellation received for message (number " + packet.getMessageNo() + ")");
-                        }
-                        cancelMessage(packet.getMessageNo());
-                    } else {
-                        transfer.write(packet.getBytes());
-                        received = transfer.attemptReceive();
-                        //if we've received the full message, remove it from our active
-                        // transfer array and add the underlying message to the received messages list
-                        if (received) {
-                            receiveMessage(packet.getMessageNo());
-                        }
-                    } 
                 }
             }
-        } catch (MessageNotCompleteException ex) {
-            //fall thru
-        } finally {
         }
-        return received;
     }
 
     /**
@@ -259,15 +404,15 @@ public class Messenger {
      * @throws IOException
      */
     private int blockAndReadOne(InputStream input) throws IOException {
-        byte[] local = new byte[1];
-        int read = input.read(local, 0, 1);
+        int read = input.read(inBytes, 0, 1);
         if (read > 0) {
-            inputBuffer.write(local, 0, 1);
+            packetParser.parse(inBytes, 0, 1);
         }
         return read;
     }
     /**
-     * Read the next set of bytes from the input stream.
+     * Read the next set of bytes from the input stream, and feed them to the
+     * packet parser.
      * 
      * NOTE: This will block until data is available, and may throw
      * an exception if the stream is closed while reading.
@@ -287,7 +432,7 @@ public class Messenger {
         if (toRead > 0) {
             int read = input.read(inBytes, 0, toRead);
             if (read > 0) {
-                inputBuffer.write(inBytes, 0, read);
+                packetParser.parse(inBytes, 0, read);
             }
             totalRead += read;
         }
@@ -298,15 +443,18 @@ public class Messenger {
      * Test if we should discard this packet.  Currently, this occurs only when
      * we've received a packet for a canceled message.
      * 
-     * @param packet
+     * @param messageNo
      * @return
      */
-    private boolean shouldDiscardPacket(PacketFormat packet) {
-        return this.canceledMessages.containsKey(packet.getMessageNo());
+    private boolean shouldDiscardPacket(int messageNo) {
+        return this.canceledMessages.containsKey(messageNo);
     }
 
     private void cancelMessage(int messageNo) {
-        this.activeTransfers.remove(messageNo);
+        WireRecvOutputStream transfer = this.activeTransfers.remove(messageNo);
+        if (transfer != null) {
+            transfer.close();
+        }
         this.canceledMessages.put(messageNo, System.currentTimeMillis());
     }
 
@@ -331,9 +479,38 @@ public class Messenger {
     
     private void receiveMessage(int messageNo) {
         WireRecvOutputStream transfer = this.activeTransfers.remove(messageNo);
+        transfer.close();
         this.receivedMessages.add(transfer.getReceivedMessage());
     }
 
+    /**
+     * Abandon all messages in transit, and release the memory and temporary files
+     * they hold.  This should be called when the connection is closed.
+     * 
+     */
+    public void close() {
+        synchronized (activeTransferLock) {
+            for (WireRecvOutputStream transfer : this.activeTransfers.values()) {
+                transfer.close();
+            }
+            this.activeTransfers.clear();
+        }
+    }
+
+    /**
+     * @return The memory budget (and metrics) for incoming messages on this connection.
+     */
+    public ReceiveMemoryBudget getReceiveBudget() {
+        return this.receiveBudget;
+    }
+
+    /**
+     * @return The memory budget (and metrics) for incoming messages on all connections.
+     */
+    public static ReceiveMemoryBudget getGlobalReceiveBudget() {
+        return globalReceiveBudget;
+    }
+
     /**
      * @return
      */
@@ -357,4 +534,27 @@ public class Messenger {
         return this.sendPacketSize;
     }
 
+    /**
+     * @return The largest packet size negotiated for this connection (or the default
+     * packet size, if the settings have not been received yet).
+     */
+    public int getMaxPacketSize() {
+        return this.maxPacketSize;
+    }
+
+    /**
+     * @return The messenger version used to send messages on this connection
+     * (see MessageFormat).
+     */
+    public int getSendVersion() {
+        return this.sendVersion;
+    }
+
+    /**
+     * @return The smallest packet size to use on this connection.
+     */
+    public int getMinPacketSize() {
+        return MIN_PACKET_SIZE_BYTES;
+    }
+
 }
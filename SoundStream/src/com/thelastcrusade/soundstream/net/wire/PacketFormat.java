@@ -44,8 +44,13 @@ public class PacketFormat extends AComplexDataType implements ISerializable {
 
     //an enumeration of control codes...the ordinal value is used as bit positions
     // in controlCodes where 1 indicates that code is present
+    //
+    //NOTE: older versions treat any packet with Cancelled set as a cancellation, and
+    // ignore its data and any other codes, so new kinds of control packets also set
+    // Cancelled (and use a message number that is never used for messages)
     public enum ControlCode {
-        Cancelled //2^0 => 0x1
+        Cancelled, //2^0 => 0x1
+        ConnectionSettings //2^1 => 0x2
         ;
 
         public int bitPosition() {
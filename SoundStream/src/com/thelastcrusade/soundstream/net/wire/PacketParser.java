@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.thelastcrusade.soundstream.net.wire.PacketFormat.ControlCode;
+
+/**
+ * An incremental parser for packets in the format described by {@link PacketFormat}.
+ * 
+ * Bytes are fed to the parser as they are read off of the socket, in whatever
+ * size chunks the socket provides, and the parser keeps its state between calls.
+ * Once a packet header is parsed, the handler supplies an output stream for the
+ * packet data, and the packet data is written straight from the caller's buffer
+ * into that stream (no per packet byte array is created).
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class PacketParser {
+
+    /**
+     * A handler for parsed packets.  The parser calls beginPacket when a packet header
+     * is received, writes the packet data to the returned stream, and then calls
+     * endPacket when all of the packet data is written.
+     * 
+     */
+    public interface PacketHandler {
+        /**
+         * @param parser The parser, to access the packet header fields
+         * @return The stream to write the packet data to, or null to discard the packet data
+         * @throws IOException
+         */
+        public OutputStream beginPacket(PacketParser parser) throws IOException;
+
+        /**
+         * @param parser The parser, to access the packet header fields
+         * @throws IOException
+         */
+        public void endPacket(PacketParser parser) throws IOException;
+    }
+
+    private enum State {
+        Header,
+        Payload,
+        Done
+    }
+
+    private PacketHandler handler;
+
+    private State state = State.Header;
+
+    private byte[] header = new byte[PacketFormat.getOverhead()];
+    private int headerRead;
+
+    private int controlCodes;
+    private int messageNo;
+    private int payloadLeft;
+    private OutputStream payloadStream;
+
+    public PacketParser(PacketHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parse a chunk of bytes.  All of the bytes are consumed; partial headers and
+     * packets are held until the next call.
+     * 
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void parse(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        //NOTE: a packet with no data is done as soon as its header is parsed, so we must
+        // loop around to finish it even if there are no bytes left
+        while (offset < end || state == State.Done) {
+            switch (state) {
+            case Header:
+                int headerBytes = Math.min(header.length - headerRead, end - offset);
+                System.arraycopy(bytes, offset, header, headerRead, headerBytes);
+                headerRead += headerBytes;
+                offset     += headerBytes;
+                if (headerRead == header.length) {
+                    beginPacket();
+                }
+                break;
+            case Payload:
+                int payloadBytes = Math.min(payloadLeft, end - offset);
+                if (payloadStream != null) {
+                    payloadStream.write(bytes, offset, payloadBytes);
+                }
+                payloadLeft -= payloadBytes;
+                offset      += payloadBytes;
+                if (payloadLeft == 0) {
+                    state = State.Done;
+                }
+                break;
+            case Done:
+                handler.endPacket(this);
+                payloadStream = null;
+                headerRead    = 0;
+                state         = State.Header;
+                break;
+            }
+        }
+    }
+
+    private void beginPacket() throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(header);
+        int packetLength = bb.getInt();
+        this.controlCodes = bb.getInt();
+        this.messageNo    = bb.getInt();
+        this.payloadLeft  = packetLength - PacketFormat.getOverheadWithoutLength();
+        if (this.payloadLeft < 0) {
+            throw new IOException("Invalid packet length: " + packetLength);
+        }
+        this.payloadStream = handler.beginPacket(this);
+        this.state = this.payloadLeft > 0 ? State.Payload : State.Done;
+    }
+
+    /**
+     * @return True if the parser has received part of a packet, and is waiting for the rest.
+     */
+    public boolean isInPacket() {
+        return state != State.Header || headerRead > 0;
+    }
+
+    /**
+     * @return the messageNo of the current packet
+     */
+    public int getMessageNo() {
+        return messageNo;
+    }
+
+    public boolean isControlCodeSet(ControlCode code) {
+        return (this.controlCodes & code.bitPosition()) != 0;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+
+/**
+ * A file received in chunks, and the chunks received and verified so far.
+ * The progress is kept in a small file next to the partial file, so a
+ * transfer can be resumed after the connection drops (or the app restarts).
+ * 
+ * A file may be received from several sources at once, each into its own
+ * part of the file.  The receivers share one PartialFile (see
+ * {@link #open(File, FileManifest)}), so each sees the chunks verified by
+ * the others.
+ * 
+ * NOTE: the progress is saved when a receiver closes the file, after the
+ * file data is synced, so it never claims chunks that are not on disk.  The
+ * chunks to save are taken before the sync, since other receivers may verify
+ * more chunks while the file is synced.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class PartialFile {
+
+    private static final String PROGRESS_SUFFIX = ".progress";
+
+    //partial files being received, by path, shared by the receivers of each file
+    private static final Map<String, PartialFile> receiving = new HashMap<String, PartialFile>();
+
+    private File         file;
+    private FileManifest manifest;
+    private boolean[]    verified;
+
+    //the chunks in the saved progress
+    private boolean[]    saved;
+
+    //number of receivers that have this file open
+    private int openCount;
+
+    public PartialFile(File file, FileManifest manifest) {
+        this.file     = file;
+        this.manifest = manifest;
+        this.verified = new boolean[manifest.getChunkCount()];
+        this.saved    = new boolean[manifest.getChunkCount()];
+    }
+
+    /**
+     * Load the progress of a partial file.
+     * 
+     * @param file
+     * @return The partial file, or null if there is no (readable) progress for the file.
+     */
+    public static PartialFile load(File file) {
+        File progress = getProgressFile(file);
+        if (!file.exists() || !progress.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(progress)));
+            try {
+                int fileLength = input.readInt();
+                int chunkSize  = input.readInt();
+                int chunkCount = input.readInt();
+                if (fileLength < 0 || chunkSize <= 0
+                        || chunkCount != (int) (((long) fileLength + chunkSize - 1) / chunkSize)) {
+                    return null;
+                }
+                int[] crcs = new int[chunkCount];
+                for (int i = 0; i < chunkCount; i++) {
+                    crcs[i] = input.readInt();
+                }
+                PartialFile partialFile = new PartialFile(file, new FileManifest(fileLength, chunkSize, crcs));
+                for (int i = 0; i < chunkCount; i++) {
+                    partialFile.verified[i] = input.readBoolean();
+                    partialFile.saved[i]    = partialFile.verified[i];
+                }
+                return partialFile;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            //treat unreadable progress as no progress
+            return null;
+        }
+    }
+
+    /**
+     * Open a partial file to receive part of it.  If the file is already being
+     * received with the same manifest, the receivers share its progress.  Otherwise,
+     * the saved progress is loaded, or a new partial file is started if there is no
+     * progress (or nothing was verified before the file changed).
+     * 
+     * A file that is being received, or has verified chunks, with a different manifest
+     * is not opened: the data would be a different file (e.g. another source's copy of
+     * a song is not the same), and would overwrite the chunks already received.
+     * 
+     * Each open must be matched by a call to {@link #release()}.
+     * 
+     * @param file
+     * @param manifest
+     * @return The partial file, or null if the file is being received with a different manifest.
+     */
+    static synchronized PartialFile open(File file, FileManifest manifest) {
+        String path = file.getAbsolutePath();
+        PartialFile partialFile = receiving.get(path);
+        if (partialFile != null && !manifest.equals(partialFile.getManifest())) {
+            return null;
+        }
+        if (partialFile == null) {
+            partialFile = load(file);
+            if (partialFile != null && !manifest.equals(partialFile.getManifest())) {
+                if (partialFile.hasVerifiedChunks()) {
+                    return null;
+                }
+                partialFile = null;
+            }
+            if (partialFile == null) {
+                partialFile = new PartialFile(file, manifest);
+            }
+            receiving.put(path, partialFile);
+        }
+        partialFile.openCount++;
+        return partialFile;
+    }
+
+    /**
+     * Release a partial file opened with {@link #open(File, FileManifest)}.
+     * 
+     */
+    void release() {
+        synchronized (PartialFile.class) {
+            if (--this.openCount == 0 && receiving.get(this.file.getAbsolutePath()) == this) {
+                receiving.remove(this.file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Save the progress of this partial file.  The progress is written to a new file
+     * and renamed into place, so an interrupted save leaves the old progress.
+     * 
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        save(getVerifiedChunks());
+    }
+
+    /**
+     * Save the progress of this partial file, with the chunks verified at some earlier
+     * point (e.g. before the file data was synced).  Chunks in the last saved progress
+     * that are still verified are kept, so a save with older chunks (from another
+     * receiver) does not undo a newer one.
+     * 
+     * @param verifiedChunks
+     * @throws IOException
+     */
+    synchronized void save(boolean[] verifiedChunks) throws IOException {
+        boolean[] chunks = new boolean[verified.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = verifiedChunks[i] || (saved[i] && verified[i]);
+        }
+        File progress = getProgressFile(file);
+        File newProgress = new File(progress.getPath() + ".new");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newProgress)));
+        try {
+            output.writeInt(manifest.getFileLength());
+            output.writeInt(manifest.getChunkSize());
+            output.writeInt(manifest.getChunkCount());
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                output.writeInt(manifest.getCrc(i));
+            }
+            for (boolean chunkVerified : chunks) {
+                output.writeBoolean(chunkVerified);
+            }
+        } finally {
+            output.close();
+        }
+        if (!newProgress.renameTo(progress)) {
+            newProgress.delete();
+            throw new IOException("Unable to save progress for " + file.getName());
+        }
+        saved = chunks;
+    }
+
+    /**
+     * Delete the partial file and its progress.  Any readers waiting on the
+     * file (see FileProgress) stop waiting.
+     */
+    public void delete() {
+        FileProgress progress = FileProgress.get(getCanonicalPath(file));
+        if (progress != null) {
+            progress.remove();
+        }
+        file.delete();
+        getProgressFile(file).delete();
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private static File getProgressFile(File file) {
+        return new File(file.getPath() + PROGRESS_SUFFIX);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public FileManifest getManifest() {
+        return manifest;
+    }
+
+    public synchronized boolean isVerified(int chunk) {
+        return verified[chunk];
+    }
+
+    public synchronized void setVerified(int chunk, boolean chunkVerified) {
+        verified[chunk] = chunkVerified;
+    }
+
+    /**
+     * @return A copy of the verified state of each chunk.
+     */
+    public synchronized boolean[] getVerifiedChunks() {
+        return verified.clone();
+    }
+
+    /**
+     * @return True if any chunk is received and verified.
+     */
+    public synchronized boolean hasVerifiedChunks() {
+        for (boolean chunkVerified : verified) {
+            if (chunkVerified) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if every chunk is received and verified.
+     */
+    public synchronized boolean isComplete() {
+        return getResumeOffset() == manifest.getFileLength();
+    }
+
+    /**
+     * @return The offset of the first chunk that is missing (or bad), or the file length
+     * if the file is complete.
+     */
+    public synchronized int getResumeOffset() {
+        for (int i = 0; i < verified.length; i++) {
+            if (!verified[i]) {
+                return manifest.getChunkOffset(i);
+            }
+        }
+        return manifest.getFileLength();
+    }
+
+    /**
+     * @return The ranges of the file that are missing (or bad), as {offset, length} pairs.
+     * Neighboring chunks are joined into one range.
+     */
+    public synchronized List<int[]> getMissingRanges() {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int[] range = null;
+        for (int i = 0; i < verified.length; i++) {
+            if (verified[i]) {
+                range = null;
+            } else if (range == null) {
+                range = new int[] {manifest.getChunkOffset(i), manifest.getChunkLength(i)};
+                ranges.add(range);
+            } else {
+                range[1] += manifest.getChunkLength(i);
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+/**
+ * A budget for the memory used to hold incoming message data.  Each connection
+ * has its own budget, which is part of a budget shared by all connections, so
+ * the memory held by messages in transit is bounded both per connection and
+ * in total.  Messages that do not fit in the budget are spilled to disk
+ * (see WireRecvOutputStream).
+ * 
+ * Budgets also keep the metrics for the incoming message memory: bytes in use,
+ * the peak bytes in use, and the number of messages spilled to disk.
+ * 
+ * This class is thread safe, as the shared budget is used by the reader thread
+ * of each connection.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class ReceiveMemoryBudget {
+
+    private final ReceiveMemoryBudget parent;
+
+    private final long limitBytes;
+
+    private long usedBytes;
+
+    private long peakBytes;
+
+    private int spillCount;
+
+    /**
+     * @param parent The budget this budget is part of, or null for a top level budget.
+     * @param limitBytes
+     */
+    public ReceiveMemoryBudget(ReceiveMemoryBudget parent, long limitBytes) {
+        this.parent     = parent;
+        this.limitBytes = limitBytes;
+    }
+
+    /**
+     * Test if there is room for more bytes in this budget (and the budget it
+     * is part of).
+     * 
+     * @param bytes
+     * @return
+     */
+    public boolean hasRoom(long bytes) {
+        synchronized (this) {
+            if (this.usedBytes + bytes > this.limitBytes) {
+                return false;
+            }
+        }
+        return this.parent == null || this.parent.hasRoom(bytes);
+    }
+
+    /**
+     * Account for bytes held (or released, if bytes is negative).  This does not
+     * enforce the limit...callers should check hasRoom first, and spill data that
+     * does not fit.
+     * 
+     * @param bytes
+     */
+    public void reserve(long bytes) {
+        synchronized (this) {
+            this.usedBytes += bytes;
+            this.peakBytes = Math.max(this.peakBytes, this.usedBytes);
+        }
+        if (this.parent != null) {
+            this.parent.reserve(bytes);
+        }
+    }
+
+    /**
+     * @param bytes
+     */
+    public void release(long bytes) {
+        reserve(-bytes);
+    }
+
+    /**
+     * Count a message spilled to disk.
+     */
+    public void spilled() {
+        synchronized (this) {
+            this.spillCount++;
+        }
+        if (this.parent != null) {
+            this.parent.spilled();
+        }
+    }
+
+    public long getLimitBytes() {
+        return this.limitBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    public synchronized long getPeakBytes() {
+        return this.peakBytes;
+    }
+
+    public synchronized int getSpillCount() {
+        return this.spillCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.usedBytes + " of " + this.limitBytes + " bytes used (peak " + this.peakBytes
+                + " bytes), " + this.spillCount + " messages spilled";
+    }
+}
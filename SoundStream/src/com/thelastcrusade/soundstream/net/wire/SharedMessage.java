@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 The Last Crusade ContactLastCrusade@gmail.com
+ * 
+ * This file is part of SoundStream.
+ * 
+ * SoundStream is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * SoundStream is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with SoundStream.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thelastcrusade.soundstream.net.wire;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.thelastcrusade.soundstream.net.message.IFileMessage;
+import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.message.MessageFormat;
+import com.thelastcrusade.soundstream.util.InputBuffer;
+
+/**
+ * A message serialized once, to send on several connections (e.g. a message
+ * broadcast to all guests).  Each connection reads the serialized body through
+ * its own stream, and frames it in its own packets (see
+ * {@link Messenger#serializeMessage(SharedMessage)}).
+ * 
+ * The body is reference counted: the creator holds a reference, as does each
+ * stream until it is closed (e.g. the message is sent), and the body is let go
+ * when the last reference is released.
+ * 
+ * NOTE: file messages are read from the file as they are sent, and cannot be shared.
+ * 
+ * @author Jesse Rosalia
+ *
+ */
+public class SharedMessage {
+
+    private final IMessage message;
+    private final int version;
+    private byte[] body;
+    private int references;
+
+    /**
+     * Serialize a message, for connections that send the specified messenger version.
+     * 
+     * @param message
+     * @param version
+     * @throws IOException
+     */
+    public SharedMessage(IMessage message, int version) throws IOException {
+        if (message instanceof IFileMessage) {
+            throw new IllegalArgumentException("File messages cannot be shared: " + message.getClass().getSimpleName());
+        }
+        this.message = message;
+        this.version = version;
+        InputBuffer buffer = new InputBuffer();
+        new MessageFormat(message, version).serialize(buffer);
+        this.body       = buffer.toByteArray();
+        this.references = 1;
+    }
+
+    public IMessage getMessage() {
+        return message;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    /**
+     * Open a stream to read the serialized body.  The stream holds a reference to
+     * the body until it is closed.
+     * 
+     * @return
+     */
+    public synchronized InputStream newInputStream() {
+        if (this.body == null) {
+            throw new IllegalStateException("Shared message has been released");
+        }
+        this.references++;
+        return new BodyInputStream(this.body);
+    }
+
+    /**
+     * Release a reference to the body.
+     */
+    public synchronized void release() {
+        if (this.references > 0 && --this.references == 0) {
+            this.body = null;
+        }
+    }
+
+    private class BodyInputStream extends ByteArrayInputStream {
+        private boolean closed;
+
+        public BodyInputStream(byte[] body) {
+            super(body);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                this.closed = true;
+                release();
+            }
+        }
+    }
+}
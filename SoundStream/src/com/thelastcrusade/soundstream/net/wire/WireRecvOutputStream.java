@@ -18,10 +18,14 @@
  */
 package com.thelastcrusade.soundstream.net.wire;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.UUID;
 
 import android.util.Log;
 
@@ -34,9 +38,17 @@ import com.thelastcrusade.soundstream.util.LogUtil;
 /**
  * An output stream for receiving incoming message data.  This
  * class allows callers to write message data as it is received.
- * It will buffer data until a full message is received,
- * deserialize the message, and (if present) write file data
- * to a temporary file.
+ * It will buffer data until a full message is received (or
+ * decode it as it arrives, for streaming messages), deserialize
+ * the message, and (if present) pass the file data straight
+ * through to a temporary file.
+ * 
+ * The memory used to buffer message data is accounted for in a
+ * ReceiveMemoryBudget.  Messages that are bigger than
+ * SPILL_THRESHOLD_BYTES, or that do not fit in the budget, are
+ * spilled to a temporary file as they arrive, and decoded from
+ * that file once they are complete.  Streaming messages are never
+ * spilled, as they are consumed as they arrive.
  * 
  * @author Jesse Rosalia
  *
@@ -45,17 +57,43 @@ public class WireRecvOutputStream extends OutputStream {
 
     private static final String TAG = WireRecvOutputStream.class.getSimpleName();
 
+    /**
+     * Messages bigger than this (in bytes) are always spilled to disk, instead
+     * of being held in memory until they are complete.
+     * 
+     */
+    private static final int SPILL_THRESHOLD_BYTES = 256 * 1024;
+
     private InputBuffer buffer = new InputBuffer();
+    private MessageFormat format = new MessageFormat();
     private IMessage receivedMessage;
     private File tempFolder;
     private FileReceiver fileReceiver;
 
+    private ReceiveMemoryBudget budget;
+    //bytes reserved in the budget for the buffer
+    private long reservedBytes;
+
+    //the file holding the message data, once the message is spilled to disk
+    private File             spillFile;
+    private FileOutputStream spillStream;
+    private int              spillBytesLeft;
+
     /**
      * @param tempFolder
      */
     public WireRecvOutputStream(File tempFolder) {
+        this(tempFolder, null);
+    }
+
+    /**
+     * @param tempFolder
+     * @param budget The budget for the memory used by this stream, or null for no budget.
+     */
+    public WireRecvOutputStream(File tempFolder, ReceiveMemoryBudget budget) {
         //for incoming files
         this.tempFolder = tempFolder;
+        this.budget     = budget;
     }
 
     /* (non-Javadoc)
@@ -63,7 +101,7 @@ public class WireRecvOutputStream extends OutputStream {
      */
     @Override
     public void write(int oneByte) throws IOException {
-        buffer.write(oneByte);
+        write(new byte[] {(byte) oneByte}, 0, 1);
     }
 
     /* (non-Javadoc)
@@ -71,62 +109,210 @@ public class WireRecvOutputStream extends OutputStream {
      */
     @Override
     public void write(byte[] bytes, int offset, int count) throws IOException {
-        buffer.write(bytes, offset, count);
+        //once the message is received, the rest of the data is file data...pass
+        // it straight through to the file receiver
+        if (this.fileReceiver != null) {
+            this.fileReceiver.receive(bytes, offset, count);
+            return;
+        }
+        //message data goes to the spill file, if the message is spilled
+        if (this.spillStream != null) {
+            int toSpill = Math.min(count, this.spillBytesLeft);
+            this.spillStream.write(bytes, offset, toSpill);
+            this.spillBytesLeft -= toSpill;
+            offset += toSpill;
+            count  -= toSpill;
+        }
+        if (count > 0) {
+            buffer.write(bytes, offset, count);
+            updateReservation();
+        }
     }
 
     /**
      * Process and consume one message contained in the input buffer.  This will modify the contents of the
-     * input buffer when successful and when an error is occurred (the message in error is thrown away).
+     * input buffer as the message is decoded.  The message header is decoded once, and
+     * streaming messages are decoded as their data arrives (see MessageFormat#deserializeAvailable).
      * 
      * TODO: this needs better error handling.
      * 
      * @return True if a message was processed, false if not
-     * @throws ClassNotFoundException 
-     * @throws IllegalAccessException 
-     * @throws InstantiationException 
      * @throws IOException 
      */
     public boolean attemptReceive() throws IOException {
         boolean received = false;
         
-        try {
-            InputStream input = buffer.getInputStream();
-            //NOTE: we must keep the file format for multiple calls, as we expect to receive the file in parts
-            //...this is different from the message format, where we'll try and deserialize and throw an exception
-            // if its not available
-            if (this.fileReceiver != null) {
-                received = this.fileReceiver.receive(input);
-            } else {
-                MessageFormat format = new MessageFormat();
-                format.deserialize(input);
-                //TODO: consume the bytes in buffer
-                this.receivedMessage = format.getMessage();
-                if (!isFileMessage(this.receivedMessage)) {
-                    //not a file message, we're done
-                    received = true;
-                } else {
-                    //otherwise, we want to attempt to read a file if the message is processed and it is a file message
-                    this.fileReceiver = new FileReceiver((IFileMessage) this.receivedMessage, this.tempFolder);
-                    //receive any file data that happens to be in the 
-                    if (input.available() > 0) {
-                        received = this.fileReceiver.receive(input);
-                    }
-                }
-            }
-            buffer.consume();
-            if (LogUtil.isLogAvailable()) {
-                if (buffer.size() > 0) {
-                    Log.v(TAG, "Residual buffer data: " + buffer.size()
-                            + " bytes left in buffer");
-                }
+        //NOTE: we must keep the file format for multiple calls, as we expect to receive the file in parts
+        //...the message format is also kept, as it decodes the message as the data arrives
+        if (this.fileReceiver != null) {
+            received = this.fileReceiver.isComplete();
+        } else if (this.spillStream != null) {
+            if (this.spillBytesLeft == 0) {
+                received = receiveSpilledMessage();
             }
+        } else if (this.format.deserializeAvailable(buffer)) {
+            received = receiveMessage(this.format.getMessage());
+        } else if (shouldSpill()) {
+            spill();
+        }
+        updateReservation();
+        return received;
+    }
 
-        } catch (MessageNotCompleteException e) {
-            //fall thru
+    /**
+     * Handle a message that is completely decoded.  If it is a file message, this
+     * will start receiving the file.
+     * 
+     * @param message
+     * @return True if the message (and file, if any) is completely received.
+     * @throws IOException
+     */
+    private boolean receiveMessage(IMessage message) throws IOException {
+        boolean received;
+        this.receivedMessage = message;
+        if (!isFileMessage(this.receivedMessage)) {
+            //not a file message, we're done
+            received = true;
+        } else {
+            //otherwise, we want to attempt to read a file if the message is processed and it is a file message
+            this.fileReceiver = new FileReceiver((IFileMessage) this.receivedMessage, this.tempFolder);
+            //receive any file data that happens to be in the buffer...this writes straight from the
+            // buffer memory to the file receiver
+            buffer.slice().writeTo(this);
+            received = this.fileReceiver.isComplete();
+        }
+        buffer.consume();
+        if (LogUtil.isLogAvailable()) {
+            if (buffer.size() > 0) {
+                Log.v(TAG, "Residual buffer data: " + buffer.size()
+                        + " bytes left in buffer");
+            }
         }
         return received;
     }
 
+    /**
+     * Test if the message should be spilled to disk.  Only messages that are held in
+     * memory until they are complete are spilled, once we know how big they are.
+     * 
+     * @return
+     */
+    private boolean shouldSpill() {
+        int bytesLeft = this.format.getBytesLeft();
+        if (bytesLeft < 0 || this.format.isStreaming()) {
+            return false;
+        }
+        return bytesLeft > SPILL_THRESHOLD_BYTES
+                || (this.budget != null && !this.budget.hasRoom(bytesLeft - this.reservedBytes));
+    }
+
+    /**
+     * Spill the message to a temporary file.  The message data in the buffer is moved
+     * to the file, and the rest of the message data will be written to the file as it
+     * arrives.
+     * 
+     * @throws IOException
+     */
+    private void spill() throws IOException {
+        this.spillFile      = File.createTempFile(UUID.randomUUID().toString().replace("-", ""), ".spill", tempFolder);
+        this.spillStream    = new FileOutputStream(this.spillFile);
+        this.spillBytesLeft = this.format.getBytesLeft();
+        if (this.budget != null) {
+            this.budget.spilled();
+        }
+        if (LogUtil.isLogAvailable()) {
+            Log.i(TAG, "Spilling " + this.spillBytesLeft + " byte message to " + this.spillFile.getName()
+                    + (this.budget != null ? ", " + this.budget : ""));
+        }
+        //move the buffered data to the file, and let go of the buffer memory
+        InputBuffer buffered = this.buffer;
+        this.buffer = new InputBuffer();
+        buffered.slice().writeTo(this);
+    }
+
+    /**
+     * Decode a message that was spilled to disk, once all of its data is here.
+     * 
+     * @return True if the message (and file, if any) is completely received.
+     * @throws IOException
+     */
+    private boolean receiveSpilledMessage() throws IOException {
+        closeSpill();
+        InputStream input = new BufferedInputStream(new FileInputStream(this.spillFile));
+        try {
+            this.format.deserializeRemaining(input);
+        } finally {
+            input.close();
+            deleteSpill();
+        }
+        return receiveMessage(this.format.getMessage());
+    }
+
+    /**
+     * Update the bytes reserved in the budget to match the bytes held in the buffer.
+     * 
+     */
+    private void updateReservation() {
+        if (this.budget != null && this.reservedBytes != buffer.size()) {
+            this.budget.reserve(buffer.size() - this.reservedBytes);
+            this.reservedBytes = buffer.size();
+        }
+    }
+
+    private void closeSpill() {
+        if (this.spillStream != null) {
+            try {
+                this.spillStream.close();
+            } catch (IOException e) {
+                //don't care, we're closing
+            }
+            this.spillStream = null;
+        }
+    }
+
+    private void deleteSpill() {
+        if (this.spillFile != null) {
+            this.spillFile.delete();
+            this.spillFile = null;
+        }
+    }
+
+    /**
+     * Release the memory budget and temporary files held by this stream.  This must
+     * be called when the message is received or abandoned.
+     * 
+     */
+    @Override
+    public void close() {
+        if (this.fileReceiver != null) {
+            //keeps any partial file, so the transfer can be resumed
+            this.fileReceiver.close();
+        }
+        closeSpill();
+        deleteSpill();
+        if (this.budget != null) {
+            this.budget.release(this.reservedBytes);
+            this.reservedBytes = 0;
+        }
+    }
+
+    /**
+     * Take the part of a streaming message received since the last call, so it may be
+     * passed along before the whole message is received.
+     * 
+     * @return The partial message, or null if there is nothing new.
+     */
+    public IMessage takePartialMessage() {
+        return this.fileReceiver == null ? this.format.takePartialMessage() : null;
+    }
+
+    /**
+     * @return True if the message data is spilled to disk.
+     */
+    public boolean isSpilled() {
+        return this.spillFile != null;
+    }
+
     /**
      * @param message
      * @return
@@ -18,15 +18,16 @@
  */
 package com.thelastcrusade.soundstream.net.wire;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.net.core.AComplexDataType;
-import com.thelastcrusade.soundstream.net.core.IntegerLength;
 import com.thelastcrusade.soundstream.util.LogUtil;
 
 /**
@@ -37,6 +38,16 @@ import com.thelastcrusade.soundstream.util.LogUtil;
  * can then be read from the stream and transmitted to the remote
  * system.
  * 
+ * Each packet is framed in place in a single reusable buffer: the
+ * header is written at the front and the payload (message bytes, then
+ * file bytes) is read directly into the space behind it.  File data is
+ * read through the file's FileChannel when one is available.  Callers
+ * that own the output stream should use writePacket, which hands that
+ * buffer straight to the output stream without any intermediate copy.
+ * 
+ * The packet size may be changed between packets (see setPacketSize), so
+ * the writer can adapt the packet size to the connection.
+ * 
  * @author Jesse Rosalia
  *
  */
@@ -46,46 +57,128 @@ public class WireSendInputStream extends InputStream {
 
     private InputStream message;
     private InputStream file;
+    private FileChannel fileChannel;
     private int packetSize;
     private int messageNo;
-    private byte[] packet;
-    private int packetIndex = 0;
-    private ByteArrayInputStream fileLengthStream;
+    /**
+     * Holds the packet currently being sent, header and payload.  Position
+     * is the next byte to send, limit is the end of the packet.
+     */
+    private ByteBuffer packet;
+    private byte[] fileLength;
+    private int fileLengthIndex;
+    /**
+     * Number of payload bytes (message, file length and file) that have not
+     * yet been framed into a packet.
+     */
+    private int payloadLeft;
     private int available;
+    /**
+     * Number of file bytes that have not yet been framed into a packet.  This
+     * may be less than the rest of the file, when sending part of a file.
+     */
+    private int fileBytesLeft;
     
     public WireSendInputStream(int packetSize, int messageNo, InputStream message, InputStream file) throws IOException {
+        this(packetSize, messageNo, message, file, file != null ? file.available() : 0);
+    }
+
+    /**
+     * @param packetSize
+     * @param messageNo
+     * @param message
+     * @param file
+     * @param fileLength The number of bytes to send from the file, starting at its current position.
+     * @throws IOException
+     */
+    public WireSendInputStream(int packetSize, int messageNo, InputStream message, InputStream file, int fileLength) throws IOException {
         this.message = message;
         this.file = file;
         this.messageNo = messageNo;
         this.packetSize = packetSize;
-        this.packet = null; 
+        this.packet = ByteBuffer.allocate(packetSize);
+        //start with an empty packet, so the first read will load one
+        this.packet.limit(0);
 
         this.available = this.message.available();
-        //create an input stream to hold the file length, only once (first time through)
-        if (this.file != null && this.fileLengthStream == null) {
+        //hold the file length, which is sent in front of the file data
+        if (this.file != null) {
             //SIZEOF_INTEGER is for file length
-            this.available += file.available() + AComplexDataType.SIZEOF_INTEGER;
-            IntegerLength length = new IntegerLength(file.available());
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            length.serialize(baos);
-            this.fileLengthStream = new ByteArrayInputStream(baos.toByteArray());
+            this.available += fileLength + AComplexDataType.SIZEOF_INTEGER;
+            this.fileLength = ByteBuffer.allocate(AComplexDataType.SIZEOF_INTEGER)
+                                        .putInt(fileLength)
+                                        .array();
+            this.fileBytesLeft = fileLength;
+            //read files through their channel, directly into the packet buffer
+            if (this.file instanceof FileInputStream) {
+                this.fileChannel = ((FileInputStream) this.file).getChannel();
+            }
         }
 
         //precompute the total number of bytes available from this input stream
-        int payloadSize = this.packetSize - PacketFormat.getOverhead();
-        int packets = this.available > 0 ? 1 + (this.available / payloadSize) : 0;
-        this.available += packets * PacketFormat.getOverhead();
+        this.payloadLeft = this.available;
+        this.available = computeFramedLength(this.payloadLeft, this.packetSize);
 
         if (LogUtil.isLogAvailable()) {
             Log.d(TAG, "Preparing to send " + this.available + " bytes across the wire.");
         }
     }
 
+    /**
+     * Compute the number of bytes needed to send the payload, including packet
+     * headers, when split into packets of packetSize bytes.
+     * 
+     * @param payload
+     * @param packetSize
+     * @return
+     */
+    private static int computeFramedLength(int payload, int packetSize) {
+        int payloadSize = packetSize - PacketFormat.getOverhead();
+        int packets = payload > 0 ? 1 + (payload / payloadSize) : 0;
+        return payload + packets * PacketFormat.getOverhead();
+    }
+
     @Override
     public int available() throws IOException {
         return this.available;
     }
 
+    /**
+     * Change the size of the packets sent by this stream.  This takes effect
+     * with the next packet; a packet that is partially sent is finished at the
+     * size it was framed with.
+     * 
+     * @param packetSize
+     */
+    public void setPacketSize(int packetSize) {
+        if (packetSize <= PacketFormat.getOverhead()) {
+            throw new IllegalArgumentException("Packet size must be larger than the packet overhead: " + packetSize);
+        }
+        if (packetSize != this.packetSize) {
+            this.packetSize = packetSize;
+            this.available = packet.remaining() + computeFramedLength(this.payloadLeft, this.packetSize);
+        }
+    }
+
+    /**
+     * @return the packetSize
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return The message number in the header of each packet.
+     */
+    public int getMessageNo() {
+        return messageNo;
+    }
+
+    /**
+     * Read bytes from the current packet.  This will never read past the end
+     * of a packet, so callers that interleave packets from several streams can
+     * read with a buffer of packetSize bytes and get exactly one packet per call.
+     */
     @Override
     public int read(byte[] buffer, int off, int maxLen) throws IOException {
         if (buffer == null) {
@@ -95,118 +188,156 @@ public class WireSendInputStream extends InputStream {
         } else if (maxLen == 0) {
             return 0;
         }
-        if (this.available() <= 0) {
-            return -1;
-        }
-
         //advance to the next packet if needed before we start reading
         advanceIfNeeded();
-
-        //read in batches, advancing to the next packet if needed
-        //NOTE: as complicated as this looks, it is MUCH more efficient
-        // than calling read() over and over
-        int read   = 0;
-        int toRead = Math.min(this.available(), maxLen);
-        while (availableInPacket() <= toRead && available() > 0) {
-            int partial = Math.min(availableInPacket(), toRead);
-            System.arraycopy(packet, packetIndex, buffer, off + read, partial);
-            packetIndex += partial;
-            available   -= partial;
-            advanceIfNeeded();
-            read        += partial;
-            toRead      -= partial;
+        if (!packet.hasRemaining()) {
+            return -1;
         }
 
+        int read = Math.min(packet.remaining(), maxLen);
+        packet.get(buffer, off, read);
+        this.available -= read;
         return read;
     }
 
+    @Override
+    public int read() throws IOException {
+        //on every read, check to see if we need to advance to the next packet.
+        advanceIfNeeded();
+        if (!packet.hasRemaining()) {
+            return -1;
+        }
+        this.available--;
+        return packet.get() & 0xFF;
+    }
+
     /**
-     * @return
+     * Write the rest of the current packet (or the next packet, if the current
+     * one has been sent) to the output stream.  The packet buffer is handed
+     * directly to the output stream.
+     * 
+     * @param output
+     * @return The number of bytes written, or 0 if there is nothing left to send.
+     * @throws IOException
      */
-    private int availableInPacket() {
-        return packet != null ? packet.length - packetIndex : 0;
+    public int writePacket(OutputStream output) throws IOException {
+        advanceIfNeeded();
+        int toWrite = packet.remaining();
+        if (toWrite > 0) {
+            output.write(packet.array(), packet.arrayOffset() + packet.position(), toWrite);
+            packet.position(packet.limit());
+            this.available -= toWrite;
+        }
+        return toWrite;
     }
 
     @Override
-    public int read() throws IOException {
-        //on every read, check to see if we need to advance to the next packet.
-        advanceIfNeeded();
-        return readNext();
+    public void close() throws IOException {
+        try {
+            this.message.close();
+        } finally {
+            if (this.file != null) {
+                this.file.close();
+            }
+        }
     }
 
     /**
      * If needed, load in the next packet.
      * 
-     * NOTE: This will set packet to null if there are no bytes left to send.
+     * NOTE: This will leave an empty packet if there are no bytes left to send.
      * 
      * @throws IOException 
      * 
      */
     private void advanceIfNeeded() throws IOException {
-        if (packet == null || packetIndex >= packet.length) {
-            //grab the next x bytes (up to packetSize)
-            byte[] nextBytes = readNextBytes();
-            if (nextBytes.length > 0) {
-                PacketFormat format = new PacketFormat(this.messageNo, nextBytes);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                format.serialize(baos);
-                packet = baos.toByteArray();
-                packetIndex = 0;
-            } else {
-                packet = null;
-            }
+        if (!packet.hasRemaining() && this.available > 0) {
+            fillNextPacket();
         }
     }
 
     /**
-     * Read the next byte from the packet, or return -1 if a next byte doesnt exist.
+     * Frame the next packet in the packet buffer.  The payload is read in
+     * behind the header first, so the header can be written once we know how
+     * many bytes are in this packet.
      * 
-     * This should only return -1 when we're done with a stream, as read will
-     * call advanceIfNeeded to line up the next set of bytes before calling this.
-     * @return
+     * @throws IOException
      */
-    private int readNext() {
-        if (packet != null && packetIndex < packet.length) {
-            this.available--;
-            return packet[packetIndex++];
+    private void fillNextPacket() throws IOException {
+        int overhead = PacketFormat.getOverhead();
+        //the packet size may have changed since the last packet
+        if (packet.capacity() < this.packetSize) {
+            packet = ByteBuffer.allocate(this.packetSize);
+        }
+        packet.clear();
+        packet.limit(this.packetSize);
+        packet.position(overhead);
+
+        fillFromMessage();
+        fillFromFileLength();
+        fillFromFile();
+
+        int payloadLength = packet.position() - overhead;
+        this.payloadLeft -= payloadLength;
+        if (payloadLength > 0) {
+            //see PacketFormat for the header format
+            packet.putInt(0, payloadLength + PacketFormat.getOverheadWithoutLength());
+            packet.putInt(PacketFormat.getLengthOverhead(), 0); //no control codes
+            packet.putInt(PacketFormat.getLengthOverhead() + PacketFormat.getControlCodeOverhead(), this.messageNo);
+            packet.flip();
         } else {
-            return -1;
+            //nothing left to send...this can happen if the payload divides evenly into packets
+            packet.limit(0);
+            this.available = 0;
         }
     }
-    /**
-     * Read the next segment of bytes, making sure we leave room in the packet
-     * for the header info at the front.
-     * 
-     * @return A byte array of the next segment of bytes to write
-     * @throws IOException
-     */
-    private byte[] readNextBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        if (this.available() <= 0) {
-            return baos.toByteArray();
-        }
-
-        int len;
-        
-        for (len = PacketFormat.getOverhead(); len < this.packetSize && this.message.available() > 0; len++) {
-            int ret = -1;
-            ret = this.message.read();
-            baos.write(ret);
-        }
-        if (this.fileLengthStream != null) {
-            for (; len < this.packetSize && this.fileLengthStream.available() > 0; len++) {
-                baos.write(this.fileLengthStream.read());
+
+    private void fillFromMessage() throws IOException {
+        int read;
+        while (packet.hasRemaining() && this.message.available() > 0) {
+            read = this.message.read(packet.array(),
+                    packet.arrayOffset() + packet.position(),
+                    Math.min(packet.remaining(), this.message.available()));
+            if (read <= 0) {
+                break;
             }
+            packet.position(packet.position() + read);
         }
-        
-        if (this.file != null) {
-            byte[] buf = new byte[this.packetSize - len];
-            int read;
-            if ((read = this.file.read(buf)) > 0) {
-                baos.write(buf, 0, read);
-            }
+    }
+
+    private void fillFromFileLength() {
+        if (this.fileLength != null) {
+            int toCopy = Math.min(packet.remaining(), this.fileLength.length - this.fileLengthIndex);
+            packet.put(this.fileLength, this.fileLengthIndex, toCopy);
+            this.fileLengthIndex += toCopy;
         }
+    }
 
-        return baos.toByteArray();
+    private void fillFromFile() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+        //only send the file bytes that were promised, even if the file has more
+        int limit = packet.limit();
+        packet.limit(Math.min(limit, packet.position() + this.fileBytesLeft));
+        int read;
+        int start = packet.position();
+        while (packet.hasRemaining()) {
+            if (this.fileChannel != null) {
+                read = this.fileChannel.read(packet);
+            } else {
+                read = this.file.read(packet.array(),
+                        packet.arrayOffset() + packet.position(),
+                        packet.remaining());
+                if (read > 0) {
+                    packet.position(packet.position() + read);
+                }
+            }
+            if (read <= 0) {
+                break;
+            }
+        }
+        this.fileBytesLeft -= packet.position() - start;
+        packet.limit(limit);
     }
 }
@@ -21,7 +21,9 @@ package com.thelastcrusade.soundstream.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -47,7 +49,9 @@ import com.thelastcrusade.soundstream.net.bt.ConnectThread;
 import com.thelastcrusade.soundstream.net.message.ConnectGuestsMessage;
 import com.thelastcrusade.soundstream.net.message.FindNewGuestsMessage;
 import com.thelastcrusade.soundstream.net.message.FoundGuestsMessage;
+import com.thelastcrusade.soundstream.net.message.IFileMessage;
 import com.thelastcrusade.soundstream.net.message.IMessage;
+import com.thelastcrusade.soundstream.net.wire.SharedMessage;
 import com.thelastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.thelastcrusade.soundstream.util.BluetoothUtils;
 import com.thelastcrusade.soundstream.util.BroadcastRegistrar;
@@ -412,13 +416,31 @@ public class ConnectionService extends Service {
 
     public void broadcastMessageToGuests(IMessage msg) {
         if (isGuestConnected()) {
+            //serialize the message once for each version of the message format the guests
+            // speak (usually just one), and share it between the guests' connections
+            Map<Integer, SharedMessage> shared = new HashMap<Integer, SharedMessage>();
             try {
                 for (BluetoothConnection guest : this.guests) {
-                    guest.write(msg);
+                    if (msg instanceof IFileMessage) {
+                        //file messages are read from the file as they are sent, for each guest
+                        guest.write(msg);
+                        continue;
+                    }
+                    SharedMessage sharedMsg = shared.get(guest.getSendVersion());
+                    if (sharedMsg == null) {
+                        sharedMsg = new SharedMessage(msg, guest.getSendVersion());
+                        shared.put(guest.getSendVersion(), sharedMsg);
+                    }
+                    guest.write(sharedMsg);
                 }
             } catch (IOException e) {
                 Log.wtf(TAG, e);
                 Toaster.eToast(this, "Unable to enqueue message " + msg.getClass().getSimpleName());
+            } finally {
+                //the guests' connections hold the messages until they are sent
+                for (SharedMessage sharedMsg : shared.values()) {
+                    sharedMsg.release();
+                }
             }
         } else {
             Toaster.eToast(this, R.string.no_guests_connected);
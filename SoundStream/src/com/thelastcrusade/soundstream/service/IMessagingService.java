@@ -20,11 +20,15 @@
 package com.thelastcrusade.soundstream.service;
 
 import java.util.List;
+import java.util.Map;
 
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.model.UserList;
 import com.thelastcrusade.soundstream.net.MessageFuture;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
 
 public interface IMessagingService {
 
@@ -32,15 +36,56 @@ public interface IMessagingService {
      * Send the library to the currently connected host.
      * 
      * @param library
+     * @param remoteLibrary True to browse the host's library remotely, instead of
+     * receiving a copy of it.
      */
-    public void sendLibraryMessageToHost(List<SongMetadata> library);
+    public void sendLibraryMessageToHost(List<SongMetadata> library, boolean remoteLibrary);
     
     /**
-     * Send the library to all currently connected guests.
+     * Send the changes to the library to all currently connected guests.
      * 
-     * @param library
+     * @param songs The songs added or updated, or all songs for snapshots
+     * @param changes
+     */
+    public void sendLibraryChangesMessageToGuests(List<SongMetadata> songs, List<LibraryChanges> changes);
+
+    /**
+     * Send the changes to the library to one guest.
+     * 
+     * @param address Address of the guest
+     * @param songs The songs added or updated, or all songs for snapshots
+     * @param changes
+     */
+    public void sendLibraryChangesMessageToGuest(String address, List<SongMetadata> songs, List<LibraryChanges> changes);
+
+    /**
+     * Send a request for the changes to the library to the host.
+     * 
+     * @param versions The library version this device has for each source it needs
+     * changes for, by source mac address
+     */
+    public void sendRequestLibraryMessage(Map<String, Integer> versions);
+
+    /**
+     * Send a request for a page of the songs in the library that match a query to the host.
+     * 
+     * @param requestId An id for the request, returned in the results
+     * @param query The query to match, or null to browse the whole library
+     * @param offset The index of the first matching song to return
+     * @param count The most songs to return
      */
-    public void sendLibraryMessageToGuests(List<SongMetadata> library);
+    public void sendSearchLibraryMessage(int requestId, String query, int offset, int count);
+
+    /**
+     * Send a page of the songs in the library that match a query to one guest.
+     * 
+     * @param address Address of the guest
+     * @param requestId The id of the request these results are for
+     * @param offset The index of the first song in the results
+     * @param totalCount The number of songs that match the query
+     * @param songs The matching songs, starting at offset
+     */
+    public void sendSearchResultsMessage(String address, int requestId, int offset, int totalCount, List<SongMetadata> songs);
     
     /**
      * Send a pause message to the host.
@@ -68,7 +113,38 @@ public interface IMessagingService {
 
     public void sendPlayStatusMessage(PlaylistEntry currentSong, boolean isPlaying);
 
-    public void sendPlaylistMessage(List<? extends PlaylistEntry> songsToPlay);
+    /**
+     * Send the whole playlist to all currently connected guests.
+     * 
+     * @param playlistVersion
+     * @param songsToPlay
+     */
+    public void sendPlaylistMessage(int playlistVersion, List<? extends PlaylistEntry> songsToPlay);
+
+    /**
+     * Send the whole playlist to one guest.
+     * 
+     * @param address Address of the guest
+     * @param playlistVersion
+     * @param songsToPlay
+     */
+    public void sendPlaylistMessage(String address, int playlistVersion, List<? extends PlaylistEntry> songsToPlay);
+
+    /**
+     * Send the changes to the playlist to all currently connected guests.
+     * 
+     * @param playlistVersion The version of the playlist after the changes
+     * @param operations
+     * @param songsToPlay The whole playlist, for guests that do not understand changes
+     */
+    public void sendPlaylistChangesMessage(int playlistVersion, List<PlaylistOperation> operations, List<? extends PlaylistEntry> songsToPlay);
+
+    /**
+     * Send a request for the whole playlist to the host.
+     * 
+     * @param playlistVersion The version of the playlist on this device
+     */
+    public void sendRequestPlaylistMessage(int playlistVersion);
 
     public void sendSongStatusMessage(PlaylistEntry currentSong);
 
@@ -82,6 +158,21 @@ public interface IMessagingService {
      */
     public void sendRequestSongMessage(String address, long songId);
 
+    /**
+     * Send a request to transfer part of the song data, in chunks, into
+     * a partial file.  Guests that do not support chunked transfers will
+     * send the whole song.
+     * 
+     * From host to guest
+     * 
+     * @param address Address of the guest
+     * @param songId Id of the song being requested
+     * @param partialFileName Name of the partial file to receive the song data
+     * @param offset Offset of the data to send
+     * @param length Number of bytes to send, or RequestSongMessage.TO_END
+     */
+    public void sendRequestSongMessage(String address, long songId, String partialFileName, int offset, int length);
+
     /**
      * Send song data in response to a request.  This message may be sent
      * in multiple parts.
@@ -96,6 +187,25 @@ public interface IMessagingService {
      */
     public MessageFuture sendTransferSongMessage(String address, long songId, String fileName, String filePath);
 
+    /**
+     * Send part of the song data, in chunks, in response to a request
+     * for a partial file.
+     * 
+     * From guest to host
+     * 
+     * @param address
+     * @param songId
+     * @param fileName
+     * @param filePath
+     * @param manifest Manifest of the whole song file
+     * @param partialFileName Name of the partial file, from the request
+     * @param offset Offset of the data to send (the start of a chunk)
+     * @param length Number of bytes to send
+     * @return
+     */
+    public MessageFuture sendTransferSongMessage(String address, long songId, String fileName, String filePath,
+            FileManifest manifest, String partialFileName, int offset, int length);
+
     /**
      * Send a cancellation message, to instruct the guest that the song is no
      * longer needed
@@ -19,7 +19,9 @@
 
 package com.thelastcrusade.soundstream.service;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import android.app.Service;
 import android.content.Intent;
@@ -27,7 +29,9 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.model.UserList;
 import com.thelastcrusade.soundstream.net.MessageFuture;
@@ -36,6 +40,7 @@ import com.thelastcrusade.soundstream.net.MessageThreadMessageDispatch.IMessageH
 import com.thelastcrusade.soundstream.net.message.AddToPlaylistMessage;
 import com.thelastcrusade.soundstream.net.message.BumpSongOnPlaylistMessage;
 import com.thelastcrusade.soundstream.net.message.CancelSongMessage;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
 import com.thelastcrusade.soundstream.net.message.IMessage;
 import com.thelastcrusade.soundstream.net.message.LibraryMessage;
 import com.thelastcrusade.soundstream.net.message.PauseMessage;
@@ -43,7 +48,11 @@ import com.thelastcrusade.soundstream.net.message.PlayMessage;
 import com.thelastcrusade.soundstream.net.message.PlayStatusMessage;
 import com.thelastcrusade.soundstream.net.message.PlaylistMessage;
 import com.thelastcrusade.soundstream.net.message.RemoveFromPlaylistMessage;
+import com.thelastcrusade.soundstream.net.message.RequestLibraryMessage;
+import com.thelastcrusade.soundstream.net.message.RequestPlaylistMessage;
 import com.thelastcrusade.soundstream.net.message.RequestSongMessage;
+import com.thelastcrusade.soundstream.net.message.SearchLibraryMessage;
+import com.thelastcrusade.soundstream.net.message.SearchResultsMessage;
 import com.thelastcrusade.soundstream.net.message.SkipMessage;
 import com.thelastcrusade.soundstream.net.message.SongStatusMessage;
 import com.thelastcrusade.soundstream.net.message.TransferSongMessage;
@@ -64,9 +73,38 @@ public class MessagingService extends Service implements IMessagingService {
     
     public static final String ACTION_LIBRARY_MESSAGE = MessagingService.class.getName() + ".action.LibraryMessage";
     public static final String EXTRA_SONG_METADATA    = MessagingService.class.getName() + ".extra.SongMetadata";
+    //set when the songs are part of a library that is still being received
+    public static final String EXTRA_PARTIAL_LIBRARY  = MessagingService.class.getName() + ".extra.PartialLibrary";
+    //set when the songs are the changes to the library since an earlier version
+    public static final String EXTRA_LIBRARY_CHANGES  = MessagingService.class.getName() + ".extra.LibraryChanges";
+    //set when the sender browses the library remotely
+    public static final String EXTRA_REMOTE_LIBRARY   = MessagingService.class.getName() + ".extra.RemoteLibrary";
+    //also uses ADDRESS
+
+    public static final String ACTION_REQUEST_LIBRARY_MESSAGE = MessagingService.class.getName() + ".action.RequestLibraryMessage";
+    public static final String EXTRA_SOURCE_ADDRESSES = MessagingService.class.getName() + ".extra.SourceAddresses";
+    public static final String EXTRA_SOURCE_VERSIONS  = MessagingService.class.getName() + ".extra.SourceVersions";
+    //also uses ADDRESS
+
+    public static final String ACTION_SEARCH_LIBRARY_MESSAGE  = MessagingService.class.getName() + ".action.SearchLibraryMessage";
+    public static final String EXTRA_REQUEST_ID       = MessagingService.class.getName() + ".extra.RequestId";
+    public static final String EXTRA_QUERY            = MessagingService.class.getName() + ".extra.Query";
+    public static final String EXTRA_OFFSET           = MessagingService.class.getName() + ".extra.Offset";
+    public static final String EXTRA_COUNT            = MessagingService.class.getName() + ".extra.Count";
+    //also uses ADDRESS
+
+    public static final String ACTION_SEARCH_RESULTS_MESSAGE  = MessagingService.class.getName() + ".action.SearchResultsMessage";
+    public static final String EXTRA_TOTAL_COUNT      = MessagingService.class.getName() + ".extra.TotalCount";
+    //also uses REQUEST_ID, OFFSET and SONG_METADATA
 
     public static final String ACTION_PLAYLIST_UPDATED_MESSAGE = MessagingService.class.getName() + ".action.PlaylistUpdated";
     public static final String EXTRA_PLAYLIST_ENTRY    = MessagingService.class.getName() + ".extra.PlaylistEntry";
+    public static final String EXTRA_PLAYLIST_VERSION  = MessagingService.class.getName() + ".extra.PlaylistVersion";
+    //set (in place of PLAYLIST_ENTRY) when the message holds the changes to the playlist
+    public static final String EXTRA_PLAYLIST_OPERATIONS = MessagingService.class.getName() + ".extra.PlaylistOperations";
+
+    public static final String ACTION_REQUEST_PLAYLIST_MESSAGE = MessagingService.class.getName() + ".action.RequestPlaylistMessage";
+    //also uses ADDRESS and PLAYLIST_VERSION
     
     public static final String ACTION_NEW_CONNECTED_USERS_MESSAGE = MessagingService.class.getName() + ".action.UserListMessage";
     public static final String EXTRA_USER_LIST                    = MessagingService.class.getName() + ".extra.UserList";
@@ -74,12 +112,17 @@ public class MessagingService extends Service implements IMessagingService {
     public static final String ACTION_REQUEST_SONG_MESSAGE        = MessagingService.class.getName() + ".action.RequestSongMessage";
     public static final String EXTRA_ADDRESS                      = MessagingService.class.getName() + ".extra.Address";
     public static final String EXTRA_SONG_ID                      = MessagingService.class.getName() + ".extra.SongId";
+    //set when the song is to be sent in chunks, into the named partial file
+    public static final String EXTRA_PARTIAL_FILE_NAME            = MessagingService.class.getName() + ".extra.PartialFileName";
+    public static final String EXTRA_LENGTH                       = MessagingService.class.getName() + ".extra.Length";
+    //also uses OFFSET
 
     public static final String ACTION_CANCEL_SONG_MESSAGE         = MessagingService.class.getName() + ".action.CancelSongMessage";
     public static final String ACTION_TRANSFER_SONG_MESSAGE       = MessagingService.class.getName() + ".action.TransferSongMessage";
     //also uses ADDRESS and SONG_ID
     public static final String EXTRA_SONG_FILE_NAME               = MessagingService.class.getName() + ".extra.SongFileName";
     public static final String EXTRA_SONG_TEMP_FILE               = MessagingService.class.getName() + ".extra.SongTempFile";
+    public static final String EXTRA_SONG_MANIFEST_REJECTED       = MessagingService.class.getName() + ".extra.SongManifestRejected";
 
     public static final String ACTION_ADD_TO_PLAYLIST_MESSAGE      = MessagingService.class.getName() + ".action.AddToPlaylistMessage";
     public static final String ACTION_REMOVE_FROM_PLAYLIST_MESSAGE = MessagingService.class.getName() + ".action.RemoveFromPlaylistMessage";
@@ -158,6 +201,9 @@ public class MessagingService extends Service implements IMessagingService {
     private void registerMessageHandlers() {
         this.messageDispatch = new MessageThreadMessageDispatch();
         registerLibraryMessageHandler();
+        registerRequestLibraryMessageHandler();
+        registerSearchLibraryMessageHandler();
+        registerSearchResultsMessageHandler();
         registerPauseMessageHandler();
         registerPlayMessageHandler();
         registerSkipMessageHandler();
@@ -165,6 +211,7 @@ public class MessagingService extends Service implements IMessagingService {
         registerBumpSongOnPlaylistMessageHandler();
         registerRemoveFromPlaylistMessageHandler();
         registerPlaylistMessageHandler();
+        registerRequestPlaylistMessageHandler();
         registerPlayStatusMessageHandler();
         registerSongStatusMessageHandler();
         registerCancelSongMessageHandler();
@@ -179,8 +226,67 @@ public class MessagingService extends Service implements IMessagingService {
             @Override
             public void handleMessage(int messageNo,
                     LibraryMessage message, String fromAddr) {
-                new LocalBroadcastIntent(ACTION_LIBRARY_MESSAGE)
+                LocalBroadcastIntent intent = new LocalBroadcastIntent(ACTION_LIBRARY_MESSAGE)
                     .putParcelableArrayListExtra(EXTRA_SONG_METADATA, message.getLibrary())
+                    .putExtra(EXTRA_PARTIAL_LIBRARY, message.isPartial())
+                    .putExtra(EXTRA_REMOTE_LIBRARY,  message.isRemoteLibrary())
+                    .putExtra(EXTRA_ADDRESS,         fromAddr);
+                if (message.getChanges() != null) {
+                    intent.putParcelableArrayListExtra(EXTRA_LIBRARY_CHANGES, message.getChanges());
+                }
+                intent.send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerRequestLibraryMessageHandler() {
+        this.messageDispatch.registerHandler(RequestLibraryMessage.class, new IMessageHandler<RequestLibraryMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    RequestLibraryMessage message, String fromAddr) {
+                ArrayList<String> addresses = new ArrayList<String>(message.getVersions().keySet());
+                int[] versions = new int[addresses.size()];
+                for (int i = 0; i < versions.length; i++) {
+                    versions[i] = message.getVersions().get(addresses.get(i));
+                }
+                new LocalBroadcastIntent(ACTION_REQUEST_LIBRARY_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS,                  fromAddr)
+                    .putStringArrayListExtra(EXTRA_SOURCE_ADDRESSES, addresses)
+                    .putExtra(EXTRA_SOURCE_VERSIONS,          versions)
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerSearchLibraryMessageHandler() {
+        this.messageDispatch.registerHandler(SearchLibraryMessage.class, new IMessageHandler<SearchLibraryMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    SearchLibraryMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_SEARCH_LIBRARY_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS,    fromAddr)
+                    .putExtra(EXTRA_REQUEST_ID, message.getRequestId())
+                    .putExtra(EXTRA_QUERY,      message.getQuery())
+                    .putExtra(EXTRA_OFFSET,     message.getOffset())
+                    .putExtra(EXTRA_COUNT,      message.getCount())
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
+    private void registerSearchResultsMessageHandler() {
+        this.messageDispatch.registerHandler(SearchResultsMessage.class, new IMessageHandler<SearchResultsMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    SearchResultsMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_SEARCH_RESULTS_MESSAGE)
+                    .putExtra(EXTRA_REQUEST_ID,  message.getRequestId())
+                    .putExtra(EXTRA_OFFSET,      message.getOffset())
+                    .putExtra(EXTRA_TOTAL_COUNT, message.getTotalCount())
+                    .putParcelableArrayListExtra(EXTRA_SONG_METADATA, message.getSongs())
                     .send(MessagingService.this);
             }
         });
@@ -257,8 +363,11 @@ public class MessagingService extends Service implements IMessagingService {
             public void handleMessage(int messageNo,
                     RequestSongMessage message, String fromAddr) {
                 new LocalBroadcastIntent(ACTION_REQUEST_SONG_MESSAGE)
-                    .putExtra(EXTRA_ADDRESS, fromAddr)
-                    .putExtra(EXTRA_SONG_ID, message.getSongId())
+                    .putExtra(EXTRA_ADDRESS,           fromAddr)
+                    .putExtra(EXTRA_SONG_ID,           message.getSongId())
+                    .putExtra(EXTRA_PARTIAL_FILE_NAME, message.getPartialFileName())
+                    .putExtra(EXTRA_OFFSET,            message.getOffset())
+                    .putExtra(EXTRA_LENGTH,            message.getLength())
                     .send(MessagingService.this);
             }
         });
@@ -276,6 +385,7 @@ public class MessagingService extends Service implements IMessagingService {
                         .putExtra(EXTRA_SONG_ID,        message.getSongId())
                         .putExtra(EXTRA_SONG_FILE_NAME, message.getSongFileName())
                         .putExtra(EXTRA_SONG_TEMP_FILE, message.getFilePath())
+                        .putExtra(EXTRA_SONG_MANIFEST_REJECTED, message.isManifestRejected())
                         .send(MessagingService.this);
                 } catch (Exception e) {
                     Log.wtf(TAG, e);
@@ -356,9 +466,14 @@ public class MessagingService extends Service implements IMessagingService {
             public void handleMessage(int messageNo,
                     PlaylistMessage message, String fromAddr) {
 
-                new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED_MESSAGE)
-                    .putParcelableArrayListExtra(EXTRA_PLAYLIST_ENTRY, message.getSongsToPlay())
-                    .send(MessagingService.this);
+                LocalBroadcastIntent intent = new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED_MESSAGE)
+                    .putExtra(EXTRA_PLAYLIST_VERSION, message.getPlaylistVersion());
+                if (message.hasOperations()) {
+                    intent.putParcelableArrayListExtra(EXTRA_PLAYLIST_OPERATIONS, message.getOperations());
+                } else {
+                    intent.putParcelableArrayListExtra(EXTRA_PLAYLIST_ENTRY, message.getSongsToPlay());
+                }
+                intent.send(MessagingService.this);
                 
                 //if we are the host and we are receiving the message as the host, we need to
                 //send it back out to all of the guests
@@ -373,6 +488,21 @@ public class MessagingService extends Service implements IMessagingService {
         });
     }
 
+    private void registerRequestPlaylistMessageHandler() {
+        this.messageDispatch.registerHandler(RequestPlaylistMessage.class,
+                new IMessageHandler<RequestPlaylistMessage>() {
+
+            @Override
+            public void handleMessage(int messageNo,
+                    RequestPlaylistMessage message, String fromAddr) {
+                new LocalBroadcastIntent(ACTION_REQUEST_PLAYLIST_MESSAGE)
+                    .putExtra(EXTRA_ADDRESS,          fromAddr)
+                    .putExtra(EXTRA_PLAYLIST_VERSION, message.getPlaylistVersion())
+                    .send(MessagingService.this);
+            }
+        });
+    }
+
     //TODO: support MessageFuture, the next time we need to send a cancelable message to a guest
     private void sendMessageToGuest(String address, IMessage msg) {
         try {
@@ -410,19 +540,47 @@ public class MessagingService extends Service implements IMessagingService {
     }
 
     @Override
-    public void sendLibraryMessageToHost(List<SongMetadata> library) {
-        LibraryMessage msg = new LibraryMessage(library);
+    public void sendLibraryMessageToHost(List<SongMetadata> library, boolean remoteLibrary) {
+        LibraryMessage msg = new LibraryMessage(library, remoteLibrary);
         //send the message to the host
         sendMessageToHost(msg);
     }
     
     @Override
-    public void sendLibraryMessageToGuests(List<SongMetadata> library) {
-        LibraryMessage msg = new LibraryMessage(library);
+    public void sendLibraryChangesMessageToGuests(List<SongMetadata> songs, List<LibraryChanges> changes) {
+        LibraryMessage msg = new LibraryMessage(songs, changes);
         //send the message to the guests
         sendMessageToGuests(msg);
     }
 
+    @Override
+    public void sendLibraryChangesMessageToGuest(String address, List<SongMetadata> songs, List<LibraryChanges> changes) {
+        LibraryMessage msg = new LibraryMessage(songs, changes);
+        //send the message to the one guest
+        sendMessageToGuest(address, msg);
+    }
+
+    @Override
+    public void sendRequestLibraryMessage(Map<String, Integer> versions) {
+        RequestLibraryMessage msg = new RequestLibraryMessage(versions);
+        //send the message to the host
+        sendMessageToHost(msg);
+    }
+
+    @Override
+    public void sendSearchLibraryMessage(int requestId, String query, int offset, int count) {
+        SearchLibraryMessage msg = new SearchLibraryMessage(requestId, query, offset, count);
+        //send the message to the host
+        sendMessageToHost(msg);
+    }
+
+    @Override
+    public void sendSearchResultsMessage(String address, int requestId, int offset, int totalCount, List<SongMetadata> songs) {
+        SearchResultsMessage msg = new SearchResultsMessage(requestId, offset, totalCount, songs);
+        //send the message to the one guest
+        sendMessageToGuest(address, msg);
+    }
+
     @Override
     public void sendPauseMessage() {
         PauseMessage msg = new PauseMessage();
@@ -476,17 +634,33 @@ public class MessagingService extends Service implements IMessagingService {
     }
     
 
-    public void sendPlaylistMessage(List<? extends PlaylistEntry> songsToPlay){
-        try {
-            PlaylistMessage playlistMessage = new PlaylistMessage(songsToPlay);
-            //send the message to guests only
-            if (this.connectServiceLocator.getService().isGuestConnected()) {
-                sendMessageToGuests(playlistMessage);
-            }
-        } catch (ServiceNotBoundException e) {
-            Log.wtf(TAG, e);
-        }
+    @Override
+    public void sendPlaylistMessage(int playlistVersion, List<? extends PlaylistEntry> songsToPlay){
+        PlaylistMessage playlistMessage = new PlaylistMessage(playlistVersion, songsToPlay);
+        //send the message to guests only
+        sendMessageToGuests(playlistMessage);
+    }
+
+    @Override
+    public void sendPlaylistMessage(String address, int playlistVersion, List<? extends PlaylistEntry> songsToPlay){
+        PlaylistMessage playlistMessage = new PlaylistMessage(playlistVersion, songsToPlay);
+        //send the message to the one guest
+        sendMessageToGuest(address, playlistMessage);
+    }
 
+    @Override
+    public void sendPlaylistChangesMessage(int playlistVersion, List<PlaylistOperation> operations,
+            List<? extends PlaylistEntry> songsToPlay) {
+        PlaylistMessage playlistMessage = new PlaylistMessage(playlistVersion, operations, songsToPlay);
+        //send the message to guests only
+        sendMessageToGuests(playlistMessage);
+    }
+
+    @Override
+    public void sendRequestPlaylistMessage(int playlistVersion) {
+        RequestPlaylistMessage msg = new RequestPlaylistMessage(playlistVersion);
+        //send the message to the host
+        sendMessageToHost(msg);
     }
     
     @Override
@@ -511,6 +685,14 @@ public class MessagingService extends Service implements IMessagingService {
         sendMessageToGuest(address, msg);
     }
     
+    @Override
+    public void sendRequestSongMessage(String address, long songId,
+            String partialFileName, int offset, int length) {
+        RequestSongMessage msg = new RequestSongMessage(songId, partialFileName, offset, length);
+        //send the message to the guests
+        sendMessageToGuest(address, msg);
+    }
+
     @Override
     public MessageFuture sendTransferSongMessage(String address, long songId,
             String fileName, String filePath) {
@@ -519,6 +701,16 @@ public class MessagingService extends Service implements IMessagingService {
         return sendMessageToHost(msg);
     }
 
+    @Override
+    public MessageFuture sendTransferSongMessage(String address, long songId,
+            String fileName, String filePath, FileManifest manifest,
+            String partialFileName, int offset, int length) {
+        TransferSongMessage msg = new TransferSongMessage(songId, fileName, filePath,
+                manifest, partialFileName, offset, length);
+        //send the message to the fans
+        return sendMessageToHost(msg);
+    }
+
     //sends the user list out to everyone
     public void sendUserListMessage(UserList userlist){
         UserListMessage ulm = new UserListMessage(userlist);
@@ -19,23 +19,33 @@
 
 package com.thelastcrusade.soundstream.service;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import android.app.ActivityManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.R;
 import com.thelastcrusade.soundstream.library.MediaStoreWrapper;
+import com.thelastcrusade.soundstream.library.SongHashCache;
 import com.thelastcrusade.soundstream.library.SongNotFoundException;
+import com.thelastcrusade.soundstream.model.LibraryChangeLog;
+import com.thelastcrusade.soundstream.model.LibraryChanges;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.model.UserList;
 import com.thelastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
@@ -70,11 +80,101 @@ public class MusicLibraryService extends Service {
     private List<SongMetadata>   metadataList = new ArrayList<SongMetadata>();
     
     private final Object metadataMutex = new Object();
+
+    /**
+     * The changes made to the library, by source.  Guests are sent just the changes
+     * since the versions they have, instead of the whole library.
+     * 
+     */
+    private LibraryChangeLog changeLog = new LibraryChangeLog();
+
+    //the library version of each source, as of the last changes sent to the guests
+    private Map<String, Integer> sentVersions = new HashMap<String, Integer>();
+
+    //the library version of each source, as of the last changes received from the host,
+    // and the sources we've asked the host to resend
+    private Map<String, Integer> receivedVersions = new HashMap<String, Integer>();
+    private Set<String>          requestedSources = new HashSet<String>();
+
+    /**
+     * Shortest time between library updates sent for partial libraries, so a large library
+     * does not refresh the library screen for every part received.
+     * 
+     */
+    private static final long PARTIAL_UPDATE_INTERVAL_MS = 250;
+
+    private long lastPartialUpdate;
+
+    /**
+     * Guests may browse the library remotely: they keep just their own songs, and ask the
+     * host for pages of the songs that match a query, instead of keeping a copy of the
+     * whole library.  This is the default on devices with this little memory (in MB) per app.
+     * 
+     */
+    private static final int REMOTE_LIBRARY_MEMORY_CLASS_MB = 32;
+
+    /**
+     * Number of songs requested in each page, when browsing the library remotely, and
+     * the most songs the host will send in a page.
+     * 
+     */
+    private static final int REMOTE_PAGE_SIZE     = 100;
+    private static final int MAX_REMOTE_PAGE_SIZE = 500;
+
+    /**
+     * Number of queries with results kept when browsing the library remotely, and
+     * how long the results are used before they are requested again.
+     * 
+     */
+    private static final int  MAX_REMOTE_QUERIES  = 8;
+    private static final long REMOTE_QUERY_TTL_MS = 60 * 1000;
+
+    //the request id for the first page of the library, which the host sends
+    // when a guest that browses remotely connects
+    private static final int FIRST_PAGE_REQUEST_ID = 0;
+
+    /**
+     * The results of a query sent to the host, when browsing the library remotely.
+     * 
+     */
+    private static class RemoteQuery {
+        private int requestId;
+        private int totalCount = -1;
+        private List<SongMetadata> songs = new ArrayList<SongMetadata>();
+        private boolean pending;
+        private long requestTime;
+    }
+
+    private boolean remoteLibrary;
+
+    //true once the host has agreed to let us browse remotely (older hosts send the
+    // library instead)
+    private boolean browsingRemotely;
+
+    //the results of recent queries, least recently used first
+    private Map<String, RemoteQuery> remoteQueries =
+            new LinkedHashMap<String, RemoteQuery>(MAX_REMOTE_QUERIES, 0.75f, true);
+
+    private int nextRequestId = FIRST_PAGE_REQUEST_ID + 1;
+
+    //the guests connected to the host, and the guests that have a copy of the library
+    // (the rest browse it remotely, or have not sent their library yet)
+    private Set<String> connectedGuests = new HashSet<String>();
+    private Set<String> libraryGuests   = new HashSet<String>();
     
     private BroadcastRegistrar registrar;
 
     private String myMacAddress;
 
+    /**
+     * The file the content hashes of our songs are kept in (see {@link SongHashCache}).
+     */
+    private static final String HASH_CACHE_FILE_NAME = "song_hashes.idx";
+
+    //true while we are a guest connected to a host, which is sent our songs
+    // again once they are hashed
+    private volatile boolean hostConnected;
+
     private ServiceLocator<MessagingService> messagingServiceLocator;
     private ServiceLocator<UserListService> userListServiceLocator;
 
@@ -92,6 +192,8 @@ public class MusicLibraryService extends Service {
                 this, UserListService.class, UserListService.UserListServiceBinder.class);
         
         myMacAddress = getResources().getString(R.string.default_mac);
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        remoteLibrary = activityManager.getMemoryClass() <= REMOTE_LIBRARY_MEMORY_CLASS_MB;
         userListServiceLocator.setOnBindListener(new IOnBindListener() {
             @Override
             public void onServiceBound() {
@@ -105,6 +207,7 @@ public class MusicLibraryService extends Service {
 
                 //update the library with the local songs
                 updateLibrary(metadataList, false);
+                hashLocalSongs(metadataList);
             }
         });
 
@@ -114,6 +217,54 @@ public class MusicLibraryService extends Service {
         registerReceivers();
     }
 
+    /**
+     * Hash our songs in the background, so the host can tell when it has another copy
+     * of a song (see {@link SongHashCache}).  The library is updated with the hashes
+     * once all the songs are hashed, and the host is sent the hashed songs if we are
+     * already connected to it.
+     * 
+     * @param songs
+     */
+    private void hashLocalSongs(final List<SongMetadata> songs) {
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.currentTimeMillis();
+                SongHashCache hashCache = new SongHashCache(new File(getFilesDir(), HASH_CACHE_FILE_NAME));
+                hashCache.load();
+                Map<Long, String> filePaths = new MediaStoreWrapper(MusicLibraryService.this).listFilePaths();
+                List<SongMetadata> hashed = new ArrayList<SongMetadata>();
+                for (SongMetadata song : songs) {
+                    String filePath = filePaths.get(song.getId());
+                    if (filePath == null) {
+                        continue;
+                    }
+                    long hash = hashCache.getHash(new File(filePath));
+                    if (hash != SongMetadata.UNKNOWN_HASH) {
+                        //the songs in the library are not changed in place, so the
+                        // change is recorded and sent to the guests
+                        SongMetadata copy = new SongMetadata(song.getId(), song.getTitle(), song.getArtist(),
+                                song.getAlbum(), song.getFileSize(), song.getMacAddress());
+                        copy.setContentHash(hash);
+                        hashed.add(copy);
+                    }
+                }
+                hashCache.retainAll(new HashSet<String>(filePaths.values()));
+                hashCache.save();
+                Log.i(TAG, "Hashed " + hashed.size() + " of " + songs.size() + " songs in "
+                        + (System.currentTimeMillis() - start) + "ms");
+
+                updateLibrary(hashed, true);
+                if (hostConnected && !hashed.isEmpty() && getMessagingService() != null) {
+                    //the host was sent our songs before they were hashed
+                    getMessagingService().sendLibraryMessageToHost(hashed, isRemoteLibrary());
+                }
+            }
+        }, TAG + " Hash Thread").start();
+    }
+
     @Override
     public void onDestroy() {
         unregisterReceivers();
@@ -138,7 +289,103 @@ public class MusicLibraryService extends Service {
                 @Override
                 public void onReceiveAction(Context context, Intent intent) {
                     List<SongMetadata> remoteMetas = intent.getParcelableArrayListExtra(MessagingService.EXTRA_SONG_METADATA);
-                    updateLibrary(remoteMetas, true);
+                    boolean partial = intent.getBooleanExtra(MessagingService.EXTRA_PARTIAL_LIBRARY, false);
+                    List<LibraryChanges> changes = intent.getParcelableArrayListExtra(MessagingService.EXTRA_LIBRARY_CHANGES);
+                    String address = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    if (changes != null) {
+                        applyLibraryChanges(remoteMetas, changes, true);
+                    } else {
+                        updateLibrary(remoteMetas, true, partial);
+                        if (!partial) {
+                            boolean remote = intent.getBooleanExtra(MessagingService.EXTRA_REMOTE_LIBRARY, false);
+                            guestLibraryReceived(address, remote);
+                        }
+                    }
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_SEARCH_LIBRARY_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    String address = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    int requestId  = intent.getIntExtra(MessagingService.EXTRA_REQUEST_ID, 0);
+                    String query   = intent.getStringExtra(MessagingService.EXTRA_QUERY);
+                    int offset     = intent.getIntExtra(MessagingService.EXTRA_OFFSET, 0);
+                    int count      = intent.getIntExtra(MessagingService.EXTRA_COUNT, REMOTE_PAGE_SIZE);
+                    sendSearchResults(address, requestId, query, offset, count);
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_SEARCH_RESULTS_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    int requestId  = intent.getIntExtra(MessagingService.EXTRA_REQUEST_ID, 0);
+                    int offset     = intent.getIntExtra(MessagingService.EXTRA_OFFSET, 0);
+                    int totalCount = intent.getIntExtra(MessagingService.EXTRA_TOTAL_COUNT, 0);
+                    List<SongMetadata> songs = intent.getParcelableArrayListExtra(MessagingService.EXTRA_SONG_METADATA);
+                    applySearchResults(requestId, offset, totalCount, songs, true);
+                }
+            })
+            .addLocalAction(MessagingService.ACTION_REQUEST_LIBRARY_MESSAGE, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    //the guest is missing changes...send it the changes since the versions it has
+                    String address = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    List<String> sources = intent.getStringArrayListExtra(MessagingService.EXTRA_SOURCE_ADDRESSES);
+                    int[] versions = intent.getIntArrayExtra(MessagingService.EXTRA_SOURCE_VERSIONS);
+                    Map<String, Integer> fromVersions = new HashMap<String, Integer>();
+                    for (int i = 0; i < sources.size(); i++) {
+                        fromVersions.put(sources.get(i), versions[i]);
+                    }
+                    List<SongMetadata> songs = new ArrayList<SongMetadata>();
+                    List<LibraryChanges> changes;
+                    synchronized(metadataMutex) {
+                        changes = getLibraryChanges(fromVersions, sources, songs);
+                    }
+                    if (!changes.isEmpty() && getMessagingService() != null) {
+                        getMessagingService().sendLibraryChangesMessageToGuest(address, songs, changes);
+                    }
+                }
+            })
+            .addLocalAction(ConnectionService.ACTION_GUEST_CONNECTED, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    //the guest is sent the library (or the first page of it) once it sends
+                    // us its own library, and tells us how it wants to browse ours
+                    String address = intent.getStringExtra(ConnectionService.EXTRA_GUEST_ADDRESS);
+                    synchronized(metadataMutex) {
+                        connectedGuests.add(address);
+                    }
+                }
+            })
+            .addLocalAction(ConnectionService.ACTION_HOST_CONNECTED, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    //the new host will send us its whole library, or the first page of
+                    // it if we browse remotely
+                    hostConnected = true;
+                    synchronized(metadataMutex) {
+                        receivedVersions.clear();
+                        requestedSources.clear();
+                        clearRemoteQueries();
+                        if (remoteLibrary) {
+                            RemoteQuery firstPage = new RemoteQuery();
+                            firstPage.requestId   = FIRST_PAGE_REQUEST_ID;
+                            firstPage.pending     = true;
+                            firstPage.requestTime = System.currentTimeMillis();
+                            remoteQueries.put(getRemoteQueryKey(null), firstPage);
+                        }
+                    }
+                }
+            })
+            .addLocalAction(ConnectionService.ACTION_HOST_DISCONNECTED, new IBroadcastActionHandler() {
+
+                @Override
+                public void onReceiveAction(Context context, Intent intent) {
+                    hostConnected = false;
                 }
             })
             .addLocalAction(UserList.ACTION_USER_LIST_UPDATE, new IBroadcastActionHandler() {
@@ -163,6 +410,10 @@ public class MusicLibraryService extends Service {
                 public void onReceiveAction(Context context, Intent intent) {
                     String macAddress = intent.getStringExtra(ConnectionService.EXTRA_GUEST_ADDRESS);
                     Log.w(TAG, macAddress +" disconnected");
+                    synchronized(metadataMutex) {
+                        connectedGuests.remove(macAddress);
+                        libraryGuests.remove(macAddress);
+                    }
                     removeLibraryForAddress(macAddress, true);
                 }
             })
@@ -178,6 +429,19 @@ public class MusicLibraryService extends Service {
         return getLibrary(null);
     }
     
+    /**
+     * Get the songs in the library that match a query.
+     * 
+     * Copies of a song on different devices are returned once.
+     * 
+     * When browsing the library remotely, this returns our own songs that match and
+     * the results received so far from the host, and asks the host for the first page
+     * of results if we do not have them (an ACTION_LIBRARY_UPDATED is sent when they
+     * arrive).  More results may be requested with {@link #loadMoreResults(String)}.
+     * 
+     * @param query The query to match, or null for the whole library
+     * @return
+     */
     public List<SongMetadata> getLibrary(String query) {     
         ArrayList<SongMetadata> filtered = new ArrayList<SongMetadata>();
         
@@ -192,10 +456,262 @@ public class MusicLibraryService extends Service {
                     } 
                 }                    
             }
-            return Collections.unmodifiableList(filtered);
+            if (browsingRemotely) {
+                RemoteQuery remoteQuery = remoteQueries.get(getRemoteQueryKey(query));
+                if (remoteQuery == null) {
+                    remoteQuery = new RemoteQuery();
+                    remoteQueries.put(getRemoteQueryKey(query), remoteQuery);
+                    trimRemoteQueries();
+                }
+                if (!remoteQuery.pending
+                        && System.currentTimeMillis() - remoteQuery.requestTime > REMOTE_QUERY_TTL_MS) {
+                    //new or old results...ask for the first page again
+                    requestResults(remoteQuery, query, 0);
+                }
+                filtered.addAll(remoteQuery.songs);
+                Collections.sort(filtered, new AlphabeticalComparator());
+            }
+            return Collections.unmodifiableList(removeCopies(filtered));
+        }
+    }
+
+    /**
+     * Remove the copies of songs that are on more than one device (songs with the
+     * same content hash), keeping the first copy of each.
+     * 
+     * @param songs
+     * @return
+     */
+    private List<SongMetadata> removeCopies(List<SongMetadata> songs) {
+        List<SongMetadata> distinct = new ArrayList<SongMetadata>(songs.size());
+        Set<Long> hashes = new HashSet<Long>();
+        for (SongMetadata song : songs) {
+            if (!isCopy(song, hashes)) {
+                distinct.add(song);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * @param song
+     * @param hashes The hashes of the songs seen so far, which the song's hash is added to
+     * @return True if the song is a copy of a song already seen.
+     */
+    private boolean isCopy(SongMetadata song, Set<Long> hashes) {
+        return song.getContentHash() != SongMetadata.UNKNOWN_HASH && !hashes.add(song.getContentHash());
+    }
+
+    /**
+     * Ask the host for the next page of songs that match a query, when browsing the
+     * library remotely.  An ACTION_LIBRARY_UPDATED is sent when they arrive.
+     * 
+     * @param query The query to match, or null for the whole library
+     * @return True if more songs were requested, false if there are no more songs to
+     * request (or we are not browsing remotely).
+     */
+    public boolean loadMoreResults(String query) {
+        synchronized(metadataMutex) {
+            RemoteQuery remoteQuery = remoteQueries.get(getRemoteQueryKey(query));
+            if (!browsingRemotely || remoteQuery == null || remoteQuery.pending
+                    || remoteQuery.songs.size() >= remoteQuery.totalCount) {
+                return false;
+            }
+            requestResults(remoteQuery, query, remoteQuery.songs.size());
+            return true;
+        }
+    }
+
+    /**
+     * @return True if this device browses the library remotely when it is a guest,
+     * instead of keeping a copy of it.
+     */
+    public boolean isRemoteLibrary() {
+        return remoteLibrary;
+    }
+
+    /**
+     * Set whether this device browses the library remotely when it is a guest.  This
+     * takes effect the next time it connects to a host.
+     * 
+     * @param remoteLibrary
+     */
+    public void setRemoteLibrary(boolean remoteLibrary) {
+        this.remoteLibrary = remoteLibrary;
+    }
+
+    /**
+     * Ask the host for a page of songs that match a query.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param remoteQuery
+     * @param query
+     * @param offset
+     */
+    private void requestResults(RemoteQuery remoteQuery, String query, int offset) {
+        if (getMessagingService() == null) {
+            return;
+        }
+        remoteQuery.requestId   = nextRequestId++;
+        remoteQuery.pending     = true;
+        remoteQuery.requestTime = System.currentTimeMillis();
+        getMessagingService().sendSearchLibraryMessage(remoteQuery.requestId, query, offset, REMOTE_PAGE_SIZE);
+    }
+
+    /**
+     * Apply a page of songs that match a query, received from the host.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, results come from network messages.
+     * 
+     * @param requestId The id of the request the results are for
+     * @param offset The index of the first song in the results
+     * @param totalCount The number of songs that match the query
+     * @param songs
+     * @param notify
+     */
+    void applySearchResults(int requestId, int offset, int totalCount, List<SongMetadata> songs, boolean notify) {
+        synchronized(metadataMutex) {
+            RemoteQuery remoteQuery = null;
+            for (RemoteQuery candidate : remoteQueries.values()) {
+                if (candidate.requestId == requestId && candidate.pending) {
+                    remoteQuery = candidate;
+                }
+            }
+            if (remoteQuery == null) {
+                //results for a query we no longer have
+                return;
+            }
+            if (offset == 0) {
+                remoteQuery.songs.clear();
+            }
+            if (offset == remoteQuery.songs.size()) {
+                remoteQuery.songs.addAll(songs);
+            }
+            remoteQuery.totalCount = totalCount;
+            remoteQuery.pending    = false;
+            //the host sends results only if it lets us browse remotely
+            browsingRemotely = true;
+        }
+        if (notify) {
+            new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
+        }
+    }
+
+    /**
+     * Find a page of songs that match a query.  Copies of a song on different
+     * devices are counted once.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, queries come from network messages.
+     * 
+     * @param query The query to match, or null for the whole library
+     * @param excludeAddress The address of songs to leave out (the songs the guest has), or null
+     * @param offset The index of the first matching song to return
+     * @param count The most songs to return
+     * @param results The list to add the songs to
+     * @return The number of songs that match the query
+     */
+    int searchLibrary(String query, String excludeAddress, int offset, int count, List<SongMetadata> results) {
+        int totalCount = 0;
+        Set<Long> hashes = new HashSet<Long>();
+        synchronized(metadataMutex) {
+            for (SongMetadata song : metadataList) {
+                if (song.getMacAddress().equals(excludeAddress)
+                        || (query != null && !songMatchesQuery(query, song))
+                        || isCopy(song, hashes)) {
+                    continue;
+                }
+                if (totalCount >= offset && totalCount < offset + count) {
+                    results.add(song);
+                }
+                totalCount++;
+            }
+        }
+        return totalCount;
+    }
+
+    /**
+     * Send a page of songs that match a query to a guest.
+     * 
+     * @param address
+     * @param requestId
+     * @param query
+     * @param offset
+     * @param count
+     */
+    private void sendSearchResults(String address, int requestId, String query, int offset, int count) {
+        List<SongMetadata> results = new ArrayList<SongMetadata>();
+        int totalCount = searchLibrary(query, address, Math.max(offset, 0),
+                Math.min(count, MAX_REMOTE_PAGE_SIZE), results);
+        if (getMessagingService() != null) {
+            getMessagingService().sendSearchResultsMessage(address, requestId, offset, totalCount, results);
+        }
+    }
+
+    /**
+     * Called when a guest's library is received by the host.  The first time, the guest
+     * is sent the library, or the first page of it if it browses the library remotely.
+     * 
+     * @param address
+     * @param remote
+     */
+    private void guestLibraryReceived(String address, boolean remote) {
+        List<SongMetadata> songs = new ArrayList<SongMetadata>();
+        List<LibraryChanges> changes;
+        synchronized(metadataMutex) {
+            if (!connectedGuests.contains(address) || libraryGuests.contains(address)) {
+                return;
+            }
+            if (remote) {
+                changes = null;
+            } else {
+                //after this, the guest will receive just the changes
+                libraryGuests.add(address);
+                changes = getLibraryChanges(new HashMap<String, Integer>(), changeLog.getVersions().keySet(), songs);
+            }
+        }
+        if (remote) {
+            sendSearchResults(address, FIRST_PAGE_REQUEST_ID, null, 0, REMOTE_PAGE_SIZE);
+        } else if (!changes.isEmpty() && getMessagingService() != null) {
+            getMessagingService().sendLibraryChangesMessageToGuest(address, songs, changes);
         }
     }
 
+    /**
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param query
+     * @return The key for the results of a query (queries are not case sensitive).
+     */
+    private String getRemoteQueryKey(String query) {
+        return query != null ? query.toLowerCase() : null;
+    }
+
+    /**
+     * Drop the least recently used query results, to keep at most MAX_REMOTE_QUERIES.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     */
+    private void trimRemoteQueries() {
+        Iterator<RemoteQuery> it = remoteQueries.values().iterator();
+        while (remoteQueries.size() > MAX_REMOTE_QUERIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Stop browsing the library remotely, and drop all query results.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     */
+    private void clearRemoteQueries() {
+        remoteQueries.clear();
+        browsingRemotely = false;
+    }
+
     /**
      * @param query
      * @param data
@@ -235,42 +751,237 @@ public class MusicLibraryService extends Service {
      * @param notify
      */
     void updateLibrary(Collection<SongMetadata> additionalSongs, boolean notify) {
+        updateLibrary(additionalSongs, notify, false);
+    }
+
+    /**
+     * Update the library with the additional songs passed in, which may be part of
+     * a library that is still being received.
+     * 
+     * Partial libraries are published to the application as they arrive (at most once
+     * every PARTIAL_UPDATE_INTERVAL_MS), so the library fills in while the rest is
+     * received, but they are not sent to the guests.  The whole library is sent once
+     * it is received (in an update that is not partial).
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, the library gets updated from network messages and the onCreate method.
+     * 
+     * @param additionalSongs
+     * @param notify
+     * @param partial
+     */
+    void updateLibrary(Collection<SongMetadata> additionalSongs, boolean notify, boolean partial) {
+        synchronized(metadataMutex) {
+            mergeSongs(additionalSongs);
+        }
+        if (notify) {
+            if (!partial) {
+                notifyLibraryUpdated();
+            } else if (System.currentTimeMillis() - lastPartialUpdate >= PARTIAL_UPDATE_INTERVAL_MS) {
+                lastPartialUpdate = System.currentTimeMillis();
+                new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
+            }
+        }
+    }
+
+    /**
+     * Merge songs into the library, and record the songs that were added or changed.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param additionalSongs
+     */
+    private void mergeSongs(Collection<SongMetadata> additionalSongs) {
+        for (SongMetadata song : additionalSongs) {
+            String key = SongMetadataUtils.getUniqueKey(song);
+            if (metadataMap.containsKey(key)) {
+                //song already exists, replace the existing entry in the list with the new data.
+                int inx = metadataMap.get(key);
+                if (!SongMetadataUtils.isTheSameMetadata(metadataList.get(inx), song)) {
+                    changeLog.songUpdated(song);
+                }
+                metadataList.set(inx, song);
+            } else {
+                //new song to add to the list...add it, and store the position in the map
+                int nextInx = metadataList.size();
+                metadataList.add(song);
+                metadataMap.put(key, nextInx);
+                changeLog.songUpdated(song);
+            }
+        }
+
+        /*
+         * by default we want to order alphabetically
+         * when we have more options, this can be moved elsewhere
+         * and governed by some type of flag.
+         */
+        orderAlphabetically();
+    }
+
+    /**
+     * Apply changes to the library received from the host.  Changes for a source
+     * are applied if they start at or before the version we have, and ignored if we
+     * already have them.  If we are missing earlier changes, we ask the host to
+     * send the changes since the version we have.
+     * 
+     * NOTE: This should not be called by an outside user.  It is package protected to allow us to unit test
+     * it, but generally speaking, the library gets updated from network messages and the onCreate method.
+     * 
+     * @param songs The songs added or updated, or all songs for snapshots
+     * @param changes
+     * @param notify
+     */
+    void applyLibraryChanges(Collection<SongMetadata> songs, List<LibraryChanges> changes, boolean notify) {
+        Map<String, Integer> missing = new HashMap<String, Integer>();
         synchronized(metadataMutex) {
-            for (SongMetadata song : additionalSongs) {
-                String key = SongMetadataUtils.getUniqueKey(song);
-                if (metadataMap.containsKey(key)) {
-                    //song already exists, replace the existing entry in the list with the new data.
-                    metadataList.set(metadataMap.get(key), song);
+            Set<String> applied = new HashSet<String>();
+            for (LibraryChanges source : changes) {
+                String macAddress = source.getMacAddress();
+                //our own songs are not changed by anyone else
+                if (macAddress.equals(myMacAddress)) {
+                    continue;
+                }
+                Integer known = receivedVersions.get(macAddress);
+                int version = known != null ? known : 0;
+                Set<String> removeKeys = new HashSet<String>();
+                if (source.isSnapshot()) {
+                    //a snapshot replaces all of the songs we have for this source
+                    for (SongMetadata song : metadataList) {
+                        if (song.getMacAddress().equals(macAddress)) {
+                            removeKeys.add(SongMetadataUtils.getUniqueKey(song));
+                        }
+                    }
+                } else if (source.getToVersion() <= version) {
+                    //we already have these changes
+                    continue;
+                } else if (source.getFromVersion() > version) {
+                    //we're missing changes
+                    if (!requestedSources.contains(macAddress)) {
+                        missing.put(macAddress, version);
+                    }
+                    continue;
                 } else {
-                    //new song to add to the list...add it, and store the position in the map
-                    int nextInx = metadataList.size();
-                    metadataList.add(song);
-                    metadataMap.put(key, nextInx);
+                    for (long id : source.getRemovedIds()) {
+                        removeKeys.add(SongMetadataUtils.getUniqueKey(macAddress, id));
+                    }
+                }
+                removeSongs(removeKeys);
+                receivedVersions.put(macAddress, source.getToVersion());
+                requestedSources.remove(macAddress);
+                applied.add(macAddress);
+            }
+
+            List<SongMetadata> appliedSongs = new ArrayList<SongMetadata>();
+            for (SongMetadata song : songs) {
+                if (applied.contains(song.getMacAddress())) {
+                    appliedSongs.add(song);
                 }
             }
-            
-            /*
-             * by default we want to order alphabetically
-             * when we have more options, this can be moved elsewhere
-             * and governed by some type of flag.
-             */
-            orderAlphabetically();
+            mergeSongs(appliedSongs);
+            requestedSources.addAll(missing.keySet());
+        }
+        if (!missing.isEmpty() && getMessagingService() != null) {
+            getMessagingService().sendRequestLibraryMessage(missing);
         }
         if (notify) {
             notifyLibraryUpdated();
         }
     }
 
+    /**
+     * Get the changes to the library since the specified versions.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param fromVersions The version of each source the changes are for (missing sources are
+     * treated as version 0).
+     * @param sources The sources to get changes for.
+     * @param songs A list to add the songs added or updated to.  Snapshots add all of the songs
+     * for the source.
+     * @return The changes for each source that changed.
+     */
+    private List<LibraryChanges> getLibraryChanges(Map<String, Integer> fromVersions,
+            Collection<String> sources, List<SongMetadata> songs) {
+        List<LibraryChanges> changes = new ArrayList<LibraryChanges>();
+        for (String macAddress : sources) {
+            Integer from = fromVersions.get(macAddress);
+            int version = from != null ? from : 0;
+            if (version == changeLog.getVersion(macAddress)) {
+                continue;
+            }
+            LibraryChanges sourceChanges = changeLog.getChangesSince(macAddress, version, songs);
+            if (sourceChanges == null) {
+                //too far behind...send all of the songs for the source
+                sourceChanges = changeLog.getSnapshot(macAddress);
+                for (SongMetadata song : metadataList) {
+                    if (song.getMacAddress().equals(macAddress)) {
+                        songs.add(song);
+                    }
+                }
+            }
+            changes.add(sourceChanges);
+        }
+        return changes;
+    }
+
+    /**
+     * Remove songs from the library, and record the songs that were removed.
+     * 
+     * NOTE: must be called with the metadataMutex held.
+     * 
+     * @param keys The unique keys of the songs to remove.
+     */
+    private void removeSongs(Set<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        //remove the songs by assembling a new list and map with all songs
+        // except those with the specified keys
+        List<SongMetadata>   newList = new ArrayList<SongMetadata>();
+        Map<String, Integer> newMap  = new HashMap<String, Integer>();
+        for (SongMetadata song : metadataList) {
+            String key = SongMetadataUtils.getUniqueKey(song);
+            if (!keys.contains(key)) {
+                int nextInx = newList.size();
+                newList.add(song);
+                newMap.put(key, nextInx);
+            } else {
+                changeLog.songRemoved(song);
+            }
+        }
+        //replace THE list and map with the new structures
+        metadataList = newList;
+        metadataMap = newMap;
+    }
+
     /**
      * Notify that the library was updated.  This includes
-     * sending an intent to the system, and sending the library out
-     * to the guests.
+     * sending an intent to the system, and sending the changes
+     * to the library out to the guests.
      */
     private void notifyLibraryUpdated() {
         new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
-        //send the updated library to all the guests out there
-        if (getMessagingService() != null) {
-            getMessagingService().sendLibraryMessageToGuests(getLibrary());
+        //send the changes since the last update to all the guests out there
+        List<SongMetadata> songs = new ArrayList<SongMetadata>();
+        List<LibraryChanges> changes;
+        synchronized(metadataMutex) {
+            changes = getLibraryChanges(sentVersions, changeLog.getVersions().keySet(), songs);
+            sentVersions = changeLog.getVersions();
+        }
+        if (changes.isEmpty() || getMessagingService() == null) {
+            return;
+        }
+        List<String> guests;
+        synchronized(metadataMutex) {
+            guests = libraryGuests.equals(connectedGuests) ? null : new ArrayList<String>(libraryGuests);
+        }
+        if (guests == null) {
+            getMessagingService().sendLibraryChangesMessageToGuests(songs, changes);
+        } else {
+            //some guests browse the library remotely, or have not been sent the library yet
+            for (String guest : guests) {
+                getMessagingService().sendLibraryChangesMessageToGuest(guest, songs, changes);
+            }
         }
     }
 
@@ -285,21 +996,14 @@ public class MusicLibraryService extends Service {
      */
     void removeLibraryForAddress(String macAddress, boolean notify) {
         synchronized(metadataMutex) {
-            //remove the songs for the specified address by assembling a new list
-            // and map with all songs except those for that address
-            List<SongMetadata>   newList = new ArrayList<SongMetadata>();
-            Map<String, Integer> newMap  = new HashMap<String, Integer>();
+            //remove the songs for the specified address
+            Set<String> keys = new HashSet<String>();
             for (SongMetadata song : metadataList) {
-                if (!song.getMacAddress().equals(macAddress)) {
-                    int nextInx = newList.size();
-                    newList.add(song);
-                    String key = SongMetadataUtils.getUniqueKey(song);
-                    newMap.put(key, nextInx);
+                if (song.getMacAddress().equals(macAddress)) {
+                    keys.add(SongMetadataUtils.getUniqueKey(song));
                 }
             }
-            //replace THE list and map with the new structures
-            metadataList = newList;
-            metadataMap = newMap;
+            removeSongs(keys);
         }
         if (notify) {
             notifyLibraryUpdated();
@@ -331,7 +1035,18 @@ public class MusicLibraryService extends Service {
             // of getting "my" address
             String key = SongMetadataUtils.getUniqueKey(address, songId);
             Integer inx = metadataMap.get(key);
-            return inx != null ? metadataList.get(inx) : null;
+            if (inx != null) {
+                return metadataList.get(inx);
+            }
+            //when browsing remotely, the song may be in the results of a query
+            for (RemoteQuery remoteQuery : remoteQueries.values()) {
+                for (SongMetadata song : remoteQuery.songs) {
+                    if (song.getId() == songId && song.getMacAddress().equals(address)) {
+                        return song;
+                    }
+                }
+            }
+            return null;
         }
     }
     private SongMetadata lookupMySongById(long songId) {
@@ -357,6 +1072,60 @@ public class MusicLibraryService extends Service {
         return msw.getSongFilePath(song);
     }
 
+    /**
+     * Find the copies of a song on other devices, by the size and hash of its contents.
+     * 
+     * @param song
+     * @return The copies of the song, other than the song itself and our own copies.
+     */
+    public List<SongMetadata> findRemoteCopies(SongMetadata song) {
+        List<SongMetadata> copies = new ArrayList<SongMetadata>();
+        if (song.getContentHash() == SongMetadata.UNKNOWN_HASH) {
+            return copies;
+        }
+        synchronized(metadataMutex) {
+            for (SongMetadata copy : metadataList) {
+                if (copy.getContentHash() == song.getContentHash()
+                        && copy.getFileSize() == song.getFileSize()
+                        && !copy.getMacAddress().equals(this.myMacAddress)
+                        && !SongMetadataUtils.isTheSameSong(copy, song)) {
+                    copies.add(copy);
+                }
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Find a copy of a song in our own library, by the hash of its contents.
+     * 
+     * @param contentHash
+     * @return A string path to our copy of the song, or null if we don't have it.
+     */
+    public String findLocalCopy(long contentHash) {
+        if (contentHash == SongMetadata.UNKNOWN_HASH) {
+            return null;
+        }
+        SongMetadata copy = null;
+        synchronized(metadataMutex) {
+            for (SongMetadata song : metadataList) {
+                if (song.getContentHash() == contentHash && song.getMacAddress().equals(this.myMacAddress)) {
+                    copy = song;
+                    break;
+                }
+            }
+        }
+        if (copy == null) {
+            return null;
+        }
+        try {
+            return new MediaStoreWrapper(MusicLibraryService.this).getSongFilePath(copy);
+        } catch (SongNotFoundException e) {
+            Log.w(TAG, "Local copy of song not found", e);
+            return null;
+        }
+    }
+
     private String getMyMac(){
         String myMac;
         UserListService userService = getUserListService();
@@ -390,9 +1159,18 @@ public class MusicLibraryService extends Service {
     }
 
     public void clearExternalMusic() {
-        metadataList = getMyModifiableLibrary();
-        metadataMap.clear();
-        orderAlphabetically();
+        synchronized(metadataMutex) {
+            Set<String> keys = new HashSet<String>();
+            for (SongMetadata song : metadataList) {
+                if (!song.getMacAddress().equals(this.myMacAddress)) {
+                    keys.add(SongMetadataUtils.getUniqueKey(song));
+                }
+            }
+            removeSongs(keys);
+            receivedVersions.clear();
+            requestedSources.clear();
+            clearRemoteQueries();
+        }
         new LocalBroadcastIntent(ACTION_LIBRARY_UPDATED).send(this);
     }
 }
@@ -37,7 +37,9 @@ import com.thelastcrusade.soundstream.audio.SingleFileAudioPlayer;
 import com.thelastcrusade.soundstream.manager.PlaylistDataManager;
 import com.thelastcrusade.soundstream.model.Playlist;
 import com.thelastcrusade.soundstream.model.PlaylistEntry;
+import com.thelastcrusade.soundstream.model.PlaylistOperation;
 import com.thelastcrusade.soundstream.model.SongMetadata;
+import com.thelastcrusade.soundstream.net.message.PlaylistMessage;
 import com.thelastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.thelastcrusade.soundstream.service.MusicLibraryService.MusicLibraryServiceBinder;
 import com.thelastcrusade.soundstream.util.BroadcastRegistrar;
@@ -144,6 +146,12 @@ public class PlaylistService extends Service {
 
     private int lastEntryId = 0;
 
+    //set when a guest has asked the host for the whole playlist, and is waiting for it
+    private boolean playlistRequested;
+
+    //set when a guest has loaded a playlist from its current host, so older playlists can be ignored
+    private boolean playlistLoaded;
+
     @Override
     public IBinder onBind(Intent intent) {
         messagingServiceLocator = new ServiceLocator<MessagingService>(
@@ -156,6 +164,8 @@ public class PlaylistService extends Service {
         isLocalPlayer      = true;
         this.mThePlayer    = new AudioPlayerWithEvents(this.mAudioPlayer, this);
         this.mPlaylist     = new Playlist();
+        //the local player owns the playlist, and sends its changes to the guests
+        this.mPlaylist.setTrackChanges(isLocalPlayer);
         
         musicLibraryLocator = new ServiceLocator<MusicLibraryService>(
                 this, MusicLibraryService.class, MusicLibraryServiceBinder.class);
@@ -189,9 +199,8 @@ public class PlaylistService extends Service {
                 //NOTE: this is an indicator that the song data can be deleted...therefore, we don't
                 //want to set the flag until after the song has been played
                 if (currentEntry != null) {
-                    currentEntry.setPlayed(true);
-                    getMessagingService()
-                        .sendSongStatusMessage(currentEntry);
+                    mPlaylist.setStatus(currentEntry, currentEntry.isLoaded(), true);
+                    sendPlaylistChanges();
                     currentEntry = null;
                 }
                 // automatically play the next song, but only if we're not paused
@@ -220,6 +229,9 @@ public class PlaylistService extends Service {
                         context
                 );
                 isLocalPlayer = false;
+                mPlaylist.setTrackChanges(false);
+                playlistRequested = false;
+                playlistLoaded = false;
                 stopDataManager();
             }
         })
@@ -232,6 +244,7 @@ public class PlaylistService extends Service {
                 }
                 mThePlayer = new AudioPlayerWithEvents(mAudioPlayer, PlaylistService.this);
                 isLocalPlayer = true;
+                mPlaylist.setTrackChanges(true);
                 currentEntry = null;
                 startDataManager();
             }
@@ -239,7 +252,9 @@ public class PlaylistService extends Service {
         .addLocalAction(ConnectionService.ACTION_GUEST_CONNECTED, new IBroadcastActionHandler() {
             @Override
             public void onReceiveAction(Context context, Intent intent) {
-                getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+                //send the whole playlist to the new guest...the other guests are already up to date
+                String guestMac = intent.getStringExtra(ConnectionService.EXTRA_GUEST_ADDRESS);
+                getMessagingService().sendPlaylistMessage(guestMac, mPlaylist.getVersion(), mPlaylist.getSongsToPlay());
                 if (currentEntry != null) {
                     getMessagingService().sendPlayStatusMessage(currentEntry, mThePlayer.isPlaying());
                 }
@@ -251,6 +266,7 @@ public class PlaylistService extends Service {
                 String guestMac = (String) intent.getExtras().get(ConnectionService.EXTRA_GUEST_ADDRESS);
                 mDataManager.cleanRemotelyLoadedFiles(guestMac);
                 mPlaylist.removeSongsByMac(guestMac);
+                sendPlaylistChanges();
             }
         })
         .addLocalAction(MessagingService.ACTION_PLAY_STATUS_MESSAGE, new IBroadcastActionHandler() {
@@ -378,11 +394,37 @@ public class PlaylistService extends Service {
                 if (isLocalPlayer) {
                     Log.wtf(TAG, "Received PlaylistUpdateMessage as host...these messages are only for guests");
                 }
-                List<PlaylistEntry> newList =
-                        intent.getParcelableArrayListExtra(MessagingService.EXTRA_PLAYLIST_ENTRY);
-                mPlaylist.clear();
-                for (PlaylistEntry entry : newList) {
-                    mPlaylist.add(entry);
+                int version = intent.getIntExtra(MessagingService.EXTRA_PLAYLIST_VERSION, PlaylistMessage.UNKNOWN_VERSION);
+                List<PlaylistOperation> operations =
+                        intent.getParcelableArrayListExtra(MessagingService.EXTRA_PLAYLIST_OPERATIONS);
+                List<PlaylistEntry> newEntries = new ArrayList<PlaylistEntry>();
+                if (operations != null) {
+                    //apply the changes to our copy of the playlist...if we've missed changes, ask
+                    // the host for the whole playlist
+                    if (!mPlaylist.applyOperations(version - operations.size(), operations)) {
+                        if (!playlistRequested) {
+                            playlistRequested = true;
+                            getMessagingService().sendRequestPlaylistMessage(mPlaylist.getVersion());
+                        }
+                        return;
+                    }
+                    for (PlaylistOperation operation : operations) {
+                        if (operation.getType() == PlaylistOperation.INSERT) {
+                            newEntries.add(operation.getEntry());
+                        }
+                    }
+                } else {
+                    if (playlistLoaded && version != PlaylistMessage.UNKNOWN_VERSION && version < mPlaylist.getVersion()) {
+                        //we've already applied a newer playlist
+                        Log.w(TAG, "Ignoring playlist version " + version + ", at version " + mPlaylist.getVersion());
+                        return;
+                    }
+                    newEntries = intent.getParcelableArrayListExtra(MessagingService.EXTRA_PLAYLIST_ENTRY);
+                    mPlaylist.load(newEntries, version);
+                    playlistRequested = false;
+                    playlistLoaded = true;
+                }
+                for (PlaylistEntry entry : newEntries) {
                     //if the entry has an id assigned, check to see if it's greater than
                     // our last id...if so, we want to keep this updated because if we become
                     // host (from guest), we need to make sure we don't reuse ids.
@@ -394,6 +436,19 @@ public class PlaylistService extends Service {
                 new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(PlaylistService.this);
             }
         })
+        .addLocalAction(MessagingService.ACTION_REQUEST_PLAYLIST_MESSAGE, new IBroadcastActionHandler() {
+
+            @Override
+            public void onReceiveAction(Context context, Intent intent) {
+                if (!isLocalPlayer) {
+                    Log.wtf(TAG, "Received RequestPlaylistMessage as guest...these messages are only for the host");
+                    return;
+                }
+                //the guest is missing changes...send it the whole playlist
+                String guestMac = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                getMessagingService().sendPlaylistMessage(guestMac, mPlaylist.getVersion(), mPlaylist.getSongsToPlay());
+            }
+        })
         .addLocalAction(MessagingService.ACTION_SONG_STATUS_MESSAGE, new IBroadcastActionHandler() {
             
             @Override
@@ -407,20 +462,17 @@ public class PlaylistService extends Service {
                 boolean loaded    = intent.getBooleanExtra(MessagingService.EXTRA_LOADED, false);
                 boolean played    = intent.getBooleanExtra(MessagingService.EXTRA_PLAYED, false);
 
-                //TODO: this may be done more efficiently by using mPlaylist.findEntryByAddressSongAndEntry
-                SongMetadata song = getMusicLibraryService().lookupSongByAddressAndId(macAddress, songId);
-                if (song != null) {
-                    PlaylistEntry entry = mPlaylist.findEntryBySongAndId(song, entryId);
-                    if (entry != null) {
-                        entry.setLoaded(loaded);
-                        entry.setPlayed(played);
-                        // send an intent to the fragments that the playlist is updated
-                        new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(PlaylistService.this);
-                    } else {
-                        Log.e(TAG, "Attempting to update information about a song that is not in our playlist: " + song);
-                    }
+                //NOTE: look the entry up directly, since guests that browse the library
+                // remotely may not have the song in their library
+                PlaylistEntry entry = mPlaylist.findEntryByAddressIdAndEntry(macAddress, songId, entryId);
+                if (entry != null) {
+                    entry.setLoaded(loaded);
+                    entry.setPlayed(played);
+                    // send an intent to the fragments that the playlist is updated
+                    new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(PlaylistService.this);
                 } else {
-                    Log.e(TAG, "MusicLibraryService cannot find song");
+                    Log.e(TAG, "Attempting to update information about a song that is not in our playlist: "
+                            + macAddress + ", " + songId);
                 }
             }
         })
@@ -454,7 +506,7 @@ public class PlaylistService extends Service {
 
     protected void startDataManager() {
         if (mDataManager == null) {
-            mDataManager       = new PlaylistDataManager(PlaylistService.this, messagingServiceLocator);
+            mDataManager       = new PlaylistDataManager(PlaylistService.this, messagingServiceLocator, musicLibraryLocator);
             mDataManagerThread = new Thread(mDataManager, PlaylistDataManager.class.getSimpleName() + " Thread");
             mDataManagerThread.start();
         }
@@ -544,7 +596,8 @@ public class PlaylistService extends Service {
                 //we have a song available to play...play it!
                 this.currentEntry = song;
                 this.mAudioPlayer.setSong(song);
-                //notify the guests that a new song has been selected
+                //send the guests the new play position, and notify them that a new song has been selected
+                sendPlaylistChanges();
                 getMessagingService().sendPlayStatusMessage(song, mThePlayer.isPlaying());
                 //the song has been set...indicate this in the return value
                 songSet = true;
@@ -568,7 +621,26 @@ public class PlaylistService extends Service {
             }
         }
         //send a message to the guests with the new playlist
-        getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+        sendPlaylistChanges();
+    }
+
+    /**
+     * Send the changes to the playlist to the guests.  This sends just the
+     * operations that changed the playlist, unless the changes require the whole
+     * playlist to be sent (e.g. when the playlist is reset).
+     * 
+     */
+    private void sendPlaylistChanges() {
+        if (mDataManager != null) {
+            //let the data manager know what songs are coming up, so it keeps them around
+            mDataManager.setPlaylist(mPlaylist.getSongsToPlay(), mPlaylist.getPosition());
+        }
+        List<PlaylistOperation> operations = mPlaylist.takeOperations();
+        if (operations == null) {
+            getMessagingService().sendPlaylistMessage(mPlaylist.getVersion(), mPlaylist.getSongsToPlay());
+        } else if (!operations.isEmpty()) {
+            getMessagingService().sendPlaylistChangesMessage(mPlaylist.getVersion(), operations, mPlaylist.getSongsToPlay());
+        }
     }
 
     public void clearPlaylist() {
@@ -615,19 +687,19 @@ public class PlaylistService extends Service {
         // will load data into the same objects that are held in the playlist
         
         entry.setEntryId(++lastEntryId);
-        mPlaylist.add(entry);
         if (isLocalPlayer) {
+            mPlaylist.add(entry);
             mDataManager.addToLoadQueue(entry);
             new LocalBroadcastIntent(ACTION_SONG_ADDED).putExtra(EXTRA_SONG,
                     entry).send(this);
             // send an intent to the fragments that the playlist is updated
             new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
 
-            // send a message to the guests with the new playlist
-            getMessagingService().sendPlaylistMessage(
-                    mPlaylist.getSongsToPlay());
+            // send a message to the guests with the change to the playlist
+            sendPlaylistChanges();
         } else {
-            // send a message to the host to add this song
+            // send a message to the host to add this song...the host will send the
+            // entry back to us, in the same position as in its playlist
             getMessagingService().sendAddToPlaylistMessage(entry);
         }
     }
@@ -653,9 +725,9 @@ public class PlaylistService extends Service {
                     //otherwise, we may need to just skip the current entry (if it was removed)
                     skip();
                 }
-                //send a message to the guests with the new playlist
-                getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
-                getMessagingService().sendCancelSongMessage(entry.getMacAddress(), entry.getId());
+                //send a message to the guests with the change to the playlist
+                sendPlaylistChanges();
+                mDataManager.cancelLoading(entry);
             } else {
                 //send a message to the host to remove this song
                 getMessagingService().sendRemoveFromPlaylistMessage(entry);
@@ -684,8 +756,8 @@ public class PlaylistService extends Service {
             mPlaylist.bumpSong(entry);
             
             new LocalBroadcastIntent(ACTION_PLAYLIST_UPDATED).send(this);
-            //send a message to the guests with the new playlist
-            getMessagingService().sendPlaylistMessage(mPlaylist.getSongsToPlay());
+            //send a message to the guests with the change to the playlist
+            sendPlaylistChanges();
         } else {
             //send a message to the host to bump this song
             getMessagingService().sendBumpSongOnPlaylistMessage(entry);
@@ -20,20 +20,28 @@ package com.thelastcrusade.soundstream.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 
 import com.thelastcrusade.soundstream.library.SongNotFoundException;
 import com.thelastcrusade.soundstream.model.SongMetadata;
 import com.thelastcrusade.soundstream.net.MessageFuture;
 import com.thelastcrusade.soundstream.net.MessageFuture.IFinishedHandler;
+import com.thelastcrusade.soundstream.net.message.FileManifest;
+import com.thelastcrusade.soundstream.net.message.RequestSongMessage;
 import com.thelastcrusade.soundstream.service.MessagingService.MessagingServiceBinder;
 import com.thelastcrusade.soundstream.service.MusicLibraryService.MusicLibraryServiceBinder;
 import com.thelastcrusade.soundstream.util.BroadcastRegistrar;
@@ -55,7 +63,33 @@ public class TransferService extends Service {
     private ServiceLocator<MessagingService> messagingServiceLocator;
     private ServiceLocator<MusicLibraryService> musicLibraryServiceLocator;
 
-    private Map<String, MessageFuture> messageFutures = new HashMap<String, MessageFuture>();
+    /**
+     * The number of song manifests to keep.  Computing a manifest reads the
+     * whole song, so we keep the manifests of the last few songs requested,
+     * for the requests that follow to resume or repair a transfer.
+     */
+    private static final int MAX_CACHED_MANIFESTS = 8;
+
+    //a song may be sent in several parts, so there may be several futures for each song
+    private Map<String, List<MessageFuture>> messageFutures = new HashMap<String, List<MessageFuture>>();
+
+    //the number of cancels received for each song, so requests still waiting to be
+    // sent can tell they were canceled (guarded by messageFutures)
+    private Map<String, Integer> cancelCounts = new HashMap<String, Integer>();
+
+    //requests are answered in order on this thread, because answering a request may
+    // read the whole song to compute its manifest
+    private ExecutorService sendExecutor;
+
+    //NOTE: kept in access order, so it must be used with its lock held
+    private Map<String, FileManifest> manifests = new LinkedHashMap<String, FileManifest>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileManifest> eldest) {
+            return size() > MAX_CACHED_MANIFESTS;
+        }
+    };
 
     public class TransferServiceBinder extends Binder implements
             ILocalBinder<TransferService> {
@@ -72,6 +106,7 @@ public class TransferService extends Service {
                 this, MessagingService.class, MessagingServiceBinder.class);
         musicLibraryServiceLocator = new ServiceLocator<MusicLibraryService>(
                 this, MusicLibraryService.class, MusicLibraryServiceBinder.class);
+        sendExecutor = Executors.newSingleThreadExecutor();
 
         registerReceivers();
     }
@@ -79,6 +114,7 @@ public class TransferService extends Service {
     @Override
     public void onDestroy() {
         unregisterReceivers();
+        sendExecutor.shutdownNow();
         messagingServiceLocator.unbind();
         musicLibraryServiceLocator.unbind();
         super.onDestroy();
@@ -100,14 +136,17 @@ public class TransferService extends Service {
                 
                 @Override
                 public void onReceiveAction(Context context, Intent intent) {
-                    String fromAddr = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
-                    long   songId   = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
+                    String fromAddr    = intent.getStringExtra(MessagingService.EXTRA_ADDRESS);
+                    long   songId      = intent.getLongExtra(  MessagingService.EXTRA_SONG_ID, SongMetadata.UNKNOWN_SONG);
+                    String partialName = intent.getStringExtra(MessagingService.EXTRA_PARTIAL_FILE_NAME);
+                    int    offset      = intent.getIntExtra(   MessagingService.EXTRA_OFFSET, 0);
+                    int    length      = intent.getIntExtra(   MessagingService.EXTRA_LENGTH, RequestSongMessage.TO_END);
                     Log.i(TAG, "Request Song Message received from " + fromAddr);
 
                     if (songId == SongMetadata.UNKNOWN_SONG) {
                         Log.wtf(TAG, "REQUEST_SONG_MESSAGE action received without a valid song id");    
                     } else {
-                        sendSongData(fromAddr, songId);
+                        queueSongData(fromAddr, songId, partialName, offset, length);
                     }
                 }
             })
@@ -123,11 +162,20 @@ public class TransferService extends Service {
                         if (songId == SongMetadata.UNKNOWN_SONG) {
                             Log.wtf(TAG, "REQUEST_SONG_MESSAGE action received without a valid song id");    
                         } else {
-                            MessageFuture future = messageFutures.remove(makeKey(fromAddr, songId));
-                            if (future != null) {
-                                future.cancel();
+                            List<MessageFuture> futures;
+                            //NOTE: futures finish on the writer thread
+                            synchronized (messageFutures) {
+                                String key = makeKey(fromAddr, songId);
+                                futures = messageFutures.remove(key);
+                                //also cancel the requests that are not sent yet
+                                cancelCounts.put(key, getCancelCount(key) + 1);
+                            }
+                            if (futures != null) {
+                                for (MessageFuture future : futures) {
+                                    future.cancel();
+                                }
                             }
-                            
+
                         }
                     } catch (IOException e) {
                         Log.wtf(TAG, e);
@@ -145,20 +193,107 @@ public class TransferService extends Service {
         return requestAddr + "_" + songId;
     }
 
-    private void sendSongData(String requestAddr, long songId) {
+    /**
+     * NOTE: must be called with the messageFutures lock held.
+     * 
+     * @param key
+     * @return The number of cancels received for the song.
+     */
+    private int getCancelCount(String key) {
+        Integer count = this.cancelCounts.get(key);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Queue a request to be answered on the send thread (see
+     * {@link #sendSongData(String, long, String, int, int, int)}).
+     * 
+     * @param requestAddr
+     * @param songId
+     * @param partialFileName
+     * @param offset
+     * @param length
+     */
+    private void queueSongData(final String requestAddr, final long songId, final String partialFileName,
+            final int offset, final int length) {
+        final int cancelCount;
+        synchronized (this.messageFutures) {
+            cancelCount = getCancelCount(makeKey(requestAddr, songId));
+        }
+        sendExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                sendSongData(requestAddr, songId, partialFileName, offset, length, cancelCount);
+            }
+        });
+    }
+
+    /**
+     * Send the song data to the requester.  If the requester named a partial
+     * file, the requested part of the song is sent in chunks (only peers that
+     * understand chunked transfers name a partial file), otherwise the whole
+     * song is sent.
+     * 
+     * @param requestAddr
+     * @param songId
+     * @param partialFileName
+     * @param offset
+     * @param length
+     * @param cancelCount The number of cancels received for the song when the request
+     * was received.  The request is dropped if the song was canceled since.
+     */
+    private void sendSongData(String requestAddr, long songId, String partialFileName, int offset, int length,
+            int cancelCount) {
         MessageFuture future = null;
         try {
             String filePath = getMusicLibraryService().getSongFilePath(songId);
             File songFile = new File(filePath);
-            //send the transfer song message back to the requester
-            future = getMessagingService().sendTransferSongMessage(requestAddr, songId, songFile.getName(), songFile.getCanonicalPath());
+            FileManifest manifest = partialFileName != null ? getManifest(songFile) : null;
             final String key = makeKey(requestAddr, songId);
-            this.messageFutures.put(key, future);
+            //NOTE: the message is sent with the lock held, so a cancel either finds its
+            // future, or stops it from being sent
+            synchronized (this.messageFutures) {
+                if (getCancelCount(key) != cancelCount) {
+                    Log.i(TAG, "Request for song " + songId + " from " + requestAddr + " canceled before it was sent");
+                    return;
+                }
+                //send the transfer song message back to the requester
+                if (manifest != null) {
+                    int chunkSize  = manifest.getChunkSize();
+                    int fileLength = manifest.getFileLength();
+                    //send whole chunks, so the requester can check each one
+                    int start = Math.max(0, Math.min(offset, fileLength));
+                    start -= start % chunkSize;
+                    long end = length == RequestSongMessage.TO_END ? fileLength : (long) offset + length;
+                    end = Math.min(fileLength, (end + chunkSize - 1) / chunkSize * chunkSize);
+                    future = getMessagingService().sendTransferSongMessage(requestAddr, songId, songFile.getName(),
+                            songFile.getCanonicalPath(), manifest, partialFileName, start, (int) Math.max(0, end - start));
+                } else {
+                    future = getMessagingService().sendTransferSongMessage(requestAddr, songId, songFile.getName(), songFile.getCanonicalPath());
+                }
+                List<MessageFuture> futures = this.messageFutures.get(key);
+                if (futures == null) {
+                    futures = new ArrayList<MessageFuture>();
+                    this.messageFutures.put(key, futures);
+                }
+                futures.add(future);
+            }
+            final MessageFuture sent = future;
             future.setFinishedHandler(new IFinishedHandler() {
 
                 @Override
                 public void finished() {
-                    messageFutures.remove(key);
+                    synchronized (messageFutures) {
+                        List<MessageFuture> futures = messageFutures.get(key);
+                        if (futures != null) {
+                            futures.remove(sent);
+                            if (futures.isEmpty()) {
+                                messageFutures.remove(key);
+                            }
+                        }
+                    }
                 }
             });
         } catch (SongNotFoundException e) {
@@ -168,6 +303,32 @@ public class TransferService extends Service {
         }
     }
 
+    /**
+     * Get the manifest for a song file, computing it if the file is new or
+     * has changed.
+     * 
+     * NOTE: this reads the whole song if the manifest is not cached, so it must not
+     * be called on the main thread.
+     * 
+     * @param songFile
+     * @return
+     * @throws IOException
+     */
+    private FileManifest getManifest(File songFile) throws IOException {
+        String key = songFile.getCanonicalPath() + "_" + songFile.length() + "_" + songFile.lastModified();
+        FileManifest manifest;
+        synchronized (this.manifests) {
+            manifest = this.manifests.get(key);
+        }
+        if (manifest == null) {
+            manifest = FileManifest.create(songFile, FileManifest.DEFAULT_CHUNK_SIZE);
+            synchronized (this.manifests) {
+                this.manifests.put(key, manifest);
+            }
+        }
+        return manifest;
+    }
+
     private IMessagingService getMessagingService() {
         MessagingService messagingService = null;
         try {
@@ -18,40 +18,141 @@
  */
 package com.thelastcrusade.soundstream.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * This class represents an input buffer, which will collect bytes from a network
  * or another process and hold them for further processing.  To access the bytes,
- * one can use the underlying ByteArrayOutputStream functions, or get an input
- * stream that exposes the underlying byte array as a stream object.  This also
- * allows the caller to remove bytes consumed through the input stream, to keep
- * memory low and code clean.
+ * one can get an input stream that exposes the underlying byte array as a stream
+ * object, or take a read only slice of the unread bytes.  This also allows the
+ * caller to remove bytes consumed through the input stream, to keep memory low
+ * and code clean.
+ * 
+ * The bytes are held in a growable ring buffer, so consuming bytes only moves the
+ * head of the ring (it does not copy the unread bytes), and the buffer memory is
+ * reused as bytes are written and consumed.
  * 
  * @author Jesse Rosalia
  *
  */
-public class InputBuffer extends ByteArrayOutputStream {
+public class InputBuffer extends OutputStream {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private byte[] buf;
 
+    //position of the first byte in the ring
+    private int head  = 0;
+
+    //number of bytes in the ring
+    private int count = 0;
+
+    //number of bytes read (through the input stream or a slice), relative to head
     private int index = 0;
-    
+
+    /**
+     * A read only view of a range of bytes in an input buffer.  This allows
+     * callers to read or pass along bytes without first copying them out
+     * of the buffer.
+     * 
+     * NOTE: a slice is backed by the buffer memory, and is only valid until the
+     * next write to the buffer (the consumed space may be reused by that write).
+     * 
+     */
+    public static class Slice extends InputStream {
+        private final byte[] array;
+        private final int start;
+        private final int length;
+        private int pos;
+
+        private Slice(byte[] array, int start, int length) {
+            this.array  = array;
+            this.start  = start;
+            this.length = length;
+        }
+
+        @Override
+        public int available() {
+            return length - pos;
+        }
+
+        /**
+         * @return The total number of bytes in this slice.
+         */
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int read() {
+            return pos < length ? (int) array[(start + pos++) % array.length] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len) {
+            checkBounds(buffer, offset, len);
+            if (len == 0) {
+                return 0;
+            }
+            if (available() <= 0) {
+                return -1;
+            }
+            int toCopy = Math.min(len, available());
+            copyOut(array, start + pos, buffer, offset, toCopy);
+            pos += toCopy;
+            return toCopy;
+        }
+
+        /**
+         * Write the unread bytes in this slice to the output stream.  This
+         * writes directly from the buffer memory (at most two writes, if the
+         * slice wraps around the end of the ring).  This does not affect the
+         * read position of the slice.
+         * 
+         * @param output
+         * @return The number of bytes written
+         * @throws IOException
+         */
+        public int writeTo(OutputStream output) throws IOException {
+            int toWrite = available();
+            int from = (start + pos) % array.length;
+            int first = Math.min(toWrite, array.length - from);
+            if (first > 0) {
+                output.write(array, from, first);
+            }
+            if (toWrite > first) {
+                output.write(array, 0, toWrite - first);
+            }
+            return toWrite;
+        }
+
+        /**
+         * Copy all of the bytes in the slice out into a new byte array.  This
+         * does not affect the read position of the slice.
+         * 
+         * @return
+         */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            copyOut(array, start, bytes, 0, length);
+            return bytes;
+        }
+    }
+
     private class InputBufferInputStream extends InputStream {
 
         @Override
         public int available() throws IOException {
-            return size() - index;
+            return count - index;
         }
 
         @Override
         public int read(byte[] buffer, int offset, int length)
                 throws IOException {
-            if (buffer == null) {
-                throw new NullPointerException();
-            } else if (offset < 0 || length < 0 || length > buffer.length - offset) {
-                throw new IndexOutOfBoundsException();
-            } else if (length == 0) {
+            checkBounds(buffer, offset, length);
+            if (length == 0) {
                 return 0;
             }
 
@@ -61,7 +162,7 @@ public class InputBuffer extends ByteArrayOutputStream {
             //NOTE: there may not be length bytes available..and that's ok.  code that uses
             // this stream will check this case and react appropriately
             int toCopy = Math.min(length, available());
-            System.arraycopy(buf, index, buffer, offset, toCopy);
+            copyOut(buf, head + index, buffer, offset, toCopy);
             index += toCopy;
             return toCopy;
         }
@@ -69,10 +170,106 @@ public class InputBuffer extends ByteArrayOutputStream {
         @Override
         public int read() throws IOException {
             //read returns an integer between 0 and 255, or -1
-            return index < size() ? (int) buf[index++] & 0xFF : -1;
+            return index < count ? (int) buf[(head + index++) % buf.length] & 0xFF : -1;
+        }
+    }
+
+    public InputBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The initial capacity of the buffer, in bytes.
+     */
+    public InputBuffer(int capacity) {
+        this.buf = new byte[Math.max(capacity, 1)];
+    }
+
+    private static void checkBounds(byte[] buffer, int offset, int length) {
+        if (buffer == null) {
+            throw new NullPointerException();
+        } else if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Copy length bytes out of a ring, starting at the specified position
+     * (which may be past the end of the ring, and will wrap around).
+     * 
+     */
+    private static void copyOut(byte[] ring, int from, byte[] dest, int offset, int length) {
+        from %= ring.length;
+        int first = Math.min(length, ring.length - from);
+        System.arraycopy(ring, from, dest, offset, first);
+        if (length > first) {
+            System.arraycopy(ring, 0, dest, offset + first, length - first);
+        }
+    }
+
+    /**
+     * Make sure the ring can hold at least required bytes.  When the ring
+     * grows, the bytes are unwrapped so the head is at the start of the new
+     * ring.
+     * 
+     * @param required
+     */
+    private void ensureCapacity(int required) {
+        if (required > buf.length) {
+            byte[] newBuf = new byte[Math.max(required, buf.length * 2)];
+            copyOut(buf, head, newBuf, 0, count);
+            buf  = newBuf;
+            head = 0;
+        }
+    }
+
+    @Override
+    public void write(int oneByte) {
+        ensureCapacity(count + 1);
+        buf[(head + count) % buf.length] = (byte) oneByte;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        checkBounds(bytes, offset, length);
+        ensureCapacity(count + length);
+        int tail = (head + count) % buf.length;
+        int first = Math.min(length, buf.length - tail);
+        System.arraycopy(bytes, offset, buf, tail, first);
+        if (length > first) {
+            System.arraycopy(bytes, offset + first, buf, 0, length - first);
         }
+        count += length;
+    }
+
+    /**
+     * @return The number of bytes held in the buffer (read or not).
+     */
+    public int size() {
+        return count;
     }
-    
+
+    /**
+     * Clear all bytes out of the buffer.
+     */
+    public void reset() {
+        head  = 0;
+        count = 0;
+        index = 0;
+    }
+
+    /**
+     * Copy the bytes held in the buffer into a new byte array.
+     * 
+     * @return
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        copyOut(buf, head, bytes, 0, count);
+        return bytes;
+    }
+
     /**
      * Get an input stream to read in the underlying data.
      * 
@@ -86,14 +283,55 @@ public class InputBuffer extends ByteArrayOutputStream {
     }
 
     /**
+     * Take a read only slice of the next length unread bytes.  This
+     * advances the read index past those bytes (as if they were read
+     * through the input stream), so they will be removed on the next
+     * call to consume.
      * 
+     * @param length
+     * @return
+     */
+    public Slice slice(int length) {
+        if (length < 0 || length > count - index) {
+            throw new IndexOutOfBoundsException();
+        }
+        Slice slice = new Slice(buf, (head + index) % buf.length, length);
+        index += length;
+        return slice;
+    }
+
+    /**
+     * Take a read only slice of all of the unread bytes.
+     * 
+     * @return
+     * @see #slice(int)
+     */
+    public Slice slice() {
+        return slice(count - index);
+    }
+
+    /**
+     * Remove all bytes read through the input stream (or taken as slices)
+     * from the buffer.  This only moves the head of the ring, and so does
+     * not depend on the number of bytes left in the buffer.
      */
     public void consume() {
         //consume all bytes read in using the input stream
-        byte[] save = super.buf;
-        int len = super.count;
-        super.reset();
-        write(save, index, len - index);
+        consume(index);
+    }
+
+    /**
+     * Remove the first length bytes from the buffer (whether they were read
+     * or not), and reset the read index to the new head of the buffer.
+     * 
+     * @param length
+     */
+    public void consume(int length) {
+        if (length < 0 || length > count) {
+            throw new IndexOutOfBoundsException();
+        }
+        count -= length;
+        head = count > 0 ? (head + length) % buf.length : 0;
         index = 0;
     }
 }
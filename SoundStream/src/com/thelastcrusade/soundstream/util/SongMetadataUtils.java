@@ -44,6 +44,27 @@ public class SongMetadataUtils {
         return lhs.getMacAddress().equals(rhs.getMacAddress()) &&
                lhs.getId() == rhs.getId();
     }
+
+    /**
+     * Checks to see if two songs have identical metadata - same mac address, id,
+     * title, artist, album, file size and content hash
+     * 
+     * @param lhs
+     * @param rhs
+     * @return
+     */
+    public static boolean isTheSameMetadata(SongMetadata lhs, SongMetadata rhs) {
+        return isTheSameSong(lhs, rhs) &&
+               isEqual(lhs.getTitle(),  rhs.getTitle())  &&
+               isEqual(lhs.getArtist(), rhs.getArtist()) &&
+               isEqual(lhs.getAlbum(),  rhs.getAlbum())  &&
+               lhs.getFileSize() == rhs.getFileSize() &&
+               lhs.getContentHash() == rhs.getContentHash();
+    }
+
+    private static boolean isEqual(String lhs, String rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
     
     /**
      * Checks to see if the two playlist entries are identical - same mac address,